@@ -0,0 +1,48 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Composent, Inc. and others. All rights reserved. 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ * 
+ * Contributors: Composent, Inc. - initial API and implementation
+ ******************************************************************************/
+package com.composent.objectstore.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Run the benchmarks in this package with the gc profiler enabled, so that
+ * allocation rate (gc.alloc.rate.norm) is reported along with throughput. The
+ * first argument, if present, is a regular expression selecting the
+ * benchmarks to run. The benchmarks must have been compiled with the JMH
+ * annotation processor, which generates the META-INF/BenchmarkList resource
+ * read by the runner.
+ */
+public class BenchmarkRunner {
+
+	public static void main(String[] args) throws RunnerException {
+		if (BenchmarkRunner.class.getResource("/META-INF/BenchmarkList") == null)
+			throw new IllegalStateException(
+					"META-INF/BenchmarkList not found. The benchmarks must be "
+							+ "compiled with the jmh-generator-annprocess "
+							+ "annotation processor (see README.md)");
+		String include = (args.length > 0) ? args[0] : BenchmarkRunner.class
+				.getPackage().getName() + ".*Benchmark";
+		Options options = new OptionsBuilder().include(include)
+				.addProfiler(GCProfiler.class).build();
+		new Runner(options).run();
+	}
+}
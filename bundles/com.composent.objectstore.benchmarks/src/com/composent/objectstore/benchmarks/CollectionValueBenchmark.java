@@ -0,0 +1,88 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Composent, Inc. and others. All rights reserved. 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ * 
+ * Contributors: Composent, Inc. - initial API and implementation
+ ******************************************************************************/
+package com.composent.objectstore.benchmarks;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.composent.objectstore.IObjectStore.CollectionValue;
+
+/**
+ * Element type validation done by CollectionValue.list, set and map.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CollectionValueBenchmark {
+
+	@Param({ "1000", "100000" })
+	public int size;
+
+	private List<String> list;
+	private Set<UUID> set;
+	private Map<String, Long> map;
+
+	@Setup
+	public void setup() {
+		this.list = new ArrayList<String>(this.size);
+		this.set = new HashSet<UUID>();
+		this.map = new HashMap<String, Long>();
+		for (int i = 0; i < this.size; i++) {
+			String s = "element-" + i;
+			this.list.add(s);
+			this.set.add(new UUID(i, ~i));
+			this.map.put(s, Long.valueOf(i));
+		}
+	}
+
+	@Benchmark
+	public CollectionValue list() {
+		return CollectionValue.list(String.class, this.list);
+	}
+
+	@Benchmark
+	public CollectionValue set() {
+		return CollectionValue.set(UUID.class, this.set);
+	}
+
+	@Benchmark
+	public CollectionValue map() {
+		return CollectionValue.map(String.class, Long.class, this.map);
+	}
+}
@@ -0,0 +1,139 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Composent, Inc. and others. All rights reserved. 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ * 
+ * Contributors: Composent, Inc. - initial API and implementation
+ ******************************************************************************/
+package com.composent.objectstore.benchmarks;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+import com.composent.objectstore.IObjectStore;
+import com.composent.objectstore.IObjectStore.ObjectStoreItem;
+import com.composent.objectstore.StoreException;
+import com.composent.objectstore.StoreObject;
+import com.composent.objectstore.StoreObjectMetadata;
+import com.composent.objectstore.StoreResult;
+
+/**
+ * Shared benchmark state setup. All benchmarks run against
+ * {@link com.composent.objectstore.memory.MemoryObjectStore}, so that results
+ * measure client-side cost only.
+ */
+final class Fixtures {
+
+	/**
+	 * StoreObject that exposes item collection and revival to benchmarks.
+	 */
+	static class BenchStoreObject extends StoreObject {
+
+		BenchStoreObject(IObjectStore store, StoreObjectMetadata metadata) {
+			super(store, metadata);
+		}
+
+		Collection<ObjectStoreItem> items() throws StoreException {
+			return collectItems();
+		}
+
+		BenchStoreObject revive(List<ObjectStoreItem> items) {
+			doRevive(items);
+			return this;
+		}
+
+		@Override
+		public StoreResult store() throws StoreException {
+			throw new StoreException("BenchStoreObject cannot be stored");
+		}
+	}
+
+	private Fixtures() {
+	}
+
+	static String fieldName(int index) {
+		return "f" + index;
+	}
+
+	static Class<?> fieldType(int index) {
+		return IObjectStore.PRIMITIVE_TYPES.get(index
+				% IObjectStore.PRIMITIVE_TYPES.size());
+	}
+
+	/**
+	 * Create an object table with fieldCount primitive fields named f0..fN,
+	 * cycling through all of {@link IObjectStore#PRIMITIVE_TYPES}.
+	 */
+	static StoreObjectMetadata createTable(IObjectStore store,
+			String className, int fieldCount) throws StoreException {
+		StoreObjectMetadata metadata = store.createObjectTable(className,
+				true);
+		for (int i = 0; i < fieldCount; i++)
+			metadata = store.addPrimitiveField(className, fieldName(i),
+					fieldType(i), true);
+		return metadata;
+	}
+
+	static void populate(StoreObject storeObject, int fieldCount) {
+		for (int i = 0; i < fieldCount; i++)
+			put(storeObject, fieldName(i), fieldType(i), value(fieldType(i), i));
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> void put(StoreObject storeObject, String key,
+			Class<T> type, Object value) {
+		storeObject.putPrimitive(key, type, (T) value);
+	}
+
+	static Object value(Class<?> type, int seed) {
+		if (String.class.equals(type))
+			return "value-" + seed;
+		else if (ByteBuffer.class.equals(type))
+			return ByteBuffer.wrap(new byte[] { (byte) seed, 1, 2, 3, 4, 5,
+					6, 7 });
+		else if (Long.class.equals(type))
+			return Long.valueOf(seed * 1000003L);
+		else if (Integer.class.equals(type))
+			return Integer.valueOf(seed);
+		else if (Date.class.equals(type))
+			return new Date(1400000000000L + seed);
+		else if (Boolean.class.equals(type))
+			return Boolean.valueOf((seed & 1) == 0);
+		else if (Float.class.equals(type))
+			return Float.valueOf(seed * 1.5f);
+		else if (Double.class.equals(type))
+			return Double.valueOf(seed * 2.5d);
+		else if (BigDecimal.class.equals(type))
+			return new BigDecimal(seed).movePointLeft(2);
+		else if (UUID.class.equals(type))
+			return new UUID(seed, ~seed);
+		else if (BigInteger.class.equals(type))
+			return BigInteger.valueOf(seed).shiftLeft(70);
+		else if (InetAddress.class.equals(type))
+			try {
+				return InetAddress.getByAddress(new byte[] { 10, 0,
+						(byte) (seed >> 8), (byte) seed });
+			} catch (UnknownHostException e) {
+				throw new IllegalStateException(e);
+			}
+		throw new IllegalArgumentException("type=" + type
+				+ " is not a primitive type");
+	}
+}
@@ -0,0 +1,208 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Composent, Inc. and others. All rights reserved. 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ * 
+ * Contributors: Composent, Inc. - initial API and implementation
+ ******************************************************************************/
+package com.composent.objectstore.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.composent.objectstore.IObjectStore;
+import com.composent.objectstore.Storable;
+import com.composent.objectstore.StoreException;
+import com.composent.objectstore.StoreObject;
+import com.composent.objectstore.memory.MemoryObjectStore;
+
+/**
+ * Storable.storeTo and reviveAll for a document with a nested Storable owner
+ * and a list of Storable sections.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StorableBenchmark {
+
+	public static class Owner extends Storable {
+
+		private String name;
+
+		public Owner() {
+			super("BenchOwner");
+		}
+
+		public Owner(String name) {
+			this();
+			this.name = name;
+		}
+
+		@Override
+		protected void createFields(IObjectStore store, boolean ifNotExists)
+				throws StoreException {
+			createPrimitiveField(store, String.class, "name", ifNotExists);
+		}
+
+		@Override
+		protected void storeFields(StoreObject storeObject)
+				throws StoreException {
+			storePrimitiveField(storeObject, "name", this.name);
+		}
+
+		@Override
+		protected void reviveFields(StoreObject storeObject)
+				throws StoreException {
+			this.name = revivePrimitiveField(storeObject, String.class, "name");
+		}
+	}
+
+	public static class Section extends Storable {
+
+		private String heading;
+		private Integer position;
+
+		public Section() {
+			super("BenchSection");
+		}
+
+		public Section(String heading, Integer position) {
+			this();
+			this.heading = heading;
+			this.position = position;
+		}
+
+		@Override
+		protected void createFields(IObjectStore store, boolean ifNotExists)
+				throws StoreException {
+			createPrimitiveField(store, String.class, "heading", ifNotExists);
+			createPrimitiveField(store, Integer.class, "position",
+					ifNotExists);
+		}
+
+		@Override
+		protected void storeFields(StoreObject storeObject)
+				throws StoreException {
+			storePrimitiveField(storeObject, "heading", this.heading);
+			storePrimitiveField(storeObject, "position", this.position);
+		}
+
+		@Override
+		protected void reviveFields(StoreObject storeObject)
+				throws StoreException {
+			this.heading = revivePrimitiveField(storeObject, String.class,
+					"heading");
+			this.position = revivePrimitiveField(storeObject, Integer.class,
+					"position");
+		}
+	}
+
+	public static class Document extends Storable {
+
+		private String title;
+		private Owner owner;
+		private List<Section> sections;
+
+		public Document() {
+			super("BenchDocument");
+		}
+
+		public Document(String title, Owner owner, List<Section> sections) {
+			this();
+			this.title = title;
+			this.owner = owner;
+			this.sections = sections;
+		}
+
+		@Override
+		protected void createFields(IObjectStore store, boolean ifNotExists)
+				throws StoreException {
+			createPrimitiveField(store, String.class, "title", ifNotExists);
+			createStorableField(store, "owner", ifNotExists);
+			createListField(store, Section.class, "sections", ifNotExists);
+		}
+
+		@Override
+		protected void storeFields(StoreObject storeObject)
+				throws StoreException {
+			storePrimitiveField(storeObject, "title", this.title);
+			storeStorableField(storeObject, "owner", this.owner);
+			storeListField(storeObject, Section.class, "sections",
+					this.sections);
+		}
+
+		@Override
+		protected void reviveFields(StoreObject storeObject)
+				throws StoreException {
+			this.title = revivePrimitiveField(storeObject, String.class,
+					"title");
+			this.owner = reviveStorableField(storeObject, Owner.class,
+					"owner");
+			this.sections = reviveListField(storeObject, Section.class,
+					"sections");
+		}
+	}
+
+	@Param({ "10", "100" })
+	public int sectionCount;
+
+	private IObjectStore store;
+	private Document document;
+
+	private Document createDocument(int index) {
+		List<Section> sections = new ArrayList<Section>(this.sectionCount);
+		for (int i = 0; i < this.sectionCount; i++)
+			sections.add(new Section("section-" + i, Integer.valueOf(i)));
+		return new Document("document-" + index, new Owner("owner-" + index),
+				sections);
+	}
+
+	@Setup
+	public void setup() throws StoreException {
+		this.store = new MemoryObjectStore();
+		new Owner().createObjectTable(this.store, true);
+		new Section().createObjectTable(this.store, true);
+		new Document().createObjectTable(this.store, true);
+		// a fixed population of ten documents for reviveAll
+		for (int i = 0; i < 10; i++)
+			createDocument(i).storeTo(this.store);
+		this.document = createDocument(10);
+	}
+
+	@Benchmark
+	public Storable storeTo() throws StoreException {
+		return this.document.storeTo(this.store);
+	}
+
+	@Benchmark
+	public Collection<? extends Storable> reviveAll() throws StoreException {
+		return new Document().reviveAll(this.store);
+	}
+}
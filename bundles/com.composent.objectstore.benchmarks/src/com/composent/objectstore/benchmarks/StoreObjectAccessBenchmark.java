@@ -0,0 +1,257 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Composent, Inc. and others. All rights reserved. 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ * 
+ * Contributors: Composent, Inc. - initial API and implementation
+ ******************************************************************************/
+package com.composent.objectstore.benchmarks;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Date;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.composent.objectstore.IObjectStore;
+import com.composent.objectstore.StoreException;
+import com.composent.objectstore.StoreObject;
+import com.composent.objectstore.memory.MemoryObjectStore;
+
+/**
+ * StoreObject put and get* for each of the 12 primitive types, and the
+ * unboxed accessors for the numeric and boolean types.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StoreObjectAccessBenchmark {
+
+	// Field names follow the order of IObjectStore.PRIMITIVE_TYPES
+	private static final String STRING = Fixtures.fieldName(0);
+	private static final String BYTES = Fixtures.fieldName(1);
+	private static final String LONG = Fixtures.fieldName(2);
+	private static final String INTEGER = Fixtures.fieldName(3);
+	private static final String DATE = Fixtures.fieldName(4);
+	private static final String BOOLEAN = Fixtures.fieldName(5);
+	private static final String FLOAT = Fixtures.fieldName(6);
+	private static final String DOUBLE = Fixtures.fieldName(7);
+	private static final String DECIMAL = Fixtures.fieldName(8);
+	private static final String UUID_ = Fixtures.fieldName(9);
+	private static final String BIGINTEGER = Fixtures.fieldName(10);
+	private static final String INETADDRESS = Fixtures.fieldName(11);
+
+	private StoreObject storeObject;
+
+	private String stringValue;
+	private ByteBuffer bytesValue;
+	private Long longValue;
+	private Integer integerValue;
+	private Date dateValue;
+	private Boolean booleanValue;
+	private Float floatValue;
+	private Double doubleValue;
+	private BigDecimal decimalValue;
+	private UUID uuidValue;
+	private BigInteger bigIntegerValue;
+	private InetAddress inetAddressValue;
+
+	@Setup
+	public void setup() throws StoreException {
+		IObjectStore store = new MemoryObjectStore();
+		int fieldCount = IObjectStore.PRIMITIVE_TYPES.size();
+		Fixtures.createTable(store, "BenchAccess", fieldCount);
+		this.storeObject = store.createStoreObject("BenchAccess");
+		Fixtures.populate(this.storeObject, fieldCount);
+		this.stringValue = (String) Fixtures.value(String.class, 42);
+		this.bytesValue = (ByteBuffer) Fixtures.value(ByteBuffer.class, 42);
+		this.longValue = (Long) Fixtures.value(Long.class, 42);
+		this.integerValue = (Integer) Fixtures.value(Integer.class, 42);
+		this.dateValue = (Date) Fixtures.value(Date.class, 42);
+		this.booleanValue = (Boolean) Fixtures.value(Boolean.class, 42);
+		this.floatValue = (Float) Fixtures.value(Float.class, 42);
+		this.doubleValue = (Double) Fixtures.value(Double.class, 42);
+		this.decimalValue = (BigDecimal) Fixtures.value(BigDecimal.class, 42);
+		this.uuidValue = (UUID) Fixtures.value(UUID.class, 42);
+		this.bigIntegerValue = (BigInteger) Fixtures
+				.value(BigInteger.class, 42);
+		this.inetAddressValue = (InetAddress) Fixtures.value(
+				InetAddress.class, 42);
+	}
+
+	@Benchmark
+	public String putString() {
+		return this.storeObject.put(STRING, this.stringValue);
+	}
+
+	@Benchmark
+	public String getString() {
+		return this.storeObject.getString(STRING);
+	}
+
+	@Benchmark
+	public ByteBuffer putBytes() {
+		return this.storeObject.put(BYTES, this.bytesValue);
+	}
+
+	@Benchmark
+	public ByteBuffer getBytes() {
+		return this.storeObject.getBytes(BYTES);
+	}
+
+	@Benchmark
+	public Long putLong() {
+		return this.storeObject.put(LONG, this.longValue);
+	}
+
+	@Benchmark
+	public Long getLong() {
+		return this.storeObject.getLong(LONG);
+	}
+
+	@Benchmark
+	public void putLongValue() {
+		this.storeObject.putLong(LONG, 42L);
+	}
+
+	@Benchmark
+	public long getLongValue() {
+		return this.storeObject.getLongValue(LONG);
+	}
+
+	@Benchmark
+	public Integer putInteger() {
+		return this.storeObject.put(INTEGER, this.integerValue);
+	}
+
+	@Benchmark
+	public Integer getInt() {
+		return this.storeObject.getInt(INTEGER);
+	}
+
+	@Benchmark
+	public void putIntValue() {
+		this.storeObject.putInt(INTEGER, 42);
+	}
+
+	@Benchmark
+	public int getIntValue() {
+		return this.storeObject.getIntValue(INTEGER);
+	}
+
+	@Benchmark
+	public Date putDate() {
+		return this.storeObject.put(DATE, this.dateValue);
+	}
+
+	@Benchmark
+	public Date getDate() {
+		return this.storeObject.getDate(DATE);
+	}
+
+	@Benchmark
+	public Boolean putBoolean() {
+		return this.storeObject.put(BOOLEAN, this.booleanValue);
+	}
+
+	@Benchmark
+	public Boolean getBoolean() {
+		return this.storeObject.getBoolean(BOOLEAN);
+	}
+
+	@Benchmark
+	public Float putFloat() {
+		return this.storeObject.put(FLOAT, this.floatValue);
+	}
+
+	@Benchmark
+	public Float getFloat() {
+		return this.storeObject.getFloat(FLOAT);
+	}
+
+	@Benchmark
+	public Double putDouble() {
+		return this.storeObject.put(DOUBLE, this.doubleValue);
+	}
+
+	@Benchmark
+	public Double getDouble() {
+		return this.storeObject.getDouble(DOUBLE);
+	}
+
+	@Benchmark
+	public void putDoubleValue() {
+		this.storeObject.putDouble(DOUBLE, 42.5d);
+	}
+
+	@Benchmark
+	public double getDoubleValue() {
+		return this.storeObject.getDoubleValue(DOUBLE);
+	}
+
+	@Benchmark
+	public BigDecimal putDecimal() {
+		return this.storeObject.put(DECIMAL, this.decimalValue);
+	}
+
+	@Benchmark
+	public BigDecimal getDecimal() {
+		return this.storeObject.getDecimal(DECIMAL);
+	}
+
+	@Benchmark
+	public UUID putUUID() {
+		return this.storeObject.put(UUID_, this.uuidValue);
+	}
+
+	@Benchmark
+	public UUID getUUID() {
+		return this.storeObject.getUUID(UUID_);
+	}
+
+	@Benchmark
+	public BigInteger putBigInteger() {
+		return this.storeObject.put(BIGINTEGER, this.bigIntegerValue);
+	}
+
+	@Benchmark
+	public BigInteger getBigInteger() {
+		return this.storeObject.getBigInteger(BIGINTEGER);
+	}
+
+	@Benchmark
+	public InetAddress putInetAddress() {
+		return this.storeObject.put(INETADDRESS, this.inetAddressValue);
+	}
+
+	@Benchmark
+	public InetAddress getInetAddress() {
+		return this.storeObject.getInetAddress(INETADDRESS);
+	}
+}
@@ -0,0 +1,81 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Composent, Inc. and others. All rights reserved. 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ * 
+ * Contributors: Composent, Inc. - initial API and implementation
+ ******************************************************************************/
+package com.composent.objectstore.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.composent.objectstore.IObjectStore;
+import com.composent.objectstore.StoreException;
+import com.composent.objectstore.StoreObject;
+import com.composent.objectstore.StoreObject.ConcurrencyMode;
+import com.composent.objectstore.memory.MemoryObjectStore;
+
+/**
+ * Concurrent reads of a single shared StoreObject, for each
+ * {@link ConcurrencyMode}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(8)
+public class StoreObjectConcurrencyBenchmark {
+
+	private static final String STRING = Fixtures.fieldName(0);
+	private static final String LONG = Fixtures.fieldName(2);
+
+	@Param({ "SYNCHRONIZED", "COPY_ON_WRITE" })
+	public ConcurrencyMode mode;
+
+	private StoreObject storeObject;
+
+	@Setup
+	public void setup() throws StoreException {
+		IObjectStore store = new MemoryObjectStore();
+		int fieldCount = IObjectStore.PRIMITIVE_TYPES.size();
+		Fixtures.createTable(store, "BenchConcurrency", fieldCount);
+		this.storeObject = store.createStoreObject("BenchConcurrency");
+		Fixtures.populate(this.storeObject, fieldCount);
+		this.storeObject.setConcurrencyMode(this.mode);
+	}
+
+	@Benchmark
+	public String getString() {
+		return this.storeObject.getString(STRING);
+	}
+
+	@Benchmark
+	public long getLongValue() {
+		return this.storeObject.getLongValue(LONG);
+	}
+}
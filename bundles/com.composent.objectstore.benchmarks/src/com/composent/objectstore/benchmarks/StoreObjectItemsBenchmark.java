@@ -0,0 +1,84 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Composent, Inc. and others. All rights reserved. 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ * 
+ * Contributors: Composent, Inc. - initial API and implementation
+ ******************************************************************************/
+package com.composent.objectstore.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.composent.objectstore.IObjectStore;
+import com.composent.objectstore.IObjectStore.ObjectStoreItem;
+import com.composent.objectstore.StoreException;
+import com.composent.objectstore.StoreObjectMetadata;
+import com.composent.objectstore.benchmarks.Fixtures.BenchStoreObject;
+import com.composent.objectstore.memory.MemoryObjectStore;
+
+/**
+ * StoreObject item collection (the write path) and revival (the read path)
+ * for objects of increasing width.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StoreObjectItemsBenchmark {
+
+	@Param({ "10", "100", "1000" })
+	public int fieldCount;
+
+	private IObjectStore store;
+	private StoreObjectMetadata metadata;
+	private BenchStoreObject storeObject;
+	private List<ObjectStoreItem> items;
+
+	@Setup
+	public void setup() throws StoreException {
+		this.store = new MemoryObjectStore();
+		this.metadata = Fixtures.createTable(this.store, "BenchItems"
+				+ this.fieldCount, this.fieldCount);
+		this.storeObject = new BenchStoreObject(this.store, this.metadata);
+		Fixtures.populate(this.storeObject, this.fieldCount);
+		this.items = new ArrayList<ObjectStoreItem>(this.storeObject.items());
+	}
+
+	@Benchmark
+	public Collection<ObjectStoreItem> collectItems() throws StoreException {
+		return this.storeObject.items();
+	}
+
+	@Benchmark
+	public BenchStoreObject doRevive() {
+		return new BenchStoreObject(this.store, this.metadata)
+				.revive(this.items);
+	}
+}
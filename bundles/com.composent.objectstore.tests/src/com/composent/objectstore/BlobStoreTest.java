@@ -0,0 +1,154 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Composent, Inc. and others. All rights reserved. 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ * 
+ * Contributors: Composent, Inc. - initial API and implementation
+ ******************************************************************************/
+package com.composent.objectstore;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.util.Random;
+import java.util.UUID;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.composent.objectstore.memory.MemoryObjectStore;
+
+public class BlobStoreTest {
+
+	private static final String CLASS_NAME = "Blobs";
+
+	private MemoryObjectStore store;
+	private BlobStore blobStore;
+
+	@Before
+	public void setUp() throws StoreException {
+		this.store = new MemoryObjectStore();
+		this.blobStore = new BlobStore(this.store, CLASS_NAME);
+		this.blobStore.createTable(false);
+		this.blobStore.setChunkSize(1024);
+	}
+
+	private static byte[] bytes(int length) {
+		byte[] result = new byte[length];
+		new Random(length).nextBytes(result);
+		return result;
+	}
+
+	private byte[] read(UUID blobId) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertEquals(this.blobStore.getLength(blobId), this.blobStore.read(
+				blobId, Channels.newChannel(out)));
+		return out.toByteArray();
+	}
+
+	@Test
+	public void testWriteAndRead() throws Exception {
+		// empty, less than, exactly and more than one chunk
+		for (int length : new int[] { 0, 10, 1024, 12345 }) {
+			byte[] value = bytes(length);
+			UUID blobId = this.blobStore.write(ByteBuffer.wrap(value));
+			assertEquals(length, this.blobStore.getLength(blobId));
+			assertArrayEquals(value, read(blobId));
+		}
+	}
+
+	@Test
+	public void testWriteInParts() throws Exception {
+		byte[] value = bytes(5500);
+		BlobStore.BlobWriter writer = this.blobStore.openWrite();
+		for (int offset = 0; offset < value.length; offset += 700)
+			writer.write(ByteBuffer.wrap(value, offset, Math.min(700,
+					value.length - offset)));
+		// not readable until closed
+		assertNull(this.blobStore.openRead(writer.getId()));
+		writer.close();
+		assertFalse(writer.isOpen());
+		assertEquals(value.length, writer.getLength());
+		assertArrayEquals(value, read(writer.getId()));
+	}
+
+	@Test
+	public void testReadInParts() throws Exception {
+		byte[] value = bytes(3210);
+		UUID blobId = this.blobStore.write(ByteBuffer.wrap(value));
+		BlobStore.BlobReader reader = this.blobStore.openRead(blobId);
+		assertEquals(value.length, reader.getLength());
+		ByteBuffer result = ByteBuffer.allocate(value.length);
+		ByteBuffer part = ByteBuffer.allocate(333);
+		while (reader.read(part) >= 0) {
+			part.flip();
+			result.put(part);
+			part.clear();
+		}
+		reader.close();
+		assertFalse(result.hasRemaining());
+		assertArrayEquals(value, result.array());
+	}
+
+	@Test
+	public void testAbort() throws Exception {
+		BlobStore.BlobWriter writer = this.blobStore.openWrite();
+		writer.write(ByteBuffer.wrap(bytes(4500)));
+		writer.abort();
+		assertFalse(writer.isOpen());
+		try {
+			writer.write(ByteBuffer.wrap(bytes(1)));
+			fail("write after abort");
+		} catch (ClosedChannelException e) {
+			// expected
+		}
+		assertEquals(-1, this.blobStore.getLength(writer.getId()));
+		assertNull(this.blobStore.openRead(writer.getId()));
+	}
+
+	@Test
+	public void testDelete() throws Exception {
+		UUID blobId = this.blobStore.write(ByteBuffer.wrap(bytes(2500)));
+		assertTrue(this.blobStore.delete(blobId));
+		assertEquals(-1, this.blobStore.getLength(blobId));
+		assertTrue(this.store.retrieveIds(CLASS_NAME, null, null).isEmpty());
+		assertFalse(this.blobStore.delete(blobId));
+	}
+
+	@Test
+	public void testReadNotCached() throws Exception {
+		byte[] value = bytes(5000);
+		UUID blobId = this.blobStore.write(ByteBuffer.wrap(value));
+		ObjectCache cache = this.store.getObjectCache();
+		cache.setEnabled(true);
+		assertArrayEquals(value, read(blobId));
+		assertArrayEquals(value, read(blobId));
+		// only the header is cached, not the chunks
+		assertEquals(1, cache.size());
+	}
+
+	@Test
+	public void testNoBlob() throws StoreException {
+		UUID blobId = UUID.randomUUID();
+		assertEquals(-1, this.blobStore.getLength(blobId));
+		assertNull(this.blobStore.openRead(blobId));
+	}
+}
@@ -0,0 +1,84 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Composent, Inc. and others. All rights reserved. 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ * 
+ * Contributors: Composent, Inc. - initial API and implementation
+ ******************************************************************************/
+package com.composent.objectstore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LruMapTest {
+
+	@Test
+	public void testEvict() {
+		LruMap<Integer, String> map = new LruMap<Integer, String>(64);
+		for (int i = 0; i < 64; i++)
+			map.put(Integer.valueOf(i), "v" + i);
+		assertEquals(0, map.evict());
+		map.put(Integer.valueOf(64), "v64");
+		// trimmed to 15/16 of the maximum size
+		assertEquals(5, map.evict());
+		assertEquals(60, map.size());
+		// the least recently used are evicted
+		for (int i = 0; i < 5; i++)
+			assertNull(map.get(Integer.valueOf(i)));
+		assertEquals("v5", map.get(Integer.valueOf(5)));
+	}
+
+	@Test
+	public void testRecentlyUsedSurvive() {
+		LruMap<Integer, String> map = new LruMap<Integer, String>(16);
+		Integer hot = Integer.valueOf(-1);
+		map.put(hot, "hot");
+		for (int i = 0; i < 1000; i++) {
+			map.put(Integer.valueOf(i), "v" + i);
+			assertEquals("hot", map.get(hot));
+			map.evict();
+			assertTrue(map.size() <= 16);
+		}
+		assertEquals("v999", map.get(Integer.valueOf(999)));
+	}
+
+	@Test
+	public void testSetMaxSize() {
+		LruMap<Integer, String> map = new LruMap<Integer, String>(100);
+		for (int i = 0; i < 100; i++)
+			map.put(Integer.valueOf(i), "v" + i);
+		assertEquals(85, map.setMaxSize(16));
+		assertEquals(16, map.getMaxSize());
+		assertEquals(15, map.size());
+	}
+
+	@Test
+	public void testPutIfAbsentAndRemove() {
+		LruMap<String, String> map = new LruMap<String, String>(10);
+		String value = new String("v");
+		assertNull(map.putIfAbsent("k", value));
+		assertSame(value, map.putIfAbsent("k", "other"));
+		// removed only if the value is the same instance
+		map.remove("k", new String("v"));
+		assertSame(value, map.get("k"));
+		map.remove("k", value);
+		assertNull(map.get("k"));
+		map.put("k", value);
+		map.remove("k");
+		assertEquals(0, map.size());
+	}
+}
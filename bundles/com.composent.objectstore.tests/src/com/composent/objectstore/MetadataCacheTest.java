@@ -0,0 +1,169 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Composent, Inc. and others. All rights reserved. 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ * 
+ * Contributors: Composent, Inc. - initial API and implementation
+ ******************************************************************************/
+package com.composent.objectstore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.composent.objectstore.memory.MemoryObjectStore;
+
+public class MetadataCacheTest {
+
+	private static final String CLASS_NAME = "Thing";
+
+	private MemoryObjectStore store;
+	// the metadata loaded by className
+	private final Map<String, StoreObjectMetadata> metadata = new HashMap<String, StoreObjectMetadata>();
+	private int loads;
+	private Runnable onLoad;
+	private MetadataCache cache;
+
+	@Before
+	public void setUp() throws StoreException {
+		this.store = new MemoryObjectStore();
+		this.metadata.put(CLASS_NAME, this.store.createObjectTable(
+				CLASS_NAME, false));
+		this.cache = new MetadataCache(new MetadataCache.Loader() {
+			public StoreObjectMetadata load(String className)
+					throws StoreException {
+				loads++;
+				if (onLoad != null)
+					onLoad.run();
+				StoreObjectMetadata result = metadata.get(className);
+				if (result == null)
+					throw new StoreException("no className=" + className);
+				return result;
+			}
+		});
+	}
+
+	private StoreObjectMetadata addField(String name) throws StoreException {
+		StoreObjectMetadata result = this.store.addPrimitiveField(CLASS_NAME,
+				name, String.class, false);
+		this.metadata.put(CLASS_NAME, result);
+		return result;
+	}
+
+	@Test
+	public void testGet() throws StoreException {
+		StoreObjectMetadata result = this.cache.get(CLASS_NAME);
+		assertSame(this.metadata.get(CLASS_NAME), result);
+		assertSame(result, this.cache.get(CLASS_NAME));
+		assertSame(result, this.cache.getCached(CLASS_NAME));
+		assertEquals(1, this.loads);
+		assertEquals(1, this.cache.size());
+	}
+
+	@Test
+	public void testGetNotLoaded() throws StoreException {
+		try {
+			this.cache.get("Other");
+			fail();
+		} catch (StoreException e) {
+			// expected
+		}
+		assertNull(this.cache.getCached("Other"));
+		assertEquals(0, this.cache.size());
+	}
+
+	@Test
+	public void testVersion() throws StoreException {
+		StoreObjectMetadata first = this.cache.get(CLASS_NAME);
+		StoreObjectMetadata second = addField("a");
+		assertTrue(second.getVersion() > first.getVersion());
+		StoreObjectMetadata third = addField("b");
+		assertTrue(third.getVersion() > second.getVersion());
+		this.store.dropField(CLASS_NAME, "a");
+		assertTrue(this.store.getMetadataCache().getCached(CLASS_NAME)
+				.getVersion() > third.getVersion());
+	}
+
+	@Test
+	public void testUpdate() throws StoreException {
+		StoreObjectMetadata first = this.cache.get(CLASS_NAME);
+		StoreObjectMetadata second = addField("a");
+		assertSame(second, this.cache.update(second));
+		assertSame(second, this.cache.get(CLASS_NAME));
+		// an older version does not replace a newer one
+		assertSame(second, this.cache.update(first));
+		assertSame(second, this.cache.getCached(CLASS_NAME));
+		assertEquals(1, this.loads);
+	}
+
+	@Test
+	public void testSchemaChanged() throws StoreException {
+		this.cache.get(CLASS_NAME);
+		StoreObjectMetadata second = addField("a");
+		// changed by another node, so not passed to update
+		this.cache.schemaChanged(CLASS_NAME);
+		assertNull(this.cache.getCached(CLASS_NAME));
+		assertSame(second, this.cache.get(CLASS_NAME));
+		assertEquals(2, this.loads);
+		this.cache.invalidateAll();
+		assertEquals(0, this.cache.size());
+		assertSame(second, this.cache.get(CLASS_NAME));
+		assertEquals(3, this.loads);
+	}
+
+	@Test
+	public void testInvalidateDuringLoad() throws StoreException {
+		this.onLoad = new Runnable() {
+			public void run() {
+				cache.invalidate(CLASS_NAME);
+			}
+		};
+		// the load overlapped an invalidation, so is returned but not cached
+		assertNotNull(this.cache.get(CLASS_NAME));
+		assertNull(this.cache.getCached(CLASS_NAME));
+		this.onLoad = null;
+		this.cache.get(CLASS_NAME);
+		assertNotNull(this.cache.getCached(CLASS_NAME));
+		assertEquals(2, this.loads);
+	}
+
+	@Test
+	public void testStoreSchemaChanges() throws StoreException {
+		MetadataCache storeCache = this.store.getMetadataCache();
+		this.store.createStoreObject(CLASS_NAME);
+		StoreObjectMetadata cached = storeCache.getCached(CLASS_NAME);
+		assertNotNull(cached);
+		// schema changes through the store update its cache
+		StoreObjectMetadata added = addField("a");
+		assertSame(added, storeCache.getCached(CLASS_NAME));
+		this.store.createStoreObject(CLASS_NAME).put("a", "value");
+		// and dropping the table invalidates it
+		this.store.dropObjectTable(CLASS_NAME, false);
+		assertNull(storeCache.getCached(CLASS_NAME));
+		try {
+			this.store.createStoreObject(CLASS_NAME);
+			fail();
+		} catch (StoreException e) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,221 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Composent, Inc. and others. All rights reserved. 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ * 
+ * Contributors: Composent, Inc. - initial API and implementation
+ ******************************************************************************/
+package com.composent.objectstore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.composent.objectstore.memory.MemoryObjectStore;
+
+public class ObjectCacheTest {
+
+	private static final String CLASS_NAME = "Thing";
+
+	private MemoryObjectStore store;
+	// the StoreObjects loaded, and the lastModifiedAt revalidated against
+	private final Map<UUID, StoreObject> storeObjects = new HashMap<UUID, StoreObject>();
+	private final Map<UUID, Date> lastModifiedAts = new HashMap<UUID, Date>();
+	private int loads;
+	private Runnable onLoad;
+	private ObjectCache cache;
+
+	@Before
+	public void setUp() throws StoreException {
+		this.store = new MemoryObjectStore();
+		this.store.createObjectTable(CLASS_NAME, false);
+		this.store.addPrimitiveField(CLASS_NAME, "s", String.class, false);
+		this.cache = new ObjectCache(new ObjectCache.Loader() {
+			public StoreObject load(String className, UUID id)
+					throws StoreException {
+				loads++;
+				if (onLoad != null)
+					onLoad.run();
+				return storeObjects.get(id);
+			}
+
+			public Date loadLastModifiedAt(String className, UUID id)
+					throws StoreException {
+				return lastModifiedAts.get(id);
+			}
+		}, 10);
+		this.cache.setEnabled(true);
+	}
+
+	private UUID create(String s) throws StoreException {
+		StoreObject so = this.store.createStoreObject(CLASS_NAME);
+		so.put("s", s);
+		so.store();
+		this.storeObjects.put(so.getId(), so);
+		this.lastModifiedAts.put(so.getId(), so.getLastModifiedAt());
+		return so.getId();
+	}
+
+	@Test
+	public void testGet() throws StoreException {
+		UUID id = create("a");
+		StoreObject so = this.cache.get(CLASS_NAME, id);
+		assertTrue(so.isFrozen());
+		assertEquals("a", so.getString("s"));
+		assertSame(so, this.cache.get(CLASS_NAME, id));
+		assertEquals(1, this.loads);
+		assertEquals(1, this.cache.getMissCount());
+		assertEquals(1, this.cache.getHitCount());
+		assertEquals(1, this.cache.size());
+		// absent StoreObjects are not cached
+		assertNull(this.cache.get(CLASS_NAME, UUID.randomUUID()));
+		assertEquals(1, this.cache.size());
+	}
+
+	@Test
+	public void testDisabled() throws StoreException {
+		UUID id = create("a");
+		this.cache.get(CLASS_NAME, id);
+		this.cache.setEnabled(false);
+		assertFalse(this.cache.isEnabled());
+		assertEquals(0, this.cache.size());
+		StoreObject so = this.cache.get(CLASS_NAME, id);
+		assertFalse(so.isFrozen());
+		this.cache.get(CLASS_NAME, id);
+		assertEquals(3, this.loads);
+	}
+
+	@Test
+	public void testTimeToLive() throws Exception {
+		UUID id = create("a");
+		this.cache.setTimeToLive(1, TimeUnit.MILLISECONDS);
+		assertEquals(1, this.cache.getTimeToLive(TimeUnit.MILLISECONDS));
+		StoreObject first = this.cache.get(CLASS_NAME, id);
+		Thread.sleep(10);
+		assertNotSame(first, this.cache.get(CLASS_NAME, id));
+		assertEquals(2, this.loads);
+		assertEquals(1, this.cache.getExpirationCount());
+		this.cache.setTimeToLive(ObjectCache.NEVER, TimeUnit.SECONDS);
+		assertEquals(ObjectCache.NEVER, this.cache
+				.getTimeToLive(TimeUnit.SECONDS));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testTimeToLiveNotPositive() {
+		this.cache.setTimeToLive(0, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void testRevalidate() throws StoreException {
+		UUID id = create("a");
+		this.cache.setRevalidateAfter(0, TimeUnit.SECONDS);
+		StoreObject first = this.cache.get(CLASS_NAME, id);
+		// unchanged, so kept
+		assertSame(first, this.cache.get(CLASS_NAME, id));
+		assertEquals(1, this.loads);
+		assertEquals(1, this.cache.getRevalidationCount());
+		// changed by another client, which does not invalidate the cache
+		StoreObject so = this.storeObjects.get(id);
+		so.put("s", "b");
+		so.store();
+		this.lastModifiedAts.put(id, new Date(so.getLastModifiedAt()
+				.getTime() + 1));
+		assertEquals("b", this.cache.get(CLASS_NAME, id).getString("s"));
+		assertEquals(2, this.loads);
+		assertEquals(2, this.cache.getRevalidationCount());
+		// deleted by another client
+		this.lastModifiedAts.remove(id);
+		this.storeObjects.remove(id);
+		assertNull(this.cache.get(CLASS_NAME, id));
+		assertEquals(0, this.cache.size());
+	}
+
+	@Test
+	public void testInvalidate() throws StoreException {
+		UUID a = create("a");
+		UUID b = create("b");
+		this.cache.get(CLASS_NAME, a);
+		this.cache.get(CLASS_NAME, b);
+		this.cache.invalidate(CLASS_NAME, a);
+		assertEquals(1, this.cache.size());
+		this.cache.get(CLASS_NAME, a);
+		assertEquals(3, this.loads);
+		this.cache.invalidate("Other");
+		assertEquals(2, this.cache.size());
+		this.cache.invalidate(CLASS_NAME);
+		assertEquals(0, this.cache.size());
+		this.cache.get(CLASS_NAME, a);
+		this.cache.clear();
+		assertEquals(0, this.cache.size());
+	}
+
+	@Test
+	public void testInvalidateDuringLoad() throws StoreException {
+		final UUID id = create("a");
+		this.onLoad = new Runnable() {
+			public void run() {
+				cache.invalidate(CLASS_NAME, id);
+			}
+		};
+		// the load overlapped an invalidation, so is returned but not cached
+		assertEquals("a", this.cache.get(CLASS_NAME, id).getString("s"));
+		assertEquals(0, this.cache.size());
+	}
+
+	@Test
+	public void testEvict() throws StoreException {
+		UUID hot = create("hot");
+		for (int i = 0; i < 30; i++) {
+			this.cache.get(CLASS_NAME, create("s" + i));
+			this.cache.get(CLASS_NAME, hot);
+			assertTrue(this.cache.size() <= 10);
+		}
+		assertTrue(this.cache.getEvictionCount() > 0);
+		// the recently used entry was not evicted
+		assertEquals(31, this.loads);
+	}
+
+	@Test
+	public void testStoreCache() throws StoreException {
+		ObjectCache storeCache = this.store.getObjectCache();
+		storeCache.setEnabled(true);
+		UUID id = create("a");
+		StoreObject first = this.store.createQuery(CLASS_NAME, id).execute()
+				.iterator().next();
+		// readers get a copy, which they may modify
+		assertFalse(first.isFrozen());
+		first.put("s", "b");
+		StoreObject second = this.store.createQuery(CLASS_NAME, id)
+				.execute().iterator().next();
+		assertEquals("a", second.getString("s"));
+		assertEquals(1, storeCache.getMissCount());
+		assertEquals(1, storeCache.getHitCount());
+		// storing invalidates the entry
+		first.store();
+		assertEquals("b", this.store.createQuery(CLASS_NAME, id).execute()
+				.iterator().next().getString("s"));
+		assertEquals(2, storeCache.getMissCount());
+	}
+}
@@ -0,0 +1,197 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Composent, Inc. and others. All rights reserved. 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ * 
+ * Contributors: Composent, Inc. - initial API and implementation
+ ******************************************************************************/
+package com.composent.objectstore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.zip.Inflater;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.composent.objectstore.IObjectStore.Value;
+import com.composent.objectstore.StoreObjectQuery.Where;
+import com.composent.objectstore.memory.MemoryObjectStore;
+
+public class ObjectTableExporterTest {
+
+	private static final String CLASS_NAME = "Item";
+	private static final int COUNT = 1000;
+
+	private MemoryObjectStore store;
+	// n of each StoreObject stored, by id
+	private final Map<UUID, Integer> stored = new HashMap<UUID, Integer>();
+	private File file;
+
+	@Before
+	public void setUp() throws Exception {
+		this.store = new MemoryObjectStore();
+		this.store.createObjectTable(CLASS_NAME, false);
+		this.store.addPrimitiveField(CLASS_NAME, "n", Integer.class, false);
+		this.store.addPrimitiveField(CLASS_NAME, "name", String.class, false);
+		for (int i = 0; i < COUNT; i++) {
+			StoreObject so = this.store.createStoreObject(CLASS_NAME);
+			so.put("n", Integer.valueOf(i));
+			so.put("name", "name" + i);
+			so.store();
+			this.stored.put(so.getId(), Integer.valueOf(i));
+		}
+		this.file = File.createTempFile("objectstore", ".bin");
+	}
+
+	@After
+	public void tearDown() {
+		this.file.delete();
+	}
+
+	/**
+	 * Read the exported file, checking its structure.
+	 * 
+	 * @return the StoreObjects read, by id.
+	 */
+	private Map<UUID, StoreObject> read() throws Exception {
+		Map<UUID, StoreObject> results = new HashMap<UUID, StoreObject>();
+		DataInputStream in = new DataInputStream(new FileInputStream(
+				this.file));
+		try {
+			assertEquals(ObjectTableExporter.MAGIC, in.readInt());
+			assertEquals(ObjectTableExporter.FORMAT_VERSION, in.readShort());
+			byte[] metadata = new byte[in.readInt()];
+			in.readFully(metadata);
+			StoreObjectCodec.Header header = StoreObjectCodec
+					.decodeMetadata(ByteBuffer.wrap(metadata));
+			assertEquals(CLASS_NAME, header.className);
+			int[] indexes = new int[header.names.length];
+			StoreObjectMetadata target = this.store.createStoreObject(
+					CLASS_NAME).getMetadata();
+			for (int i = 0; i < indexes.length; i++)
+				indexes[i] = target.getFieldIndex(header.names[i]);
+			int blocks = 0;
+			for (int rows = in.readInt(); rows != 0; rows = in.readInt()) {
+				byte[] block = new byte[in.readInt()];
+				byte[] compressed = new byte[in.readInt()];
+				in.readFully(compressed);
+				Inflater inflater = new Inflater();
+				inflater.setInput(compressed);
+				assertEquals(block.length, inflater.inflate(block));
+				inflater.end();
+				ByteBuffer bb = ByteBuffer.wrap(block);
+				for (int i = 0; i < rows; i++) {
+					StoreObject so = this.store.createStoreObject(CLASS_NAME,
+							StoreObjectCodec.decodeId(bb));
+					so.decodeValues(bb, header, indexes, true);
+					assertTrue(results.put(so.getId(), so) == null);
+				}
+				assertFalse(bb.hasRemaining());
+				blocks++;
+			}
+			assertEquals(results.size(), in.readLong());
+			assertEquals(-1, in.read());
+			assertTrue(blocks > 0 || results.isEmpty());
+		} finally {
+			in.close();
+		}
+		return results;
+	}
+
+	@Test
+	public void testExport() throws Exception {
+		ObjectTableExporter exporter = new ObjectTableExporter(this.store);
+		exporter.setSplits(4);
+		// several blocks for each split
+		exporter.setBlockSize(1024);
+		assertEquals(COUNT, exporter.export(CLASS_NAME, null, this.file));
+		Map<UUID, StoreObject> exported = read();
+		assertEquals(this.stored.keySet(), exported.keySet());
+		for (StoreObject so : exported.values()) {
+			Integer n = this.stored.get(so.getId());
+			assertEquals(n, so.getInt("n"));
+			assertEquals("name" + n, so.getString("name"));
+		}
+	}
+
+	@Test
+	public void testExportQuery() throws Exception {
+		StoreObjectQuery query = this.store.createQuery(CLASS_NAME)
+				.setWhere(Where.lessThan("n", new Value(Integer.valueOf(10))))
+				.select("n");
+		assertEquals(10, new ObjectTableExporter(this.store).export(query,
+				this.file));
+		Map<UUID, StoreObject> exported = read();
+		assertEquals(10, exported.size());
+		for (StoreObject so : exported.values()) {
+			assertTrue(so.getInt("n").intValue() < 10);
+			assertFalse(so.isPresent("name"));
+		}
+	}
+
+	@Test
+	public void testExportEmpty() throws Exception {
+		this.store.createObjectTable("Empty", false);
+		assertEquals(0, new ObjectTableExporter(this.store).export("Empty",
+				null, this.file));
+	}
+
+	@Test
+	public void testExportFailureDeletesFile() throws Exception {
+		StoreObjectQuery query = this.store.createQuery(CLASS_NAME);
+		this.store.dropObjectTable(CLASS_NAME, false);
+		try {
+			new ObjectTableExporter(this.store).export(query, this.file);
+			fail();
+		} catch (StoreException e) {
+			// expected
+		}
+		assertFalse(this.file.exists());
+	}
+
+	@Test
+	public void testSettings() {
+		ObjectTableExporter exporter = new ObjectTableExporter(this.store);
+		for (int invalid : new int[] { 0, -1 })
+			try {
+				exporter.setSplits(invalid);
+				fail();
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+		try {
+			exporter.setBlockSize(1023);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		try {
+			exporter.setCompressionLevel(10);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,201 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Composent, Inc. and others. All rights reserved. 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ * 
+ * Contributors: Composent, Inc. - initial API and implementation
+ ******************************************************************************/
+package com.composent.objectstore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.composent.objectstore.memory.MemoryObjectStore;
+
+public class ObjectTableLoaderTest {
+
+	private static final String CLASS_NAME = "Item";
+	private static final int COUNT = 1000;
+
+	private MemoryObjectStore store;
+	private File file;
+
+	@Before
+	public void setUp() throws Exception {
+		this.store = new MemoryObjectStore();
+		createTable(this.store, CLASS_NAME);
+		for (int i = 0; i < COUNT; i++) {
+			StoreObject so = this.store.createStoreObject(CLASS_NAME);
+			so.put("n", Integer.valueOf(i));
+			so.put("name", "name" + i);
+			so.store();
+		}
+		this.file = File.createTempFile("objectstore", ".bin");
+	}
+
+	@After
+	public void tearDown() {
+		this.file.delete();
+	}
+
+	private static void createTable(IObjectStore store, String className)
+			throws StoreException {
+		store.createObjectTable(className, false);
+		store.addPrimitiveField(className, "n", Integer.class, false);
+		store.addPrimitiveField(className, "name", String.class, false);
+	}
+
+	private Map<UUID, StoreObject> retrieveAll(IObjectStore store,
+			String className) throws StoreException {
+		return store.retrieve(className, store.retrieveIds(className, null,
+				null), null);
+	}
+
+	@Test
+	public void testExportAndLoad() throws Exception {
+		ObjectTableExporter exporter = new ObjectTableExporter(this.store);
+		exporter.setBlockSize(4096);
+		assertEquals(COUNT, exporter.export(CLASS_NAME, null, this.file));
+		MemoryObjectStore target = new MemoryObjectStore();
+		createTable(target, "Copy");
+		ObjectTableLoader loader = new ObjectTableLoader(target);
+		loader.setBatchSize(64);
+		ObjectTableLoader.Progress progress = loader.load("Copy", this.file);
+		assertTrue(progress.isComplete());
+		assertEquals(COUNT, progress.getRead());
+		assertEquals(COUNT, progress.getStored());
+		assertEquals(0, progress.getFailed());
+		Map<UUID, StoreObject> expected = retrieveAll(this.store, CLASS_NAME);
+		Map<UUID, StoreObject> actual = retrieveAll(target, "Copy");
+		assertEquals(expected.keySet(), actual.keySet());
+		for (StoreObject so : expected.values()) {
+			StoreObject copy = actual.get(so.getId());
+			assertEquals(so.getInt("n"), copy.getInt("n"));
+			assertEquals(so.getString("name"), copy.getString("name"));
+		}
+	}
+
+	@Test(expected = StoreException.class)
+	public void testLoadMismatchedFieldType() throws Exception {
+		new ObjectTableExporter(this.store).export(CLASS_NAME, null,
+				this.file);
+		MemoryObjectStore target = new MemoryObjectStore();
+		target.createObjectTable(CLASS_NAME, false);
+		target.addPrimitiveField(CLASS_NAME, "n", Long.class, false);
+		new ObjectTableLoader(target).load(CLASS_NAME, this.file);
+	}
+
+	@Test(expected = IOException.class)
+	public void testLoadNotExported() throws Exception {
+		write("not an exported table");
+		new ObjectTableLoader(this.store).load(CLASS_NAME, this.file);
+	}
+
+	@Test
+	public void testLoadCsv() throws Exception {
+		UUID id = UUID.randomUUID();
+		write(StoreObject.ID_NAME + ",n,name\n" + id
+				+ ",1,\"quoted, \"\"name\"\"\"\n,2,\n");
+		MemoryObjectStore target = new MemoryObjectStore();
+		createTable(target, CLASS_NAME);
+		ObjectTableLoader.Progress progress = new ObjectTableLoader(target)
+				.loadCsv(CLASS_NAME, this.file);
+		assertEquals(2, progress.getStored());
+		Map<UUID, StoreObject> loaded = retrieveAll(target, CLASS_NAME);
+		assertEquals(2, loaded.size());
+		StoreObject so = loaded.get(id);
+		assertEquals(Integer.valueOf(1), so.getInt("n"));
+		assertEquals("quoted, \"name\"", so.getString("name"));
+	}
+
+	@Test(expected = StoreException.class)
+	public void testLoadCsvUnparseable() throws Exception {
+		write("n\nnot a number\n");
+		new ObjectTableLoader(this.store).loadCsv(CLASS_NAME, this.file);
+	}
+
+	@Test
+	public void testLoadFailureWaitsForBatches() throws Exception {
+		new ObjectTableExporter(this.store).export(CLASS_NAME, null,
+				this.file);
+		final AtomicInteger calls = new AtomicInteger();
+		final AtomicInteger active = new AtomicInteger();
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			MemoryObjectStore target = new MemoryObjectStore(executor) {
+				@Override
+				public List<StoreResult> storeAll(
+						Collection<? extends StoreObject> storeObjects)
+						throws StoreException {
+					int call = calls.incrementAndGet();
+					active.incrementAndGet();
+					try {
+						Thread.sleep((call == 1) ? 10 : 100);
+					} catch (InterruptedException e) {
+						throw new StoreException(e);
+					} finally {
+						active.decrementAndGet();
+					}
+					if (call == 1)
+						throw new StoreException("failed");
+					return super.storeAll(storeObjects);
+				}
+			};
+			createTable(target, CLASS_NAME);
+			ObjectTableLoader loader = new ObjectTableLoader(target);
+			loader.setBatchSize(10);
+			loader.setMaxInFlight(4);
+			try {
+				loader.load(CLASS_NAME, this.file);
+				fail();
+			} catch (StoreException e) {
+				// expected
+			}
+			// no batch is being written, or written later
+			assertEquals(0, active.get());
+			int count = calls.get();
+			Thread.sleep(200);
+			assertEquals(count, calls.get());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private void write(String s) throws IOException {
+		Writer writer = new OutputStreamWriter(new FileOutputStream(
+				this.file), "UTF-8");
+		try {
+			writer.write(s);
+		} finally {
+			writer.close();
+		}
+	}
+}
@@ -0,0 +1,187 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Composent, Inc. and others. All rights reserved. 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ * 
+ * Contributors: Composent, Inc. - initial API and implementation
+ ******************************************************************************/
+package com.composent.objectstore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.composent.objectstore.IObjectStore.ConsistencyLevel;
+import com.composent.objectstore.IObjectStore.Value;
+import com.composent.objectstore.StatementCache.Key;
+import com.composent.objectstore.StoreObjectQuery.Where;
+import com.composent.objectstore.memory.MemoryObjectStore;
+
+public class StatementCacheTest {
+
+	private static final String CLASS_NAME = "Thing";
+
+	private MemoryObjectStore store;
+	private StoreObjectMetadata metadata;
+	private int prepared;
+	private boolean failPrepare;
+	private StatementCache<Object> cache;
+
+	@Before
+	public void setUp() throws StoreException {
+		this.store = new MemoryObjectStore();
+		this.store.createObjectTable(CLASS_NAME, false);
+		this.store.addPrimitiveField(CLASS_NAME, "s", String.class, false);
+		this.metadata = this.store.addPrimitiveField(CLASS_NAME, "n",
+				Integer.class, false);
+		this.cache = new StatementCache<Object>(
+				new StatementCache.Preparer<Object>() {
+					public Object prepare(Key key) throws StoreException {
+						if (failPrepare)
+							throw new StoreException("cannot prepare");
+						prepared++;
+						return new Object();
+					}
+				}, 10);
+	}
+
+	private Key storeKey(String key, String value) throws StoreException {
+		StoreObject so = this.store.createStoreObject(CLASS_NAME);
+		so.put(key, value);
+		return Key.forStore(this.metadata, so, so.collectItems());
+	}
+
+	private Key queryKey(Where where) throws StoreException {
+		return Key.forQuery(this.store.createQuery(CLASS_NAME).setWhere(where));
+	}
+
+	private Key retrieveIdsKey(int i) {
+		return Key.forRetrieveIds(this.metadata,
+				ConsistencyLevel.values()[i]);
+	}
+
+	@Test
+	public void testKeys() throws StoreException {
+		// values are not part of the key
+		assertEquals(storeKey("s", "a"), storeKey("s", "b"));
+		assertEquals(storeKey("s", "a").hashCode(), storeKey("s", "b")
+				.hashCode());
+		assertEquals(queryKey(Where.equalTo("n", new Value(Integer
+				.valueOf(1)))), queryKey(Where.equalTo("n", new Value(Integer
+				.valueOf(2)))));
+		// columns, conditions, type and consistency level are
+		StoreObject so = this.store.createStoreObject(CLASS_NAME);
+		so.putInt("n", 1);
+		assertFalse(storeKey("s", "a").equals(
+				Key.forStore(this.metadata, so, so.collectItems())));
+		assertFalse(queryKey(Where.equalTo("n", new Value(Integer.valueOf(1))))
+				.equals(queryKey(Where.lessThan("n", new Value(Integer
+						.valueOf(1))))));
+		assertFalse(retrieveIdsKey(0).equals(retrieveIdsKey(1)));
+		assertFalse(Key.forDelete(this.metadata, null).equals(
+				Key.forRetrieveIds(this.metadata, null)));
+		assertEquals(StatementCache.StatementType.DELETE, Key.forDelete(
+				this.metadata, null).getType());
+	}
+
+	@Test
+	public void testKeysBySchemaVersion() throws StoreException {
+		Key key = Key.forRetrieveIds(this.metadata, null);
+		StoreObjectMetadata changed = this.store.addPrimitiveField(
+				CLASS_NAME, "other", String.class, false);
+		assertFalse(key.equals(Key.forRetrieveIds(changed, null)));
+	}
+
+	@Test
+	public void testGet() throws StoreException {
+		Object statement = this.cache.get(retrieveIdsKey(0));
+		assertSame(statement, this.cache.get(retrieveIdsKey(0)));
+		assertEquals(1, this.prepared);
+		assertEquals(1, this.cache.getMissCount());
+		assertEquals(1, this.cache.getHitCount());
+		this.cache.get(retrieveIdsKey(1));
+		assertEquals(2, this.prepared);
+		assertEquals(2, this.cache.size());
+		this.cache.resetMetrics();
+		assertEquals(0, this.cache.getMissCount());
+		assertEquals(0, this.cache.getHitCount());
+	}
+
+	@Test
+	public void testPrepareFailure() throws StoreException {
+		this.failPrepare = true;
+		try {
+			this.cache.get(retrieveIdsKey(0));
+			fail();
+		} catch (StoreException e) {
+			// expected
+		}
+		assertEquals(0, this.cache.size());
+		this.failPrepare = false;
+		this.cache.get(retrieveIdsKey(0));
+		assertEquals(1, this.cache.size());
+	}
+
+	@Test
+	public void testEvict() throws StoreException {
+		Key hot = Key.forDelete(this.metadata, null);
+		this.cache.get(hot);
+		for (int i = 0; i < ConsistencyLevel.values().length; i++) {
+			this.cache.get(retrieveIdsKey(i));
+			this.cache.get(hot);
+			assertTrue(this.cache.size() <= 10);
+		}
+		assertTrue(this.cache.getEvictionCount() > 0);
+		// the recently used statement was not evicted
+		assertEquals(1 + ConsistencyLevel.values().length, this.prepared);
+		this.cache.setMaxSize(1);
+		assertTrue(this.cache.size() <= 1);
+	}
+
+	@Test
+	public void testInvalidate() throws StoreException {
+		this.cache.get(retrieveIdsKey(0));
+		this.cache.get(Key.forDelete(this.metadata, null));
+		this.cache.invalidate("Other");
+		assertEquals(2, this.cache.size());
+		this.cache.invalidate(CLASS_NAME);
+		assertEquals(0, this.cache.size());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testMaxSizeNotPositive() {
+		this.cache.setMaxSize(0);
+	}
+
+	@Test
+	public void testStoreStatements() throws StoreException {
+		StatementCache<?> statements = this.store.getStatementCache();
+		statements.resetMetrics();
+		for (int i = 0; i < 10; i++) {
+			StoreObject so = this.store.createStoreObject(CLASS_NAME);
+			so.put("s", "s" + i);
+			so.store();
+			this.store.createQuery(CLASS_NAME).setWhere(
+					Where.equalTo("n", new Value(Integer.valueOf(i))))
+					.execute();
+		}
+		// one statement for each shape
+		assertEquals(2, statements.getMissCount());
+		assertEquals(18, statements.getHitCount());
+	}
+}
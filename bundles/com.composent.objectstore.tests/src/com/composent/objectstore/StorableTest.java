@@ -0,0 +1,403 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Composent, Inc. and others. All rights reserved. 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ * 
+ * Contributors: Composent, Inc. - initial API and implementation
+ ******************************************************************************/
+package com.composent.objectstore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.composent.objectstore.memory.MemoryObjectStore;
+
+public class StorableTest {
+
+	public static class Node extends Storable {
+
+		String name;
+		Node next;
+		List<Node> kids;
+
+		public Node() {
+			super("Node");
+		}
+
+		Node(String name) {
+			this();
+			this.name = name;
+			this.kids = new ArrayList<Node>();
+		}
+
+		@Override
+		protected void createFields(IObjectStore store, boolean ifNotExists)
+				throws StoreException {
+			createPrimitiveField(store, String.class, "name", ifNotExists);
+			createStorableField(store, "next", ifNotExists);
+			createListField(store, Node.class, "kids", ifNotExists);
+		}
+
+		@Override
+		protected void storeFields(StoreObject so) throws StoreException {
+			storePrimitiveField(so, "name", this.name);
+			storeStorableField(so, "next", this.next);
+			storeListField(so, Node.class, "kids", this.kids);
+		}
+
+		@Override
+		protected void reviveFields(StoreObject so) throws StoreException {
+			this.name = revivePrimitiveField(so, String.class, "name");
+			this.next = reviveStorableField(so, Node.class, "next");
+			this.kids = reviveListField(so, Node.class, "kids");
+		}
+	}
+
+	public static class Tagged extends Storable {
+
+		final String tag;
+
+		public Tagged() {
+			this(null);
+		}
+
+		public Tagged(String tag) {
+			super("Tagged");
+			this.tag = tag;
+		}
+	}
+
+	public static class NoDefaultConstructor extends Storable {
+
+		public NoDefaultConstructor(Integer i) {
+			super("NoDefaultConstructor");
+		}
+	}
+
+	private static final int KIDS = 50;
+
+	private MemoryObjectStore store;
+	private Node root;
+
+	@After
+	public void tearDown() {
+		Storable.unregisterFactory(Node.class);
+	}
+
+	@Before
+	public void setUp() throws StoreException {
+		this.store = new MemoryObjectStore();
+		new Node().createObjectTable(this.store, false);
+		this.root = new Node("root");
+		for (int i = 0; i < KIDS; i++) {
+			Node kid = new Node("kid" + i);
+			// cycle from each kid to the root
+			kid.next = this.root;
+			this.root.kids.add(kid);
+		}
+		this.root.next = this.root.kids.get(0);
+	}
+
+	@Test
+	public void testStoreTo() throws StoreException {
+		this.root.storeTo(this.store);
+		assertNotNull(this.root.getId());
+		assertNotNull(this.root.getLastModifiedAt());
+		for (Node kid : this.root.kids)
+			assertNotNull(kid.getId());
+		assertEquals(KIDS + 1, this.store.retrieveIds("Node", null, null)
+				.size());
+	}
+
+	@Test
+	public void testStoreOnlyModified() throws StoreException {
+		this.root.storeTo(this.store);
+		this.root.name = "root2";
+		this.root.kids.get(3).name = "changed";
+		StatementCache<?> statements = this.store.getStatementCache();
+		statements.resetMetrics();
+		this.root.storeTo(this.store);
+		// unchanged Storables are not written again
+		assertEquals(2, statements.getHitCount() + statements.getMissCount());
+		Node revived = (Node) new Node().revive(this.store,
+				this.root.kids.get(3).getId());
+		assertEquals("changed", revived.name);
+		assertEquals("root2", revived.next.name);
+	}
+
+	@Test
+	public void testStoreBatched() throws StoreException {
+		this.root.setStoreBatchSize(7);
+		this.root.setMaxStoreParallelism(3);
+		this.root.storeTo(this.store);
+		assertEquals(KIDS + 1, this.store.retrieveIds("Node", null, null)
+				.size());
+		Node revived = (Node) new Node().revive(this.store,
+				this.root.getId());
+		for (int i = 0; i < KIDS; i++)
+			assertEquals("kid" + i, revived.kids.get(i).name);
+	}
+
+	@Test
+	public void testStoreOnBoundedExecutor() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			final MemoryObjectStore store = new MemoryObjectStore(executor);
+			new Node().createObjectTable(store, false);
+			final Node root = new Node("root");
+			for (int i = 0; i < 40; i++)
+				root.kids.add(new Node("kid" + i));
+			root.setStoreBatchSize(10);
+			root.setMaxStoreParallelism(4);
+			// storeAll of the kids is called from an executor thread, with
+			// its batches queued behind it
+			executor.submit(new Callable<Storable>() {
+				public Storable call() throws Exception {
+					return root.storeTo(store);
+				}
+			}).get(10, TimeUnit.SECONDS);
+			assertEquals(41, store.retrieveIds("Node", null, null).size());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testStoreBatchSizeNotPositive() {
+		new Node().setStoreBatchSize(0);
+	}
+
+	@Test
+	public void testStoreFailureResetsIds() throws StoreException {
+		this.store.dropObjectTable("Node", false);
+		try {
+			this.root.storeTo(this.store);
+			fail("stored without an object table");
+		} catch (StoreException e) {
+			// expected
+		}
+		assertNull(this.root.getId());
+		for (Node kid : this.root.kids)
+			assertNull(kid.getId());
+	}
+
+	@Test
+	public void testRevive() throws StoreException {
+		this.root.storeTo(this.store);
+		Node revived = (Node) new Node().revive(this.store,
+				this.root.getId());
+		assertEquals("root", revived.name);
+		assertEquals(KIDS, revived.kids.size());
+		for (int i = 0; i < KIDS; i++) {
+			Node kid = revived.kids.get(i);
+			assertEquals(this.root.kids.get(i).getId(), kid.getId());
+			assertEquals("kid" + i, kid.name);
+			// the cycle is revived as the same instance
+			assertSame(revived, kid.next);
+		}
+		assertSame(revived.kids.get(0), revived.next);
+	}
+
+	@Test
+	public void testReviveAll() throws StoreException {
+		this.root.storeTo(this.store);
+		assertEquals(KIDS + 1, new Node().reviveAll(this.store).size());
+	}
+
+	@Test
+	public void testReviveBatched() throws StoreException {
+		this.root.storeTo(this.store);
+		StatementCache<?> statements = this.store.getStatementCache();
+		for (int parallelism = 1; parallelism <= 3; parallelism += 2) {
+			statements.resetMetrics();
+			Node node = new Node();
+			node.setReviveBatchSize(7);
+			node.setMaxReviveParallelism(parallelism);
+			Node revived = (Node) node.revive(this.store, this.root.getId());
+			assertEquals(KIDS, revived.kids.size());
+			for (int i = 0; i < KIDS; i++)
+				assertEquals("kid" + i, revived.kids.get(i).name);
+			// the root, then the kids in batches of 7
+			assertEquals(1 + (KIDS + 6) / 7, statements.getHitCount()
+					+ statements.getMissCount());
+		}
+	}
+
+	@Test
+	public void testReviveOnBoundedExecutor() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			final MemoryObjectStore store = new MemoryObjectStore(executor);
+			new Node().createObjectTable(store, false);
+			this.root.storeTo(store);
+			List<Future<Storable>> futures = new ArrayList<Future<Storable>>();
+			// revive on each of the executor's threads, with parallel
+			// queries for the kids queued behind them
+			for (int i = 0; i < 2; i++)
+				futures.add(executor.submit(new Callable<Storable>() {
+					public Storable call() throws Exception {
+						Node node = new Node();
+						node.setReviveBatchSize(5);
+						node.setMaxReviveParallelism(4);
+						return node.revive(store, root.getId());
+					}
+				}));
+			for (Future<Storable> future : futures)
+				assertEquals(KIDS, ((Node) future.get(10, TimeUnit.SECONDS)).kids
+						.size());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testReviveBatchSizeNotPositive() {
+		new Node().setReviveBatchSize(0);
+	}
+
+	@Test(expected = StoreException.class)
+	public void testReviveNotStored() throws StoreException {
+		new Node().revive(this.store, UUID.randomUUID());
+	}
+
+	@Test
+	public void testSession() throws StoreException {
+		this.root.storeTo(this.store);
+		UUID kid = this.root.kids.get(1).getId();
+		// without a session, each revive creates new instances
+		assertNotSame(new Node().revive(this.store, kid), new Node().revive(
+				this.store, kid));
+		StorableSession session = StorableSession.open(this.store);
+		try {
+			assertSame(session, StorableSession.getCurrent(this.store));
+			Node revived = (Node) new Node().revive(this.store, this.root
+					.getId());
+			assertEquals(KIDS + 1, session.size());
+			Node kid1 = revived.kids.get(1);
+			assertSame(kid1, session.get("Node", kid));
+			for (Storable storable : new Node().reviveAll(this.store))
+				assertSame(session.get("Node", storable.getId()), storable);
+			assertTrue(session.evict(kid1));
+			assertFalse(session.evict(kid1));
+			// an evicted Storable is revived again
+			new Node().reviveAll(this.store);
+			assertNotSame(kid1, session.get("Node", kid));
+			assertNotNull(session.get("Node", kid));
+		} finally {
+			session.close();
+		}
+		assertTrue(session.isClosed());
+		assertEquals(0, session.size());
+		assertNull(StorableSession.getCurrent(this.store));
+	}
+
+	@Test
+	public void testSessionAfterFailedRevive() throws StoreException {
+		Node node = new Node("node");
+		Node child = new Node("child");
+		Node grandchild = new Node("grandchild");
+		child.next = grandchild;
+		node.kids.add(child);
+		node.storeTo(this.store);
+		this.store.delete("Node", grandchild.getId(), null);
+		StorableSession session = StorableSession.open(this.store);
+		try {
+			try {
+				new Node().revive(this.store, node.getId());
+				fail("revived with a missing reference");
+			} catch (StoreException e) {
+				// expected
+			}
+			// the failed revive left nothing in the session
+			assertEquals(0, session.size());
+			grandchild.setLastModifiedAt(null);
+			grandchild.storeTo(this.store);
+			Node revived = (Node) new Node().revive(this.store, child
+					.getId());
+			assertEquals("child", revived.name);
+			assertEquals("grandchild", revived.next.name);
+			for (Storable storable : new Node().reviveAll(this.store))
+				assertNotNull(((Node) storable).name);
+		} finally {
+			session.close();
+		}
+	}
+
+	@Test
+	public void testGetFactory() throws StoreException {
+		Storable.Factory<? extends Node> factory = Storable
+				.getFactory(Node.class);
+		Node node = factory.create(null);
+		assertEquals("Node", node.getClassName());
+		assertNull(node.name);
+		// cached, and held even when not referenced by callers
+		System.gc();
+		assertSame(factory, Storable.getFactory(Node.class));
+	}
+
+	@Test
+	public void testConstructorFactoryArg() throws StoreException {
+		Storable.Factory<? extends Tagged> factory = Storable
+				.getFactory(Tagged.class);
+		assertNull(factory.create(null).tag);
+		assertEquals("tag", factory.create("tag").tag);
+		// the no argument constructor is used for other argument types
+		assertNull(factory.create(Integer.valueOf(1)).tag);
+	}
+
+	@Test(expected = StoreException.class)
+	public void testConstructorFactoryNoConstructor() throws StoreException {
+		Storable.getFactory(NoDefaultConstructor.class).create(null);
+	}
+
+	@Test
+	public void testRegisterFactory() throws StoreException {
+		final int[] created = new int[1];
+		Storable.Factory<Node> factory = new Storable.Factory<Node>() {
+			public Node create(Object arg) throws StoreException {
+				created[0]++;
+				return new Node();
+			}
+		};
+		Storable.registerFactory(Node.class, factory);
+		assertSame(factory, Storable.getFactory(Node.class));
+		this.root.storeTo(this.store);
+		Node revived = (Node) new Node().revive(this.store,
+				this.root.getId());
+		assertEquals(KIDS, revived.kids.size());
+		// each kid. The root is revived into the receiver
+		assertEquals(KIDS, created[0]);
+		assertTrue(Storable.unregisterFactory(Node.class));
+		assertFalse(Storable.unregisterFactory(Node.class));
+		assertNotSame(factory, Storable.getFactory(Node.class));
+	}
+}
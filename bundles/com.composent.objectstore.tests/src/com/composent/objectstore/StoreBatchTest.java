@@ -0,0 +1,164 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Composent, Inc. and others. All rights reserved. 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ * 
+ * Contributors: Composent, Inc. - initial API and implementation
+ ******************************************************************************/
+package com.composent.objectstore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.composent.objectstore.memory.MemoryObjectStore;
+
+public class StoreBatchTest {
+
+	private static final String CLASS_NAME = "Item";
+
+	private MemoryObjectStore store;
+
+	@Before
+	public void setUp() throws StoreException {
+		this.store = new MemoryObjectStore();
+		this.store.createObjectTable(CLASS_NAME, false);
+		this.store.addPrimitiveField(CLASS_NAME, "n", Integer.class, false);
+		this.store.addPrimitiveField(CLASS_NAME, "data", ByteBuffer.class,
+				false);
+	}
+
+	private StoreObject create(UUID id, int n) throws StoreException {
+		StoreObject so = this.store.createStoreObject(CLASS_NAME, id);
+		so.put("n", Integer.valueOf(n));
+		return so;
+	}
+
+	private static UUID getId(StoreBatch batch) {
+		UUID id = batch.getStatements().get(0).getStoreObject().getId();
+		for (StoreBatch.Statement statement : batch.getStatements())
+			assertEquals(id, statement.getStoreObject().getId());
+		return id;
+	}
+
+	@Test
+	public void testBatchPerPartition() throws StoreException {
+		UUID[] ids = new UUID[] { UUID.randomUUID(), UUID.randomUUID(),
+				UUID.randomUUID() };
+		List<StoreObject> storeObjects = new ArrayList<StoreObject>();
+		for (int i = 0; i < 30; i++)
+			storeObjects.add(create(ids[i % ids.length], i));
+		List<StoreBatch> batches = StoreBatch.plan(storeObjects, 100, 1 << 20);
+		assertEquals(ids.length, batches.size());
+		for (int i = 0; i < ids.length; i++) {
+			StoreBatch batch = batches.get(i);
+			// in the order of the first StoreObject of each partition
+			assertEquals(ids[i], getId(batch));
+			assertEquals(10, batch.getStatements().size());
+			assertFalse(batch.isConditional());
+			// and in order within the partition
+			for (int j = 0; j < 10; j++)
+				assertSame(storeObjects.get(i + j * ids.length), batch
+						.getStatements().get(j).getStoreObject());
+		}
+	}
+
+	@Test
+	public void testMaxStatements() throws StoreException {
+		UUID id = UUID.randomUUID();
+		List<StoreObject> storeObjects = new ArrayList<StoreObject>();
+		for (int i = 0; i < 25; i++)
+			storeObjects.add(create(id, i));
+		List<StoreBatch> batches = StoreBatch.plan(storeObjects, 10, 1 << 20);
+		assertEquals(3, batches.size());
+		assertEquals(10, batches.get(0).getStatements().size());
+		assertEquals(10, batches.get(1).getStatements().size());
+		assertEquals(5, batches.get(2).getStatements().size());
+		for (StoreBatch batch : batches)
+			assertEquals(id, getId(batch));
+	}
+
+	@Test
+	public void testMaxBytes() throws StoreException {
+		UUID id = UUID.randomUUID();
+		List<StoreObject> storeObjects = new ArrayList<StoreObject>();
+		for (int i = 0; i < 4; i++) {
+			StoreObject so = create(id, i);
+			so.put("data", ByteBuffer.allocate(600));
+			storeObjects.add(so);
+		}
+		StoreObject large = create(id, 4);
+		large.put("data", ByteBuffer.allocate(5000));
+		storeObjects.add(large);
+		List<StoreBatch> batches = StoreBatch.plan(storeObjects, 100, 1500);
+		assertEquals(3, batches.size());
+		assertEquals(2, batches.get(0).getStatements().size());
+		assertEquals(2, batches.get(1).getStatements().size());
+		// a statement larger than maxBytes is a batch of its own
+		assertEquals(1, batches.get(2).getStatements().size());
+		for (StoreBatch batch : batches.subList(0, 2))
+			assertTrue(batch.getEstimatedSize() <= 1500);
+	}
+
+	@Test
+	public void testConditionalBatches() throws StoreException {
+		UUID id = UUID.randomUUID();
+		List<StoreObject> storeObjects = new ArrayList<StoreObject>();
+		storeObjects.add(create(id, 0));
+		StoreObject conditional = create(id, 1);
+		conditional.setIfNotExists(true);
+		storeObjects.add(conditional);
+		storeObjects.add(create(id, 2));
+		List<StoreBatch> batches = StoreBatch.plan(storeObjects, 100, 1 << 20);
+		assertEquals(2, batches.size());
+		// conditional batches first
+		assertTrue(batches.get(0).isConditional());
+		assertEquals(1, batches.get(0).getStatements().size());
+		assertSame(conditional, batches.get(0).getStatements().get(0)
+				.getStoreObject());
+		assertFalse(batches.get(1).isConditional());
+		assertEquals(2, batches.get(1).getStatements().size());
+	}
+
+	@Test
+	public void testNewObjectsAreSeparatePartitions() throws StoreException {
+		List<StoreObject> storeObjects = new ArrayList<StoreObject>();
+		for (int i = 0; i < 5; i++) {
+			StoreObject so = this.store.createStoreObject(CLASS_NAME);
+			so.put("n", Integer.valueOf(i));
+			storeObjects.add(so);
+		}
+		assertEquals(5, StoreBatch.plan(storeObjects, 100, 1 << 20).size());
+	}
+
+	@Test
+	public void testEmpty() throws StoreException {
+		assertTrue(StoreBatch.plan(Collections.<StoreObject> emptyList(), 1,
+				1).isEmpty());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidMaxStatements() throws StoreException {
+		StoreBatch.plan(Collections.<StoreObject> emptyList(), 0, 1);
+	}
+}
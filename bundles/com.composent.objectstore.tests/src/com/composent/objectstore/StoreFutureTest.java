@@ -0,0 +1,208 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Composent, Inc. and others. All rights reserved. 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ * 
+ * Contributors: Composent, Inc. - initial API and implementation
+ ******************************************************************************/
+package com.composent.objectstore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.composent.objectstore.IObjectStore.Util;
+
+public class StoreFutureTest {
+
+	/**
+	 * Executor that queues tasks until they are run by the test.
+	 */
+	private static final class QueueExecutor implements Executor {
+		final List<Runnable> queue = new ArrayList<Runnable>();
+
+		public void execute(Runnable command) {
+			this.queue.add(command);
+		}
+
+		void runAll() {
+			while (!this.queue.isEmpty())
+				this.queue.remove(0).run();
+		}
+	}
+
+	private static final Executor REJECTING = new Executor() {
+		public void execute(Runnable command) {
+			throw new RejectedExecutionException();
+		}
+	};
+
+	private final List<Throwable> uncaught = Collections
+			.synchronizedList(new ArrayList<Throwable>());
+	private Thread.UncaughtExceptionHandler handler;
+
+	@Before
+	public void setUp() {
+		Thread thread = Thread.currentThread();
+		this.handler = thread.getUncaughtExceptionHandler();
+		thread.setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+			public void uncaughtException(Thread t, Throwable e) {
+				StoreFutureTest.this.uncaught.add(e);
+			}
+		});
+	}
+
+	@After
+	public void tearDown() {
+		Thread.currentThread().setUncaughtExceptionHandler(this.handler);
+	}
+
+	private static Callable<String> value(final String value) {
+		return new Callable<String>() {
+			public String call() throws Exception {
+				return value;
+			}
+		};
+	}
+
+	private static Callable<String> failure(final Exception e) {
+		return new Callable<String>() {
+			public String call() throws Exception {
+				throw e;
+			}
+		};
+	}
+
+	private static Runnable add(final List<String> list, final String s) {
+		return new Runnable() {
+			public void run() {
+				list.add(s);
+			}
+		};
+	}
+
+	@Test
+	public void testListeners() {
+		QueueExecutor executor = new QueueExecutor();
+		StoreFuture<String> future = Util.submit(executor, value("v"));
+		List<String> run = new ArrayList<String>();
+		future.addListener(add(run, "1"), null);
+		future.addListener(add(run, "2"), null);
+		assertTrue(run.isEmpty());
+		executor.runAll();
+		assertEquals("[1, 2]", run.toString());
+		// added when done, so run immediately
+		future.addListener(add(run, "3"), null);
+		assertEquals("[1, 2, 3]", run.toString());
+	}
+
+	@Test
+	public void testListenerExecutor() {
+		QueueExecutor executor = new QueueExecutor();
+		StoreFuture<String> future = Util.submit(executor, value("v"));
+		List<String> run = new ArrayList<String>();
+		future.addListener(add(run, "1"), executor);
+		executor.runAll();
+		assertEquals("[1]", run.toString());
+	}
+
+	@Test
+	public void testCallbacks() {
+		QueueExecutor executor = new QueueExecutor();
+		final List<Object> outcomes = new ArrayList<Object>();
+		StoreFuture.Callback<String> callback = new StoreFuture.Callback<String>() {
+			public void onSuccess(String result) {
+				outcomes.add(result);
+			}
+
+			public void onFailure(Throwable t) {
+				outcomes.add(t);
+			}
+		};
+		StoreException e = new StoreException("failed");
+		Util.submit(executor, value("v")).addCallback(callback, null);
+		Util.submit(executor, failure(e)).addCallback(callback, null);
+		executor.runAll();
+		assertEquals(2, outcomes.size());
+		assertEquals("v", outcomes.get(0));
+		assertSame(e, outcomes.get(1));
+	}
+
+	@Test
+	public void testFailingListener() {
+		QueueExecutor executor = new QueueExecutor();
+		StoreFuture<String> future = Util.submit(executor, value("v"));
+		List<String> run = new ArrayList<String>();
+		future.addListener(new Runnable() {
+			public void run() {
+				throw new IllegalStateException();
+			}
+		}, null);
+		future.addListener(add(run, "2"), null);
+		future.addListener(add(run, "3"), REJECTING);
+		executor.runAll();
+		// the others still run, and the failures are not discarded
+		assertEquals("[2]", run.toString());
+		assertEquals(2, this.uncaught.size());
+		assertTrue(this.uncaught.get(0) instanceof IllegalStateException);
+		assertTrue(this.uncaught.get(1) instanceof RejectedExecutionException);
+		// nor thrown to the caller when added after completion
+		future.addListener(add(run, "4"), REJECTING);
+		assertEquals(3, this.uncaught.size());
+		assertTrue(future.isDone());
+	}
+
+	@Test
+	public void testGetRunsTaskNotStarted() throws StoreException {
+		QueueExecutor executor = new QueueExecutor();
+		StoreFuture<String> future = Util.submit(executor, value("v"));
+		assertFalse(future.isDone());
+		assertEquals("v", Util.get(future));
+		// run by the executor later, it does nothing
+		executor.runAll();
+		assertEquals("v", Util.get(future));
+	}
+
+	@Test
+	public void testGetFailure() throws Exception {
+		QueueExecutor executor = new QueueExecutor();
+		StoreException e = new StoreException("failed");
+		StoreFuture<String> future = Util.submit(executor, failure(e));
+		try {
+			Util.get(future);
+			fail("no exception");
+		} catch (StoreException thrown) {
+			assertSame(e, thrown);
+		}
+		try {
+			future.get();
+			fail("no exception");
+		} catch (ExecutionException thrown) {
+			assertSame(e, thrown.getCause());
+		}
+	}
+}
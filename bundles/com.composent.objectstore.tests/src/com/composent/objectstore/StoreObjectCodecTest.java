@@ -0,0 +1,173 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Composent, Inc. and others. All rights reserved. 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ * 
+ * Contributors: Composent, Inc. - initial API and implementation
+ ******************************************************************************/
+package com.composent.objectstore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.math.BigDecimal;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.composent.objectstore.IObjectStore.CollectionValue;
+import com.composent.objectstore.memory.MemoryObjectStore;
+
+public class StoreObjectCodecTest {
+
+	private static final String CLASS_NAME = "Item";
+
+	private MemoryObjectStore store;
+
+	@Before
+	public void setUp() throws StoreException {
+		this.store = new MemoryObjectStore();
+		createTable();
+	}
+
+	private void createTable() throws StoreException {
+		this.store.createObjectTable(CLASS_NAME, false);
+		this.store.addPrimitiveField(CLASS_NAME, "name", String.class, false);
+		this.store.addPrimitiveField(CLASS_NAME, "n", Long.class, false);
+		this.store.addPrimitiveField(CLASS_NAME, "d", Double.class, false);
+		this.store.addPrimitiveField(CLASS_NAME, "date", Date.class, false);
+		this.store.addPrimitiveField(CLASS_NAME, "decimal", BigDecimal.class,
+				false);
+		this.store.addPrimitiveField(CLASS_NAME, "address",
+				InetAddress.class, false);
+		this.store.addPrimitiveField(CLASS_NAME, "data", ByteBuffer.class,
+				false);
+		this.store.addCollectionField(CLASS_NAME, "list", List.class,
+				String.class, null, false);
+		this.store.addCollectionField(CLASS_NAME, "map", Map.class,
+				String.class, Integer.class, false);
+	}
+
+	private StoreObject createStored() throws Exception {
+		StoreObject so = this.store.createStoreObject(CLASS_NAME);
+		so.put("name", "name");
+		so.put("n", Long.valueOf(-42));
+		so.put("d", Double.valueOf(0.5));
+		so.put("date", new Date(1234567890L));
+		so.put("decimal", new BigDecimal("123.456"));
+		so.put("address", InetAddress.getByName("127.0.0.1"));
+		so.put("data", ByteBuffer.wrap(new byte[] { 1, 2, 3 }));
+		List<String> list = new ArrayList<String>();
+		list.add("a");
+		list.add("b");
+		so.put("list", String.class, list);
+		Map<String, Integer> map = new HashMap<String, Integer>();
+		map.put("k", Integer.valueOf(1));
+		so.put("map", String.class, Integer.class, map);
+		so.store();
+		return so;
+	}
+
+	private static Object getValue(StoreObject so, String key) {
+		Object value = so.get(key);
+		return (value instanceof CollectionValue) ? ((CollectionValue) value)
+				.getValue() : value;
+	}
+
+	private static ByteBuffer encode(StoreObject so) throws StoreException {
+		ByteBuffer bb = ByteBuffer.allocate(1024);
+		StoreObjectCodec.encode(so, bb);
+		bb.flip();
+		return bb;
+	}
+
+	@Test
+	public void testRoundTrip() throws Exception {
+		StoreObject so = createStored();
+		StoreObject decoded = StoreObjectCodec.decode(this.store, CLASS_NAME,
+				encode(so));
+		assertEquals(so.getId(), decoded.getId());
+		for (String key : so.getKeys())
+			assertEquals(key, getValue(so, key), getValue(decoded, key));
+	}
+
+	@Test
+	public void testOmitsFieldsWithoutValue() throws Exception {
+		StoreObject so = this.store.createStoreObject(CLASS_NAME);
+		so.put("name", "name");
+		so.store();
+		StoreObject decoded = StoreObjectCodec.decode(this.store, CLASS_NAME,
+				encode(so));
+		assertEquals("name", decoded.getString("name"));
+		assertFalse(decoded.hasValue("n"));
+	}
+
+	@Test(expected = StoreException.class)
+	public void testSchemaChanged() throws Exception {
+		ByteBuffer bb = encode(createStored());
+		this.store.dropObjectTable(CLASS_NAME, false);
+		this.store.createObjectTable(CLASS_NAME, false);
+		this.store.addPrimitiveField(CLASS_NAME, "name", Long.class, false);
+		StoreObjectCodec.decode(this.store, CLASS_NAME, bb);
+	}
+
+	@Test
+	public void testSchemaRecreated() throws Exception {
+		StoreObject so = createStored();
+		ByteBuffer bb = encode(so);
+		this.store.dropObjectTable(CLASS_NAME, false);
+		createTable();
+		assertEquals("name", StoreObjectCodec.decode(this.store, CLASS_NAME,
+				bb).getString("name"));
+	}
+
+	@Test(expected = StoreException.class)
+	public void testTruncated() throws Exception {
+		ByteBuffer bb = encode(createStored());
+		bb.limit(bb.limit() - 1);
+		StoreObjectCodec.decode(this.store, CLASS_NAME, bb);
+	}
+
+	@Test
+	public void testCorrupted() throws Exception {
+		ByteBuffer bb = encode(createStored());
+		Random random = new Random(1);
+		// corruption is either undetected or a StoreException, never a
+		// runtime exception
+		for (int i = 0; i < 1000; i++) {
+			ByteBuffer corrupted = ByteBuffer.allocate(bb.remaining());
+			corrupted.put(bb.duplicate()).flip();
+			int position = 8 + random.nextInt(corrupted.limit() - 8);
+			corrupted.put(position, (byte) random.nextInt());
+			try {
+				StoreObjectCodec.decode(this.store, CLASS_NAME, corrupted);
+			} catch (StoreException e) {
+				// expected
+			}
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testEncodeWithoutId() throws StoreException {
+		StoreObjectCodec.encode(this.store.createStoreObject(CLASS_NAME),
+				ByteBuffer.allocate(1024));
+	}
+}
@@ -0,0 +1,289 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Composent, Inc. and others. All rights reserved. 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ * 
+ * Contributors: Composent, Inc. - initial API and implementation
+ ******************************************************************************/
+package com.composent.objectstore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.composent.objectstore.IObjectStore.ScanHandler;
+import com.composent.objectstore.IObjectStore.Value;
+import com.composent.objectstore.StoreObjectQuery.Page;
+import com.composent.objectstore.StoreObjectQuery.Where;
+import com.composent.objectstore.memory.MemoryObjectStore;
+
+public class StoreObjectQueryTest {
+
+	private static final String CLASS_NAME = "Item";
+	private static final int COUNT = 100;
+
+	private MemoryObjectStore store;
+
+	@Before
+	public void setUp() throws StoreException {
+		this.store = new MemoryObjectStore();
+		this.store.createObjectTable(CLASS_NAME, false);
+		this.store.addPrimitiveField(CLASS_NAME, "n", Integer.class, false);
+		this.store.addPrimitiveField(CLASS_NAME, "name", String.class, false);
+		for (int i = 0; i < COUNT; i++) {
+			StoreObject so = this.store.createStoreObject(CLASS_NAME);
+			so.put("n", Integer.valueOf(i));
+			so.put("name", "item" + i);
+			so.store();
+		}
+	}
+
+	private StoreObjectQuery createQuery() throws StoreException {
+		return this.store.createQuery(CLASS_NAME);
+	}
+
+	private static int count(Iterator<StoreObject> iterator) {
+		int result = 0;
+		for (; iterator.hasNext(); iterator.next())
+			result++;
+		return result;
+	}
+
+	@Test
+	public void testIterate() throws StoreException {
+		Set<UUID> ids = new HashSet<UUID>();
+		for (Iterator<StoreObject> i = createQuery().setFetchSize(
+				Integer.valueOf(7)).iterate(); i.hasNext();)
+			assertTrue(ids.add(i.next().getId()));
+		assertEquals(COUNT, ids.size());
+	}
+
+	@Test
+	public void testIteratePrefetch() throws StoreException {
+		assertEquals(COUNT, count(createQuery().setFetchSize(
+				Integer.valueOf(7)).setPrefetch(true).iterate()));
+		assertEquals(COUNT, count(createQuery().setFetchSize(
+				Integer.valueOf(7)).setPrefetch(false).iterate()));
+	}
+
+	@Test
+	public void testIterateWithWhere() throws StoreException {
+		assertEquals(50, count(createQuery().setWhere(
+				Where.lessThan("n", new Value(Integer.valueOf(50))))
+				.setFetchSize(Integer.valueOf(9)).iterate()));
+	}
+
+	@Test(expected = NoSuchElementException.class)
+	public void testIterateEnd() throws StoreException {
+		Iterator<StoreObject> i = createQuery().setLimit(Integer.valueOf(1))
+				.iterate();
+		i.next();
+		i.next();
+	}
+
+	@Test
+	public void testLimit() throws StoreException {
+		assertEquals(3, createQuery().setLimit(Integer.valueOf(3)).execute()
+				.size());
+		// limit across pages
+		assertEquals(3, count(createQuery().setLimit(Integer.valueOf(3))
+				.setFetchSize(Integer.valueOf(2)).iterate()));
+		assertEquals(COUNT, count(createQuery().setLimit(
+				Integer.valueOf(COUNT + 1)).setFetchSize(Integer.valueOf(30))
+				.iterate()));
+	}
+
+	@Test
+	public void testLimitNotPositive() throws StoreException {
+		for (int limit : new int[] { 0, -1 }) {
+			assertTrue(createQuery().setLimit(Integer.valueOf(limit))
+					.execute().isEmpty());
+			assertFalse(createQuery().setLimit(Integer.valueOf(limit))
+					.iterate().hasNext());
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testFetchSizeNotPositive() throws StoreException {
+		createQuery().setFetchSize(Integer.valueOf(0));
+	}
+
+	@Test
+	public void testSelect() throws StoreException {
+		Collection<StoreObject> storeObjects = createQuery().select("n")
+				.execute();
+		assertEquals(COUNT, storeObjects.size());
+		for (StoreObject so : storeObjects) {
+			assertNotNull(so.getId());
+			assertNotNull(so.getLastModifiedAt());
+			assertTrue(so.isPresent("n"));
+			// unselected fields are absent, not null
+			assertFalse(so.isPresent("name"));
+			assertNull(so.get("name"));
+			assertEquals(Collections.singletonList("n"), so.getKeys());
+			assertEquals(Collections.singleton("n"), so.getProjection());
+		}
+		assertNull(createQuery().execute().iterator().next().getProjection());
+	}
+
+	@Test
+	public void testStoreSelected() throws StoreException {
+		StoreObject so = createQuery().select("n").setWhere(
+				Where.equalTo("n", new Value(Integer.valueOf(5)))).execute()
+				.iterator().next();
+		so.put("n", Integer.valueOf(-5));
+		assertTrue(so.store().isSuccess());
+		// storing a projected object does not overwrite unselected fields
+		so = createQuery().setWhere(
+				Where.equalTo(StoreObject.ID_NAME, new Value(so.getId())))
+				.execute().iterator().next();
+		assertEquals(Integer.valueOf(-5), so.getInt("n"));
+		assertEquals("item5", so.getString("name"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testSelectUnknownField() throws StoreException {
+		createQuery().select("n", "unknown");
+	}
+
+	@Test
+	public void testExecutePage() throws StoreException {
+		Set<UUID> ids = new HashSet<UUID>();
+		PagingState state = null;
+		int pages = 0;
+		do {
+			StoreObjectQuery query = createQuery().setFetchSize(
+					Integer.valueOf(30));
+			if (state != null)
+				// resume as a new query, from the serialized state
+				query.setPagingState(PagingState.fromString(state.toString()));
+			Page page = query.executePage();
+			assertTrue(page.getStoreObjects().size() <= 30);
+			for (StoreObject so : page.getStoreObjects())
+				assertTrue(ids.add(so.getId()));
+			state = page.getPagingState();
+			pages++;
+		} while (state != null);
+		assertEquals(COUNT, ids.size());
+		assertEquals(4, pages);
+	}
+
+	@Test
+	public void testExecutePageWithWhere() throws StoreException {
+		Where where = Where.lessThan("n", new Value(Integer.valueOf(50)));
+		Page page = createQuery().setWhere(where).setFetchSize(
+				Integer.valueOf(40)).executePage();
+		assertEquals(40, page.getStoreObjects().size());
+		assertNotNull(page.getPagingState());
+		page = createQuery().setWhere(where)
+				.setFetchSize(Integer.valueOf(40))
+				.setPagingState(page.getPagingState()).executePage();
+		assertEquals(10, page.getStoreObjects().size());
+		assertNull(page.getPagingState());
+	}
+
+	@Test
+	public void testExecutePageLimitNotPositive() throws StoreException {
+		for (int limit : new int[] { 0, -1 }) {
+			Page page = createQuery().setLimit(Integer.valueOf(limit))
+					.executePage();
+			assertTrue(page.getStoreObjects().isEmpty());
+			assertNull(page.getPagingState());
+		}
+	}
+
+	@Test
+	public void testPagingStateRoundTrip() throws Exception {
+		PagingState state = createQuery().setFetchSize(Integer.valueOf(10))
+				.executePage().getPagingState();
+		assertEquals(state, PagingState.fromString(state.toString()));
+		assertEquals(state, PagingState.fromByteArray(state.toByteArray()));
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(state);
+		out.close();
+		assertEquals(state, new ObjectInputStream(new ByteArrayInputStream(
+				bytes.toByteArray())).readObject());
+	}
+
+	@Test(expected = StoreException.class)
+	public void testPagingStateOfOtherQuery() throws StoreException {
+		PagingState state = createQuery().setFetchSize(Integer.valueOf(10))
+				.executePage().getPagingState();
+		createQuery().setWhere(
+				Where.lessThan("n", new Value(Integer.valueOf(5))))
+				.setPagingState(state).executePage();
+	}
+
+	@Test
+	public void testIterateFromPagingState() throws StoreException {
+		PagingState state = createQuery().setFetchSize(Integer.valueOf(10))
+				.executePage().getPagingState();
+		assertEquals(COUNT - 10, count(createQuery().setFetchSize(
+				Integer.valueOf(7)).setPagingState(state).iterate()));
+	}
+
+	@Test
+	public void testScan() throws StoreException {
+		final Set<UUID> ids = Collections.synchronizedSet(new HashSet<UUID>());
+		createQuery().setLimit(Integer.valueOf(1)).scan(8,
+				new ScanHandler<StoreObject>() {
+					public void handle(StoreObject so) throws StoreException {
+						assertTrue(ids.add(so.getId()));
+					}
+				});
+		// the limit does not apply
+		assertEquals(COUNT, ids.size());
+	}
+
+	@Test
+	public void testScanWithWhere() throws StoreException {
+		final AtomicInteger count = new AtomicInteger();
+		createQuery().setWhere(
+				Where.lessThan("n", new Value(Integer.valueOf(30)))).select(
+				"n").scan(4, new ScanHandler<StoreObject>() {
+			public void handle(StoreObject so) throws StoreException {
+				assertTrue(so.getInt("n").intValue() < 30);
+				assertFalse(so.isPresent("name"));
+				count.incrementAndGet();
+			}
+		});
+		assertEquals(30, count.get());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testScanSplitsNotPositive() throws StoreException {
+		createQuery().scan(0, new ScanHandler<StoreObject>() {
+			public void handle(StoreObject so) throws StoreException {
+			}
+		});
+	}
+}
@@ -0,0 +1,535 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Composent, Inc. and others. All rights reserved. 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ * 
+ * Contributors: Composent, Inc. - initial API and implementation
+ ******************************************************************************/
+package com.composent.objectstore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.composent.objectstore.IObjectStore.ObjectStoreItem;
+import com.composent.objectstore.IObjectStore.Value;
+import com.composent.objectstore.StoreObject.ConcurrencyMode;
+import com.composent.objectstore.StoreObjectQuery.Where;
+import com.composent.objectstore.memory.MemoryObjectStore;
+
+public class StoreObjectTest {
+
+	private static final String CLASS_NAME = "Thing";
+
+	private MemoryObjectStore store;
+
+	@Before
+	public void setUp() throws StoreException {
+		this.store = new MemoryObjectStore();
+		this.store.createObjectTable(CLASS_NAME, false);
+		this.store.addPrimitiveField(CLASS_NAME, "s", String.class, false);
+		this.store.addPrimitiveField(CLASS_NAME, "l", Long.class, false);
+		this.store.addPrimitiveField(CLASS_NAME, "i", Integer.class, false);
+		this.store.addPrimitiveField(CLASS_NAME, "d", Date.class, false);
+		this.store.addPrimitiveField(CLASS_NAME, "b", Boolean.class, false);
+		this.store.addPrimitiveField(CLASS_NAME, "f", Float.class, false);
+		this.store.addPrimitiveField(CLASS_NAME, "db", Double.class, false);
+		this.store.addPrimitiveField(CLASS_NAME, "u", UUID.class, false);
+		this.store.addPrimitiveField(CLASS_NAME, "dec", BigDecimal.class,
+				false);
+		this.store.addPrimitiveField(CLASS_NAME, "bi", BigInteger.class, false);
+		this.store.addPrimitiveField(CLASS_NAME, "bytes", ByteBuffer.class,
+				false);
+		this.store.addCollectionField(CLASS_NAME, "list", List.class,
+				String.class, null, false);
+		this.store.addCollectionField(CLASS_NAME, "set", Set.class,
+				Integer.class, null, false);
+		this.store.addCollectionField(CLASS_NAME, "map", Map.class,
+				String.class, Long.class, false);
+	}
+
+	private StoreObject create() throws StoreException {
+		return this.store.createStoreObject(CLASS_NAME);
+	}
+
+	private StoreObject reread(StoreObject so) throws StoreException {
+		return this.store.createQuery(CLASS_NAME).setWhere(
+				Where.equalTo(StoreObject.ID_NAME, new Value(so.getId())))
+				.execute().iterator().next();
+	}
+
+	private static void putAll(StoreObject so, UUID u, Date d) {
+		so.put("s", "string");
+		so.put("l", Long.valueOf(Long.MAX_VALUE));
+		so.put("i", Integer.valueOf(-7));
+		so.put("d", d);
+		so.put("b", Boolean.TRUE);
+		so.put("f", Float.valueOf(1.5f));
+		so.put("db", Double.valueOf(-2.25d));
+		so.put("u", u);
+		so.put("dec", new BigDecimal("12.345"));
+		so.put("bi", BigInteger.valueOf(99));
+		so.put("bytes", ByteBuffer.wrap(new byte[] { 1, 2, 3 }));
+		so.put("list", String.class, Arrays.asList("a", "b"));
+		so.put("set", Integer.class, new HashSet<Integer>(Arrays.asList(
+				Integer.valueOf(1), Integer.valueOf(2))));
+		Map<String, Long> map = new HashMap<String, Long>();
+		map.put("k", Long.valueOf(3));
+		so.put("map", String.class, Long.class, map);
+	}
+
+	private static void assertAll(StoreObject so, UUID u, Date d) {
+		assertEquals("string", so.getString("s"));
+		assertEquals(Long.valueOf(Long.MAX_VALUE), so.getLong("l"));
+		assertEquals(Integer.valueOf(-7), so.getInt("i"));
+		assertEquals(d, so.getDate("d"));
+		assertEquals(Boolean.TRUE, so.getBoolean("b"));
+		assertEquals(Float.valueOf(1.5f), so.getFloat("f"));
+		assertEquals(Double.valueOf(-2.25d), so.getDouble("db"));
+		assertEquals(u, so.getUUID("u"));
+		assertEquals(new BigDecimal("12.345"), so.getDecimal("dec"));
+		assertEquals(BigInteger.valueOf(99), so.getBigInteger("bi"));
+		assertEquals(ByteBuffer.wrap(new byte[] { 1, 2, 3 }), so
+				.getBytes("bytes"));
+		assertEquals(Arrays.asList("a", "b"), so.getList("list"));
+		assertEquals(new HashSet<Integer>(Arrays.asList(Integer.valueOf(1),
+				Integer.valueOf(2))), so.getSet("set"));
+		assertEquals(Collections.singletonMap("k", Long.valueOf(3)), so
+				.getMap("map"));
+	}
+
+	@Test
+	public void testPutGet() throws StoreException {
+		StoreObject so = create();
+		UUID u = UUID.randomUUID();
+		Date d = new Date(1000L);
+		putAll(so, u, d);
+		assertAll(so, u, d);
+		// put returns the previous value
+		assertEquals("string", so.put("s", "other"));
+		assertEquals(Long.valueOf(Long.MAX_VALUE), so.put("l", Long
+				.valueOf(1)));
+		assertEquals(Long.valueOf(1), so.get("l"));
+	}
+
+	@Test
+	public void testStoreRevive() throws StoreException {
+		StoreObject so = create();
+		UUID u = UUID.randomUUID();
+		Date d = new Date(1000L);
+		putAll(so, u, d);
+		assertTrue(so.store().isSuccess());
+		assertAll(reread(so), u, d);
+	}
+
+	@Test
+	public void testGetKeys() throws StoreException {
+		StoreObject so = create();
+		assertTrue(so.getKeys().isEmpty());
+		// keys are in field order, not put order
+		so.put("map", String.class, Long.class, new HashMap<String, Long>());
+		so.put("i", Integer.valueOf(1));
+		so.put("s", "s");
+		assertEquals(Arrays.asList("s", "i", "map"), so.getKeys());
+	}
+
+	@Test
+	public void testIsPresent() throws StoreException {
+		StoreObject so = create();
+		assertFalse(so.isPresent("s"));
+		assertFalse(so.isPresent("unknown"));
+		assertNull(so.get("s"));
+		so.put("s", (String) null);
+		// a null value is present
+		assertTrue(so.isPresent("s"));
+		assertNull(so.get("s"));
+		assertNull(so.get("unknown"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testPutUnknownField() throws StoreException {
+		create().put("unknown", "value");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testPutWrongType() throws StoreException {
+		create().put("s", Long.valueOf(1));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testPutOtherKind() throws StoreException {
+		StoreObject so = create();
+		so.put("s", "string");
+		// putPrimitive does not validate, but a slot holds a single kind
+		so.putPrimitive("s", Long.class, Long.valueOf(1));
+	}
+
+	@Test
+	public void testGetWrongType() throws StoreException {
+		StoreObject so = create();
+		so.put("s", "string");
+		so.put("l", Long.valueOf(1));
+		assertNull(so.getDate("s"));
+		assertNull(so.getString("l"));
+	}
+
+	@Test
+	public void testAddField() throws StoreException {
+		StoreObject so = create();
+		so.put("s", "string");
+		assertTrue(so.store().isSuccess());
+		this.store.addPrimitiveField(CLASS_NAME, "added", String.class, false);
+		// objects created for the old metadata do not have the field
+		try {
+			so.put("added", "value");
+			assertTrue(false);
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		so = reread(so);
+		assertEquals("string", so.getString("s"));
+		assertFalse(so.isPresent("added"));
+		so.put("added", "value");
+		assertTrue(so.store().isSuccess());
+		assertEquals("value", reread(so).getString("added"));
+	}
+
+	@Test
+	public void testDropField() throws StoreException {
+		StoreObject so = create();
+		so.put("s", "string");
+		so.put("i", Integer.valueOf(1));
+		assertTrue(so.store().isSuccess());
+		this.store.dropField(CLASS_NAME, "s");
+		so = reread(so);
+		assertEquals(Collections.singletonList("i"), so.getKeys());
+		assertEquals(Integer.valueOf(1), so.getInt("i"));
+		assertNull(so.get("s"));
+	}
+
+	@Test
+	public void testModifiedKeys() throws StoreException {
+		StoreObject so = create();
+		assertTrue(so.getModifiedKeys().isEmpty());
+		so.put("i", Integer.valueOf(1));
+		so.put("s", "string");
+		assertEquals(Arrays.asList("s", "i"), so.getModifiedKeys());
+		assertTrue(so.isModified("s"));
+		assertFalse(so.isModified("l"));
+		assertTrue(so.store().isSuccess());
+		assertTrue(so.getModifiedKeys().isEmpty());
+		so.put("i", Integer.valueOf(2));
+		assertEquals(Collections.singletonList("i"), so.getModifiedKeys());
+		// revived values are not modified
+		assertTrue(reread(so).getModifiedKeys().isEmpty());
+	}
+
+	@Test
+	public void testStoreOnlyModified() throws StoreException {
+		StoreObject so = create();
+		so.put("s", "string");
+		so.put("i", Integer.valueOf(1));
+		assertTrue(so.store().isSuccess());
+		StoreObject first = reread(so);
+		StoreObject second = reread(so);
+		first.put("s", "first");
+		second.put("i", Integer.valueOf(2));
+		assertTrue(first.store().isSuccess());
+		assertTrue(second.store().isSuccess());
+		// neither store overwrote the field put by the other
+		so = reread(so);
+		assertEquals("first", so.getString("s"));
+		assertEquals(Integer.valueOf(2), so.getInt("i"));
+	}
+
+	@Test
+	public void testWriteAllFields() throws StoreException {
+		StoreObject so = create();
+		so.put("s", "string");
+		so.put("i", Integer.valueOf(1));
+		assertTrue(so.store().isSuccess());
+		StoreObject first = reread(so);
+		StoreObject second = reread(so);
+		second.put("i", Integer.valueOf(2));
+		assertTrue(second.store().isSuccess());
+		assertFalse(first.isWriteAllFields());
+		first.setWriteAllFields(true);
+		first.put("s", "first");
+		assertTrue(first.store().isSuccess());
+		// all present fields were written, as read by first
+		so = reread(so);
+		assertEquals("first", so.getString("s"));
+		assertEquals(Integer.valueOf(1), so.getInt("i"));
+	}
+
+	@Test
+	public void testPutDuringStore() throws StoreException {
+		for (ConcurrencyMode mode : ConcurrencyMode.values()) {
+			StoreObject so = create();
+			so.setConcurrencyMode(mode);
+			so.put("s", "string");
+			so.put("i", Integer.valueOf(1));
+			so.collectItems();
+			// put after the items were collected, before the result
+			so.put("s", "other");
+			assertTrue(so.handleStoreResult(
+					new StoreResult(true, new ArrayList<ObjectStoreItem>()))
+					.isSuccess());
+			assertEquals(Collections.singletonList("s"), so.getModifiedKeys());
+		}
+	}
+
+	@Test
+	public void testStoreFailureKeepsModified() throws StoreException {
+		StoreObject so = create();
+		so.put("s", "string");
+		so.collectItems();
+		assertFalse(so.handleStoreResult(new StoreResult(false, null))
+				.isSuccess());
+		assertTrue(so.isModified("s"));
+	}
+
+	@Test
+	public void testPrimitiveAccessors() throws StoreException {
+		StoreObject so = create();
+		so.putLong("l", Long.MIN_VALUE);
+		so.putInt("i", -1);
+		so.putBoolean("b", true);
+		so.putFloat("f", 0.5f);
+		so.putDouble("db", Double.MAX_VALUE);
+		assertEquals(Long.MIN_VALUE, so.getLongValue("l"));
+		assertEquals(-1, so.getIntValue("i"));
+		assertTrue(so.getBooleanValue("b"));
+		assertEquals(0.5f, so.getFloatValue("f"), 0f);
+		assertEquals(Double.MAX_VALUE, so.getDoubleValue("db"), 0d);
+		// the boxed getters read the same values
+		assertEquals(Long.valueOf(Long.MIN_VALUE), so.getLong("l"));
+		assertEquals(Integer.valueOf(-1), so.get("i"));
+		assertEquals(Boolean.TRUE, so.getBoolean("b"));
+		assertEquals(Float.valueOf(0.5f), so.getFloat("f"));
+		assertEquals(Double.valueOf(Double.MAX_VALUE), so.getDouble("db"));
+		assertTrue(so.store().isSuccess());
+		so = reread(so);
+		assertEquals(Long.MIN_VALUE, so.getLongValue("l"));
+		assertEquals(-1, so.getIntValue("i"));
+		assertTrue(so.getBooleanValue("b"));
+		assertEquals(0.5f, so.getFloatValue("f"), 0f);
+		assertEquals(Double.MAX_VALUE, so.getDoubleValue("db"), 0d);
+	}
+
+	@Test
+	public void testPrimitiveAccessorsBoxedValues() throws StoreException {
+		StoreObject so = create();
+		so.put("l", Long.valueOf(5));
+		so.put("f", Float.valueOf(-0.25f));
+		assertEquals(5L, so.getLongValue("l"));
+		assertEquals(-0.25f, so.getFloatValue("f"), 0f);
+	}
+
+	@Test
+	public void testHasValue() throws StoreException {
+		StoreObject so = create();
+		assertFalse(so.hasValue("l"));
+		assertEquals(0L, so.getLongValue("l"));
+		assertFalse(so.getBooleanValue("b"));
+		so.putLong("l", 0L);
+		so.put("i", (Integer) null);
+		// a stored zero is distinguished from a missing or null value
+		assertTrue(so.hasValue("l"));
+		assertEquals(0L, so.getLongValue("l"));
+		assertTrue(so.isPresent("i"));
+		assertFalse(so.hasValue("i"));
+		assertEquals(0, so.getIntValue("i"));
+		assertFalse(so.hasValue("unknown"));
+	}
+
+	@Test
+	public void testPrimitiveAccessorsWrongType() throws StoreException {
+		StoreObject so = create();
+		so.putLong("l", 1L);
+		// no Integer value is held by a Long field
+		assertEquals(0, so.getIntValue("l"));
+		try {
+			so.putInt("l", 1);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		assertEquals(1L, so.getLongValue("l"));
+	}
+
+	@Test
+	public void testCopyOnWrite() throws StoreException {
+		StoreObject so = create();
+		assertEquals(ConcurrencyMode.SYNCHRONIZED, so.getConcurrencyMode());
+		UUID u = UUID.randomUUID();
+		Date d = new Date(1000L);
+		putAll(so, u, d);
+		so.setConcurrencyMode(ConcurrencyMode.COPY_ON_WRITE);
+		assertEquals(ConcurrencyMode.COPY_ON_WRITE, so.getConcurrencyMode());
+		assertAll(so, u, d);
+		so.putLong("l", 1L);
+		so.put("s", "other");
+		assertEquals(1L, so.getLongValue("l"));
+		assertEquals("other", so.getString("s"));
+		assertTrue(so.isModified("s"));
+		assertTrue(so.store().isSuccess());
+		assertFalse(so.isModified("s"));
+		so.setConcurrencyMode(ConcurrencyMode.SYNCHRONIZED);
+		so.put("s", "again");
+		assertEquals("again", so.getString("s"));
+		assertEquals("other", reread(so).getString("s"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testConcurrencyModeNull() throws StoreException {
+		create().setConcurrencyMode(null);
+	}
+
+	@Test
+	public void testCopyOnWriteConcurrentReads() throws Exception {
+		final StoreObject so = create();
+		so.setConcurrencyMode(ConcurrencyMode.COPY_ON_WRITE);
+		so.putLong("l", 0L);
+		final int count = 10000;
+		final AtomicBoolean failed = new AtomicBoolean();
+		Thread[] readers = new Thread[4];
+		for (int i = 0; i < readers.length; i++) {
+			readers[i] = new Thread(new Runnable() {
+				public void run() {
+					// each reader sees the values put, in order
+					long last = 0;
+					while (last < count - 1) {
+						long l = so.getLongValue("l");
+						if (l < last || !so.hasValue("l"))
+							failed.set(true);
+						last = l;
+					}
+				}
+			});
+			readers[i].start();
+		}
+		for (int i = 1; i < count; i++)
+			so.putLong("l", i);
+		for (Thread reader : readers)
+			reader.join(10000);
+		for (Thread reader : readers)
+			assertFalse(reader.isAlive());
+		assertFalse(failed.get());
+	}
+
+	@Test
+	public void testFreeze() throws StoreException {
+		StoreObject so = create();
+		UUID u = UUID.randomUUID();
+		Date d = new Date(1000L);
+		putAll(so, u, d);
+		assertTrue(so.store().isSuccess());
+		StoreObject frozen = so.freeze();
+		assertTrue(frozen.isFrozen());
+		assertFalse(so.isFrozen());
+		assertSame(frozen, frozen.freeze());
+		assertEquals(so.getId(), frozen.getId());
+		assertEquals(so.getLastModifiedAt(), frozen.getLastModifiedAt());
+		assertEquals(ConcurrencyMode.COPY_ON_WRITE, frozen
+				.getConcurrencyMode());
+		assertAll(frozen, u, d);
+		// later puts to the source are not seen by the snapshot
+		so.put("s", "other");
+		so.getList("list").set(0, "changed");
+		assertEquals("string", frozen.getString("s"));
+		assertAll(frozen, u, d);
+	}
+
+	@Test
+	public void testFreezeUnmodifiable() throws StoreException {
+		StoreObject so = create();
+		putAll(so, UUID.randomUUID(), new Date(1000L));
+		StoreObject frozen = so.freeze();
+		try {
+			frozen.put("s", "other");
+			fail();
+		} catch (UnsupportedOperationException e) {
+			// expected
+		}
+		try {
+			frozen.putLong("l", 1L);
+			fail();
+		} catch (UnsupportedOperationException e) {
+			// expected
+		}
+		try {
+			frozen.store();
+			fail();
+		} catch (UnsupportedOperationException e) {
+			// expected
+		}
+		try {
+			frozen.getList("list").add("c");
+			fail();
+		} catch (UnsupportedOperationException e) {
+			// expected
+		}
+		try {
+			frozen.getMap("map").clear();
+			fail();
+		} catch (UnsupportedOperationException e) {
+			// expected
+		}
+		assertTrue(frozen.getBytes("bytes").isReadOnly());
+		// readers do not share a position
+		frozen.getBytes("bytes").get();
+		assertEquals(3, frozen.getBytes("bytes").remaining());
+	}
+
+	@Test
+	public void testFreezeDates() throws StoreException {
+		StoreObject so = create();
+		so.put("d", new Date(1000L));
+		assertTrue(so.store().isSuccess());
+		long lastModifiedAt = so.getLastModifiedAt().getTime();
+		StoreObject frozen = so.freeze();
+		// each read returns a copy, so readers cannot change the snapshot
+		frozen.getDate("d").setTime(0L);
+		((Date) frozen.get("d")).setTime(0L);
+		frozen.getPrimitive("d", Date.class).setTime(0L);
+		frozen.getLastModifiedAt().setTime(0L);
+		assertEquals(new Date(1000L), frozen.getDate("d"));
+		assertEquals(new Date(1000L), frozen.get("d"));
+		assertEquals(lastModifiedAt, frozen.getLastModifiedAt().getTime());
+		// nor are changes to the source's dates seen by the snapshot
+		so.getDate("d").setTime(0L);
+		assertEquals(new Date(1000L), frozen.getDate("d"));
+	}
+}
@@ -0,0 +1,119 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Composent, Inc. and others. All rights reserved. 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ * 
+ * Contributors: Composent, Inc. - initial API and implementation
+ ******************************************************************************/
+package com.composent.objectstore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class TokenRangeTest {
+
+	@Test
+	public void testSplit() {
+		for (int count : new int[] { 1, 2, 3, 16, 1000 }) {
+			List<TokenRange> ranges = TokenRange.split(count);
+			assertEquals(count, ranges.size());
+			// contiguous, and covering the whole ring
+			assertEquals(TokenRange.MIN_TOKEN, ranges.get(0).getStart());
+			assertEquals(TokenRange.MAX_TOKEN, ranges.get(count - 1).getEnd());
+			for (int i = 1; i < count; i++)
+				assertEquals(ranges.get(i - 1).getEnd() + 1, ranges.get(i)
+						.getStart());
+		}
+		List<TokenRange> halves = TokenRange.split(2);
+		assertEquals(-1L, halves.get(0).getEnd());
+		assertEquals(0L, halves.get(1).getStart());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testSplitNotPositive() {
+		TokenRange.split(0);
+	}
+
+	@Test
+	public void testContains() {
+		TokenRange range = new TokenRange(-5, 5);
+		assertTrue(range.contains(-5));
+		assertTrue(range.contains(5));
+		assertFalse(range.contains(6));
+		assertFalse(range.contains(Long.MIN_VALUE));
+		assertEquals(new TokenRange(-5, 5), range);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testEndBeforeStart() {
+		new TokenRange(1, 0);
+	}
+
+	@Test
+	public void testScanAll() throws StoreException {
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			final AtomicInteger scanned = new AtomicInteger();
+			TokenRange.scanAll(executor, TokenRange.split(20),
+					new TokenRange.Scanner() {
+						public void scan(TokenRange range)
+								throws StoreException {
+							scanned.incrementAndGet();
+						}
+					});
+			assertEquals(20, scanned.get());
+			TokenRange.scanAll(executor, Collections.<TokenRange> emptyList(),
+					new TokenRange.Scanner() {
+						public void scan(TokenRange range)
+								throws StoreException {
+							fail();
+						}
+					});
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testScanAllFailure() {
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			final List<TokenRange> ranges = TokenRange.split(20);
+			final StoreException failure = new StoreException("failed");
+			try {
+				TokenRange.scanAll(executor, ranges, new TokenRange.Scanner() {
+					public void scan(TokenRange range) throws StoreException {
+						if (range.equals(ranges.get(3)))
+							throw failure;
+					}
+				});
+				fail();
+			} catch (StoreException e) {
+				assertSame(failure, e);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+}
@@ -0,0 +1,379 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Composent, Inc. and others. All rights reserved. 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ * 
+ * Contributors: Composent, Inc. - initial API and implementation
+ ******************************************************************************/
+package com.composent.objectstore.memory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.composent.objectstore.BatchStoreException;
+import com.composent.objectstore.IObjectStore.ObjectStoreItem;
+import com.composent.objectstore.IObjectStore.ScanHandler;
+import com.composent.objectstore.StoreException;
+import com.composent.objectstore.StoreObject;
+import com.composent.objectstore.StoreResult;
+
+public class MemoryObjectStoreTest {
+
+	private static final String CLASS_NAME = "Item";
+
+	private MemoryObjectStore store;
+
+	@Before
+	public void setUp() throws StoreException {
+		this.store = new MemoryObjectStore();
+		this.store.createObjectTable(CLASS_NAME, false);
+		this.store.addPrimitiveField(CLASS_NAME, "n", Integer.class, false);
+	}
+
+	private StoreObject create(UUID id, int n) throws StoreException {
+		StoreObject so = (id == null) ? this.store
+				.createStoreObject(CLASS_NAME) : this.store.createStoreObject(
+				CLASS_NAME, id);
+		so.put("n", Integer.valueOf(n));
+		return so;
+	}
+
+	private Integer retrieveN(UUID id) throws StoreException {
+		StoreObject so = this.store.retrieve(CLASS_NAME,
+				Collections.singleton(id), null).get(id);
+		return (so == null) ? null : so.getInt("n");
+	}
+
+	@Test
+	public void testIfNotExists() throws StoreException {
+		UUID id = UUID.randomUUID();
+		StoreObject first = create(id, 1);
+		first.setIfNotExists(true);
+		assertTrue(first.store().isSuccess());
+		StoreObject second = create(id, 2);
+		second.setIfNotExists(true);
+		assertFalse(second.store().isSuccess());
+		assertEquals(Integer.valueOf(1), retrieveN(id));
+	}
+
+	@Test
+	public void testIfNotExistsItems() throws StoreException {
+		UUID id = UUID.randomUUID();
+		create(id, 1).store();
+		StoreObject mismatch = create(id, 2);
+		mismatch.addIfNotExistsItem(new ObjectStoreItem("n", Integer.class,
+				Integer.valueOf(5)));
+		assertFalse(mismatch.store().isSuccess());
+		assertEquals(Integer.valueOf(1), retrieveN(id));
+		StoreObject match = create(id, 3);
+		match.addIfNotExistsItem(new ObjectStoreItem("n", Integer.class,
+				Integer.valueOf(1)));
+		assertTrue(match.store().isSuccess());
+		assertEquals(Integer.valueOf(3), retrieveN(id));
+	}
+
+	@Test
+	public void testRetrieveIds() throws StoreException {
+		Set<UUID> ids = new HashSet<UUID>();
+		for (int i = 0; i < 100; i++) {
+			StoreObject so = create(null, i);
+			so.store();
+			ids.add(so.getId());
+		}
+		assertEquals(ids, new HashSet<UUID>(this.store.retrieveIds(
+				CLASS_NAME, null, null)));
+		Collection<UUID> limited = this.store.retrieveIds(CLASS_NAME,
+				Integer.valueOf(10), null);
+		assertEquals(10, limited.size());
+		assertTrue(ids.containsAll(limited));
+		assertTrue(this.store.retrieveIds(CLASS_NAME, Integer.valueOf(0),
+				null).isEmpty());
+		assertEquals(ids.size(), this.store.retrieveIds(CLASS_NAME,
+				Integer.valueOf(1000), null).size());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRetrieveIdsNegativeLimit() throws StoreException {
+		this.store.retrieveIds(CLASS_NAME, Integer.valueOf(-1), null);
+	}
+
+	@Test
+	public void testDelete() throws StoreException {
+		StoreObject so = create(null, 1);
+		so.store();
+		this.store.delete(CLASS_NAME, so.getId(), null);
+		assertNull(retrieveN(so.getId()));
+		assertTrue(this.store.retrieveIds(CLASS_NAME, null, null).isEmpty());
+	}
+
+	@Test
+	public void testStoreAll() throws StoreException {
+		this.store.setMaxBatchStatements(10);
+		List<StoreObject> storeObjects = new ArrayList<StoreObject>();
+		for (int i = 0; i < 250; i++)
+			storeObjects.add(create(null, i));
+		List<StoreResult> results = this.store.storeAll(storeObjects);
+		assertEquals(storeObjects.size(), results.size());
+		for (int i = 0; i < results.size(); i++) {
+			assertTrue(results.get(i).isSuccess());
+			UUID id = storeObjects.get(i).getId();
+			assertNotNull(id);
+			assertEquals(Integer.valueOf(i), retrieveN(id));
+		}
+		assertEquals(250, this.store.retrieveIds(CLASS_NAME, null, null)
+				.size());
+	}
+
+	@Test
+	public void testStoreAllKeepsPartitionOrder() throws StoreException {
+		this.store.setMaxBatchStatements(3);
+		UUID shared = UUID.randomUUID();
+		List<StoreObject> storeObjects = new ArrayList<StoreObject>();
+		for (int i = 0; i < 100; i++)
+			storeObjects.add(create((i % 10 == 0) ? shared : null, i));
+		for (StoreResult result : this.store.storeAll(storeObjects))
+			assertTrue(result.isSuccess());
+		assertEquals(91, this.store.retrieveIds(CLASS_NAME, null, null)
+				.size());
+		assertEquals(Integer.valueOf(90), retrieveN(shared));
+	}
+
+	@Test
+	public void testStoreAllConditionalFailure() throws StoreException {
+		UUID id = UUID.randomUUID();
+		create(id, 1).store();
+		List<StoreObject> storeObjects = new ArrayList<StoreObject>();
+		storeObjects.add(create(null, 2));
+		StoreObject conditional = create(id, 3);
+		conditional.setIfNotExists(true);
+		storeObjects.add(conditional);
+		storeObjects.add(create(null, 4));
+		List<StoreResult> results = this.store.storeAll(storeObjects);
+		assertTrue(results.get(0).isSuccess());
+		assertFalse(results.get(1).isSuccess());
+		assertTrue(results.get(2).isSuccess());
+		assertEquals(Integer.valueOf(1), retrieveN(id));
+	}
+
+	@Test
+	public void testStoreAllRejectsOtherStore() throws StoreException {
+		MemoryObjectStore other = new MemoryObjectStore();
+		other.createObjectTable(CLASS_NAME, false);
+		List<StoreObject> storeObjects = new ArrayList<StoreObject>();
+		storeObjects.add(create(null, 1));
+		storeObjects.add(other.createStoreObject(CLASS_NAME));
+		try {
+			this.store.storeAll(storeObjects);
+			fail("storeObject of another store was stored");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		// nothing is written
+		assertTrue(this.store.retrieveIds(CLASS_NAME, null, null).isEmpty());
+	}
+
+	@Test
+	public void testStoreAllPartialFailure() throws StoreException {
+		this.store.createObjectTable("Other", false);
+		this.store.addPrimitiveField("Other", "n", Integer.class, false);
+		List<StoreObject> storeObjects = new ArrayList<StoreObject>();
+		for (int i = 0; i < 10; i++) {
+			storeObjects.add(create(null, i));
+			StoreObject other = this.store.createStoreObject("Other");
+			other.put("n", Integer.valueOf(i));
+			storeObjects.add(other);
+		}
+		this.store.dropObjectTable("Other", false);
+		try {
+			this.store.storeAll(storeObjects);
+			fail("stored to a dropped table");
+		} catch (BatchStoreException e) {
+			List<StoreResult> results = e.getResults();
+			assertEquals(storeObjects.size(), results.size());
+			// each StoreObject succeeds or fails independently
+			for (int i = 0; i < results.size(); i++)
+				assertEquals(i % 2 == 0, results.get(i).isSuccess());
+		}
+		assertEquals(10, this.store.retrieveIds(CLASS_NAME, null, null)
+				.size());
+		assertNotNull(storeObjects.get(0).getId());
+		assertNull(storeObjects.get(1).getId());
+	}
+
+	@Test
+	public void testStoreAllOnBoundedExecutor() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			this.store = new MemoryObjectStore(executor);
+			this.store.createObjectTable(CLASS_NAME, false);
+			this.store.addPrimitiveField(CLASS_NAME, "n", Integer.class,
+					false);
+			final List<StoreObject> storeObjects = new ArrayList<StoreObject>();
+			for (int i = 0; i < 100; i++)
+				storeObjects.add(create(null, i));
+			// storeAll called by tasks running on every thread of the
+			// executor, so none is free to run the tasks storeAll submits
+			List<Future<List<StoreResult>>> futures = new ArrayList<Future<List<StoreResult>>>();
+			for (int i = 0; i < 2; i++) {
+				final List<StoreObject> part = storeObjects.subList(i * 50,
+						(i + 1) * 50);
+				futures.add(executor.submit(new Callable<List<StoreResult>>() {
+					public List<StoreResult> call() throws Exception {
+						return MemoryObjectStoreTest.this.store
+								.storeAll(part);
+					}
+				}));
+			}
+			for (Future<List<StoreResult>> future : futures)
+				for (StoreResult result : future.get(10, TimeUnit.SECONDS))
+					assertTrue(result.isSuccess());
+			assertEquals(100, this.store.retrieveIds(CLASS_NAME, null, null)
+					.size());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private List<UUID> storeN(int count) throws StoreException {
+		List<UUID> ids = new ArrayList<UUID>();
+		for (int i = 0; i < count; i++) {
+			StoreObject so = create(null, i);
+			so.store();
+			ids.add(so.getId());
+		}
+		return ids;
+	}
+
+	@Test
+	public void testRetrieve() throws StoreException {
+		List<UUID> ids = storeN(100);
+		List<UUID> requested = new ArrayList<UUID>(ids);
+		Collections.reverse(requested);
+		UUID missing = UUID.randomUUID();
+		requested.add(10, missing);
+		// duplicates are retrieved once
+		requested.add(requested.get(0));
+		Map<UUID, StoreObject> results = this.store.retrieve(CLASS_NAME,
+				requested, null);
+		assertEquals(100, results.size());
+		assertFalse(results.containsKey(missing));
+		// in the order requested
+		List<UUID> expected = new ArrayList<UUID>(ids);
+		Collections.reverse(expected);
+		assertEquals(expected, new ArrayList<UUID>(results.keySet()));
+		for (int i = 0; i < 100; i++)
+			assertEquals(Integer.valueOf(i), results.get(ids.get(i))
+					.getInt("n"));
+	}
+
+	@Test
+	public void testRetrieveEmpty() throws StoreException {
+		storeN(10);
+		assertTrue(this.store.retrieve(CLASS_NAME,
+				Collections.<UUID> emptyList(), null).isEmpty());
+		assertTrue(this.store.retrieve(CLASS_NAME,
+				Collections.singleton(UUID.randomUUID()), null).isEmpty());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRetrieveNullId() throws StoreException {
+		this.store.retrieve(CLASS_NAME, Collections.<UUID> singleton(null),
+				null);
+	}
+
+	@Test(expected = StoreException.class)
+	public void testRetrieveNoTable() throws StoreException {
+		this.store.retrieve("Other", Collections.singleton(UUID.randomUUID()),
+				null);
+	}
+
+	@Test
+	public void testRetrieveOnBoundedExecutor() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(1);
+		try {
+			this.store = new MemoryObjectStore(executor);
+			this.store.createObjectTable(CLASS_NAME, false);
+			this.store.addPrimitiveField(CLASS_NAME, "n", Integer.class,
+					false);
+			final List<UUID> ids = storeN(100);
+			// the groups retrieve submits are queued behind the caller
+			Map<UUID, StoreObject> results = executor.submit(
+					new Callable<Map<UUID, StoreObject>>() {
+						public Map<UUID, StoreObject> call() throws Exception {
+							return MemoryObjectStoreTest.this.store.retrieve(
+									CLASS_NAME, ids, null);
+						}
+					}).get(10, TimeUnit.SECONDS);
+			assertEquals(100, results.size());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testScanIds() throws StoreException {
+		Set<UUID> ids = new HashSet<UUID>(storeN(100));
+		for (int splits : new int[] { 1, 4, 16 }) {
+			final Set<UUID> scanned = Collections
+					.synchronizedSet(new HashSet<UUID>());
+			this.store.scanIds(CLASS_NAME, splits, null,
+					new ScanHandler<UUID>() {
+						public void handle(UUID id) throws StoreException {
+							// each id is scanned once
+							assertTrue(scanned.add(id));
+						}
+					});
+			assertEquals(ids, scanned);
+		}
+	}
+
+	@Test
+	public void testScanIdsHandlerFailure() throws StoreException {
+		storeN(100);
+		final AtomicInteger handled = new AtomicInteger();
+		try {
+			this.store.scanIds(CLASS_NAME, 1, null, new ScanHandler<UUID>() {
+				public void handle(UUID id) throws StoreException {
+					if (handled.incrementAndGet() == 10)
+						throw new StoreException("stop");
+				}
+			});
+			fail();
+		} catch (StoreException e) {
+			assertEquals("stop", e.getMessage());
+		}
+		assertEquals(10, handled.get());
+	}
+}
@@ -0,0 +1,150 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Composent, Inc. and others. All rights reserved. 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ * 
+ * Contributors: Composent, Inc. - initial API and implementation
+ ******************************************************************************/
+package com.composent.objectstore.memory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.composent.objectstore.IObjectStore.Value;
+import com.composent.objectstore.StoreException;
+import com.composent.objectstore.StoreObject;
+import com.composent.objectstore.StoreObjectQuery;
+import com.composent.objectstore.StoreObjectQuery.Relation;
+import com.composent.objectstore.StoreObjectQuery.Where;
+
+public class MemoryStoreObjectQueryTest {
+
+	private static final String CLASS_NAME = "Item";
+
+	private MemoryObjectStore store;
+	private UUID firstId;
+
+	@Before
+	public void setUp() throws StoreException {
+		this.store = new MemoryObjectStore();
+		this.store.createObjectTable(CLASS_NAME, false);
+		this.store.addPrimitiveField(CLASS_NAME, "n", Integer.class, false);
+		this.store.addPrimitiveField(CLASS_NAME, "name", String.class, false);
+		for (int i = 0; i < 10; i++) {
+			StoreObject so = this.store.createStoreObject(CLASS_NAME);
+			so.put("n", Integer.valueOf(i));
+			// odd objects have no name
+			if (i % 2 == 0)
+				so.put("name", "name" + i);
+			so.store();
+			if (i == 0)
+				this.firstId = so.getId();
+		}
+	}
+
+	private Set<Integer> select(Where where) throws StoreException {
+		StoreObjectQuery query = this.store.createQuery(CLASS_NAME);
+		if (where != null)
+			query.setWhere(where);
+		Set<Integer> result = new TreeSet<Integer>();
+		for (StoreObject so : query.execute())
+			result.add(so.getInt("n"));
+		return result;
+	}
+
+	private static Value value(int i) {
+		return new Value(Integer.valueOf(i));
+	}
+
+	private static Set<Integer> range(int from, int to) {
+		Set<Integer> result = new TreeSet<Integer>();
+		for (int i = from; i < to; i++)
+			result.add(Integer.valueOf(i));
+		return result;
+	}
+
+	@Test
+	public void testNoWhereSelectsAll() throws StoreException {
+		assertEquals(range(0, 10), select(null));
+	}
+
+	@Test
+	public void testEqualTo() throws StoreException {
+		assertEquals(range(3, 4), select(Where.equalTo("n", value(3))));
+		assertTrue(select(Where.equalTo("n", value(42))).isEmpty());
+	}
+
+	@Test
+	public void testComparisons() throws StoreException {
+		assertEquals(range(7, 10), select(Where.greaterThan("n", value(6))));
+		assertEquals(range(6, 10),
+				select(Where.greaterThanOrEqualTo("n", value(6))));
+		assertEquals(range(0, 3), select(Where.lessThan("n", value(3))));
+		assertEquals(range(0, 4),
+				select(Where.lessThanOrEqualTo("n", value(3))));
+	}
+
+	@Test
+	public void testIn() throws StoreException {
+		Set<Integer> expected = new TreeSet<Integer>();
+		expected.add(Integer.valueOf(1));
+		expected.add(Integer.valueOf(5));
+		assertEquals(expected,
+				select(Where.in("n", value(1), value(5), value(42))));
+	}
+
+	@Test
+	public void testConjunction() throws StoreException {
+		Where where = new Where(new Relation("n", Relation.Op.GT, value(2)))
+				.and(new Relation("n", Relation.Op.LT, value(5)));
+		assertEquals(range(3, 5), select(where));
+	}
+
+	@Test
+	public void testNullFieldDoesNotMatch() throws StoreException {
+		Set<Integer> expected = new TreeSet<Integer>();
+		expected.add(Integer.valueOf(2));
+		assertEquals(expected,
+				select(Where.equalTo("name", new Value("name2"))));
+		assertEquals(5,
+				select(Where.greaterThanOrEqualTo("name", new Value(""))).size());
+	}
+
+	@Test
+	public void testIdEqualTo() throws StoreException {
+		assertEquals(range(0, 1), select(Where.equalTo(StoreObject.ID_NAME,
+				new Value(this.firstId))));
+	}
+
+	@Test
+	public void testIdEqualToFromObjectCache() throws StoreException {
+		this.store.getObjectCache().setEnabled(true);
+		Where where = Where.equalTo(StoreObject.ID_NAME, new Value(
+				this.firstId));
+		assertEquals(range(0, 1), select(where));
+		assertEquals(range(0, 1), select(where));
+		assertEquals(1, this.store.getObjectCache().getHitCount());
+	}
+
+	@Test(expected = StoreException.class)
+	public void testComparisonWithOtherTypeFails() throws StoreException {
+		select(Where.greaterThan("n", new Value(Long.valueOf(1))));
+	}
+}
@@ -0,0 +1,61 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Composent, Inc. and others. All rights reserved. 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ * 
+ * Contributors: Composent, Inc. - initial API and implementation
+ ******************************************************************************/
+package com.composent.objectstore;
+
+import java.util.List;
+
+/**
+ * Thrown by {@link IObjectStore#storeAll(java.util.Collection)} when some of
+ * the StoreObjects could not be written. Each StoreObject succeeds or fails
+ * independently, so the others may have been written, and the exception
+ * carries the result of each.
+ */
+public class BatchStoreException extends StoreException {
+
+	private static final long serialVersionUID = 4460931537250735261L;
+
+	private final transient List<StoreResult> results;
+
+	/**
+	 * @param message
+	 *            the detail message.
+	 * @param cause
+	 *            the exception that the first StoreObject not written failed
+	 *            with.
+	 * @param results
+	 *            the result of each StoreObject. Must not be
+	 *            <code>null</code>.
+	 */
+	public BatchStoreException(String message, Throwable cause,
+			List<StoreResult> results) {
+		super(message, cause);
+		IObjectStore.Util.checkArgNotNull(results, "results");
+		this.results = results;
+	}
+
+	/**
+	 * @return List of StoreResult, one for each StoreObject passed to
+	 *         storeAll, in its iteration order. A StoreObject that could not
+	 *         be written has a failed StoreResult with <code>null</code>
+	 *         items. Will not be <code>null</code>, unless this exception has
+	 *         been deserialized.
+	 */
+	public List<StoreResult> getResults() {
+		return this.results;
+	}
+}
@@ -0,0 +1,709 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Composent, Inc. and others. All rights reserved. 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ * 
+ * Contributors: Composent, Inc. - initial API and implementation
+ ******************************************************************************/
+package com.composent.objectstore;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+import com.composent.objectstore.IObjectStore.ConsistencyLevel;
+import com.composent.objectstore.IObjectStore.Util;
+
+/**
+ * Storage of large binary values (blobs) as fixed-size chunks in a side
+ * object table, rather than as a single ByteBuffer field value. Blobs are
+ * written through a {@link WritableByteChannel} (see {@link #openWrite()})
+ * and read through a {@link ReadableByteChannel} (see
+ * {@link #openRead(UUID)}), which hold at most {@link #getMaxInFlight()}
+ * chunks in memory, so the size of a blob is not bounded by the heap. Each
+ * chunk is a separate StoreObject with an id derived from the blob id and
+ * the chunk number, so the chunks of a blob are spread over all partitions
+ * rather than held in one large partition.
+ * <p>
+ * Chunks are written and read asynchronously on the store's async executor:
+ * writing waits for the oldest chunk write when maxInFlight writes are in
+ * flight, and reading fetches up to maxInFlight chunks ahead. A blob is
+ * identified by a UUID, and a blob field of a StoreObject is a UUID field
+ * holding the blob id (see {@link #put(StoreObject, String, ReadableByteChannel)}
+ * and {@link #get(StoreObject, String, WritableByteChannel)}). The blob's
+ * length and chunk count are written only after all its chunks, so a blob is
+ * not visible to readers until it is complete.
+ */
+public class BlobStore {
+
+	/**
+	 * Default chunk size (256 KB).
+	 */
+	public static final int DEFAULT_CHUNK_SIZE = 256 * 1024;
+	/**
+	 * Default maximum number of chunks written or fetched concurrently.
+	 */
+	public static final int DEFAULT_MAX_IN_FLIGHT = 4;
+
+	// fields of the side table. The blob's header StoreObject (with the blob
+	// id) holds the length, chunk size and chunk count, and each chunk
+	// StoreObject holds the blob id, chunk number and data.
+	private static final String BLOB_ID = "blobId";
+	private static final String CHUNK = "chunk";
+	private static final String DATA = "data";
+	private static final String LENGTH = "length";
+	private static final String CHUNK_SIZE = "chunkSize";
+	private static final String CHUNKS = "chunks";
+
+	/**
+	 * Channel writing a new blob, returned by {@link BlobStore#openWrite()}.
+	 * The blob is complete, and readable, once the channel is successfully
+	 * closed. Not thread safe.
+	 */
+	public final class BlobWriter implements WritableByteChannel {
+		private final UUID id = UUID.randomUUID();
+		private final int chunkSize = BlobStore.this.chunkSize;
+		private final int maxInFlight = BlobStore.this.maxInFlight;
+		private final LinkedList<Future<StoreResult>> inFlight = new LinkedList<Future<StoreResult>>();
+		private ByteBuffer chunk;
+		private int chunks;
+		private long length;
+		private boolean open = true;
+
+		BlobWriter() {
+		}
+
+		/**
+		 * @return the id of the blob. Will not be <code>null</code>.
+		 */
+		public UUID getId() {
+			return this.id;
+		}
+
+		/**
+		 * @return the number of bytes written.
+		 */
+		public long getLength() {
+			return this.length;
+		}
+
+		public boolean isOpen() {
+			return this.open;
+		}
+
+		public int write(ByteBuffer src) throws IOException {
+			if (!this.open)
+				throw new ClosedChannelException();
+			int result = src.remaining();
+			try {
+				while (src.hasRemaining()) {
+					if (this.chunk == null)
+						this.chunk = ByteBuffer.allocate(this.chunkSize);
+					int n = Math.min(src.remaining(), this.chunk.remaining());
+					ByteBuffer part = src.duplicate();
+					part.limit(part.position() + n);
+					this.chunk.put(part);
+					src.position(src.position() + n);
+					this.length += n;
+					if (!this.chunk.hasRemaining())
+						storeChunk();
+				}
+			} catch (StoreException e) {
+				abort();
+				throw ioException(e);
+			}
+			return result;
+		}
+
+		private void storeChunk() throws StoreException {
+			if (this.inFlight.size() == this.maxInFlight)
+				Util.get(this.inFlight.removeFirst());
+			this.chunk.flip();
+			StoreObject so = newStoreObject(chunkId(this.id, this.chunks));
+			so.put(BLOB_ID, this.id);
+			so.put(CHUNK, Integer.valueOf(this.chunks));
+			so.put(DATA, this.chunk);
+			this.inFlight.add(so.storeAsync());
+			this.chunks++;
+			this.chunk = null;
+		}
+
+		/**
+		 * Write the last chunk, wait for all chunks to be written, then write
+		 * the blob's length and chunk count. If this fails, the chunks written
+		 * are deleted.
+		 */
+		public void close() throws IOException {
+			if (!this.open)
+				return;
+			try {
+				if (this.chunk != null && this.chunk.position() > 0)
+					storeChunk();
+				while (!this.inFlight.isEmpty())
+					Util.get(this.inFlight.removeFirst());
+				StoreObject header = newStoreObject(this.id);
+				header.put(LENGTH, Long.valueOf(this.length));
+				header.put(CHUNK_SIZE, Integer.valueOf(this.chunkSize));
+				header.put(CHUNKS, Integer.valueOf(this.chunks));
+				header.store();
+				this.open = false;
+			} catch (StoreException e) {
+				abort();
+				throw ioException(e);
+			}
+		}
+
+		/**
+		 * Close this channel without completing the blob, and delete the
+		 * chunks written.
+		 */
+		public void abort() {
+			if (!this.open)
+				return;
+			this.open = false;
+			this.chunk = null;
+			for (Future<StoreResult> future : this.inFlight)
+				try {
+					Util.get(future);
+				} catch (StoreException e) {
+					// chunk not written
+				}
+			this.inFlight.clear();
+			deleteChunks(this.id, this.chunks);
+		}
+	}
+
+	/**
+	 * Channel reading a blob, returned by {@link BlobStore#openRead(UUID)}.
+	 * Not thread safe.
+	 */
+	public final class BlobReader implements ReadableByteChannel {
+		private final UUID id;
+		private final long length;
+		private final int chunks;
+		private final int maxInFlight = BlobStore.this.maxInFlight;
+		private final LinkedList<Future<ByteBuffer>> prefetched = new LinkedList<Future<ByteBuffer>>();
+		private int next;
+		private int read;
+		private ByteBuffer chunk;
+		private boolean open = true;
+
+		BlobReader(UUID id, long length, int chunks) {
+			this.id = id;
+			this.length = length;
+			this.chunks = chunks;
+		}
+
+		public UUID getId() {
+			return this.id;
+		}
+
+		/**
+		 * @return the length of the blob in bytes.
+		 */
+		public long getLength() {
+			return this.length;
+		}
+
+		public boolean isOpen() {
+			return this.open;
+		}
+
+		public int read(ByteBuffer dst) throws IOException {
+			if (!this.open)
+				throw new ClosedChannelException();
+			while (this.chunk == null || !this.chunk.hasRemaining()) {
+				if (this.read == this.chunks)
+					return -1;
+				prefetch();
+				try {
+					this.chunk = Util.get(this.prefetched.removeFirst());
+				} catch (StoreException e) {
+					close();
+					throw ioException(e);
+				}
+				this.read++;
+			}
+			int n = Math.min(dst.remaining(), this.chunk.remaining());
+			ByteBuffer part = this.chunk.duplicate();
+			part.limit(part.position() + n);
+			dst.put(part);
+			this.chunk.position(this.chunk.position() + n);
+			return n;
+		}
+
+		private void prefetch() {
+			while (this.prefetched.size() < this.maxInFlight
+					&& this.next < this.chunks) {
+				final int i = this.next++;
+				this.prefetched.add(Util.submit(
+						BlobStore.this.store.getAsyncExecutor(),
+						new Callable<ByteBuffer>() {
+							public ByteBuffer call() throws Exception {
+								return fetchChunk(BlobReader.this.id, i);
+							}
+						}));
+			}
+		}
+
+		public void close() {
+			this.open = false;
+			this.chunk = null;
+			for (Future<ByteBuffer> future : this.prefetched)
+				future.cancel(false);
+			this.prefetched.clear();
+		}
+	}
+
+	private final IObjectStore store;
+	private final String className;
+	private volatile int chunkSize = DEFAULT_CHUNK_SIZE;
+	private volatile int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+	private volatile ConsistencyLevel consistencyLevel;
+
+	/**
+	 * @param store
+	 *            the store. Must not be <code>null</code>.
+	 * @param className
+	 *            the className of the side table for blob chunks (see
+	 *            {@link #createTable(boolean)}). Must not be
+	 *            <code>null</code>.
+	 */
+	public BlobStore(IObjectStore store, String className) {
+		Util.checkArgNotNull(store, "store");
+		Util.checkArgNotNull(className, "className");
+		this.store = store;
+		this.className = className;
+	}
+
+	public IObjectStore getStore() {
+		return this.store;
+	}
+
+	public String getClassName() {
+		return this.className;
+	}
+
+	public int getChunkSize() {
+		return this.chunkSize;
+	}
+
+	/**
+	 * @param chunkSize
+	 *            the size in bytes of the chunks of blobs written after this
+	 *            call. Blobs are read with the chunk size they were written
+	 *            with. Must be >= 1024.
+	 */
+	public void setChunkSize(int chunkSize) {
+		if (chunkSize < 1024)
+			throw new IllegalArgumentException("chunkSize must be >= 1024");
+		this.chunkSize = chunkSize;
+	}
+
+	public int getMaxInFlight() {
+		return this.maxInFlight;
+	}
+
+	/**
+	 * @param maxInFlight
+	 *            the maximum number of chunks written or fetched concurrently
+	 *            by a channel. Must be > 0.
+	 */
+	public void setMaxInFlight(int maxInFlight) {
+		if (maxInFlight < 1)
+			throw new IllegalArgumentException("maxInFlight must be > 0");
+		this.maxInFlight = maxInFlight;
+	}
+
+	public ConsistencyLevel getConsistencyLevel() {
+		return this.consistencyLevel;
+	}
+
+	/**
+	 * @param level
+	 *            the consistency level for reads and writes. May be
+	 *            <code>null</code>. If <code>null</code>, the default is used.
+	 */
+	public void setConsistencyLevel(ConsistencyLevel level) {
+		this.consistencyLevel = level;
+	}
+
+	/**
+	 * Create the side table for blob chunks.
+	 * 
+	 * @param ifNotExists
+	 *            if <code>true</code> then the table is created only if it
+	 *            does not exist.
+	 * @return the metadata of the side table. Will not be <code>null</code>.
+	 * @throws StoreException
+	 *             if the table cannot be created.
+	 */
+	public StoreObjectMetadata createTable(boolean ifNotExists)
+			throws StoreException {
+		this.store.createObjectTable(this.className, ifNotExists);
+		this.store.addPrimitiveField(this.className, BLOB_ID, UUID.class, true);
+		this.store.addPrimitiveField(this.className, CHUNK, Integer.class,
+				true);
+		this.store.addPrimitiveField(this.className, DATA, ByteBuffer.class,
+				true);
+		this.store.addPrimitiveField(this.className, LENGTH, Long.class, true);
+		this.store.addPrimitiveField(this.className, CHUNK_SIZE,
+				Integer.class, true);
+		return this.store.addPrimitiveField(this.className, CHUNKS,
+				Integer.class, true);
+	}
+
+	/**
+	 * Open a channel to write a new blob. The channel must be closed to
+	 * complete the blob, or aborted (see {@link BlobWriter#abort()}).
+	 * 
+	 * @return the channel. Will not be <code>null</code>.
+	 */
+	public BlobWriter openWrite() {
+		return new BlobWriter();
+	}
+
+	/**
+	 * Open a channel to read a blob.
+	 * 
+	 * @param blobId
+	 *            the id of the blob. Must not be <code>null</code>.
+	 * @return the channel, or <code>null</code> if there is no (complete)
+	 *         blob with the given id.
+	 * @throws StoreException
+	 *             if the blob cannot be read.
+	 */
+	public BlobReader openRead(UUID blobId) throws StoreException {
+		StoreObject header = retrieve(blobId);
+		if (header == null || !header.hasValue(LENGTH))
+			return null;
+		return new BlobReader(blobId, header.getLongValue(LENGTH),
+				header.getIntValue(CHUNKS));
+	}
+
+	/**
+	 * @param blobId
+	 *            the id of the blob. Must not be <code>null</code>.
+	 * @return the length of the blob in bytes, or -1 if there is no
+	 *         (complete) blob with the given id.
+	 * @throws StoreException
+	 *             if the blob cannot be read.
+	 */
+	public long getLength(UUID blobId) throws StoreException {
+		StoreObject header = retrieve(blobId);
+		return (header == null || !header.hasValue(LENGTH)) ? -1 : header
+				.getLongValue(LENGTH);
+	}
+
+	/**
+	 * Write a new blob with the contents of a channel.
+	 * 
+	 * @param in
+	 *            the channel to read to its end. Must not be <code>null</code>.
+	 *            It is not closed.
+	 * @return the id of the blob. Will not be <code>null</code>.
+	 * @throws StoreException
+	 *             if the blob cannot be written.
+	 * @throws IOException
+	 *             if the channel cannot be read.
+	 */
+	public UUID write(ReadableByteChannel in) throws StoreException,
+			IOException {
+		Util.checkArgNotNull(in, "in");
+		BlobWriter writer = openWrite();
+		boolean done = false;
+		try {
+			ByteBuffer buffer = ByteBuffer.allocate(Math.min(
+					writer.chunkSize, 64 * 1024));
+			while (in.read(buffer) >= 0) {
+				buffer.flip();
+				writeAll(writer, buffer);
+				buffer.clear();
+			}
+			close(writer);
+			done = true;
+			return writer.getId();
+		} finally {
+			if (!done)
+				writer.abort();
+		}
+	}
+
+	/**
+	 * Write a new blob with the remaining bytes of a ByteBuffer, split into
+	 * chunks.
+	 * 
+	 * @param value
+	 *            the value. Must not be <code>null</code>. Its position is
+	 *            not changed.
+	 * @return the id of the blob. Will not be <code>null</code>.
+	 * @throws StoreException
+	 *             if the blob cannot be written.
+	 */
+	public UUID write(ByteBuffer value) throws StoreException {
+		Util.checkArgNotNull(value, "value");
+		BlobWriter writer = openWrite();
+		try {
+			writeAll(writer, value.duplicate());
+			close(writer);
+			return writer.getId();
+		} catch (IOException e) {
+			// not thrown, as the writer reads no channel
+			writer.abort();
+			throw new StoreException(e);
+		}
+	}
+
+	/**
+	 * Read a blob to a channel.
+	 * 
+	 * @param blobId
+	 *            the id of the blob. Must not be <code>null</code>.
+	 * @param out
+	 *            the channel to write to. Must not be <code>null</code>. It
+	 *            is not closed.
+	 * @return the number of bytes written, or -1 if there is no (complete)
+	 *         blob with the given id.
+	 * @throws StoreException
+	 *             if the blob cannot be read.
+	 * @throws IOException
+	 *             if the channel cannot be written.
+	 */
+	public long read(UUID blobId, WritableByteChannel out)
+			throws StoreException, IOException {
+		Util.checkArgNotNull(out, "out");
+		BlobReader reader = openRead(blobId);
+		if (reader == null)
+			return -1;
+		long result = 0;
+		try {
+			ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+			for (int n = read(reader, buffer); n >= 0; n = read(reader, buffer)) {
+				buffer.flip();
+				while (buffer.hasRemaining())
+					out.write(buffer);
+				result += n;
+				buffer.clear();
+			}
+			return result;
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Write a new blob with the contents of a channel, and put its id in a
+	 * UUID field of a StoreObject. A blob previously referenced by the field
+	 * is not deleted (see {@link #delete(UUID)}).
+	 * 
+	 * @param storeObject
+	 *            the StoreObject. Must not be <code>null</code>.
+	 * @param key
+	 *            the name of a UUID field of the StoreObject. Must not be
+	 *            <code>null</code>.
+	 * @param in
+	 *            the channel to read to its end. Must not be <code>null</code>.
+	 * @return the id of the blob. Will not be <code>null</code>.
+	 * @throws StoreException
+	 *             if the blob cannot be written.
+	 * @throws IOException
+	 *             if the channel cannot be read.
+	 */
+	public UUID put(StoreObject storeObject, String key,
+			ReadableByteChannel in) throws StoreException, IOException {
+		Util.checkArgNotNull(storeObject, "storeObject");
+		UUID result = write(in);
+		storeObject.put(key, result);
+		return result;
+	}
+
+	/**
+	 * Write a new blob with the remaining bytes of a ByteBuffer, and put its
+	 * id in a UUID field of a StoreObject, in place of putting the ByteBuffer
+	 * itself. A blob previously referenced by the field is not deleted (see
+	 * {@link #delete(UUID)}).
+	 * 
+	 * @param storeObject
+	 *            the StoreObject. Must not be <code>null</code>.
+	 * @param key
+	 *            the name of a UUID field of the StoreObject. Must not be
+	 *            <code>null</code>.
+	 * @param value
+	 *            the value. Must not be <code>null</code>.
+	 * @return the id of the blob. Will not be <code>null</code>.
+	 * @throws StoreException
+	 *             if the blob cannot be written.
+	 */
+	public UUID put(StoreObject storeObject, String key, ByteBuffer value)
+			throws StoreException {
+		Util.checkArgNotNull(storeObject, "storeObject");
+		UUID result = write(value);
+		storeObject.put(key, result);
+		return result;
+	}
+
+	/**
+	 * Read the blob referenced by a UUID field of a StoreObject to a channel.
+	 * 
+	 * @param storeObject
+	 *            the StoreObject. Must not be <code>null</code>.
+	 * @param key
+	 *            the name of a UUID field of the StoreObject. Must not be
+	 *            <code>null</code>.
+	 * @param out
+	 *            the channel to write to. Must not be <code>null</code>.
+	 * @return the number of bytes written, or -1 if the field has no value or
+	 *         references no (complete) blob.
+	 * @throws StoreException
+	 *             if the blob cannot be read.
+	 * @throws IOException
+	 *             if the channel cannot be written.
+	 */
+	public long get(StoreObject storeObject, String key,
+			WritableByteChannel out) throws StoreException, IOException {
+		Util.checkArgNotNull(storeObject, "storeObject");
+		UUID blobId = storeObject.getUUID(key);
+		return (blobId == null) ? -1 : read(blobId, out);
+	}
+
+	/**
+	 * Delete a blob. The blob is no longer readable once its length and
+	 * chunk count are deleted, after which its chunks are deleted.
+	 * 
+	 * @param blobId
+	 *            the id of the blob. Must not be <code>null</code>.
+	 * @return <code>true</code> if the blob existed.
+	 * @throws StoreException
+	 *             if the blob cannot be deleted.
+	 */
+	public boolean delete(UUID blobId) throws StoreException {
+		StoreObject header = retrieve(blobId);
+		if (header == null || !header.hasValue(CHUNKS))
+			return false;
+		this.store.delete(this.className, blobId, this.consistencyLevel);
+		LinkedList<Future<Void>> inFlight = new LinkedList<Future<Void>>();
+		int chunks = header.getIntValue(CHUNKS);
+		for (int i = 0; i < chunks; i++) {
+			if (inFlight.size() == this.maxInFlight)
+				Util.get(inFlight.removeFirst());
+			inFlight.add(this.store.deleteAsync(this.className, chunkId(
+					blobId, i), this.consistencyLevel));
+		}
+		while (!inFlight.isEmpty())
+			Util.get(inFlight.removeFirst());
+		return true;
+	}
+
+	/**
+	 * Delete the chunks of an incomplete blob, ignoring failures.
+	 */
+	private void deleteChunks(UUID blobId, int chunks) {
+		for (int i = 0; i < chunks; i++)
+			this.store.deleteAsync(this.className, chunkId(blobId, i),
+					this.consistencyLevel);
+	}
+
+	/**
+	 * @return the id of chunk i of a blob, which is a name based UUID of the
+	 *         blob id and i, so that the chunks of a blob are distributed
+	 *         over all partitions.
+	 */
+	private static UUID chunkId(UUID blobId, int i) {
+		byte[] name = new byte[20];
+		long msb = blobId.getMostSignificantBits();
+		long lsb = blobId.getLeastSignificantBits();
+		for (int j = 0; j < 8; j++) {
+			name[j] = (byte) (msb >>> (56 - 8 * j));
+			name[8 + j] = (byte) (lsb >>> (56 - 8 * j));
+		}
+		for (int j = 0; j < 4; j++)
+			name[16 + j] = (byte) (i >>> (24 - 8 * j));
+		return UUID.nameUUIDFromBytes(name);
+	}
+
+	private StoreObject newStoreObject(UUID id) throws StoreException {
+		StoreObject result = this.store.createStoreObject(this.className, id);
+		result.setConsistencyLevel(this.consistencyLevel);
+		return result;
+	}
+
+	private StoreObject retrieve(UUID id) throws StoreException {
+		Util.checkArgNotNull(id, "id");
+		return this.store.retrieve(this.className, Collections.singleton(id),
+				this.consistencyLevel).get(id);
+	}
+
+	private ByteBuffer fetchChunk(UUID blobId, int i) throws StoreException {
+		// chunks are read once, and would fill the store's object cache
+		StoreObjectQuery query = this.store.createQuery(this.className,
+				chunkId(blobId, i));
+		query.setConsistencyLevel(this.consistencyLevel);
+		Iterator<StoreObject> chunks = query.setCacheable(false).execute()
+				.iterator();
+		StoreObject chunk = chunks.hasNext() ? chunks.next() : null;
+		ByteBuffer result = (chunk == null) ? null : chunk.getBytes(DATA);
+		if (result == null)
+			throw new StoreException("chunk=" + i + " of blob id=" + blobId
+					+ " not found");
+		// the value may be shared with other readers of the chunk
+		return result.duplicate();
+	}
+
+	private static void writeAll(BlobWriter writer, ByteBuffer buffer)
+			throws StoreException, IOException {
+		try {
+			while (buffer.hasRemaining())
+				writer.write(buffer);
+		} catch (IOException e) {
+			if (e.getCause() instanceof StoreException)
+				throw (StoreException) e.getCause();
+			throw e;
+		}
+	}
+
+	private static void close(BlobWriter writer) throws StoreException,
+			IOException {
+		try {
+			writer.close();
+		} catch (IOException e) {
+			if (e.getCause() instanceof StoreException)
+				throw (StoreException) e.getCause();
+			throw e;
+		}
+	}
+
+	private static int read(BlobReader reader, ByteBuffer buffer)
+			throws StoreException, IOException {
+		try {
+			return reader.read(buffer);
+		} catch (IOException e) {
+			if (e.getCause() instanceof StoreException)
+				throw (StoreException) e.getCause();
+			throw e;
+		}
+	}
+
+	private static IOException ioException(StoreException e) {
+		IOException result = new IOException(e.getMessage());
+		result.initCause(e);
+		return result;
+	}
+}
@@ -31,6 +31,12 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 public interface IObjectStore {
 
@@ -115,6 +121,167 @@ public interface IObjectStore {
 				throw new IllegalArgumentException(errorMessageObjectName
 						+ " cannot be null");
 		}
+
+		/**
+		 * Run the given callable on the given executor.
+		 * 
+		 * @param executor
+		 *            the executor to run the callable. If <code>null</code>
+		 *            an {@link IllegalArgumentException} is thrown.
+		 * @param callable
+		 *            the callable to run. If <code>null</code> an
+		 *            {@link IllegalArgumentException} is thrown.
+		 * @return StoreFuture that completes with the callable's result, or
+		 *         with an ExecutionException wrapping the exception it threw.
+		 */
+		public static <T> StoreFuture<T> submit(Executor executor,
+				Callable<T> callable) {
+			checkArgNotNull(executor, "executor");
+			checkArgNotNull(callable, "callable");
+			StoreFutureTask<T> task = new StoreFutureTask<T>(callable);
+			executor.execute(task);
+			return task;
+		}
+
+		/**
+		 * FutureTask that runs its listeners when done.
+		 */
+		private static final class StoreFutureTask<T> extends FutureTask<T>
+				implements StoreFuture<T> {
+			// the listeners to run when done, or null once done
+			private List<Runnable> listeners = new ArrayList<Runnable>(2);
+
+			StoreFutureTask(Callable<T> callable) {
+				super(callable);
+			}
+
+			public void addListener(final Runnable listener,
+					final Executor executor) {
+				checkArgNotNull(listener, "listener");
+				Runnable run = (executor == null) ? listener : new Runnable() {
+					public void run() {
+						executor.execute(listener);
+					}
+				};
+				synchronized (this) {
+					if (this.listeners != null) {
+						this.listeners.add(run);
+						return;
+					}
+				}
+				runListener(run);
+			}
+
+			public void addCallback(final Callback<? super T> callback,
+					Executor executor) {
+				checkArgNotNull(callback, "callback");
+				addListener(new Runnable() {
+					public void run() {
+						T result;
+						try {
+							result = get();
+						} catch (ExecutionException e) {
+							callback.onFailure(e.getCause());
+							return;
+						} catch (CancellationException e) {
+							callback.onFailure(e);
+							return;
+						} catch (InterruptedException e) {
+							// not expected, as the future is done
+							Thread.currentThread().interrupt();
+							callback.onFailure(e);
+							return;
+						}
+						callback.onSuccess(result);
+					}
+				}, executor);
+			}
+
+			@Override
+			protected void done() {
+				List<Runnable> run;
+				synchronized (this) {
+					run = this.listeners;
+					this.listeners = null;
+				}
+				for (Runnable listener : run)
+					runListener(listener);
+			}
+
+			/**
+			 * Run a listener, passing a RuntimeException it throws (e.g. a
+			 * RejectedExecutionException from its executor) to the current
+			 * thread's uncaught exception handler. So a failing listener
+			 * neither prevents the others from running, nor fails the task
+			 * or the caller adding it.
+			 */
+			private static void runListener(Runnable listener) {
+				try {
+					listener.run();
+				} catch (RuntimeException e) {
+					Thread thread = Thread.currentThread();
+					thread.getUncaughtExceptionHandler().uncaughtException(
+							thread, e);
+				}
+			}
+		}
+
+		/**
+		 * Wait for the result of the given future. If the future was returned
+		 * by {@link #submit(Executor, Callable)} and its task has not started,
+		 * the task is run by the calling thread instead. So a task that waits
+		 * for tasks it submitted to the same bounded executor never waits for
+		 * one that is queued behind it, which would deadlock once every thread
+		 * of the executor is waiting.
+		 * 
+		 * @param future
+		 *            the future. If <code>null</code> an
+		 *            {@link IllegalArgumentException} is thrown.
+		 * @return the result of the future.
+		 * @throws StoreException
+		 *             the StoreException thrown by the future's task, or a
+		 *             StoreException wrapping any other checked exception, or
+		 *             if interrupted while waiting. Runtime exceptions and
+		 *             errors thrown by the task are rethrown.
+		 */
+		public static <T> T get(Future<T> future) throws StoreException {
+			checkArgNotNull(future, "future");
+			// does nothing if the task has started, or is done
+			if (future instanceof StoreFutureTask)
+				((StoreFutureTask<T>) future).run();
+			try {
+				return future.get();
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof StoreException)
+					throw (StoreException) cause;
+				if (cause instanceof RuntimeException)
+					throw (RuntimeException) cause;
+				if (cause instanceof Error)
+					throw (Error) cause;
+				throw new StoreException(cause);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new StoreException("Interrupted waiting for result", e);
+			}
+		}
+	}
+
+	/**
+	 * Receives the results of a parallel scan (see
+	 * {@link IObjectStore#scanIds(String, int, ConsistencyLevel, ScanHandler)}
+	 * and {@link StoreObjectQuery#scan(int, ScanHandler)}). A handler is
+	 * called concurrently by the threads scanning different token ranges, so
+	 * it must be thread safe.
+	 */
+	public static interface ScanHandler<T> {
+		/**
+		 * @param value
+		 *            the scanned value. Will not be <code>null</code>.
+		 * @throws StoreException
+		 *             to stop the scan, which then throws the exception.
+		 */
+		public void handle(T value) throws StoreException;
 	}
 
 	public static class CollectionValue {
@@ -638,6 +805,37 @@ public interface IObjectStore {
 	public StoreObject createStoreObject(String className, UUID id)
 			throws StoreException;
 
+	/**
+	 * Store a collection of StoreObject instances. Rather than one round trip
+	 * per {@link StoreObject#store()}, writes are grouped by partition into
+	 * unlogged batches that honor the store's batch size limits (see
+	 * {@link StoreBatch#plan(Collection, int, int)}). Unlogged batches are not
+	 * atomic, so each StoreObject succeeds or fails independently. As with
+	 * {@link StoreObject#store()}, successfully stored StoreObjects have their
+	 * id and lastModifiedAt updated.
+	 * 
+	 * @param storeObjects
+	 *            the StoreObjects to store. Each must have been created by this
+	 *            store via {@link #createStoreObject(String)} or
+	 *            {@link #createStoreObject(String, UUID)}. If
+	 *            <code>null</code>, an {@link IllegalArgumentException} is
+	 *            thrown.
+	 * @return List of StoreResult, one for each StoreObject in the iteration
+	 *         order of storeObjects. Will not be <code>null</code>.
+	 * @throws BatchStoreException
+	 *             thrown if some StoreObjects could not be written, e.g.
+	 *             because the className associated with a storeObject no
+	 *             longer exists, or data in a storeObject is of wrong type, or
+	 *             the underlying store is no longer available. Its results
+	 *             tell which StoreObjects were written.
+	 * @throws StoreException
+	 *             thrown if the writes cannot be planned (see
+	 *             {@link StoreBatch#plan(Collection, int, int)}).
+	 */
+	public List<StoreResult> storeAll(
+			Collection<? extends StoreObject> storeObjects)
+			throws StoreException;
+
 	/**
 	 * Delete an object from the object table. The object table to delete the
 	 * object from is identified by the className parameter, and the object to
@@ -668,6 +866,29 @@ public interface IObjectStore {
 	public void delete(String className, UUID storeObjectId,
 			ConsistencyLevel level) throws StoreException;
 
+	/**
+	 * Asynchronous variant of {@link #delete(String, UUID, ConsistencyLevel)}.
+	 * The calling thread does not block for the server round trip (see
+	 * {@link #getAsyncExecutor()}).
+	 * 
+	 * @param className
+	 *            the name of the class/object table with the object to be
+	 *            deleted. If <code>null</code>, an
+	 *            {@link IllegalArgumentException} is thrown.
+	 * @param storeObjectId
+	 *            the id of the object to delete. If <code>null</code> an
+	 *            {@link IllegalArgumentException} is thrown.
+	 * @param level
+	 *            the ConsistencyLevel for the delete. May be <code>null</code>.
+	 *            If <code>null</code>, the default is used.
+	 * @return StoreFuture that completes when the delete is complete. If the
+	 *         delete fails, {@link Future#get()} will throw an
+	 *         ExecutionException with the StoreException as its cause. Will
+	 *         not be <code>null</code>.
+	 */
+	public StoreFuture<Void> deleteAsync(String className, UUID storeObjectId,
+			ConsistencyLevel level);
+
 	/**
 	 * Create a StoreObjectQuery for subsequent usage to retrieve StoreObject
 	 * instances via {@link #retrieve(StoreObjectQuery)}.
@@ -715,6 +936,34 @@ public interface IObjectStore {
 	public StoreObjectQuery createQuery(String className, UUID id)
 			throws StoreException;
 
+	/**
+	 * Retrieve the StoreObjects with the given ids. Rather than one query per
+	 * id, the ids are grouped by token range (so that each group is served by
+	 * the same replicas), and the groups are queried concurrently on the
+	 * executor returned by {@link #getAsyncExecutor()}.
+	 * 
+	 * @param className
+	 *            the className of the StoreObjects. Must not be
+	 *            <code>null</code>.
+	 * @param ids
+	 *            the ids of the StoreObjects to retrieve. Duplicate ids are
+	 *            retrieved once. Must not be <code>null</code>, and must not
+	 *            contain <code>null</code>.
+	 * @param level
+	 *            the consistency level to use for the retrieve. If
+	 *            <code>null</code>, then the default read consistency will be
+	 *            used.
+	 * @return Map of id to StoreObject, in the iteration order of ids. Ids
+	 *         for which there is no StoreObject are not in the map. Will not
+	 *         be <code>null</code>.
+	 * @throws StoreException
+	 *             if the className no longer exists, or the underlying store
+	 *             is not available.
+	 */
+	public Map<UUID, StoreObject> retrieve(String className,
+			Collection<UUID> ids, ConsistencyLevel level)
+			throws StoreException;
+
 	/**
 	 * Retrieve all object IDs (UUID type) for a given className.
 	 * 
@@ -722,7 +971,7 @@ public interface IObjectStore {
 	 *            the className to use. Must not be <code>null</code>
 	 * @param limit
 	 *            the maximum number of objectIDs to return. If
-	 *            <code>null</code>, then no maximum.
+	 *            <code>null</code>, then no maximum. Otherwise must be >= 0.
 	 * @param level
 	 *            the consistency level to use for the retrieve. If
 	 *            <code>null</code>, then the default read consistency will be
@@ -730,6 +979,8 @@ public interface IObjectStore {
 	 * @return UUID[] an array of UUID instances that provide the key for
 	 *         accessing a given StoreObject instance within the given
 	 *         className. Will not be <code>null</code>, but may be of length 0.
+	 * @throws IllegalArgumentException
+	 *             if limit is negative.
 	 * @throws StoreException
 	 *             if the className associated with the query no longer exists,
 	 *             or the underlying store is not available.
@@ -737,4 +988,78 @@ public interface IObjectStore {
 	public Collection<UUID> retrieveIds(String className, Integer limit,
 			ConsistencyLevel level) throws StoreException;
 
+	/**
+	 * Scan all object IDs for a given className in parallel. The token ring
+	 * is split into the given number of ranges (see
+	 * {@link TokenRange#split(int)}), which are scanned concurrently on the
+	 * executor returned by {@link #getAsyncExecutor()}, and each id is passed
+	 * to the handler as it is scanned. Ids are not collected, so the whole
+	 * table may be scanned in constant memory.
+	 * 
+	 * @param className
+	 *            the className to use. Must not be <code>null</code>
+	 * @param splits
+	 *            the number of token ranges to scan concurrently. Must be >
+	 *            0.
+	 * @param level
+	 *            the consistency level to use for the scan. If
+	 *            <code>null</code>, then the default read consistency will be
+	 *            used.
+	 * @param handler
+	 *            the handler for scanned ids, which is called concurrently.
+	 *            Ids are passed in token order within each range, but in no
+	 *            order across ranges. Must not be <code>null</code>.
+	 * @throws StoreException
+	 *             if the className associated with the query no longer exists,
+	 *             or the underlying store is not available, or the handler
+	 *             throws a StoreException.
+	 */
+	public void scanIds(String className, int splits, ConsistencyLevel level,
+			ScanHandler<UUID> handler) throws StoreException;
+
+	/**
+	 * Asynchronous variant of
+	 * {@link #retrieveIds(String, Integer, ConsistencyLevel)}. The calling
+	 * thread does not block for the server round trip (see
+	 * {@link #getAsyncExecutor()}).
+	 * 
+	 * @param className
+	 *            the className to use. Must not be <code>null</code>
+	 * @param limit
+	 *            the maximum number of objectIDs to return. If
+	 *            <code>null</code>, then no maximum. Otherwise must be >= 0.
+	 * @param level
+	 *            the consistency level to use for the retrieve. If
+	 *            <code>null</code>, then the default read consistency will be
+	 *            used.
+	 * @return StoreFuture that completes with the object ids. If the
+	 *         retrieve fails, {@link Future#get()} will throw an
+	 *         ExecutionException with the StoreException as its cause. Will
+	 *         not be <code>null</code>.
+	 */
+	public StoreFuture<Collection<UUID>> retrieveIdsAsync(String className,
+			Integer limit, ConsistencyLevel level);
+
+	/**
+	 * Get the executor used to complete asynchronous operations, i.e.
+	 * {@link StoreObject#storeAsync()}, {@link StoreObjectQuery#executeAsync()}
+	 * , {@link #deleteAsync(String, UUID, ConsistencyLevel)} and
+	 * {@link #retrieveIdsAsync(String, Integer, ConsistencyLevel)}.
+	 * <p>
+	 * Running the blocking operation on this executor only moves the wait to
+	 * one of its threads, so throughput is bounded by its thread count.
+	 * Implementations backed by a driver with an asynchronous API must
+	 * instead issue non-blocking driver calls from the asynchronous
+	 * operations, and complete the returned {@link StoreFuture} from the
+	 * driver's callback, overriding {@link StoreObject#storeAsync()} and
+	 * {@link StoreObjectQuery#executeAsync()} to do the same. The executor is
+	 * then used only to run listeners and continuations. The in-memory store
+	 * has no round trip to wait for, and runs the operations on this
+	 * executor.
+	 * 
+	 * @return Executor for asynchronous operations. Will not be
+	 *         <code>null</code>.
+	 */
+	public Executor getAsyncExecutor();
+
 }
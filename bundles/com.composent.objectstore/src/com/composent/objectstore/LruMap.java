@@ -0,0 +1,203 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Composent, Inc. and others. All rights reserved. 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ * 
+ * Contributors: Composent, Inc. - initial API and implementation
+ ******************************************************************************/
+package com.composent.objectstore;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Concurrent map bounded by an approximate least recently used policy, for
+ * the caches of this package. Lookups do not lock. Instead each entry records
+ * the tick of its last access, where the clock ticks on every put, and the
+ * entries with the oldest ticks are evicted by {@link #evict()} when the map
+ * holds more than the maximum size. Eviction sorts a snapshot of the
+ * entries, so to amortize its cost the map is trimmed to 15/16 of the
+ * maximum size.
+ */
+final class LruMap<K, V> {
+
+	private static final class Node<V> {
+		final V value;
+		volatile long accessed;
+
+		Node(V value, long accessed) {
+			this.value = value;
+			this.accessed = accessed;
+		}
+	}
+
+	private static final class Candidate<K, V> {
+		final K key;
+		final Node<V> node;
+		// copied, as the node's tick may change while sorting
+		final long accessed;
+
+		Candidate(K key, Node<V> node) {
+			this.key = key;
+			this.node = node;
+			this.accessed = node.accessed;
+		}
+	}
+
+	private static final Comparator<Candidate<?, ?>> ACCESS_ORDER = new Comparator<Candidate<?, ?>>() {
+		public int compare(Candidate<?, ?> c1, Candidate<?, ?> c2) {
+			return (c1.accessed < c2.accessed) ? -1
+					: ((c1.accessed == c2.accessed) ? 0 : 1);
+		}
+	};
+
+	private final ConcurrentMap<K, Node<V>> map = new ConcurrentHashMap<K, Node<V>>();
+	private final AtomicLong clock = new AtomicLong();
+	private final ReentrantLock evictLock = new ReentrantLock();
+	private volatile int maxSize;
+
+	LruMap(int maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * @return the value for key, or <code>null</code>. The entry is marked as
+	 *         accessed.
+	 */
+	V get(K key) {
+		Node<V> node = this.map.get(key);
+		if (node == null)
+			return null;
+		touch(node);
+		return node.value;
+	}
+
+	private void touch(Node<V> node) {
+		long now = this.clock.get();
+		// most hits find the tick unchanged, and need not write it
+		if (node.accessed != now)
+			node.accessed = now;
+	}
+
+	void put(K key, V value) {
+		this.map.put(key, new Node<V>(value, this.clock.incrementAndGet()));
+	}
+
+	/**
+	 * @return the existing value for key, or <code>null</code> if value was
+	 *         added.
+	 */
+	V putIfAbsent(K key, V value) {
+		Node<V> existing = this.map.putIfAbsent(key, new Node<V>(value,
+				this.clock.incrementAndGet()));
+		if (existing == null)
+			return null;
+		touch(existing);
+		return existing.value;
+	}
+
+	void remove(K key) {
+		this.map.remove(key);
+	}
+
+	/**
+	 * Remove the entry for key only if its value is the given value.
+	 */
+	void remove(K key, V value) {
+		Node<V> node = this.map.get(key);
+		if (node != null && node.value == value)
+			this.map.remove(key, node);
+	}
+
+	/**
+	 * @return the keys. Removing a key (e.g. with the iterator) removes its
+	 *         entry. Will not be <code>null</code>.
+	 */
+	Set<K> keySet() {
+		return this.map.keySet();
+	}
+
+	void clear() {
+		this.map.clear();
+	}
+
+	int size() {
+		return this.map.size();
+	}
+
+	int getMaxSize() {
+		return this.maxSize;
+	}
+
+	/**
+	 * Set the maximum size, evicting entries if the map holds more.
+	 * 
+	 * @return the number of entries evicted.
+	 */
+	int setMaxSize(int maxSize) {
+		this.maxSize = maxSize;
+		this.evictLock.lock();
+		try {
+			return trim();
+		} finally {
+			this.evictLock.unlock();
+		}
+	}
+
+	/**
+	 * Evict the least recently used entries if the map holds more than the
+	 * maximum size. Does nothing if another thread is evicting.
+	 * 
+	 * @return the number of entries evicted.
+	 */
+	int evict() {
+		if (this.map.size() <= this.maxSize || !this.evictLock.tryLock())
+			return 0;
+		try {
+			return trim();
+		} finally {
+			this.evictLock.unlock();
+		}
+	}
+
+	// must be called holding the evict lock
+	private int trim() {
+		int max = this.maxSize;
+		int size = this.map.size();
+		if (size <= max)
+			return 0;
+		List<Candidate<K, V>> candidates = new ArrayList<Candidate<K, V>>(
+				size);
+		for (Map.Entry<K, Node<V>> entry : this.map.entrySet())
+			candidates.add(new Candidate<K, V>(entry.getKey(), entry
+					.getValue()));
+		Collections.sort(candidates, ACCESS_ORDER);
+		int excess = size - (max - max / 16);
+		int evicted = 0;
+		for (int i = 0; i < candidates.size() && evicted < excess; i++) {
+			Candidate<K, V> c = candidates.get(i);
+			// not if it has been replaced
+			if (this.map.remove(c.key, c.node))
+				evicted++;
+		}
+		return evicted;
+	}
+}
@@ -0,0 +1,171 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Composent, Inc. and others. All rights reserved. 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ * 
+ * Contributors: Composent, Inc. - initial API and implementation
+ ******************************************************************************/
+package com.composent.objectstore;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.composent.objectstore.IObjectStore.Util;
+
+/**
+ * Client-side cache of {@link StoreObjectMetadata}, by className. Metadata is
+ * loaded (e.g. from the system tables) on the first request for a className,
+ * and then served from the cache until it is invalidated, so resolving
+ * metadata when creating StoreObjects and queries is a single map lookup.
+ * <p>
+ * Schema changes made through a store should be passed to
+ * {@link #update(StoreObjectMetadata)}, which keeps the metadata with the
+ * greatest {@link StoreObjectMetadata#getVersion()}. Schema changes detected
+ * from other nodes (e.g. by a schema change listener) should be passed to
+ * {@link #schemaChanged(String)}, so the next request reloads the metadata.
+ * <p>
+ * This class is thread safe.
+ */
+public class MetadataCache {
+
+	/**
+	 * Loads metadata on a cache miss.
+	 */
+	public static interface Loader {
+		/**
+		 * @param className
+		 *            the className. Will not be <code>null</code>.
+		 * @return the current metadata for className. Must not be
+		 *         <code>null</code>.
+		 * @throws StoreException
+		 *             if the metadata cannot be loaded, e.g. because there is
+		 *             no object table for className.
+		 */
+		public StoreObjectMetadata load(String className)
+				throws StoreException;
+	}
+
+	private final Loader loader;
+	private final ConcurrentMap<String, StoreObjectMetadata> cache = new ConcurrentHashMap<String, StoreObjectMetadata>();
+	// incremented by every invalidation, so that a load which overlaps an
+	// invalidation is not cached
+	private final AtomicLong invalidations = new AtomicLong();
+
+	public MetadataCache(Loader loader) {
+		Util.checkArgNotNull(loader, "loader");
+		this.loader = loader;
+	}
+
+	/**
+	 * Get the metadata for a className, loading it if it is not cached.
+	 * 
+	 * @param className
+	 *            the className. Must not be <code>null</code>.
+	 * @return the metadata. Will not be <code>null</code>.
+	 * @throws StoreException
+	 *             if the metadata is not cached and cannot be loaded.
+	 */
+	public StoreObjectMetadata get(String className) throws StoreException {
+		Util.checkArgNotNull(className, "className");
+		StoreObjectMetadata result = this.cache.get(className);
+		if (result != null)
+			return result;
+		long count = this.invalidations.get();
+		result = this.loader.load(className);
+		if (result == null)
+			throw new StoreException("metadata for className=" + className
+					+ " could not be loaded");
+		if (this.invalidations.get() != count)
+			return result;
+		return update(result);
+	}
+
+	/**
+	 * Get the cached metadata for a className, without loading it.
+	 * 
+	 * @param className
+	 *            the className. Must not be <code>null</code>.
+	 * @return the cached metadata, or <code>null</code> if not cached.
+	 */
+	public StoreObjectMetadata getCached(String className) {
+		Util.checkArgNotNull(className, "className");
+		return this.cache.get(className);
+	}
+
+	/**
+	 * Update the cache with new metadata (e.g. the result of a schema
+	 * change). The metadata is cached unless the cache already holds metadata
+	 * for the same className with a greater version.
+	 * 
+	 * @param metadata
+	 *            the metadata. Must not be <code>null</code>.
+	 * @return the cached metadata after the update. Will not be
+	 *         <code>null</code>.
+	 */
+	public StoreObjectMetadata update(StoreObjectMetadata metadata) {
+		Util.checkArgNotNull(metadata, "metadata");
+		String className = metadata.getClassName();
+		while (true) {
+			StoreObjectMetadata current = this.cache.putIfAbsent(className,
+					metadata);
+			if (current == null)
+				return metadata;
+			if (current.getVersion() >= metadata.getVersion())
+				return current;
+			if (this.cache.replace(className, current, metadata))
+				return metadata;
+		}
+	}
+
+	/**
+	 * Remove the metadata for a className from the cache. The next request
+	 * for the className will reload it.
+	 * 
+	 * @param className
+	 *            the className. Must not be <code>null</code>.
+	 */
+	public void invalidate(String className) {
+		Util.checkArgNotNull(className, "className");
+		this.invalidations.incrementAndGet();
+		this.cache.remove(className);
+	}
+
+	/**
+	 * Remove all metadata from the cache.
+	 */
+	public void invalidateAll() {
+		this.invalidations.incrementAndGet();
+		this.cache.clear();
+	}
+
+	/**
+	 * Notify the cache that the schema for a className has been changed by
+	 * another node (or client). The metadata is invalidated, and will be
+	 * reloaded by the next request.
+	 * 
+	 * @param className
+	 *            the className whose schema changed. Must not be
+	 *            <code>null</code>.
+	 */
+	public void schemaChanged(String className) {
+		invalidate(className);
+	}
+
+	/**
+	 * @return the number of cached classNames.
+	 */
+	public int size() {
+		return this.cache.size();
+	}
+}
@@ -0,0 +1,449 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Composent, Inc. and others. All rights reserved. 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ * 
+ * Contributors: Composent, Inc. - initial API and implementation
+ ******************************************************************************/
+package com.composent.objectstore;
+
+import java.util.Date;
+import java.util.Iterator;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.composent.objectstore.IObjectStore.Util;
+
+/**
+ * Second-level cache of StoreObjects read by id, for store implementations.
+ * Entries are identified by className and id, and hold a frozen snapshot (see
+ * {@link StoreObject#freeze()}) of the StoreObject as loaded. Stores return
+ * a copy of the snapshot for each read, so readers may modify (and store) the
+ * StoreObjects they read. The cache is shared by all readers of a store, unlike
+ * the identity map of a {@link StorableSession}.
+ * <p>
+ * The cache is disabled until {@link #setEnabled(boolean)} is called, and
+ * when disabled every request is loaded. When the cache holds more than
+ * {@link #getMaxSize()} entries, the (approximately) least recently used
+ * entries are evicted.
+ * Entries expire after their time to live (see
+ * {@link #setTimeToLive(long, TimeUnit)}). Entries may also be revalidated
+ * (see {@link #setRevalidateAfter(long, TimeUnit)}): the lastModifiedAt of
+ * the stored object is read, which is cheaper than reading the whole object,
+ * and the entry is kept if it is the same as that of the snapshot, or else
+ * reloaded.
+ * <p>
+ * Stores must call {@link #invalidate(String, UUID)} for each StoreObject
+ * stored or deleted, and {@link #invalidate(String)} when the schema of a
+ * className changes or its object table is dropped.
+ * <p>
+ * This class is thread safe. Hits do not lock, so they do not contend with
+ * each other. StoreObjects are loaded without locking, and a load which
+ * overlaps an invalidation is not cached.
+ */
+public class ObjectCache {
+
+	/**
+	 * Default maximum number of cached StoreObjects.
+	 */
+	public static final int DEFAULT_MAX_SIZE = 10000;
+
+	/**
+	 * Duration for entries that never expire, or are never revalidated.
+	 */
+	public static final long NEVER = -1;
+
+	/**
+	 * Loads StoreObjects on a cache miss, and their lastModifiedAt on
+	 * revalidation.
+	 */
+	public static interface Loader {
+		/**
+		 * @param className
+		 *            the className. Will not be <code>null</code>.
+		 * @param id
+		 *            the id. Will not be <code>null</code>.
+		 * @return the StoreObject with all fields, or <code>null</code> if
+		 *         there is none for className and id.
+		 * @throws StoreException
+		 *             if the StoreObject cannot be loaded.
+		 */
+		public StoreObject load(String className, UUID id)
+				throws StoreException;
+
+		/**
+		 * @param className
+		 *            the className. Will not be <code>null</code>.
+		 * @param id
+		 *            the id. Will not be <code>null</code>.
+		 * @return the lastModifiedAt of the StoreObject, or <code>null</code>
+		 *         if there is none for className and id.
+		 * @throws StoreException
+		 *             if the lastModifiedAt cannot be loaded.
+		 */
+		public Date loadLastModifiedAt(String className, UUID id)
+				throws StoreException;
+	}
+
+	private static final class Key {
+		private final String className;
+		private final UUID id;
+
+		Key(String className, UUID id) {
+			this.className = className;
+			this.id = id;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * this.className.hashCode() + this.id.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof Key))
+				return false;
+			Key other = (Key) obj;
+			return this.id.equals(other.id)
+					&& this.className.equals(other.className);
+		}
+	}
+
+	private static final class Entry {
+		final StoreObject storeObject;
+		final long loadedAt;
+		// the time (System.nanoTime) the entry was loaded or last revalidated
+		volatile long validatedAt;
+
+		Entry(StoreObject storeObject, long loadedAt) {
+			this.storeObject = storeObject;
+			this.loadedAt = loadedAt;
+			this.validatedAt = loadedAt;
+		}
+	}
+
+	private final Loader loader;
+	private final LruMap<Key, Entry> entries = new LruMap<Key, Entry>(
+			DEFAULT_MAX_SIZE);
+	private volatile boolean enabled;
+	// in nanoseconds, or NEVER
+	private volatile long timeToLive = NEVER;
+	private volatile long revalidateAfter = NEVER;
+	// incremented by every invalidation, so that a load which overlaps an
+	// invalidation is not cached
+	private final AtomicLong invalidations = new AtomicLong();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong expirations = new AtomicLong();
+	private final AtomicLong revalidations = new AtomicLong();
+
+	public ObjectCache(Loader loader) {
+		this(loader, DEFAULT_MAX_SIZE);
+	}
+
+	/**
+	 * @param loader
+	 *            the loader for StoreObjects not in the cache. Must not be
+	 *            <code>null</code>.
+	 * @param maxSize
+	 *            the maximum number of cached StoreObjects. Must be > 0.
+	 */
+	public ObjectCache(Loader loader, int maxSize) {
+		Util.checkArgNotNull(loader, "loader");
+		this.loader = loader;
+		setMaxSize(maxSize);
+	}
+
+	/**
+	 * Get the StoreObject for a className and id, loading it if it is not
+	 * cached, or its entry has expired or is stale.
+	 * 
+	 * @param className
+	 *            the className. Must not be <code>null</code>.
+	 * @param id
+	 *            the id. Must not be <code>null</code>.
+	 * @return the StoreObject (frozen, if the cache is enabled), or
+	 *         <code>null</code> if there is none for className and id. Absent
+	 *         StoreObjects are not cached.
+	 * @throws StoreException
+	 *             if the StoreObject must be loaded or revalidated, and
+	 *             cannot be.
+	 */
+	public StoreObject get(String className, UUID id) throws StoreException {
+		Util.checkArgNotNull(className, "className");
+		Util.checkArgNotNull(id, "id");
+		if (!this.enabled)
+			return this.loader.load(className, id);
+		Key key = new Key(className, id);
+		Entry entry = this.entries.get(key);
+		long now = System.nanoTime();
+		if (entry != null) {
+			long ttl = this.timeToLive;
+			long revalidate = this.revalidateAfter;
+			if (ttl != NEVER && now - entry.loadedAt >= ttl) {
+				remove(key, entry);
+				this.expirations.incrementAndGet();
+			} else if (revalidate != NEVER
+					&& now - entry.validatedAt >= revalidate) {
+				this.revalidations.incrementAndGet();
+				Date lastModifiedAt = this.loader.loadLastModifiedAt(
+						className, id);
+				if (lastModifiedAt != null
+						&& lastModifiedAt.equals(entry.storeObject
+								.getLastModifiedAt())) {
+					entry.validatedAt = now;
+					this.hits.incrementAndGet();
+					return entry.storeObject;
+				}
+				remove(key, entry);
+			} else {
+				this.hits.incrementAndGet();
+				return entry.storeObject;
+			}
+		}
+		this.misses.incrementAndGet();
+		long count = this.invalidations.get();
+		StoreObject result = this.loader.load(className, id);
+		if (result == null)
+			return null;
+		result = result.freeze();
+		if (this.invalidations.get() != count)
+			return result;
+		entry = new Entry(result, now);
+		this.entries.put(key, entry);
+		// invalidations increment the count before removing entries, so
+		// either the invalidation removes this entry, or the count has changed
+		if (this.invalidations.get() != count)
+			remove(key, entry);
+		else
+			this.evictions.addAndGet(this.entries.evict());
+		return result;
+	}
+
+	private void remove(Key key, Entry entry) {
+		this.entries.remove(key, entry);
+	}
+
+	/**
+	 * Remove the entry for a className and id, e.g. after the StoreObject is
+	 * stored or deleted.
+	 * 
+	 * @param className
+	 *            the className. Must not be <code>null</code>.
+	 * @param id
+	 *            the id. Must not be <code>null</code>.
+	 */
+	public void invalidate(String className, UUID id) {
+		Util.checkArgNotNull(className, "className");
+		Util.checkArgNotNull(id, "id");
+		// a disabled cache is empty, and loads that overlap disabling it are
+		// not cached
+		if (!this.enabled)
+			return;
+		this.invalidations.incrementAndGet();
+		this.entries.remove(new Key(className, id));
+	}
+
+	/**
+	 * Remove all entries for a className, e.g. after its schema changes or
+	 * its object table is dropped.
+	 * 
+	 * @param className
+	 *            the className. Must not be <code>null</code>.
+	 */
+	public void invalidate(String className) {
+		Util.checkArgNotNull(className, "className");
+		this.invalidations.incrementAndGet();
+		for (Iterator<Key> i = this.entries.keySet().iterator(); i.hasNext();)
+			if (className.equals(i.next().className))
+				i.remove();
+	}
+
+	/**
+	 * Remove all entries from the cache. The metrics are not reset.
+	 */
+	public void clear() {
+		this.invalidations.incrementAndGet();
+		this.entries.clear();
+	}
+
+	public boolean isEnabled() {
+		return this.enabled;
+	}
+
+	/**
+	 * Enable or disable the cache. Disabling the cache clears it.
+	 * 
+	 * @param enabled
+	 *            <code>true</code> to cache StoreObjects.
+	 */
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+		if (!enabled)
+			clear();
+	}
+
+	public int getMaxSize() {
+		return this.entries.getMaxSize();
+	}
+
+	/**
+	 * Set the maximum number of cached StoreObjects. If the cache holds more
+	 * StoreObjects, the (approximately) least recently used are evicted.
+	 * 
+	 * @param maxSize
+	 *            the maximum number of cached StoreObjects. Must be > 0.
+	 */
+	public void setMaxSize(int maxSize) {
+		if (maxSize < 1)
+			throw new IllegalArgumentException("maxSize must be > 0");
+		this.evictions.addAndGet(this.entries.setMaxSize(maxSize));
+	}
+
+	/**
+	 * @param unit
+	 *            the unit of the result. Must not be <code>null</code>.
+	 * @return the time to live of entries, or {@link #NEVER}.
+	 */
+	public long getTimeToLive(TimeUnit unit) {
+		Util.checkArgNotNull(unit, "unit");
+		long ttl = this.timeToLive;
+		return (ttl == NEVER) ? NEVER : unit.convert(ttl, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Set the time to live of entries. An entry older than its time to live
+	 * is reloaded when next requested. By default entries do not expire.
+	 * 
+	 * @param duration
+	 *            the time since an entry was loaded after which it expires.
+	 *            Must be > 0, or {@link #NEVER}.
+	 * @param unit
+	 *            the unit of duration. Must not be <code>null</code>.
+	 */
+	public void setTimeToLive(long duration, TimeUnit unit) {
+		this.timeToLive = toNanos(duration, unit, 1, "duration");
+	}
+
+	/**
+	 * @param unit
+	 *            the unit of the result. Must not be <code>null</code>.
+	 * @return the time after which entries are revalidated, or {@link #NEVER}
+	 *         .
+	 */
+	public long getRevalidateAfter(TimeUnit unit) {
+		Util.checkArgNotNull(unit, "unit");
+		long revalidate = this.revalidateAfter;
+		return (revalidate == NEVER) ? NEVER : unit.convert(revalidate,
+				TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Set the time after which entries are revalidated. An entry that was
+	 * loaded or last revalidated longer ago is revalidated when next
+	 * requested, by comparing its lastModifiedAt with that of the stored
+	 * object. This bounds the staleness of entries changed by other clients
+	 * of the store, which do not invalidate this cache. By default entries
+	 * are not revalidated.
+	 * 
+	 * @param duration
+	 *            the time after which entries are revalidated. Must be >= 0
+	 *            (0 revalidates on every request), or {@link #NEVER}.
+	 * @param unit
+	 *            the unit of duration. Must not be <code>null</code>.
+	 */
+	public void setRevalidateAfter(long duration, TimeUnit unit) {
+		this.revalidateAfter = toNanos(duration, unit, 0, "duration");
+	}
+
+	private static long toNanos(long duration, TimeUnit unit, long min,
+			String name) {
+		Util.checkArgNotNull(unit, "unit");
+		if (duration == NEVER)
+			return NEVER;
+		if (duration < min)
+			throw new IllegalArgumentException(name + " must be >= " + min
+					+ " or NEVER");
+		return unit.toNanos(duration);
+	}
+
+	/**
+	 * @return the number of cached StoreObjects.
+	 */
+	public int size() {
+		return this.entries.size();
+	}
+
+	/**
+	 * @return the number of requests served from the cache.
+	 */
+	public long getHitCount() {
+		return this.hits.get();
+	}
+
+	/**
+	 * @return the number of requests that loaded a StoreObject, while the
+	 *         cache was enabled.
+	 */
+	public long getMissCount() {
+		return this.misses.get();
+	}
+
+	/**
+	 * @return the number of entries evicted to keep the cache within
+	 *         {@link #getMaxSize()}.
+	 */
+	public long getEvictionCount() {
+		return this.evictions.get();
+	}
+
+	/**
+	 * @return the number of entries removed because their time to live
+	 *         elapsed.
+	 */
+	public long getExpirationCount() {
+		return this.expirations.get();
+	}
+
+	/**
+	 * @return the number of entries revalidated, whether or not they were
+	 *         still valid.
+	 */
+	public long getRevalidationCount() {
+		return this.revalidations.get();
+	}
+
+	/**
+	 * Reset the hit, miss, eviction, expiration and revalidation counts to 0.
+	 */
+	public void resetMetrics() {
+		this.hits.set(0);
+		this.misses.set(0);
+		this.evictions.set(0);
+		this.expirations.set(0);
+		this.revalidations.set(0);
+	}
+
+	@Override
+	public String toString() {
+		return "ObjectCache[enabled=" + this.enabled + ";size=" + size()
+				+ ";maxSize=" + getMaxSize() + ";hits=" + this.hits
+				+ ";misses=" + this.misses + ";evictions=" + this.evictions
+				+ ";expirations=" + this.expirations + ";revalidations="
+				+ this.revalidations + "]";
+	}
+}
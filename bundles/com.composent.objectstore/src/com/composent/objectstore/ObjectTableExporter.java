@@ -0,0 +1,326 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Composent, Inc. and others. All rights reserved. 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ * 
+ * Contributors: Composent, Inc. - initial API and implementation
+ ******************************************************************************/
+package com.composent.objectstore;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+
+import com.composent.objectstore.IObjectStore.ConsistencyLevel;
+import com.composent.objectstore.IObjectStore.ScanHandler;
+import com.composent.objectstore.IObjectStore.Util;
+
+/**
+ * Bulk export of an object table to a local file. The table is read with a
+ * parallel scan (see {@link StoreObjectQuery#scan(int, ScanHandler)}), and
+ * each scanning thread encodes StoreObjects into its own block, which it
+ * compresses when full and appends to the file, so encoding and compression
+ * run in parallel and the file is written in large sequential writes.
+ * <p>
+ * The file is self-describing. It starts with a header holding the
+ * StoreObjectMetadata of the exported class, followed by compressed blocks of
+ * StoreObjects (each with its id, lastModifiedAt and values by field
+ * ordinal), and ends with the number of StoreObjects exported:
+ * 
+ * <pre>
+ * file    := MAGIC:int FORMAT_VERSION:short length:int metadata block* end
+ * block   := rows:int length:int compressedLength:int deflated(storeObject*)
+ * end     := 0:int rows:long
+ * </pre>
+ * 
+ * All numbers are big endian. Blocks are in no particular order.
+ */
+public class ObjectTableExporter {
+
+	/**
+	 * Default number of token ranges scanned concurrently.
+	 */
+	public static final int DEFAULT_SPLITS = 16;
+	/**
+	 * Default size of the uncompressed blocks (1 MB).
+	 */
+	public static final int DEFAULT_BLOCK_SIZE = 1 << 20;
+
+	static final int MAGIC = 0x4f534558;
+	static final short FORMAT_VERSION = 1;
+
+	/**
+	 * IOException writing the file, thrown through the scan handler.
+	 */
+	private static final class WriteException extends StoreException {
+		private static final long serialVersionUID = 6217845081263409731L;
+
+		WriteException(IOException cause) {
+			super(cause);
+		}
+	}
+
+	/**
+	 * Block of encoded StoreObjects, filled by a single scanning thread.
+	 */
+	private final class Block {
+		private final FileChannel channel;
+		private ByteBuffer buffer;
+		private int rows;
+		private final Deflater deflater;
+		private byte[] compressed;
+
+		Block(FileChannel channel) {
+			this.channel = channel;
+			this.buffer = ByteBuffer
+					.allocate(ObjectTableExporter.this.blockSize);
+			this.deflater = new Deflater(
+					ObjectTableExporter.this.compressionLevel);
+			this.compressed = new byte[this.buffer.capacity()];
+		}
+
+		void add(StoreObject storeObject) throws StoreException {
+			int start = this.buffer.position();
+			while (true) {
+				try {
+					StoreObjectCodec.encodeRow(storeObject, this.buffer);
+					this.rows++;
+					return;
+				} catch (BufferOverflowException e) {
+					this.buffer.position(start);
+					if (this.rows > 0) {
+						flush();
+						start = 0;
+					} else
+						// a single StoreObject larger than the block
+						this.buffer = ByteBuffer.allocate(this.buffer
+								.capacity() * 2);
+				}
+			}
+		}
+
+		void flush() throws StoreException {
+			if (this.rows == 0)
+				return;
+			int length = this.buffer.position();
+			this.deflater.reset();
+			this.deflater.setInput(this.buffer.array(), 0, length);
+			this.deflater.finish();
+			int n = 0;
+			while (!this.deflater.finished()) {
+				if (n == this.compressed.length) {
+					byte[] larger = new byte[this.compressed.length * 2];
+					System.arraycopy(this.compressed, 0, larger, 0, n);
+					this.compressed = larger;
+				}
+				n += this.deflater.deflate(this.compressed, n,
+						this.compressed.length - n);
+			}
+			ByteBuffer header = ByteBuffer.allocate(12);
+			header.putInt(this.rows).putInt(length).putInt(n).flip();
+			try {
+				write(this.channel, header, ByteBuffer.wrap(this.compressed,
+						0, n));
+			} catch (IOException e) {
+				throw new WriteException(e);
+			}
+			this.buffer.clear();
+			this.rows = 0;
+		}
+
+		void end() {
+			this.deflater.end();
+		}
+	}
+
+	private final IObjectStore store;
+	private volatile int splits = DEFAULT_SPLITS;
+	private volatile int blockSize = DEFAULT_BLOCK_SIZE;
+	private volatile int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+
+	/**
+	 * @param store
+	 *            the store to export from. Must not be <code>null</code>.
+	 */
+	public ObjectTableExporter(IObjectStore store) {
+		Util.checkArgNotNull(store, "store");
+		this.store = store;
+	}
+
+	public int getSplits() {
+		return this.splits;
+	}
+
+	/**
+	 * @param splits
+	 *            the number of token ranges scanned concurrently. Must be >
+	 *            0.
+	 */
+	public void setSplits(int splits) {
+		if (splits < 1)
+			throw new IllegalArgumentException("splits must be > 0");
+		this.splits = splits;
+	}
+
+	public int getBlockSize() {
+		return this.blockSize;
+	}
+
+	/**
+	 * @param blockSize
+	 *            the size in bytes of the uncompressed blocks, each of which
+	 *            is held in memory by a scanning thread. Larger blocks
+	 *            compress better. Must be >= 1024.
+	 */
+	public void setBlockSize(int blockSize) {
+		if (blockSize < 1024)
+			throw new IllegalArgumentException("blockSize must be >= 1024");
+		this.blockSize = blockSize;
+	}
+
+	public int getCompressionLevel() {
+		return this.compressionLevel;
+	}
+
+	/**
+	 * @param compressionLevel
+	 *            the compression level, from {@link Deflater#NO_COMPRESSION}
+	 *            to {@link Deflater#BEST_COMPRESSION}, or
+	 *            {@link Deflater#DEFAULT_COMPRESSION}.
+	 */
+	public void setCompressionLevel(int compressionLevel) {
+		if (compressionLevel != Deflater.DEFAULT_COMPRESSION
+				&& (compressionLevel < Deflater.NO_COMPRESSION
+						|| compressionLevel > Deflater.BEST_COMPRESSION))
+			throw new IllegalArgumentException("invalid compressionLevel="
+					+ compressionLevel);
+		this.compressionLevel = compressionLevel;
+	}
+
+	/**
+	 * Export all StoreObjects of a className.
+	 * 
+	 * @param className
+	 *            the className. Must not be <code>null</code>.
+	 * @param level
+	 *            the consistency level for reading. May be <code>null</code>.
+	 *            If <code>null</code>, the default is used.
+	 * @param file
+	 *            the file to write. Must not be <code>null</code>. An existing
+	 *            file is replaced.
+	 * @return the number of StoreObjects exported.
+	 * @throws StoreException
+	 *             if the className does not exist, or the object table cannot
+	 *             be read.
+	 * @throws IOException
+	 *             if the file cannot be written.
+	 */
+	public long export(String className, ConsistencyLevel level, File file)
+			throws StoreException, IOException {
+		StoreObjectQuery query = this.store.createQuery(className);
+		query.setConsistencyLevel(level);
+		return export(query, file);
+	}
+
+	/**
+	 * Export the StoreObjects matching a query. The query limit does not
+	 * apply.
+	 * 
+	 * @param query
+	 *            the query. Must not be <code>null</code>.
+	 * @param file
+	 *            the file to write. Must not be <code>null</code>. An existing
+	 *            file is replaced. If the export fails, the file is deleted.
+	 * @return the number of StoreObjects exported.
+	 * @throws StoreException
+	 *             if the query fails.
+	 * @throws IOException
+	 *             if the file cannot be written.
+	 */
+	public long export(StoreObjectQuery query, File file)
+			throws StoreException, IOException {
+		Util.checkArgNotNull(query, "query");
+		Util.checkArgNotNull(file, "file");
+		final FileChannel channel = new FileOutputStream(file).getChannel();
+		final ConcurrentMap<Thread, Block> blocks = new ConcurrentHashMap<Thread, Block>();
+		final AtomicLong count = new AtomicLong();
+		boolean success = false;
+		try {
+			ByteBuffer metadata = encodeMetadata(query.getMetadata());
+			ByteBuffer header = ByteBuffer.allocate(10);
+			header.putInt(MAGIC).putShort(FORMAT_VERSION)
+					.putInt(metadata.remaining()).flip();
+			write(channel, header, metadata);
+			query.scan(this.splits, new ScanHandler<StoreObject>() {
+				public void handle(StoreObject value) throws StoreException {
+					Thread thread = Thread.currentThread();
+					Block block = blocks.get(thread);
+					if (block == null) {
+						block = new Block(channel);
+						blocks.put(thread, block);
+					}
+					block.add(value);
+					count.incrementAndGet();
+				}
+			});
+			for (Block block : blocks.values())
+				block.flush();
+			ByteBuffer end = ByteBuffer.allocate(12);
+			end.putInt(0).putLong(count.get()).flip();
+			write(channel, end);
+			channel.force(false);
+			success = true;
+			return count.get();
+		} catch (WriteException e) {
+			throw (IOException) e.getCause();
+		} finally {
+			for (Block block : blocks.values())
+				block.end();
+			channel.close();
+			if (!success)
+				file.delete();
+		}
+	}
+
+	private static ByteBuffer encodeMetadata(StoreObjectMetadata metadata) {
+		for (int size = 4096;; size *= 2)
+			try {
+				ByteBuffer bb = ByteBuffer.allocate(size);
+				StoreObjectCodec.encodeMetadata(metadata, bb);
+				bb.flip();
+				return bb;
+			} catch (BufferOverflowException e) {
+				// retry with a larger buffer
+			}
+	}
+
+	/**
+	 * Append the given buffers to the channel, as a single write relative to
+	 * writes by other threads.
+	 */
+	private static void write(FileChannel channel, ByteBuffer... buffers)
+			throws IOException {
+		synchronized (channel) {
+			ByteBuffer last = buffers[buffers.length - 1];
+			while (last.hasRemaining())
+				channel.write(buffers);
+		}
+	}
+}
@@ -0,0 +1,679 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Composent, Inc. and others. All rights reserved. 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ * 
+ * Contributors: Composent, Inc. - initial API and implementation
+ ******************************************************************************/
+package com.composent.objectstore;
+
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import com.composent.objectstore.IObjectStore.Util;
+import com.composent.objectstore.StoreObjectMetadata.FieldMetadata;
+
+/**
+ * Bulk loader of StoreObjects into an object table, from a file written by
+ * {@link ObjectTableExporter} or from a CSV file. StoreObjects are read on the
+ * calling thread and written with {@link IObjectStore#storeAll(java.util.Collection)}
+ * (which groups writes by partition) in batches on the store's async
+ * executor. At most {@link #getMaxInFlight()} batches are written at a time:
+ * when that many are in flight, reading waits for the oldest to complete, so
+ * memory use is bounded however fast the file can be read. If the load
+ * fails, batches that have not started are cancelled, and the load does not
+ * return until those being written have completed.
+ * <p>
+ * Fields are mapped by name to the fields of the target className's
+ * StoreObjectMetadata. Fields of the file that the target does not have are
+ * skipped, and fields of the same name must be of the same type. Ids are
+ * kept, so loading a file into a table that already holds some of its
+ * StoreObjects overwrites them.
+ * <p>
+ * Progress is reported to the {@link ProgressListener}, if set, after each
+ * completed batch.
+ */
+public class ObjectTableLoader {
+
+	/**
+	 * Default number of StoreObjects per storeAll call.
+	 */
+	public static final int DEFAULT_BATCH_SIZE = 100;
+	/**
+	 * Default maximum number of batches written concurrently.
+	 */
+	public static final int DEFAULT_MAX_IN_FLIGHT = 8;
+
+	/**
+	 * Receives progress reports.
+	 */
+	public static interface ProgressListener {
+		/**
+		 * Called on the loading thread after each batch completes, and when
+		 * the load completes.
+		 * 
+		 * @param progress
+		 *            the progress. Will not be <code>null</code>.
+		 */
+		public void progress(Progress progress);
+	}
+
+	/**
+	 * Snapshot of the progress of a load.
+	 */
+	public static final class Progress {
+		private final String className;
+		private final long read;
+		private final long stored;
+		private final long failed;
+		private final long total;
+		private final long elapsedNanos;
+		private final boolean complete;
+
+		Progress(String className, long read, long stored, long failed,
+				long total, long elapsedNanos, boolean complete) {
+			this.className = className;
+			this.read = read;
+			this.stored = stored;
+			this.failed = failed;
+			this.total = total;
+			this.elapsedNanos = elapsedNanos;
+			this.complete = complete;
+		}
+
+		public String getClassName() {
+			return this.className;
+		}
+
+		/**
+		 * @return the number of StoreObjects read from the file.
+		 */
+		public long getRead() {
+			return this.read;
+		}
+
+		/**
+		 * @return the number of StoreObjects successfully stored.
+		 */
+		public long getStored() {
+			return this.stored;
+		}
+
+		/**
+		 * @return the number of StoreObjects whose store did not succeed
+		 *         (see {@link StoreResult#isSuccess()}).
+		 */
+		public long getFailed() {
+			return this.failed;
+		}
+
+		/**
+		 * @return the number of StoreObjects in the file, or -1 if not known
+		 *         before the file is read (e.g. for CSV files).
+		 */
+		public long getTotal() {
+			return this.total;
+		}
+
+		public long getElapsedMillis() {
+			return this.elapsedNanos / 1000000;
+		}
+
+		/**
+		 * @return the number of StoreObjects stored per second.
+		 */
+		public double getThroughput() {
+			return (this.elapsedNanos == 0) ? 0 : this.stored * 1e9
+					/ this.elapsedNanos;
+		}
+
+		public boolean isComplete() {
+			return this.complete;
+		}
+
+		@Override
+		public String toString() {
+			return "Progress[className=" + this.className + ";read="
+					+ this.read + ";stored=" + this.stored + ";failed="
+					+ this.failed + ";total=" + this.total + ";elapsedMillis="
+					+ getElapsedMillis() + ";throughput="
+					+ (long) getThroughput() + "/s;complete=" + this.complete
+					+ "]";
+		}
+	}
+
+	/**
+	 * State of a single load.
+	 */
+	private final class Load {
+		private final String className;
+		private final long total;
+		private final long start = System.nanoTime();
+		private final LinkedList<Future<List<StoreResult>>> inFlight = new LinkedList<Future<List<StoreResult>>>();
+		private final int batchSize = ObjectTableLoader.this.batchSize;
+		private final int maxInFlight = ObjectTableLoader.this.maxInFlight;
+		private final ProgressListener listener = ObjectTableLoader.this.listener;
+		private List<StoreObject> batch;
+		// set when the load fails, so batches that have not started are not
+		// written
+		private volatile boolean aborted;
+		private long read;
+		private long stored;
+		private long failed;
+
+		Load(String className, long total) {
+			this.className = className;
+			this.total = total;
+			this.batch = new ArrayList<StoreObject>(this.batchSize);
+		}
+
+		void add(StoreObject storeObject) throws StoreException {
+			this.read++;
+			this.batch.add(storeObject);
+			if (this.batch.size() == this.batchSize)
+				submit();
+		}
+
+		private void submit() throws StoreException {
+			if (this.inFlight.size() == this.maxInFlight)
+				completed(this.inFlight.removeFirst());
+			final List<StoreObject> storeObjects = this.batch;
+			this.batch = new ArrayList<StoreObject>(this.batchSize);
+			this.inFlight.add(Util.submit(
+					ObjectTableLoader.this.store.getAsyncExecutor(),
+					new Callable<List<StoreResult>>() {
+						public List<StoreResult> call() throws Exception {
+							if (Load.this.aborted)
+								return Collections.emptyList();
+							return ObjectTableLoader.this.store
+									.storeAll(storeObjects);
+						}
+					}));
+		}
+
+		private void completed(Future<List<StoreResult>> future)
+				throws StoreException {
+			List<StoreResult> results;
+			try {
+				results = Util.get(future);
+			} catch (BatchStoreException e) {
+				// count the StoreObjects that were written before failing
+				count(e.getResults());
+				throw e;
+			}
+			count(results);
+			if (this.listener != null)
+				this.listener.progress(getProgress(false));
+		}
+
+		private void count(List<StoreResult> results) {
+			for (StoreResult result : results)
+				if (result.isSuccess())
+					this.stored++;
+				else
+					this.failed++;
+		}
+
+		Progress complete() throws StoreException {
+			if (!this.batch.isEmpty())
+				submit();
+			while (!this.inFlight.isEmpty())
+				completed(this.inFlight.removeFirst());
+			Progress result = getProgress(true);
+			if (this.listener != null)
+				this.listener.progress(result);
+			return result;
+		}
+
+		/**
+		 * Skip the batches that have not started, and wait for those being
+		 * written, so that no write continues once the load has failed. Does
+		 * nothing after {@link #complete()} has returned.
+		 */
+		void abort() {
+			this.aborted = true;
+			boolean interrupted = false;
+			try {
+				while (!this.inFlight.isEmpty()) {
+					try {
+						Util.get(this.inFlight.getFirst());
+					} catch (StoreException e) {
+						// the load has already failed, unless interrupted
+						if (Thread.interrupted()) {
+							interrupted = true;
+							continue;
+						}
+					} catch (RuntimeException e) {
+						// the load has already failed
+					}
+					this.inFlight.removeFirst();
+				}
+			} finally {
+				if (interrupted)
+					Thread.currentThread().interrupt();
+			}
+		}
+
+		private Progress getProgress(boolean complete) {
+			return new Progress(this.className, this.read, this.stored,
+					this.failed, this.total, System.nanoTime() - this.start,
+					complete);
+		}
+	}
+
+	private final IObjectStore store;
+	private volatile int batchSize = DEFAULT_BATCH_SIZE;
+	private volatile int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+	private volatile ProgressListener listener;
+
+	/**
+	 * @param store
+	 *            the store to load into. Must not be <code>null</code>.
+	 */
+	public ObjectTableLoader(IObjectStore store) {
+		Util.checkArgNotNull(store, "store");
+		this.store = store;
+	}
+
+	public int getBatchSize() {
+		return this.batchSize;
+	}
+
+	/**
+	 * @param batchSize
+	 *            the number of StoreObjects per storeAll call. Must be > 0.
+	 */
+	public void setBatchSize(int batchSize) {
+		if (batchSize < 1)
+			throw new IllegalArgumentException("batchSize must be > 0");
+		this.batchSize = batchSize;
+	}
+
+	public int getMaxInFlight() {
+		return this.maxInFlight;
+	}
+
+	/**
+	 * @param maxInFlight
+	 *            the maximum number of batches written concurrently. Must be
+	 *            > 0.
+	 */
+	public void setMaxInFlight(int maxInFlight) {
+		if (maxInFlight < 1)
+			throw new IllegalArgumentException("maxInFlight must be > 0");
+		this.maxInFlight = maxInFlight;
+	}
+
+	public ProgressListener getProgressListener() {
+		return this.listener;
+	}
+
+	/**
+	 * @param listener
+	 *            the listener for progress reports. May be <code>null</code>.
+	 */
+	public void setProgressListener(ProgressListener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Load a file written by {@link ObjectTableExporter} into an object table.
+	 * 
+	 * @param className
+	 *            the className of the object table to load into, which need
+	 *            not be the className exported. Must not be <code>null</code>.
+	 * @param file
+	 *            the exported file. Must not be <code>null</code>.
+	 * @return the final progress. Will not be <code>null</code>.
+	 * @throws StoreException
+	 *             if the className does not exist, a field of the file is of
+	 *             a different type than the field of the same name in the
+	 *             object table, or writing fails.
+	 * @throws IOException
+	 *             if the file cannot be read, or is not an exported file.
+	 */
+	public Progress load(String className, File file) throws StoreException,
+			IOException {
+		Util.checkArgNotNull(file, "file");
+		StoreObjectMetadata metadata = this.store.createQuery(className)
+				.getMetadata();
+		FileChannel channel = new FileInputStream(file).getChannel();
+		Inflater inflater = new Inflater();
+		Load load = null;
+		try {
+			ByteBuffer bb = read(channel, 10);
+			if (bb.getInt() != ObjectTableExporter.MAGIC)
+				throw new IOException("file=" + file
+						+ " is not an exported object table");
+			short version = bb.getShort();
+			if (version != ObjectTableExporter.FORMAT_VERSION)
+				throw new IOException("unsupported format version=" + version);
+			StoreObjectCodec.Header header = StoreObjectCodec
+					.decodeMetadata(read(channel, bb.getInt()));
+			int[] indexes = mapFields(header, metadata);
+			// the trailer holds the total
+			ByteBuffer trailer = ByteBuffer.allocate(8);
+			channel.read(trailer, channel.size() - 8);
+			trailer.flip();
+			load = new Load(className, (trailer.remaining() == 8) ? trailer
+					.getLong() : -1);
+			byte[] data = new byte[0];
+			for (bb = read(channel, 4); bb.getInt() != 0; bb = read(channel, 4)) {
+				ByteBuffer sizes = read(channel, 8);
+				int length = sizes.getInt();
+				int compressedLength = sizes.getInt();
+				if (length < 0 || compressedLength < 0)
+					throw new IOException("corrupt block in file=" + file);
+				ByteBuffer compressed = read(channel, compressedLength);
+				if (data.length < length)
+					data = new byte[length];
+				inflater.reset();
+				inflater.setInput(compressed.array(), 0, compressed.limit());
+				try {
+					if (inflater.inflate(data, 0, length) != length)
+						throw new IOException("truncated block in file="
+								+ file);
+				} catch (DataFormatException e) {
+					throw corrupt(file, e);
+				}
+				ByteBuffer rows = ByteBuffer.wrap(data, 0, length);
+				while (rows.hasRemaining()) {
+					StoreObject so;
+					try {
+						so = this.store.createStoreObject(className,
+								StoreObjectCodec.decodeId(rows));
+						so.decodeValues(rows, header, indexes, false);
+					} catch (BufferUnderflowException e) {
+						throw corrupt(file, e);
+					} catch (IllegalArgumentException e) {
+						// e.g. an invalid BigInteger
+						throw corrupt(file, e);
+					}
+					load.add(so);
+				}
+			}
+			return load.complete();
+		} finally {
+			if (load != null)
+				load.abort();
+			inflater.end();
+			channel.close();
+		}
+	}
+
+	/**
+	 * @return the ordinals of the fields of metadata to put values of header's
+	 *         fields in, by ordinal in header, or -1 for fields that metadata
+	 *         does not have.
+	 */
+	private static int[] mapFields(StoreObjectCodec.Header header,
+			StoreObjectMetadata metadata) throws StoreException {
+		int[] result = new int[header.names.length];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = metadata.getFieldIndex(header.names[i]);
+			if (result[i] < 0)
+				continue;
+			FieldMetadata field = metadata.getField(result[i]);
+			if (StoreObjectCodec.typeCode(field.getType()) != header.types[i]
+					|| typeCode(field.getFirstElementType()) != header.firstTypes[i]
+					|| typeCode(field.getSecondElementType()) != header.secondTypes[i])
+				throw new StoreException("field=" + field.getName()
+						+ " of className=" + metadata.getClassName()
+						+ " is not of the exported type");
+		}
+		return result;
+	}
+
+	private static byte typeCode(Class<?> type) {
+		return (type == null) ? 0 : StoreObjectCodec.typeCode(type);
+	}
+
+	private static IOException corrupt(File file, Exception cause) {
+		IOException result = new IOException("corrupt block in file=" + file);
+		result.initCause(cause);
+		return result;
+	}
+
+	/**
+	 * Read exactly length bytes from the channel.
+	 */
+	private static ByteBuffer read(FileChannel channel, int length)
+			throws IOException {
+		ByteBuffer result = ByteBuffer.allocate(length);
+		while (result.hasRemaining())
+			if (channel.read(result) < 0)
+				throw new EOFException("unexpected end of file");
+		result.flip();
+		return result;
+	}
+
+	/**
+	 * Load a CSV file into an object table. The first line of the file names
+	 * the fields of each column (the id column is named
+	 * {@link StoreObject#ID_NAME}, and if absent, ids are generated). Each
+	 * following line is a StoreObject. Values are separated by commas, and
+	 * may be quoted with double quotes (with a quote within a quoted value
+	 * written as two quotes). Empty values are not put. Values are parsed
+	 * according to the field type: Dates as milliseconds since the epoch,
+	 * ByteBuffers as hex, and InetAddresses as literal addresses. Collection
+	 * fields are not supported.
+	 * 
+	 * @param className
+	 *            the className of the object table to load into. Must not be
+	 *            <code>null</code>.
+	 * @param file
+	 *            the CSV file, encoded as UTF-8. Must not be
+	 *            <code>null</code>.
+	 * @return the final progress. Will not be <code>null</code>.
+	 * @throws StoreException
+	 *             if the className does not exist, a column does not name a
+	 *             primitive field of the object table, a value cannot be
+	 *             parsed, or writing fails.
+	 * @throws IOException
+	 *             if the file cannot be read.
+	 */
+	public Progress loadCsv(String className, File file)
+			throws StoreException, IOException {
+		Util.checkArgNotNull(file, "file");
+		StoreObjectMetadata metadata = this.store.createQuery(className)
+				.getMetadata();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(file), "UTF-8"), 1 << 16);
+		Load load = null;
+		try {
+			List<String> columns = readCsvLine(reader);
+			if (columns == null)
+				throw new StoreException("file=" + file + " has no header");
+			FieldMetadata[] fields = new FieldMetadata[columns.size()];
+			int idColumn = -1;
+			for (int i = 0; i < fields.length; i++) {
+				String name = columns.get(i).trim();
+				if (StoreObject.ID_NAME.equals(name)) {
+					idColumn = i;
+					continue;
+				}
+				fields[i] = metadata.getField(name);
+				if (fields[i] == null || fields[i].isCollectionType()
+						|| StoreObject.LASTMODIFIEDDATE_NAME.equals(name))
+					throw new StoreException("column=" + name
+							+ " is not a primitive field of className="
+							+ metadata.getClassName());
+			}
+			load = new Load(className, -1);
+			int line = 1;
+			for (List<String> values = readCsvLine(reader); values != null; values = readCsvLine(reader)) {
+				line++;
+				if (values.size() == 1 && values.get(0).length() == 0)
+					continue;
+				if (values.size() != fields.length)
+					throw new StoreException("line=" + line + " has "
+							+ values.size() + " values, expected "
+							+ fields.length);
+				String id = (idColumn < 0) ? "" : values.get(idColumn);
+				StoreObject so = (id.length() == 0) ? this.store
+						.createStoreObject(className) : this.store
+						.createStoreObject(className, parseUUID(id, line));
+				for (int i = 0; i < fields.length; i++)
+					if (fields[i] != null && values.get(i).length() > 0)
+						putCsvValue(so, fields[i], values.get(i), line);
+				load.add(so);
+			}
+			return load.complete();
+		} finally {
+			if (load != null)
+				load.abort();
+			reader.close();
+		}
+	}
+
+	private static UUID parseUUID(String s, int line) throws StoreException {
+		try {
+			return UUID.fromString(s);
+		} catch (IllegalArgumentException e) {
+			throw new StoreException("invalid id=" + s + " at line=" + line, e);
+		}
+	}
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private static void putCsvValue(StoreObject so, FieldMetadata field,
+			String s, int line) throws StoreException {
+		Class<?> type = field.getType();
+		Object value;
+		try {
+			if (String.class.equals(type))
+				value = s;
+			else if (ByteBuffer.class.equals(type))
+				value = parseHex(s);
+			else if (Long.class.equals(type))
+				value = Long.valueOf(s);
+			else if (Integer.class.equals(type))
+				value = Integer.valueOf(s);
+			else if (Date.class.equals(type))
+				value = new Date(Long.parseLong(s));
+			else if (Boolean.class.equals(type))
+				value = Boolean.valueOf(s);
+			else if (Float.class.equals(type))
+				value = Float.valueOf(s);
+			else if (Double.class.equals(type))
+				value = Double.valueOf(s);
+			else if (BigDecimal.class.equals(type))
+				value = new BigDecimal(s);
+			else if (UUID.class.equals(type))
+				value = UUID.fromString(s);
+			else if (BigInteger.class.equals(type))
+				value = new BigInteger(s);
+			else if (InetAddress.class.equals(type))
+				value = parseInetAddress(s);
+			else
+				throw new IllegalArgumentException("unsupported type=" + type);
+		} catch (IllegalArgumentException e) {
+			// includes NumberFormatException
+			throw new StoreException("invalid value=" + s + " for field="
+					+ field.getName() + " at line=" + line, e);
+		}
+		so.putPrimitive(field.getName(), (Class) type, value);
+	}
+
+	private static ByteBuffer parseHex(String s) {
+		if (s.length() % 2 != 0)
+			throw new IllegalArgumentException("odd number of hex digits");
+		ByteBuffer result = ByteBuffer.allocate(s.length() / 2);
+		for (int i = 0; i < s.length(); i += 2) {
+			int hi = Character.digit(s.charAt(i), 16);
+			int lo = Character.digit(s.charAt(i + 1), 16);
+			if (hi < 0 || lo < 0)
+				throw new IllegalArgumentException("invalid hex digit");
+			result.put((byte) ((hi << 4) | lo));
+		}
+		result.flip();
+		return result;
+	}
+
+	private static InetAddress parseInetAddress(String s) {
+		// only literal addresses, so that loading never does name lookups
+		if (s.length() == 0
+				|| (Character.digit(s.charAt(0), 16) < 0 && s.charAt(0) != ':'))
+			throw new IllegalArgumentException("not a literal address");
+		try {
+			return InetAddress.getByName(s);
+		} catch (IOException e) {
+			throw new IllegalArgumentException("not a literal address");
+		}
+	}
+
+	/**
+	 * Read the values of the next CSV record, which may span lines if a
+	 * quoted value contains line breaks.
+	 * 
+	 * @return the values, or <code>null</code> at the end of the file.
+	 */
+	private static List<String> readCsvLine(BufferedReader reader)
+			throws IOException {
+		String line = reader.readLine();
+		if (line == null)
+			return null;
+		List<String> result = new ArrayList<String>();
+		StringBuilder value = new StringBuilder();
+		boolean quoted = false;
+		for (int i = 0;; i++) {
+			if (i == line.length()) {
+				if (!quoted)
+					break;
+				line = reader.readLine();
+				if (line == null)
+					throw new EOFException("unterminated quoted value");
+				value.append('\n');
+				i = -1;
+				continue;
+			}
+			char c = line.charAt(i);
+			if (quoted) {
+				if (c != '"')
+					value.append(c);
+				else if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+					value.append('"');
+					i++;
+				} else
+					quoted = false;
+			} else if (c == '"')
+				quoted = true;
+			else if (c == ',') {
+				result.add(value.toString());
+				value.setLength(0);
+			} else
+				value.append(c);
+		}
+		result.add(value.toString());
+		return result;
+	}
+}
@@ -0,0 +1,114 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Composent, Inc. and others. All rights reserved. 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ * 
+ * Contributors: Composent, Inc. - initial API and implementation
+ ******************************************************************************/
+package com.composent.objectstore;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+import com.composent.objectstore.IObjectStore.Util;
+import com.composent.objectstore.StoreObjectQuery.Page;
+
+/**
+ * Iterator over the results of a StoreObjectQuery that fetches one page at a
+ * time, and (optionally) fetches the next page in the background while the
+ * current page is consumed. At most two pages are held at once.
+ */
+class PagingIterator implements Iterator<StoreObject> {
+
+	private final StoreObjectQuery query;
+	private final int fetchSize;
+	private final boolean prefetch;
+	private Integer remaining;
+
+	private Iterator<StoreObject> current = Collections
+			.<StoreObject> emptyList().iterator();
+	private byte[] state;
+	private Future<Page> pending;
+
+	PagingIterator(StoreObjectQuery query, int fetchSize, boolean prefetch,
+			byte[] start) throws StoreException {
+		this.query = query;
+		this.fetchSize = fetchSize;
+		this.prefetch = prefetch;
+		this.remaining = query.getLimit();
+		setPage(fetch(start));
+	}
+
+	private Page fetch(byte[] state) throws StoreException {
+		if (this.remaining == null)
+			return this.query.fetchPage(state, this.fetchSize);
+		// a limit of 0 (or less) has no results, and fetchPage requires a
+		// page size > 0
+		if (this.remaining.intValue() <= 0)
+			return new Page(Collections.<StoreObject> emptyList(), null);
+		return this.query.fetchPage(state, Math.min(this.fetchSize,
+				this.remaining.intValue()));
+	}
+
+	private void setPage(Page page) {
+		this.current = page.getStoreObjects().iterator();
+		this.state = page.getState();
+		if (this.remaining != null) {
+			this.remaining = Integer.valueOf(this.remaining.intValue()
+					- page.getStoreObjects().size());
+			if (this.remaining.intValue() <= 0)
+				this.state = null;
+		}
+		if (this.prefetch && this.state != null) {
+			final byte[] state = this.state;
+			this.pending = Util.submit(this.query.getStore()
+					.getAsyncExecutor(), new Callable<Page>() {
+				public Page call() throws Exception {
+					return fetch(state);
+				}
+			});
+		}
+	}
+
+	private Page nextPage() {
+		Future<Page> f = this.pending;
+		this.pending = null;
+		try {
+			return (f == null) ? fetch(this.state) : Util.get(f);
+		} catch (StoreException e) {
+			throw new UncheckedStoreException(e);
+		}
+	}
+
+	public boolean hasNext() {
+		while (!this.current.hasNext()) {
+			if (this.state == null)
+				return false;
+			setPage(nextPage());
+		}
+		return true;
+	}
+
+	public StoreObject next() {
+		if (!hasNext())
+			throw new NoSuchElementException();
+		return this.current.next();
+	}
+
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+}
@@ -0,0 +1,141 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Composent, Inc. and others. All rights reserved. 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ * 
+ * Contributors: Composent, Inc. - initial API and implementation
+ ******************************************************************************/
+package com.composent.objectstore;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+import com.composent.objectstore.IObjectStore.Util;
+
+/**
+ * Opaque position in the results of a StoreObjectQuery, as returned by
+ * {@link StoreObjectQuery.Page#getPagingState()}. A PagingState may be
+ * serialized (e.g. with {@link #toString()} for use as a REST page token) and
+ * later passed to {@link StoreObjectQuery#setPagingState(PagingState)} on a
+ * query for the same class and with the same Where clause, to resume from the
+ * position after the last StoreObject of the page.
+ */
+public final class PagingState implements Serializable {
+
+	private static final long serialVersionUID = -3954126839461206170L;
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private final int queryHash;
+	private final byte[] state;
+
+	PagingState(int queryHash, byte[] state) {
+		this.queryHash = queryHash;
+		this.state = state;
+	}
+
+	int getQueryHash() {
+		return this.queryHash;
+	}
+
+	byte[] getState() {
+		return this.state;
+	}
+
+	/**
+	 * @return the serialized form of this paging state. Will not be
+	 *         <code>null</code>.
+	 */
+	public byte[] toByteArray() {
+		byte[] result = new byte[this.state.length + 4];
+		result[0] = (byte) (this.queryHash >>> 24);
+		result[1] = (byte) (this.queryHash >>> 16);
+		result[2] = (byte) (this.queryHash >>> 8);
+		result[3] = (byte) this.queryHash;
+		System.arraycopy(this.state, 0, result, 4, this.state.length);
+		return result;
+	}
+
+	/**
+	 * Create a PagingState from the result of {@link #toByteArray()}.
+	 * 
+	 * @param bytes
+	 *            the serialized paging state. Must not be <code>null</code>.
+	 * @return the PagingState. Will not be <code>null</code>.
+	 * @throws IllegalArgumentException
+	 *             if bytes is not a serialized paging state.
+	 */
+	public static PagingState fromByteArray(byte[] bytes) {
+		Util.checkArgNotNull(bytes, "bytes");
+		if (bytes.length < 4)
+			throw new IllegalArgumentException("invalid paging state");
+		int queryHash = ((bytes[0] & 0xff) << 24) | ((bytes[1] & 0xff) << 16)
+				| ((bytes[2] & 0xff) << 8) | (bytes[3] & 0xff);
+		byte[] state = new byte[bytes.length - 4];
+		System.arraycopy(bytes, 4, state, 0, state.length);
+		return new PagingState(queryHash, state);
+	}
+
+	/**
+	 * Create a PagingState from the result of {@link #toString()}.
+	 * 
+	 * @param s
+	 *            the paging state as a hex string. Must not be
+	 *            <code>null</code>.
+	 * @return the PagingState. Will not be <code>null</code>.
+	 * @throws IllegalArgumentException
+	 *             if s is not a paging state string.
+	 */
+	public static PagingState fromString(String s) {
+		Util.checkArgNotNull(s, "s");
+		if (s.length() % 2 != 0)
+			throw new IllegalArgumentException("invalid paging state");
+		byte[] bytes = new byte[s.length() / 2];
+		for (int i = 0; i < bytes.length; i++) {
+			int hi = Character.digit(s.charAt(i * 2), 16);
+			int lo = Character.digit(s.charAt(i * 2 + 1), 16);
+			if (hi < 0 || lo < 0)
+				throw new IllegalArgumentException("invalid paging state");
+			bytes[i] = (byte) ((hi << 4) | lo);
+		}
+		return fromByteArray(bytes);
+	}
+
+	/**
+	 * @return this paging state as a hex string, suitable for use in URLs.
+	 */
+	@Override
+	public String toString() {
+		byte[] bytes = toByteArray();
+		StringBuilder sb = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes)
+			sb.append(HEX[(b >>> 4) & 0xf]).append(HEX[b & 0xf]);
+		return sb.toString();
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (!(obj instanceof PagingState))
+			return false;
+		PagingState other = (PagingState) obj;
+		return this.queryHash == other.queryHash
+				&& Arrays.equals(this.state, other.state);
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * this.queryHash + Arrays.hashCode(this.state);
+	}
+}
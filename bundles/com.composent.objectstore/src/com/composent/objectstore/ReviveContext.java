@@ -0,0 +1,294 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Composent, Inc. and others. All rights reserved. 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ * 
+ * Contributors: Composent, Inc. - initial API and implementation
+ ******************************************************************************/
+package com.composent.objectstore;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Future;
+
+import com.composent.objectstore.IObjectStore.ConsistencyLevel;
+import com.composent.objectstore.IObjectStore.Util;
+import com.composent.objectstore.IObjectStore.Value;
+import com.composent.objectstore.StoreObjectQuery.Where;
+
+/**
+ * Context for reviving a graph of Storables. References to other Storables
+ * (see {@link Storable#createAndReviveStorable(IObjectStore, Class, UUID)})
+ * are not loaded one at a time. They are collected, and loaded in batches
+ * with <code>IN</code> queries on the id, one level of the graph at a time,
+ * when the outermost revive completes.
+ * <p>
+ * Revived Storables are held in an identity map, so each className and id is
+ * revived at most once, and references to it are the same instance. The
+ * identity map is that of the {@link StorableSession} open for the store, or
+ * else is local to the context.
+ * <p>
+ * A context is active for the current thread from {@link #begin} until the
+ * matching {@link #end()}. Nested revives on the same store join the active
+ * context.
+ */
+final class ReviveContext {
+
+	private static final ThreadLocal<ReviveContext> current = new ThreadLocal<ReviveContext>();
+
+	private final IObjectStore store;
+	private final ReviveContext previous;
+	private final int batchSize;
+	private final int maxParallelism;
+	private int depth;
+	// by className and id
+	private final Map<String, Map<UUID, Storable>> identities;
+	// by className and id, the instances waiting to be revived
+	private Map<String, Map<UUID, Storable>> pending = new LinkedHashMap<String, Map<UUID, Storable>>();
+	// instances added to the identity map by this context. Removed by end()
+	// unless the outermost revive completes, so that a failed revive does not
+	// leave unrevived or partly revived instances in a session
+	private final List<Storable> added = new ArrayList<Storable>();
+	// className of the instances created by each type's factory, so an
+	// instance is created only for references not in the identity map
+	private final Map<Class<?>, String> classNames = new HashMap<Class<?>, String>();
+	// factory of each referenced type, resolved once per context
+	private final Map<Class<?>, Storable.Factory<?>> factories = new HashMap<Class<?>, Storable.Factory<?>>();
+
+	private ReviveContext(IObjectStore store, ReviveContext previous,
+			int batchSize, int maxParallelism) {
+		this.store = store;
+		this.previous = previous;
+		this.batchSize = batchSize;
+		this.maxParallelism = maxParallelism;
+		StorableSession session = StorableSession.getCurrent(store);
+		if (session == null)
+			this.identities = new HashMap<String, Map<UUID, Storable>>();
+		else
+			this.identities = session.getIdentities();
+	}
+
+	/**
+	 * Begin reviving on the given store, joining the context active for the
+	 * current thread if it is for the same store. Must be followed by
+	 * {@link #end()}.
+	 */
+	static ReviveContext begin(IObjectStore store, int batchSize,
+			int maxParallelism) {
+		ReviveContext context = current.get();
+		if (context == null || context.store != store) {
+			context = new ReviveContext(store, context, batchSize,
+					maxParallelism);
+			current.set(context);
+		}
+		context.depth++;
+		return context;
+	}
+
+	void end() {
+		if (--this.depth > 0)
+			return;
+		for (Storable storable : this.added)
+			StorableSession.remove(this.identities, storable);
+		if (this.previous == null)
+			current.remove();
+		else
+			current.set(this.previous);
+	}
+
+	/**
+	 * Get the Storable with the given type and id. If it is not in the
+	 * identity map, a new instance is added, to be revived by
+	 * {@link #complete()}.
+	 */
+	<T extends Storable> T reference(Class<T> type, UUID id)
+			throws StoreException {
+		Util.checkArgNotNull(id, "id");
+		T result = null;
+		String className = this.classNames.get(type);
+		if (className == null) {
+			result = getFactory(type).create(null);
+			className = result.getClassName();
+			this.classNames.put(type, className);
+		}
+		Storable existing = StorableSession.get(this.identities, className,
+				id);
+		if (type.isInstance(existing))
+			return type.cast(existing);
+		if (result == null)
+			result = getFactory(type).create(null);
+		result.setId(id);
+		put(className, id, result);
+		Map<UUID, Storable> ids = this.pending.get(className);
+		if (ids == null) {
+			ids = new LinkedHashMap<UUID, Storable>();
+			this.pending.put(className, ids);
+		}
+		ids.put(id, result);
+		return result;
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T extends Storable> Storable.Factory<? extends T> getFactory(
+			Class<T> type) {
+		Storable.Factory<?> result = this.factories.get(type);
+		if (result == null) {
+			result = Storable.getFactory(type);
+			this.factories.put(type, result);
+		}
+		return (Storable.Factory<? extends T>) result;
+	}
+
+	/**
+	 * Get the Storable to revive from the given StoreObject, e.g. a query
+	 * result. If the Storable is in the identity map, it is returned
+	 * (revived, if it is waiting to be). Otherwise a new instance is created
+	 * with the given factory and argument, added to the identity map, and
+	 * revived.
+	 */
+	Storable revive(StoreObject storeObject,
+			Storable.Factory<? extends Storable> factory, Object arg)
+			throws StoreException {
+		String className = storeObject.getClassName();
+		UUID id = storeObject.getId();
+		Storable result = StorableSession.get(this.identities, className, id);
+		if (result != null) {
+			Map<UUID, Storable> ids = this.pending.get(className);
+			if (ids != null && ids.remove(id) != null)
+				result.reviveFrom(storeObject);
+			return result;
+		}
+		result = factory.create(arg);
+		// added before reviving, so cyclic references resolve to it
+		put(className, id, result);
+		return result.reviveFrom(storeObject);
+	}
+
+	/**
+	 * Add a Storable revived other than by this context (e.g. by
+	 * {@link Storable#revive(IObjectStore, UUID)}) to the identity map, if
+	 * the identity map does not already hold one for its className and id.
+	 */
+	void add(Storable storable) {
+		String className = storable.getClassName();
+		UUID id = storable.getId();
+		if (StorableSession.get(this.identities, className, id) == null)
+			put(className, id, storable);
+	}
+
+	private void put(String className, UUID id, Storable storable) {
+		StorableSession.put(this.identities, className, id, storable);
+		this.added.add(storable);
+	}
+
+	/**
+	 * Revive all referenced Storables, including those referenced by the
+	 * Storables revived. Does nothing unless called by the outermost revive.
+	 * If this fails, {@link #end()} removes the Storables added by this
+	 * context from the identity map.
+	 * 
+	 * @throws StoreException
+	 *             if a referenced StoreObject cannot be loaded or does not
+	 *             exist.
+	 */
+	void complete() throws StoreException {
+		if (this.depth != 1)
+			return;
+		while (!this.pending.isEmpty()) {
+			Map<String, Map<UUID, Storable>> level = this.pending;
+			this.pending = new LinkedHashMap<String, Map<UUID, Storable>>();
+			Map<String, Map<UUID, StoreObject>> loaded = load(level);
+			// reviving may reference further Storables, for the next level
+			for (String className : level.keySet())
+				for (Map.Entry<UUID, Storable> entry : level.get(className)
+						.entrySet()) {
+					Map<UUID, StoreObject> sos = loaded.get(className);
+					StoreObject so = (sos == null) ? null : sos.get(entry
+							.getKey());
+					if (so == null)
+						throw new StoreException(
+								"no store objects found for id="
+										+ entry.getKey());
+					entry.getValue().reviveFrom(so);
+				}
+		}
+		// all revived, so kept in the identity map
+		this.added.clear();
+	}
+
+	/**
+	 * Load the StoreObjects for the given ids, with queries of at most
+	 * batchSize ids, running at most maxParallelism queries at a time.
+	 */
+	private Map<String, Map<UUID, StoreObject>> load(
+			Map<String, Map<UUID, Storable>> level) throws StoreException {
+		List<StoreObjectQuery> queries = new ArrayList<StoreObjectQuery>();
+		for (Map.Entry<String, Map<UUID, Storable>> entry : level.entrySet()) {
+			Map<UUID, Storable> ids = entry.getValue();
+			if (ids.isEmpty())
+				continue;
+			ConsistencyLevel consistencyLevel = ids.values().iterator()
+					.next().getReadConsistencyLevel();
+			List<Value> values = new ArrayList<Value>(this.batchSize);
+			int remaining = ids.size();
+			for (UUID id : ids.keySet()) {
+				values.add(new Value(id));
+				remaining--;
+				if (values.size() == this.batchSize || remaining == 0) {
+					StoreObjectQuery query = this.store.createQuery(entry
+							.getKey());
+					query.setWhere(Where.in(StoreObject.ID_NAME,
+							values.toArray(new Value[values.size()])));
+					query.setConsistencyLevel(consistencyLevel);
+					queries.add(query);
+					values.clear();
+				}
+			}
+		}
+		Map<String, Map<UUID, StoreObject>> results = new HashMap<String, Map<UUID, StoreObject>>();
+		if (queries.size() <= 1 || this.maxParallelism == 1) {
+			for (StoreObjectQuery query : queries)
+				addResults(results, query.execute());
+			return results;
+		}
+		for (int i = 0; i < queries.size(); i += this.maxParallelism) {
+			int end = Math.min(i + this.maxParallelism, queries.size());
+			List<Future<Collection<StoreObject>>> futures = new ArrayList<Future<Collection<StoreObject>>>(
+					end - i);
+			for (int j = i; j < end; j++)
+				futures.add(queries.get(j).executeAsync(
+						this.store.getAsyncExecutor()));
+			for (Future<Collection<StoreObject>> future : futures)
+				addResults(results, Util.get(future));
+		}
+		return results;
+	}
+
+	private static void addResults(
+			Map<String, Map<UUID, StoreObject>> results,
+			Collection<StoreObject> storeObjects) {
+		for (StoreObject so : storeObjects) {
+			Map<UUID, StoreObject> sos = results.get(so.getClassName());
+			if (sos == null) {
+				sos = new HashMap<UUID, StoreObject>();
+				results.put(so.getClassName(), sos);
+			}
+			sos.put(so.getId(), so);
+		}
+	}
+}
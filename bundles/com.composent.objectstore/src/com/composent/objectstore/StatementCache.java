@@ -0,0 +1,466 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Composent, Inc. and others. All rights reserved. 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ * 
+ * Contributors: Composent, Inc. - initial API and implementation
+ ******************************************************************************/
+package com.composent.objectstore;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.composent.objectstore.IObjectStore.ConsistencyLevel;
+import com.composent.objectstore.IObjectStore.ObjectStoreItem;
+import com.composent.objectstore.IObjectStore.Util;
+import com.composent.objectstore.StoreObjectQuery.Relation;
+import com.composent.objectstore.StoreObjectQuery.Where;
+
+/**
+ * Bounded cache of prepared statements, for store implementations. Statements
+ * are identified by a {@link Key}, made of the className and schema version,
+ * the statement type, the columns written or selected, the shape of the
+ * conditions (the where clause, or the if clause of a conditional write) and
+ * the consistency level. Statement values are never part of the key, so
+ * operations of the same shape share a statement.
+ * <p>
+ * When the cache holds more than {@link #getMaxSize()} statements, the
+ * (approximately) least recently used statements are evicted. Hits, misses
+ * and evictions are counted for monitoring.
+ * <p>
+ * This class is thread safe. Hits do not lock, so they do not contend with
+ * each other. Statements are prepared without locking, so concurrent misses
+ * for the same key may each prepare a statement (only one of which is
+ * cached).
+ * 
+ * @param <S>
+ *            the type of prepared statement.
+ */
+public class StatementCache<S> {
+
+	/**
+	 * Default maximum number of cached statements.
+	 */
+	public static final int DEFAULT_MAX_SIZE = 1000;
+
+	public enum StatementType {
+		STORE, QUERY, DELETE, RETRIEVE_IDS
+	}
+
+	/**
+	 * Prepares statements on a cache miss.
+	 */
+	public static interface Preparer<S> {
+		/**
+		 * @param key
+		 *            the key of the statement to prepare. Will not be
+		 *            <code>null</code>.
+		 * @return the prepared statement. Must not be <code>null</code>.
+		 * @throws StoreException
+		 *             if the statement cannot be prepared.
+		 */
+		public S prepare(Key key) throws StoreException;
+	}
+
+	/**
+	 * Statement cache key. Keys are equal when their className, schema
+	 * version, statement type, columns, condition shape and consistency level
+	 * are equal.
+	 */
+	public static final class Key {
+		private final StatementType type;
+		private final StoreObjectMetadata metadata;
+		private final List<String> columns;
+		private final List<String> conditionColumns;
+		private final boolean conditional;
+		private final String conditions;
+		private final ConsistencyLevel consistencyLevel;
+		private final int hash;
+
+		private Key(StatementType type, StoreObjectMetadata metadata,
+				List<String> columns, List<String> conditionColumns,
+				boolean conditional, String conditions,
+				ConsistencyLevel consistencyLevel) {
+			this.type = type;
+			this.metadata = metadata;
+			this.columns = columns;
+			this.conditionColumns = Collections
+					.unmodifiableList(conditionColumns);
+			this.conditional = conditional;
+			this.conditions = conditions;
+			this.consistencyLevel = consistencyLevel;
+			int h = type.hashCode();
+			h = 31 * h + metadata.getClassName().hashCode();
+			h = 31 * h + (int) metadata.getVersion();
+			h = 31 * h + ((columns == null) ? 0 : columns.hashCode());
+			h = 31 * h + (conditional ? 1 : 0);
+			h = 31 * h + ((conditions == null) ? 0 : conditions.hashCode());
+			h = 31
+					* h
+					+ ((consistencyLevel == null) ? 0 : consistencyLevel
+							.hashCode());
+			this.hash = h;
+		}
+
+		/**
+		 * Key for writing a StoreObject.
+		 * 
+		 * @param metadata
+		 *            the metadata the statement is prepared against. Must not
+		 *            be <code>null</code>.
+		 * @param storeObject
+		 *            the StoreObject to write. Must not be <code>null</code>.
+		 * @param items
+		 *            the items to write, as collected from the StoreObject.
+		 *            Must not be <code>null</code>.
+		 */
+		public static Key forStore(StoreObjectMetadata metadata,
+				StoreObject storeObject, Collection<ObjectStoreItem> items) {
+			Util.checkArgNotNull(metadata, "metadata");
+			Util.checkArgNotNull(storeObject, "storeObject");
+			Util.checkArgNotNull(items, "items");
+			List<String> columns = new ArrayList<String>(items.size());
+			for (ObjectStoreItem item : items)
+				columns.add(item.getKey());
+			Collection<ObjectStoreItem> conditions = storeObject
+					.getIfNotExistsItems();
+			List<String> conditionColumns = new ArrayList<String>();
+			String shape = null;
+			if (conditions != null) {
+				StringBuffer buf = new StringBuffer();
+				for (ObjectStoreItem condition : conditions) {
+					if (buf.length() > 0)
+						buf.append(" AND ");
+					buf.append(condition.getKey()).append("=?");
+					conditionColumns.add(condition.getKey());
+				}
+				shape = buf.toString();
+			}
+			return new Key(StatementType.STORE, metadata,
+					Collections.unmodifiableList(columns), conditionColumns,
+					conditions != null, shape, storeObject.getConsistencyLevel());
+		}
+
+		/**
+		 * Key for executing a query.
+		 * 
+		 * @param query
+		 *            the query. Must not be <code>null</code>. The statement
+		 *            is prepared against the query's metadata.
+		 */
+		public static Key forQuery(StoreObjectQuery query) {
+			Util.checkArgNotNull(query, "query");
+			List<String> conditionColumns = new ArrayList<String>();
+			StringBuffer buf = new StringBuffer();
+			Where where = query.getWhere();
+			if (where != null)
+				for (Relation r : where.getRelations()) {
+					if (buf.length() > 0)
+						buf.append(" AND ");
+					buf.append(r.getIdentifier());
+					conditionColumns.add(r.getIdentifier());
+					Relation.Op op = r.getOpType();
+					if (op == null) {
+						buf.append(" IN(");
+						for (int i = 0; i < r.getTypeValues().size(); i++)
+							buf.append((i == 0) ? "?" : ",?");
+						buf.append(")");
+					} else
+						buf.append(toString(op)).append("?");
+				}
+			if (query.getAllowFiltering())
+				buf.append(" ALLOW FILTERING");
+			return new Key(StatementType.QUERY, query.getMetadata(),
+					query.getSelection(), conditionColumns, false,
+					buf.toString(), query.getConsistencyLevel());
+		}
+
+		/**
+		 * Key for deleting a StoreObject by id.
+		 * 
+		 * @param metadata
+		 *            the metadata the statement is prepared against. Must not
+		 *            be <code>null</code>.
+		 * @param level
+		 *            the consistency level. May be <code>null</code>.
+		 */
+		public static Key forDelete(StoreObjectMetadata metadata,
+				ConsistencyLevel level) {
+			Util.checkArgNotNull(metadata, "metadata");
+			return new Key(StatementType.DELETE, metadata, null,
+					Collections.singletonList(StoreObject.ID_NAME), false,
+					StoreObject.ID_NAME + "=?", level);
+		}
+
+		/**
+		 * Key for retrieving ids.
+		 * 
+		 * @param metadata
+		 *            the metadata the statement is prepared against. Must not
+		 *            be <code>null</code>.
+		 * @param level
+		 *            the consistency level. May be <code>null</code>.
+		 */
+		public static Key forRetrieveIds(StoreObjectMetadata metadata,
+				ConsistencyLevel level) {
+			Util.checkArgNotNull(metadata, "metadata");
+			return new Key(StatementType.RETRIEVE_IDS, metadata,
+					Collections.singletonList(StoreObject.ID_NAME),
+					Collections.<String> emptyList(), false, null, level);
+		}
+
+		private static String toString(Relation.Op op) {
+			switch (op) {
+			case GT:
+				return ">";
+			case LT:
+				return "<";
+			case GTE:
+				return ">=";
+			case LTE:
+				return "<=";
+			default:
+				return "=";
+			}
+		}
+
+		public StatementType getType() {
+			return this.type;
+		}
+
+		public String getClassName() {
+			return this.metadata.getClassName();
+		}
+
+		/**
+		 * @return the metadata the statement is prepared against. Only the
+		 *         className and version of the metadata are part of the key.
+		 */
+		public StoreObjectMetadata getMetadata() {
+			return this.metadata;
+		}
+
+		/**
+		 * @return the columns written or selected, or <code>null</code> for
+		 *         all columns.
+		 */
+		public List<String> getColumns() {
+			return this.columns;
+		}
+
+		/**
+		 * @return the columns of the statement conditions, in order. Will not
+		 *         be <code>null</code>.
+		 */
+		public List<String> getConditionColumns() {
+			return this.conditionColumns;
+		}
+
+		/**
+		 * @return <code>true</code> if the statement is a conditional
+		 *         (lightweight transaction) write.
+		 */
+		public boolean isConditional() {
+			return this.conditional;
+		}
+
+		/**
+		 * @return the shape of the statement conditions, with values replaced
+		 *         by bind markers, or <code>null</code> if the statement has no
+		 *         conditions.
+		 */
+		public String getConditions() {
+			return this.conditions;
+		}
+
+		public ConsistencyLevel getConsistencyLevel() {
+			return this.consistencyLevel;
+		}
+
+		@Override
+		public int hashCode() {
+			return this.hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof Key))
+				return false;
+			Key other = (Key) obj;
+			return this.hash == other.hash
+					&& this.type == other.type
+					&& this.conditional == other.conditional
+					&& this.consistencyLevel == other.consistencyLevel
+					&& this.metadata.getVersion() == other.metadata
+							.getVersion()
+					&& getClassName().equals(other.getClassName())
+					&& ((this.columns == null) ? other.columns == null
+							: this.columns.equals(other.columns))
+					&& ((this.conditions == null) ? other.conditions == null
+							: this.conditions.equals(other.conditions));
+		}
+
+		@Override
+		public String toString() {
+			return "StatementCache.Key[type=" + this.type + ";className="
+					+ getClassName() + ";version="
+					+ this.metadata.getVersion() + ";columns=" + this.columns
+					+ ";conditional=" + this.conditional + ";conditions="
+					+ this.conditions + ";consistencyLevel="
+					+ this.consistencyLevel + "]";
+		}
+	}
+
+	private final Preparer<S> preparer;
+	private final LruMap<Key, S> statements = new LruMap<Key, S>(
+			DEFAULT_MAX_SIZE);
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	public StatementCache(Preparer<S> preparer) {
+		this(preparer, DEFAULT_MAX_SIZE);
+	}
+
+	/**
+	 * @param preparer
+	 *            the preparer for statements not in the cache. Must not be
+	 *            <code>null</code>.
+	 * @param maxSize
+	 *            the maximum number of cached statements. Must be > 0.
+	 */
+	public StatementCache(Preparer<S> preparer, int maxSize) {
+		Util.checkArgNotNull(preparer, "preparer");
+		this.preparer = preparer;
+		setMaxSize(maxSize);
+	}
+
+	/**
+	 * Get the statement for a key, preparing it if it is not cached.
+	 * 
+	 * @param key
+	 *            the statement key. Must not be <code>null</code>.
+	 * @return the prepared statement. Will not be <code>null</code>.
+	 * @throws StoreException
+	 *             if the statement is not cached and cannot be prepared.
+	 */
+	public S get(Key key) throws StoreException {
+		Util.checkArgNotNull(key, "key");
+		S result = this.statements.get(key);
+		if (result != null) {
+			this.hits.incrementAndGet();
+			return result;
+		}
+		this.misses.incrementAndGet();
+		result = this.preparer.prepare(key);
+		if (result == null)
+			throw new StoreException("statement for key=" + key
+					+ " could not be prepared");
+		S existing = this.statements.putIfAbsent(key, result);
+		if (existing != null)
+			return existing;
+		this.evictions.addAndGet(this.statements.evict());
+		return result;
+	}
+
+	/**
+	 * Remove all statements for a className, e.g. after its object table is
+	 * dropped. Statements for older schema versions are otherwise only removed
+	 * by eviction.
+	 * 
+	 * @param className
+	 *            the className. Must not be <code>null</code>.
+	 */
+	public void invalidate(String className) {
+		Util.checkArgNotNull(className, "className");
+		for (Iterator<Key> i = this.statements.keySet().iterator(); i
+				.hasNext();)
+			if (className.equals(i.next().getClassName()))
+				i.remove();
+	}
+
+	/**
+	 * Remove all statements from the cache. The metrics are not reset.
+	 */
+	public void clear() {
+		this.statements.clear();
+	}
+
+	public int getMaxSize() {
+		return this.statements.getMaxSize();
+	}
+
+	/**
+	 * Set the maximum number of cached statements. If the cache holds more
+	 * statements, the (approximately) least recently used are evicted.
+	 * 
+	 * @param maxSize
+	 *            the maximum number of cached statements. Must be > 0.
+	 */
+	public void setMaxSize(int maxSize) {
+		if (maxSize < 1)
+			throw new IllegalArgumentException("maxSize must be > 0");
+		this.evictions.addAndGet(this.statements.setMaxSize(maxSize));
+	}
+
+	/**
+	 * @return the number of cached statements.
+	 */
+	public int size() {
+		return this.statements.size();
+	}
+
+	/**
+	 * @return the number of requests for a cached statement.
+	 */
+	public long getHitCount() {
+		return this.hits.get();
+	}
+
+	/**
+	 * @return the number of requests that prepared a statement.
+	 */
+	public long getMissCount() {
+		return this.misses.get();
+	}
+
+	/**
+	 * @return the number of statements evicted to keep the cache within
+	 *         {@link #getMaxSize()}.
+	 */
+	public long getEvictionCount() {
+		return this.evictions.get();
+	}
+
+	/**
+	 * Reset the hit, miss and eviction counts to 0.
+	 */
+	public void resetMetrics() {
+		this.hits.set(0);
+		this.misses.set(0);
+		this.evictions.set(0);
+	}
+
+	@Override
+	public String toString() {
+		return "StatementCache[size=" + size() + ";maxSize=" + getMaxSize()
+				+ ";hits=" + this.hits + ";misses=" + this.misses
+				+ ";evictions=" + this.evictions + "]";
+	}
+}
@@ -26,12 +26,182 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
+import com.composent.objectstore.IObjectStore.CollectionValue;
 import com.composent.objectstore.IObjectStore.ConsistencyLevel;
 import com.composent.objectstore.IObjectStore.Util;
 
 public class Storable extends IdentifiedObject {
 
+	/**
+	 * Factory for creating Storable instances when reviving, e.g. from
+	 * {@link Storable#revive(StoreObjectQuery)}. Factories registered with
+	 * {@link Storable#registerFactory(Class, Factory)} are used instead of
+	 * looking up and invoking constructors by reflection.
+	 */
+	public static interface Factory<T extends Storable> {
+		/**
+		 * Create a new instance.
+		 * 
+		 * @param arg
+		 *            the creation argument, e.g. the className when reviving
+		 *            with {@link Storable#revive(StoreObjectQuery)}, or the
+		 *            list item when converting list items to Storables. May
+		 *            be <code>null</code>.
+		 * @return the new instance. Must not be <code>null</code>.
+		 * @throws StoreException
+		 *             if the instance cannot be created.
+		 */
+		public T create(Object arg) throws StoreException;
+	}
+
+	/**
+	 * Factory for Storable types without a registered factory. Constructors
+	 * are looked up (and made accessible) once per argument type, rather than
+	 * for every instance.
+	 */
+	private static final class ConstructorFactory<T extends Storable>
+			implements Factory<T> {
+		private final Class<T> type;
+		// by argument type. The no argument constructor is used for argument
+		// types without a matching constructor
+		private final ConcurrentMap<Class<?>, Constructor<T>> constructors = new ConcurrentHashMap<Class<?>, Constructor<T>>();
+		private volatile Constructor<T> noArgConstructor;
+
+		ConstructorFactory(Class<T> type) {
+			this.type = type;
+		}
+
+		private Constructor<T> getNoArgConstructor()
+				throws NoSuchMethodException {
+			Constructor<T> c = this.noArgConstructor;
+			if (c == null)
+				synchronized (this) {
+					// a single instance, so create can compare by identity
+					c = this.noArgConstructor;
+					if (c == null) {
+						c = this.type.getConstructor();
+						c.setAccessible(true);
+						this.noArgConstructor = c;
+					}
+				}
+			return c;
+		}
+
+		private Constructor<T> getConstructor(Class<?> argType)
+				throws NoSuchMethodException {
+			Constructor<T> c = this.constructors.get(argType);
+			if (c == null) {
+				try {
+					c = this.type.getConstructor(argType);
+					c.setAccessible(true);
+				} catch (NoSuchMethodException e) {
+					c = getNoArgConstructor();
+				}
+				this.constructors.put(argType, c);
+			}
+			return c;
+		}
+
+		public T create(Object arg) throws StoreException {
+			try {
+				if (arg == null)
+					return getNoArgConstructor().newInstance();
+				Constructor<T> c = getConstructor(arg.getClass());
+				return (c == this.noArgConstructor) ? c.newInstance() : c
+						.newInstance(arg);
+			} catch (Exception e) {
+				throw new StoreException(
+						"Could not create Storable instance of type="
+								+ this.type, e);
+			}
+		}
+	}
+
+	// registered factories
+	private static final ConcurrentMap<Class<?>, Factory<?>> factories = new ConcurrentHashMap<Class<?>, Factory<?>>();
+	// ConstructorFactory instances for types without a registered factory
+	private static final ConcurrentMap<Class<?>, ConstructorFactory<?>> constructorFactories = new ConcurrentHashMap<Class<?>, ConstructorFactory<?>>();
+
+	/**
+	 * Register a factory for creating instances of the given Storable type.
+	 * Without a registered factory, instances are created by reflection,
+	 * using a constructor that takes the creation argument (if any), or the
+	 * public no argument constructor.
+	 * 
+	 * @param type
+	 *            the Storable type. Must not be <code>null</code>.
+	 * @param factory
+	 *            the factory. Must not be <code>null</code>.
+	 */
+	public static <T extends Storable> void registerFactory(Class<T> type,
+			Factory<? extends T> factory) {
+		Util.checkArgNotNull(type, "type");
+		Util.checkArgNotNull(factory, "factory");
+		factories.put(type, factory);
+	}
+
+	/**
+	 * Unregister the factory for the given Storable type.
+	 * 
+	 * @param type
+	 *            the Storable type. Must not be <code>null</code>.
+	 * @return <code>true</code> if a factory was registered for type.
+	 */
+	public static boolean unregisterFactory(Class<? extends Storable> type) {
+		Util.checkArgNotNull(type, "type");
+		return factories.remove(type) != null;
+	}
+
+	/**
+	 * Get the factory for creating instances of the given Storable type. The
+	 * result is either the registered factory, or a factory that creates
+	 * instances by reflection.
+	 * 
+	 * @param type
+	 *            the Storable type. Must not be <code>null</code>.
+	 * @return the factory. Will not be <code>null</code>.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T extends Storable> Factory<? extends T> getFactory(
+			Class<T> type) {
+		Util.checkArgNotNull(type, "type");
+		Factory<?> result = factories.get(type);
+		if (result != null)
+			return (Factory<? extends T>) result;
+		result = constructorFactories.get(type);
+		if (result == null) {
+			ConstructorFactory<T> factory = new ConstructorFactory<T>(type);
+			result = constructorFactories.putIfAbsent(type, factory);
+			if (result == null)
+				result = factory;
+		}
+		return (Factory<? extends T>) result;
+	}
+
+	/**
+	 * Default maximum number of referenced Storables loaded by one query when
+	 * reviving.
+	 */
+	public static final int DEFAULT_REVIVE_BATCH_SIZE = 100;
+	/**
+	 * Default maximum number of queries run in parallel to load referenced
+	 * Storables when reviving.
+	 */
+	public static final int DEFAULT_MAX_REVIVE_PARALLELISM = 4;
+	/**
+	 * Default maximum number of referenced Storables written by one
+	 * {@link IObjectStore#storeAll(Collection)} call when storing.
+	 */
+	public static final int DEFAULT_STORE_BATCH_SIZE = 100;
+	/**
+	 * Default maximum number of storeAll calls run in parallel to write
+	 * referenced Storables when storing.
+	 */
+	public static final int DEFAULT_MAX_STORE_PARALLELISM = 4;
+
 	private final String className;
 
 	private ConsistencyLevel readConsistencyLevel;
@@ -39,6 +209,14 @@ public class Storable extends IdentifiedObject {
 
 	private boolean ifNotExists;
 
+	private int reviveBatchSize = DEFAULT_REVIVE_BATCH_SIZE;
+	private int maxReviveParallelism = DEFAULT_MAX_REVIVE_PARALLELISM;
+	private int storeBatchSize = DEFAULT_STORE_BATCH_SIZE;
+	private int maxStoreParallelism = DEFAULT_MAX_STORE_PARALLELISM;
+	// the fields as last stored or revived, to skip writing unchanged
+	// referenced Storables
+	private Map<String, Object> storedFields;
+
 	public Storable(String className) {
 		Util.checkArgNotNull(className, "className");
 		this.className = className;
@@ -64,6 +242,86 @@ public class Storable extends IdentifiedObject {
 		this.writeConsistencyLevel = level;
 	}
 
+	public int getReviveBatchSize() {
+		return this.reviveBatchSize;
+	}
+
+	/**
+	 * Set the maximum number of referenced Storables loaded by one query,
+	 * when revive is called on this Storable.
+	 * 
+	 * @param reviveBatchSize
+	 *            the batch size. Must be > 0.
+	 */
+	public void setReviveBatchSize(int reviveBatchSize) {
+		if (reviveBatchSize < 1)
+			throw new IllegalArgumentException("reviveBatchSize must be > 0");
+		this.reviveBatchSize = reviveBatchSize;
+	}
+
+	public int getMaxReviveParallelism() {
+		return this.maxReviveParallelism;
+	}
+
+	/**
+	 * Set the maximum number of queries run in parallel (on the store's
+	 * async executor) to load referenced Storables, when revive is called on
+	 * this Storable.
+	 * 
+	 * @param maxReviveParallelism
+	 *            the maximum number of parallel queries. Must be > 0. If 1,
+	 *            queries are run by the calling thread.
+	 */
+	public void setMaxReviveParallelism(int maxReviveParallelism) {
+		if (maxReviveParallelism < 1)
+			throw new IllegalArgumentException(
+					"maxReviveParallelism must be > 0");
+		this.maxReviveParallelism = maxReviveParallelism;
+	}
+
+	public int getStoreBatchSize() {
+		return this.storeBatchSize;
+	}
+
+	/**
+	 * Set the maximum number of referenced Storables written by one
+	 * {@link IObjectStore#storeAll(Collection)} call, when storeTo is called
+	 * on this Storable.
+	 * 
+	 * @param storeBatchSize
+	 *            the batch size. Must be > 0.
+	 */
+	public void setStoreBatchSize(int storeBatchSize) {
+		if (storeBatchSize < 1)
+			throw new IllegalArgumentException("storeBatchSize must be > 0");
+		this.storeBatchSize = storeBatchSize;
+	}
+
+	public int getMaxStoreParallelism() {
+		return this.maxStoreParallelism;
+	}
+
+	/**
+	 * Set the maximum number of storeAll calls run in parallel (on the
+	 * store's async executor) to write referenced Storables, when storeTo is
+	 * called on this Storable.
+	 * 
+	 * @param maxStoreParallelism
+	 *            the maximum number of parallel storeAll calls. Must be > 0.
+	 *            If 1, batches are written by the calling thread.
+	 */
+	public void setMaxStoreParallelism(int maxStoreParallelism) {
+		if (maxStoreParallelism < 1)
+			throw new IllegalArgumentException(
+					"maxStoreParallelism must be > 0");
+		this.maxStoreParallelism = maxStoreParallelism;
+	}
+
+	private ReviveContext beginRevive(IObjectStore store) {
+		return ReviveContext.begin(store, this.reviveBatchSize,
+				this.maxReviveParallelism);
+	}
+
 	public void createObjectTable(IObjectStore store, boolean ifNotExists)
 			throws StoreException {
 		// First get metadata for className
@@ -71,17 +329,71 @@ public class Storable extends IdentifiedObject {
 		createFields(store, ifNotExists);
 	}
 
+	/**
+	 * Store this Storable, and the Storables it references. The graph is
+	 * written as a planned operation. Referenced Storables are written first,
+	 * in parallel batches (see {@link #setStoreBatchSize(int)} and
+	 * {@link #setMaxStoreParallelism(int)}), and skipped if unchanged since
+	 * they were last stored or revived. Each Storable in the graph is written
+	 * at most once, and cycles are allowed: Storables without an id are
+	 * given one before they are written, so they can be referenced.
+	 * 
+	 * @param store
+	 *            the store. Must not be <code>null</code>.
+	 * @return this Storable, with its id and lastModifiedAt updated.
+	 * @throws StoreException
+	 *             if writing fails.
+	 */
 	public Storable storeTo(IObjectStore store) throws StoreException {
-		StoreObject so = store.createStoreObject(getClassName());
-		so.setId(getId());
-		so.setLastModifiedAt(getLastModifiedAt());
-		so.setIfNotExists(isIfNotExists());
-		so.setConsistencyLevel(getWriteConsistencyLevel());
-		storeFields(so);
-		so.store();
-		setId(so.getId());
-		setLastModifiedAt(so.getLastModifiedAt());
-		return this;
+		StoreContext context = StoreContext.begin(store, this.storeBatchSize,
+				this.maxStoreParallelism);
+		try {
+			if (!context.visit(this))
+				return this;
+			StoreObject so = store.createStoreObject(getClassName(), getId());
+			so.setLastModifiedAt(getLastModifiedAt());
+			so.setIfNotExists(isIfNotExists());
+			so.setConsistencyLevel(getWriteConsistencyLevel());
+			storeFields(so);
+			context.add(this, so);
+			context.complete();
+			return this;
+		} finally {
+			context.end();
+		}
+	}
+
+	/**
+	 * Get the fields of a StoreObject, for detecting changes.
+	 */
+	static Map<String, Object> getFields(StoreObject storeObject) {
+		Map<String, Object> result = new HashMap<String, Object>();
+		for (String key : storeObject.getKeys()) {
+			if (StoreObject.ID_NAME.equals(key)
+					|| StoreObject.LASTMODIFIEDDATE_NAME.equals(key))
+				continue;
+			Object value = storeObject.get(key);
+			if (value instanceof CollectionValue)
+				value = ((CollectionValue) value).getValue();
+			if (value != null)
+				result.put(key, value);
+		}
+		return result;
+	}
+
+	boolean isUnchanged(Map<String, Object> fields) {
+		return getLastModifiedAt() != null && this.storedFields != null
+				&& this.storedFields.equals(fields);
+	}
+
+	/**
+	 * Called by StoreContext after the StoreObject for this Storable has been
+	 * written.
+	 */
+	void stored(StoreObject storeObject, Map<String, Object> fields) {
+		setId(storeObject.getId());
+		setLastModifiedAt(storeObject.getLastModifiedAt());
+		this.storedFields = fields;
 	}
 
 	public void deleteFrom(IObjectStore store) throws StoreException {
@@ -101,25 +413,61 @@ public class Storable extends IdentifiedObject {
 		return revive(createQuery(store));
 	}
 
+	/**
+	 * Revive the results of the given query as instances of this Storable's
+	 * type. Storables referenced by the results (and by the Storables they
+	 * reference) are collected across all results, and loaded with batched
+	 * queries (see {@link #setReviveBatchSize(int)} and
+	 * {@link #setMaxReviveParallelism(int)}) rather than one query per
+	 * reference. If called while reviving another Storable (e.g. from
+	 * {@link #reviveFields(StoreObject)}), the references are revived before
+	 * the outermost revive returns.
+	 * <p>
+	 * Each className and id is revived at most once per call (or per
+	 * {@link StorableSession}, if one is open for the query's store), and all
+	 * references to it are the same instance.
+	 * 
+	 * @param query
+	 *            the query. Must not be <code>null</code>.
+	 * @return the revived Storables. Will not be <code>null</code>.
+	 * @throws StoreException
+	 *             if the query fails, or a referenced Storable cannot be
+	 *             revived.
+	 */
 	public Collection<? extends Storable> revive(StoreObjectQuery query)
 			throws StoreException {
 		query.setConsistencyLevel(getReadConsistencyLevel());
-		Collection<StoreObject> sos = query.execute();
-		List<Storable> results = new ArrayList<Storable>();
-		for (StoreObject so : sos) {
-			Storable storable = createInstanceOfType(getClass(), getClassName());
-			storable.reviveFrom(so);
-			results.add(storable);
+		ReviveContext context = beginRevive(query.getStore());
+		try {
+			Collection<StoreObject> sos = query.execute();
+			List<Storable> results = new ArrayList<Storable>();
+			Factory<? extends Storable> factory = getFactory(getClass());
+			for (StoreObject so : sos)
+				results.add(context.revive(so, factory, getClassName()));
+			context.complete();
+			return results;
+		} finally {
+			context.end();
 		}
-		return results;
 	}
 
 	public Storable revive(IObjectStore store, UUID id) throws StoreException {
-		StoreObjectQuery query = store.createQuery(getClassName(), id);
-		Collection<StoreObject> sos = query.execute();
-		if (sos.isEmpty())
-			throw new StoreException("no store objects found for id=" + id);
-		return reviveFrom(sos.iterator().next());
+		ReviveContext context = beginRevive(store);
+		try {
+			StoreObjectQuery query = store.createQuery(getClassName(), id);
+			Collection<StoreObject> sos = query.execute();
+			if (sos.isEmpty())
+				throw new StoreException("no store objects found for id="
+						+ id);
+			StoreObject so = sos.iterator().next();
+			setId(so.getId());
+			context.add(this);
+			reviveFrom(so);
+			context.complete();
+			return this;
+		} finally {
+			context.end();
+		}
 	}
 
 	protected void createFields(IObjectStore store, boolean ifNotExists)
@@ -135,11 +483,42 @@ public class Storable extends IdentifiedObject {
 		// subclasses may override to revive fields
 	}
 
+	/**
+	 * Create and revive the Storable of the given type and id. When called
+	 * while reviving (e.g. from {@link #reviveFields(StoreObject)}), the
+	 * result is revived with the other Storables referenced at the same level
+	 * of the graph, before the outermost revive returns.
+	 * <p>
+	 * Until then the result is a placeholder: its id is set, but its fields
+	 * have not been revived. Callers (e.g. implementations of
+	 * {@link #reviveFields(StoreObject)}) must not read the result's fields,
+	 * or anything that depends on them, such as a <code>hashCode</code>
+	 * overridden to use them, before the outermost revive returns. When not
+	 * called while reviving, the result is revived before this method
+	 * returns.
+	 * 
+	 * @param store
+	 *            the store to revive from. Must not be <code>null</code>.
+	 * @param type
+	 *            the Storable type.
+	 * @param id
+	 *            the id. Must not be <code>null</code>.
+	 * @return the Storable, which may be a placeholder (see above). Will not
+	 *         be <code>null</code>.
+	 * @throws StoreException
+	 *             if the Storable, or a Storable it references, cannot be
+	 *             revived.
+	 */
 	protected <T extends Storable> T createAndReviveStorable(
 			IObjectStore store, Class<T> type, UUID id) throws StoreException {
-		T result = createInstanceOfType(type, null);
-		result.revive(store, id);
-		return result;
+		ReviveContext context = beginRevive(store);
+		try {
+			T result = context.reference(type, id);
+			context.complete();
+			return result;
+		} finally {
+			context.end();
+		}
 	}
 
 	protected void createPrimitiveField(IObjectStore store, Class<?> fieldType,
@@ -153,8 +532,9 @@ public class Storable extends IdentifiedObject {
 		if (items == null)
 			return null;
 		List<S> results = new ArrayList<S>();
+		Factory<? extends S> factory = getFactory(storableType);
 		for (T i : items)
-			results.add(createInstanceOfType(storableType, i));
+			results.add(factory.create(i));
 		return results;
 	}
 
@@ -199,6 +579,15 @@ public class Storable extends IdentifiedObject {
 		return true;
 	}
 
+	/**
+	 * Revive the Storable referenced by the given field. When called while
+	 * reviving, the result is a placeholder whose fields are revived before
+	 * the outermost revive returns (see
+	 * {@link #createAndReviveStorable(IObjectStore, Class, UUID)}).
+	 * 
+	 * @return the referenced Storable, or <code>null</code> if the field is
+	 *         not set.
+	 */
 	protected <T extends Storable> T reviveStorableField(
 			StoreObject storeObject, Class<T> fieldType, String fieldName)
 			throws StoreException {
@@ -231,6 +620,16 @@ public class Storable extends IdentifiedObject {
 		return true;
 	}
 
+	/**
+	 * Revive the given list field. If elementType is a Storable type, the
+	 * elements are the referenced Storables, which when called while reviving
+	 * are placeholders whose fields are revived before the outermost revive
+	 * returns (see
+	 * {@link #createAndReviveStorable(IObjectStore, Class, UUID)}).
+	 * 
+	 * @return the list, or <code>null</code> if the field is not set or
+	 *         empty.
+	 */
 	@SuppressWarnings("unchecked")
 	protected <T> List<T> reviveListField(StoreObject storeObject,
 			Class<T> elementType, String fieldName) throws StoreException {
@@ -273,6 +672,18 @@ public class Storable extends IdentifiedObject {
 		return true;
 	}
 
+	/**
+	 * Revive the given set field. If elementType is a Storable type, the
+	 * elements are the referenced Storables, which when called while reviving
+	 * are placeholders whose fields are revived before the outermost revive
+	 * returns (see
+	 * {@link #createAndReviveStorable(IObjectStore, Class, UUID)}). They are added to the set before their fields are revived, so their
+	 * <code>hashCode</code> and <code>equals</code> must depend only on the
+	 * className and id, as {@link #hashCode()} and {@link #equals(Object)}
+	 * do.
+	 * 
+	 * @return the set, or <code>null</code> if the field is not set or empty.
+	 */
 	@SuppressWarnings("unchecked")
 	protected <T> Set<T> reviveSetField(StoreObject storeObject,
 			Class<T> elementType, String fieldName) throws StoreException {
@@ -319,6 +730,19 @@ public class Storable extends IdentifiedObject {
 		return true;
 	}
 
+	/**
+	 * Revive the given map field. If keyType or valueType is a Storable
+	 * type, the keys or values are the referenced Storables, which when
+	 * called while reviving are placeholders whose fields are revived before
+	 * the outermost revive returns (see
+	 * {@link #createAndReviveStorable(IObjectStore, Class, UUID)}). Storable
+	 * keys are added to the map before their fields are revived, so their
+	 * <code>hashCode</code> and <code>equals</code> must depend only on the
+	 * className and id, as {@link #hashCode()} and {@link #equals(Object)}
+	 * do.
+	 * 
+	 * @return the map, or <code>null</code> if the field is not set or empty.
+	 */
 	@SuppressWarnings({ "unchecked", "rawtypes" })
 	protected <K, V> Map<K, V> reviveMapField(StoreObject storeObject,
 			Class<K> keyType, Class<V> valueType, String fieldName)
@@ -335,7 +759,7 @@ public class Storable extends IdentifiedObject {
 			K k = (K) ((storableKey) ? createAndReviveStorable(store,
 					(Class<? extends Storable>) keyType, (UUID) key) : key);
 			V v = (V) ((storableValue) ? createAndReviveStorable(store,
-					(Class<? extends Storable>) valueType, (UUID) key) : value);
+					(Class<? extends Storable>) valueType, (UUID) value) : value);
 			results.put(k, v);
 		}
 		return results.isEmpty() ? null : results;
@@ -347,6 +771,7 @@ public class Storable extends IdentifiedObject {
 		setLastModifiedAt(storeObject.getLastModifiedAt());
 		storeObject.setConsistencyLevel(getReadConsistencyLevel());
 		reviveFields(storeObject);
+		this.storedFields = getFields(storeObject);
 		return this;
 	}
 
@@ -409,29 +834,9 @@ public class Storable extends IdentifiedObject {
 				getReadConsistencyLevel());
 	}
 
-	@SuppressWarnings("unchecked")
 	protected <T extends Storable, A> T createInstanceOfType(Class<T> type,
 			A arg) throws StoreException {
-		try {
-			Constructor<T> c = null;
-			boolean nullConstructor = (arg == null);
-			try {
-				if (!nullConstructor)
-					c = type.getConstructor((Class<A>) arg.getClass());
-			} catch (Exception e) {
-				nullConstructor = true;
-				c = type.getConstructor();
-			}
-			if (c == null) {
-				nullConstructor = true;
-				c = type.getConstructor();
-			}
-			c.setAccessible(true);
-			return (nullConstructor) ? c.newInstance() : c.newInstance(arg);
-		} catch (Exception e) {
-			throw new StoreException(
-					"Could not create Storable instance of type=" + type, e);
-		}
+		return getFactory(type).create(arg);
 	}
 
 }
@@ -0,0 +1,212 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Composent, Inc. and others. All rights reserved. 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ * 
+ * Contributors: Composent, Inc. - initial API and implementation
+ ******************************************************************************/
+package com.composent.objectstore;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import com.composent.objectstore.IObjectStore.Util;
+
+/**
+ * Unit of work scope for reviving Storables. While a session is open, every
+ * Storable revived from its store on the session's thread (by
+ * {@link Storable#revive(StoreObjectQuery)},
+ * {@link Storable#reviveAll(IObjectStore)}, and the Storable fields revived
+ * with them) is held in the session's identity map. Each className and id is
+ * then loaded at most once within the session, and every reference to it is
+ * the same instance.
+ * <p>
+ * Storables already in the identity map are not revived again, so a
+ * session's view of a Storable does not change until the session is closed
+ * (or the Storable is evicted). If a revive fails, the Storables it added
+ * to the identity map are removed, so later revives in the session load them
+ * again. Without a session, the same guarantees hold within each single call
+ * to revive.
+ * <p>
+ * A session is confined to the thread that opened it, and must be closed by
+ * that thread, typically in a finally block:
+ * 
+ * <pre>
+ * StorableSession session = StorableSession.open(store);
+ * try {
+ * 	...
+ * } finally {
+ * 	session.close();
+ * }
+ * </pre>
+ */
+public final class StorableSession {
+
+	private static final ThreadLocal<StorableSession> current = new ThreadLocal<StorableSession>();
+
+	private final IObjectStore store;
+	private final StorableSession previous;
+	private final Thread thread;
+	// by className and id
+	private final Map<String, Map<UUID, Storable>> identities = new HashMap<String, Map<UUID, Storable>>();
+	private boolean closed;
+
+	private StorableSession(IObjectStore store, StorableSession previous) {
+		this.store = store;
+		this.previous = previous;
+		this.thread = Thread.currentThread();
+	}
+
+	/**
+	 * Open a session for the given store on the current thread. Sessions may
+	 * be nested. The innermost open session for a store is used.
+	 * 
+	 * @param store
+	 *            the store. Must not be <code>null</code>.
+	 * @return the new session. Will not be <code>null</code>.
+	 */
+	public static StorableSession open(IObjectStore store) {
+		Util.checkArgNotNull(store, "store");
+		StorableSession session = new StorableSession(store, current.get());
+		current.set(session);
+		return session;
+	}
+
+	/**
+	 * Get the innermost session open on the current thread for the given
+	 * store.
+	 * 
+	 * @param store
+	 *            the store. Must not be <code>null</code>.
+	 * @return the session, or <code>null</code> if there is no session open
+	 *         for store.
+	 */
+	public static StorableSession getCurrent(IObjectStore store) {
+		Util.checkArgNotNull(store, "store");
+		for (StorableSession s = current.get(); s != null; s = s.previous)
+			if (s.store == store)
+				return s;
+		return null;
+	}
+
+	public IObjectStore getStore() {
+		return this.store;
+	}
+
+	/**
+	 * Get a Storable from the identity map.
+	 * 
+	 * @param className
+	 *            the className. Must not be <code>null</code>.
+	 * @param id
+	 *            the id. Must not be <code>null</code>.
+	 * @return the Storable, or <code>null</code> if it is not in the identity
+	 *         map.
+	 */
+	public Storable get(String className, UUID id) {
+		Util.checkArgNotNull(className, "className");
+		Util.checkArgNotNull(id, "id");
+		return get(this.identities, className, id);
+	}
+
+	/**
+	 * Remove a Storable from the identity map, so that it is revived again
+	 * when next loaded.
+	 * 
+	 * @param storable
+	 *            the Storable. Must not be <code>null</code>.
+	 * @return <code>true</code> if the Storable was in the identity map.
+	 */
+	public boolean evict(Storable storable) {
+		Util.checkArgNotNull(storable, "storable");
+		return remove(this.identities, storable);
+	}
+
+	/**
+	 * Remove all Storables from the identity map.
+	 */
+	public void clear() {
+		this.identities.clear();
+	}
+
+	/**
+	 * @return the number of Storables in the identity map.
+	 */
+	public int size() {
+		int result = 0;
+		for (Map<UUID, Storable> ids : this.identities.values())
+			result += ids.size();
+		return result;
+	}
+
+	public boolean isClosed() {
+		return this.closed;
+	}
+
+	/**
+	 * Close this session, and any sessions opened after it on this thread
+	 * that are still open. Does nothing if already closed.
+	 * 
+	 * @throws IllegalStateException
+	 *             if called by a thread other than the one that opened the
+	 *             session.
+	 */
+	public void close() {
+		if (this.closed)
+			return;
+		if (Thread.currentThread() != this.thread)
+			throw new IllegalStateException(
+					"session must be closed by the thread that opened it");
+		for (StorableSession s = current.get(); s != null; s = s.previous) {
+			s.closed = true;
+			s.identities.clear();
+			if (s == this)
+				break;
+		}
+		if (this.previous == null)
+			current.remove();
+		else
+			current.set(this.previous);
+	}
+
+	Map<String, Map<UUID, Storable>> getIdentities() {
+		return this.identities;
+	}
+
+	static Storable get(Map<String, Map<UUID, Storable>> identities,
+			String className, UUID id) {
+		Map<UUID, Storable> ids = identities.get(className);
+		return (ids == null) ? null : ids.get(id);
+	}
+
+	static void put(Map<String, Map<UUID, Storable>> identities,
+			String className, UUID id, Storable storable) {
+		Map<UUID, Storable> ids = identities.get(className);
+		if (ids == null) {
+			ids = new HashMap<UUID, Storable>();
+			identities.put(className, ids);
+		}
+		ids.put(id, storable);
+	}
+
+	static boolean remove(Map<String, Map<UUID, Storable>> identities,
+			Storable storable) {
+		Map<UUID, Storable> ids = identities.get(storable.getClassName());
+		if (ids == null || storable.getId() == null
+				|| ids.get(storable.getId()) != storable)
+			return false;
+		ids.remove(storable.getId());
+		return true;
+	}
+}
@@ -0,0 +1,232 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Composent, Inc. and others. All rights reserved. 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ * 
+ * Contributors: Composent, Inc. - initial API and implementation
+ ******************************************************************************/
+package com.composent.objectstore;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import com.composent.objectstore.IObjectStore.CollectionValue;
+import com.composent.objectstore.IObjectStore.ObjectStoreItem;
+import com.composent.objectstore.IObjectStore.Util;
+
+/**
+ * An unlogged batch of StoreObject writes, as planned by
+ * {@link #plan(Collection, int, int)} for {@link IObjectStore#storeAll(Collection)}
+ * implementations.
+ */
+public class StoreBatch {
+
+	/**
+	 * Default maximum number of statements in a batch.
+	 */
+	public static final int DEFAULT_MAX_STATEMENTS = 100;
+	/**
+	 * Default maximum estimated batch size in bytes. This matches the
+	 * Cassandra default batch_size_warn_threshold_in_kb (5kb).
+	 */
+	public static final int DEFAULT_MAX_BYTES = 5 * 1024;
+	/**
+	 * Default maximum number of batches written concurrently.
+	 */
+	public static final int DEFAULT_MAX_PARALLELISM = 4;
+
+	public static class Statement {
+		private final StoreObject storeObject;
+		private final Collection<ObjectStoreItem> items;
+		private final int size;
+
+		Statement(StoreObject storeObject, Collection<ObjectStoreItem> items) {
+			this.storeObject = storeObject;
+			this.items = items;
+			int s = 0;
+			for (ObjectStoreItem item : items)
+				s += item.getKey().length() + estimateSize(item.getValue());
+			this.size = s;
+		}
+
+		public StoreObject getStoreObject() {
+			return this.storeObject;
+		}
+
+		/**
+		 * @return the items collected from the StoreObject when the batch was
+		 *         planned. Will not be <code>null</code>.
+		 */
+		public Collection<ObjectStoreItem> getItems() {
+			return this.items;
+		}
+
+		public int getEstimatedSize() {
+			return this.size;
+		}
+
+		public boolean isConditional() {
+			return this.storeObject.getIfNotExistsItems() != null;
+		}
+	}
+
+	private final List<Statement> statements = new ArrayList<Statement>();
+	private int size;
+
+	private StoreBatch() {
+	}
+
+	private void add(Statement statement) {
+		this.statements.add(statement);
+		this.size += statement.getEstimatedSize();
+	}
+
+	public List<Statement> getStatements() {
+		return Collections.unmodifiableList(this.statements);
+	}
+
+	public int getEstimatedSize() {
+		return this.size;
+	}
+
+	/**
+	 * @return <code>true</code> if this batch holds a single conditional
+	 *         (lightweight transaction) write.
+	 */
+	public boolean isConditional() {
+		return this.statements.size() == 1
+				&& this.statements.get(0).isConditional();
+	}
+
+	/**
+	 * Plan the unlogged batches for writing the given StoreObjects. Each
+	 * batch targets a single partition (className and id), so that it is
+	 * applied by one replica set without a coordinator fanning it out.
+	 * Writes to the same partition are placed in the same batch where
+	 * possible, splitting the partition into batches of at most maxStatements
+	 * statements and (approximately) maxBytes bytes. The batches of a
+	 * partition are contiguous in the result. Batches of different partitions
+	 * are independent, and should be sent as separate, concurrent requests.
+	 * Each conditional StoreObject (see {@link StoreObject#isIfNotExists()})
+	 * is planned as a batch of its own.
+	 * 
+	 * @param storeObjects
+	 *            the StoreObjects to plan. Must not be <code>null</code>.
+	 * @param maxStatements
+	 *            the maximum number of statements in a batch. Must be > 0.
+	 * @param maxBytes
+	 *            the maximum estimated size of a batch in bytes. Must be > 0.
+	 *            A single statement larger than maxBytes is planned as a
+	 *            batch of its own.
+	 * @return List of batches, conditional batches first, then in the order
+	 *         of the first StoreObject of each partition. Will not be
+	 *         <code>null</code>.
+	 * @throws StoreException
+	 *             if items cannot be collected from a StoreObject.
+	 */
+	public static List<StoreBatch> plan(
+			Collection<? extends StoreObject> storeObjects, int maxStatements,
+			int maxBytes) throws StoreException {
+		Util.checkArgNotNull(storeObjects, "storeObjects");
+		if (maxStatements < 1 || maxBytes < 1)
+			throw new IllegalArgumentException(
+					"maxStatements and maxBytes must be > 0");
+		List<StoreBatch> results = new ArrayList<StoreBatch>();
+		// Group unconditional writes by partition, preserving order
+		Map<Object, List<Statement>> partitions = new LinkedHashMap<Object, List<Statement>>();
+		for (StoreObject so : storeObjects) {
+			Util.checkArgNotNull(so, "storeObject");
+			Statement statement = new Statement(so, so.collectItems());
+			if (statement.isConditional()) {
+				StoreBatch batch = new StoreBatch();
+				batch.add(statement);
+				results.add(batch);
+				continue;
+			}
+			// Objects without an id are each a new partition
+			Object key = (so.getId() == null) ? statement : so.getClassName()
+					+ "/" + so.getId();
+			List<Statement> partition = partitions.get(key);
+			if (partition == null) {
+				partition = new ArrayList<Statement>();
+				partitions.put(key, partition);
+			}
+			partition.add(statement);
+		}
+		for (List<Statement> partition : partitions.values()) {
+			// a new batch for each partition
+			StoreBatch current = null;
+			for (Statement statement : partition) {
+				if (current != null
+						&& (current.statements.size() >= maxStatements || current.size
+								+ statement.getEstimatedSize() > maxBytes))
+					current = null;
+				if (current == null) {
+					current = new StoreBatch();
+					results.add(current);
+				}
+				current.add(statement);
+			}
+		}
+		return results;
+	}
+
+	@SuppressWarnings("rawtypes")
+	static int estimateSize(Object value) {
+		if (value == null)
+			return 0;
+		if (value instanceof String)
+			return ((String) value).length();
+		if (value instanceof ByteBuffer)
+			return ((ByteBuffer) value).remaining();
+		if (value instanceof Integer || value instanceof Float)
+			return 4;
+		if (value instanceof Boolean)
+			return 1;
+		if (value instanceof UUID)
+			return 16;
+		if (value instanceof BigInteger)
+			return ((BigInteger) value).bitLength() / 8 + 1;
+		if (value instanceof BigDecimal)
+			return ((BigDecimal) value).unscaledValue().bitLength() / 8 + 5;
+		if (value instanceof InetAddress)
+			return ((InetAddress) value).getAddress().length;
+		if (value instanceof CollectionValue)
+			return estimateSize(((CollectionValue) value).getValue());
+		if (value instanceof Map) {
+			int s = 0;
+			for (Object o : ((Map) value).entrySet()) {
+				Map.Entry e = (Map.Entry) o;
+				s += estimateSize(e.getKey()) + estimateSize(e.getValue());
+			}
+			return s;
+		}
+		if (value instanceof Collection) {
+			int s = 0;
+			for (Object o : (Collection) value)
+				s += estimateSize(o);
+			return s;
+		}
+		// Long, Date, Double
+		return 8;
+	}
+}
@@ -0,0 +1,283 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Composent, Inc. and others. All rights reserved. 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ * 
+ * Contributors: Composent, Inc. - initial API and implementation
+ ******************************************************************************/
+package com.composent.objectstore;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import com.composent.objectstore.IObjectStore.Util;
+
+/**
+ * Context for storing a graph of Storables. Rather than each Storable being
+ * written as soon as {@link Storable#storeTo(IObjectStore)} is called for it,
+ * the StoreObjects of the whole graph are collected, and written when the
+ * outermost storeTo completes: all referenced Storables first, with
+ * {@link IObjectStore#storeAll(java.util.Collection)} in parallel batches,
+ * and then the Storable that storeTo was called on.
+ * <p>
+ * Each Storable is visited at most once, so shared references are written
+ * once, and cycles terminate. Referenced Storables that have not changed
+ * since they were last stored or revived are not written.
+ * <p>
+ * A context is active for the current thread from {@link #begin} until the
+ * matching {@link #end()}. Nested calls to storeTo on the same store join
+ * the active context.
+ */
+final class StoreContext {
+
+	private static final ThreadLocal<StoreContext> current = new ThreadLocal<StoreContext>();
+
+	private static final class Write {
+		final Storable storable;
+		final StoreObject storeObject;
+		final Map<String, Object> fields;
+
+		Write(Storable storable, StoreObject storeObject,
+				Map<String, Object> fields) {
+			this.storable = storable;
+			this.storeObject = storeObject;
+			this.fields = fields;
+		}
+	}
+
+	private final IObjectStore store;
+	private final StoreContext previous;
+	private final int batchSize;
+	private final int maxParallelism;
+	private int depth;
+	private final Map<Storable, Boolean> visited = new IdentityHashMap<Storable, Boolean>();
+	// Storables given an id by this context and not yet written, to be reset
+	// if writing fails
+	private final Map<Storable, Boolean> assigned = new IdentityHashMap<Storable, Boolean>();
+	// in the order StoreObjects are completed, so referenced Storables are
+	// before the Storables that reference them
+	private final List<Write> writes = new ArrayList<Write>();
+
+	private StoreContext(IObjectStore store, StoreContext previous,
+			int batchSize, int maxParallelism) {
+		this.store = store;
+		this.previous = previous;
+		this.batchSize = batchSize;
+		this.maxParallelism = maxParallelism;
+	}
+
+	/**
+	 * Begin storing on the given store, joining the context active for the
+	 * current thread if it is for the same store. Must be followed by
+	 * {@link #end()}.
+	 */
+	static StoreContext begin(IObjectStore store, int batchSize,
+			int maxParallelism) {
+		StoreContext context = current.get();
+		if (context == null || context.store != store) {
+			context = new StoreContext(store, context, batchSize,
+					maxParallelism);
+			current.set(context);
+		}
+		context.depth++;
+		return context;
+	}
+
+	/**
+	 * End storing. When the outermost storeTo ends, ids assigned by this
+	 * context to Storables that were not written (because storing failed) are
+	 * reset.
+	 */
+	void end() {
+		if (--this.depth > 0)
+			return;
+		for (Storable storable : this.assigned.keySet())
+			storable.setId(null);
+		if (this.previous == null)
+			current.remove();
+		else
+			current.set(this.previous);
+	}
+
+	/**
+	 * Visit a Storable, assigning it an id if it does not have one, so that
+	 * it can be referenced before it is written.
+	 * 
+	 * @return <code>false</code> if the Storable has already been visited by
+	 *         this context (e.g. it is referenced more than once, or is part
+	 *         of a cycle).
+	 */
+	boolean visit(Storable storable) {
+		if (this.visited.put(storable, Boolean.TRUE) != null)
+			return false;
+		if (storable.getId() == null) {
+			storable.setId(UUID.randomUUID());
+			this.assigned.put(storable, Boolean.TRUE);
+		}
+		return true;
+	}
+
+	/**
+	 * Add the StoreObject for a visited Storable, with its fields collected.
+	 * Unless the Storable is the one the outermost storeTo was called on, the
+	 * write is skipped if the fields are unchanged since the Storable was last
+	 * stored or revived.
+	 */
+	void add(Storable storable, StoreObject storeObject) {
+		Map<String, Object> fields = Storable.getFields(storeObject);
+		if (this.depth > 1 && storable.isUnchanged(fields))
+			return;
+		this.writes.add(new Write(storable, storeObject, fields));
+	}
+
+	/**
+	 * Write the collected StoreObjects. Does nothing unless called by the
+	 * outermost storeTo.
+	 * 
+	 * @throws StoreException
+	 *             if writing fails.
+	 */
+	void complete() throws StoreException {
+		if (this.depth != 1)
+			return;
+		int last = this.writes.size() - 1;
+		write(this.writes.subList(0, Math.max(last, 0)));
+		if (last >= 0)
+			write(this.writes.subList(last, last + 1));
+	}
+
+	/**
+	 * Write the given StoreObjects with storeAll, in batches of at most
+	 * batchSize, running at most maxParallelism batches at a time.
+	 */
+	private void write(List<Write> list) throws StoreException {
+		if (list.isEmpty())
+			return;
+		List<List<Write>> batches = new ArrayList<List<Write>>();
+		for (int i = 0; i < list.size(); i += this.batchSize)
+			batches.add(list.subList(i,
+					Math.min(i + this.batchSize, list.size())));
+		if (batches.size() == 1 || this.maxParallelism == 1) {
+			for (List<Write> batch : batches)
+				try {
+					completed(batch, storeAll(batch));
+				} catch (StoreException e) {
+					failed(batch, e);
+					throw e;
+				}
+			return;
+		}
+		for (int i = 0; i < batches.size(); i += this.maxParallelism) {
+			int end = Math.min(i + this.maxParallelism, batches.size());
+			List<Future<List<StoreResult>>> futures = new ArrayList<Future<List<StoreResult>>>(
+					end - i);
+			for (int j = i; j < end; j++) {
+				final List<Write> batch = batches.get(j);
+				futures.add(Util.submit(this.store.getAsyncExecutor(),
+						new Callable<List<StoreResult>>() {
+							public List<StoreResult> call() throws Exception {
+								return storeAll(batch);
+							}
+						}));
+			}
+			for (int j = i; j < end; j++) {
+				List<StoreResult> results;
+				try {
+					results = Util.get(futures.get(j - i));
+				} catch (StoreException e) {
+					failed(batches.get(j), e);
+					abandon(batches.subList(j + 1, end),
+							futures.subList(j - i + 1, end - i));
+					throw e;
+				} catch (RuntimeException e) {
+					abandon(batches.subList(j + 1, end),
+							futures.subList(j - i + 1, end - i));
+					throw e;
+				} catch (Error e) {
+					abandon(batches.subList(j + 1, end),
+							futures.subList(j - i + 1, end - i));
+					throw e;
+				}
+				completed(batches.get(j), results);
+			}
+		}
+	}
+
+	/**
+	 * Called when a batch fails, with the remaining batches of its window.
+	 * Those not yet started are cancelled, and those running are waited for,
+	 * so that no write is in progress when the ids of the Storables not
+	 * written are reset by {@link #end()}.
+	 */
+	private void abandon(List<List<Write>> batches,
+			List<Future<List<StoreResult>>> futures) {
+		boolean interrupted = false;
+		for (int i = 0; i < futures.size(); i++) {
+			Future<List<StoreResult>> future = futures.get(i);
+			if (future.cancel(false))
+				continue;
+			for (;;) {
+				try {
+					completed(batches.get(i), future.get());
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				} catch (ExecutionException e) {
+					// the batch failed too. The first failure is reported
+					failed(batches.get(i), e.getCause());
+					break;
+				} catch (Throwable t) {
+					break;
+				}
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	private List<StoreResult> storeAll(List<Write> batch)
+			throws StoreException {
+		List<StoreObject> storeObjects = new ArrayList<StoreObject>(
+				batch.size());
+		for (Write write : batch)
+			storeObjects.add(write.storeObject);
+		return this.store.storeAll(storeObjects);
+	}
+
+	/**
+	 * Called when storeAll fails for a batch. If some StoreObjects were
+	 * written, their Storables are completed, so that their ids are kept.
+	 */
+	private void failed(List<Write> batch, Throwable t) {
+		if (t instanceof BatchStoreException)
+			completed(batch, ((BatchStoreException) t).getResults());
+	}
+
+	private void completed(List<Write> batch, List<StoreResult> results) {
+		for (int i = 0; i < batch.size(); i++) {
+			Write write = batch.get(i);
+			boolean success = results.get(i).isSuccess();
+			// the id of a Storable that was not written is reset by end()
+			if (success)
+				this.assigned.remove(write.storable);
+			write.storable.stored(write.storeObject, success ? write.fields
+					: null);
+		}
+	}
+}
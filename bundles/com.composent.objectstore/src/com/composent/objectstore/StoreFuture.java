@@ -0,0 +1,84 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Composent, Inc. and others. All rights reserved. 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ * 
+ * Contributors: Composent, Inc. - initial API and implementation
+ ******************************************************************************/
+package com.composent.objectstore;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+
+/**
+ * Future for the result of an asynchronous store operation (e.g.
+ * {@link StoreObject#storeAsync()} or {@link StoreObjectQuery#executeAsync()}
+ * ), to which listeners may be added to be notified when it completes, rather
+ * than blocking a thread in {@link #get()}.
+ */
+public interface StoreFuture<V> extends Future<V> {
+
+	/**
+	 * Receives the outcome of a StoreFuture (see
+	 * {@link StoreFuture#addCallback(Callback, Executor)}).
+	 */
+	public static interface Callback<V> {
+		/**
+		 * Called with the result when the future completes successfully.
+		 */
+		public void onSuccess(V result);
+
+		/**
+		 * Called when the future fails or is cancelled.
+		 * 
+		 * @param t
+		 *            the exception thrown by the operation (e.g. a
+		 *            StoreException), or a CancellationException if the
+		 *            future was cancelled. Will not be <code>null</code>.
+		 */
+		public void onFailure(Throwable t);
+	}
+
+	/**
+	 * Add a listener to run when this future completes, successfully or not,
+	 * or is cancelled. If this future is already complete the listener is run
+	 * immediately. Listeners are run in the order they were added. A
+	 * RuntimeException thrown by a listener, or by the executor when it is
+	 * given the listener (e.g. a RejectedExecutionException), is passed to the
+	 * uncaught exception handler of the thread running the listener.
+	 * 
+	 * @param listener
+	 *            the listener. If <code>null</code> an
+	 *            {@link IllegalArgumentException} is thrown.
+	 * @param executor
+	 *            the executor to run the listener. If <code>null</code>, the
+	 *            listener is run by the thread completing this future, or by
+	 *            the calling thread if this future is already complete. Such
+	 *            listeners must be quick and must not block.
+	 */
+	public void addListener(Runnable listener, Executor executor);
+
+	/**
+	 * Add a callback to receive the result of this future, or the exception
+	 * it failed with, when it completes. Callbacks are run as listeners (see
+	 * {@link #addListener(Runnable, Executor)}).
+	 * 
+	 * @param callback
+	 *            the callback. If <code>null</code> an
+	 *            {@link IllegalArgumentException} is thrown.
+	 * @param executor
+	 *            the executor to run the callback, or <code>null</code> (see
+	 *            {@link #addListener(Runnable, Executor)}).
+	 */
+	public void addCallback(Callback<? super V> callback, Executor executor);
+}
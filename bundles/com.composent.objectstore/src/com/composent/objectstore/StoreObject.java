@@ -22,14 +22,19 @@ import java.math.BigInteger;
 import java.net.InetAddress;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
 
 import com.composent.objectstore.IObjectStore.CollectionValue;
 import com.composent.objectstore.IObjectStore.ConsistencyLevel;
@@ -47,13 +52,23 @@ public abstract class StoreObject extends IdentifiedObject {
 
 	private ConsistencyLevel consistencyLevel;
 	private Collection<ObjectStoreItem> ifNotExistsItems;
+	private volatile Set<String> projection;
+	// final, so that a frozen snapshot published to other threads without
+	// synchronization (e.g. by ObjectCache) is never seen as mutable
+	private final boolean frozen;
 
 	protected StoreObject(IObjectStore store, StoreObjectMetadata metadata,
 			UUID id) {
+		this(store, metadata, id, false);
+	}
+
+	private StoreObject(IObjectStore store, StoreObjectMetadata metadata,
+			UUID id, boolean frozen) {
 		Util.checkArgNotNull(store, "store");
 		this.store = store;
 		Util.checkArgNotNull(metadata, "metadata");
 		this.metadata = metadata;
+		this.frozen = frozen;
 		setId(id);
 	}
 
@@ -61,11 +76,150 @@ public abstract class StoreObject extends IdentifiedObject {
 		this(store, otm, null);
 	}
 
+	/**
+	 * Frozen copy constructor. Must be called holding the source's lock.
+	 */
+	private StoreObject(StoreObject source) {
+		this(source.store, source.metadata, source.getId(), true);
+		setLastModifiedAt(copyDate(source.getLastModifiedAt()));
+		this.consistencyLevel = source.consistencyLevel;
+		this.projection = source.projection;
+		this.writeAllFields = source.writeAllFields;
+		Slots s = source.slots;
+		if (s != null) {
+			s = new Slots(s);
+			for (int i = 0; i < s.values.length; i++)
+				s.values[i] = freezeValue(s.values[i]);
+			s.shared = true;
+			this.slots = s;
+		}
+		this.concurrencyMode = ConcurrencyMode.COPY_ON_WRITE;
+	}
+
+	/**
+	 * Immutable snapshot of a StoreObject, as returned by
+	 * {@link StoreObject#freeze()}.
+	 */
+	private static final class FrozenStoreObject extends StoreObject {
+
+		FrozenStoreObject(StoreObject source) {
+			super(source);
+		}
+
+		@Override
+		public StoreResult store() throws StoreException {
+			throw new UnsupportedOperationException("StoreObject className="
+					+ getClassName() + " is frozen");
+		}
+
+		// ByteBuffer values are read-only, and duplicated for each reader so
+		// that readers do not share a position. Date values are mutable, so
+		// are copied for each reader
+
+		@Override
+		public ByteBuffer getBytes(String key) {
+			ByteBuffer result = super.getBytes(key);
+			return (result == null) ? null : result.duplicate();
+		}
+
+		@Override
+		public Date getDate(String key) {
+			return copyDate(super.getDate(key));
+		}
+
+		@Override
+		public Date getLastModifiedAt() {
+			return copyDate(super.getLastModifiedAt());
+		}
+
+		@Override
+		public Object get(String key) {
+			Object result = super.get(key);
+			if (result instanceof ByteBuffer)
+				return ((ByteBuffer) result).duplicate();
+			return (result instanceof Date) ? copyDate((Date) result) : result;
+		}
+	}
+
+	private static Date copyDate(Date date) {
+		return (date == null) ? null : new Date(date.getTime());
+	}
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private static Object freezeValue(Object value) {
+		if (value instanceof ByteBuffer)
+			return ((ByteBuffer) value).asReadOnlyBuffer();
+		if (value instanceof Date)
+			return copyDate((Date) value);
+		if (!(value instanceof CollectionValue))
+			return value;
+		CollectionValue cv = (CollectionValue) value;
+		Object v = cv.getValue();
+		if (v instanceof Map) {
+			Map m = new LinkedHashMap();
+			for (Object o : ((Map) v).entrySet()) {
+				Map.Entry e = (Map.Entry) o;
+				m.put(freezeValue(e.getKey()), freezeValue(e.getValue()));
+			}
+			return CollectionValue.map(cv.getFirstType(), cv.getSecondType(),
+					Collections.unmodifiableMap(m));
+		}
+		if (v instanceof List) {
+			List l = new ArrayList(((List) v).size());
+			for (Object o : (List) v)
+				l.add(freezeValue(o));
+			return CollectionValue.list(cv.getFirstType(),
+					Collections.unmodifiableList(l));
+		}
+		if (v instanceof Set) {
+			Set st = new LinkedHashSet();
+			for (Object o : (Set) v)
+				st.add(freezeValue(o));
+			return CollectionValue.set(cv.getFirstType(),
+					Collections.unmodifiableSet(st));
+		}
+		return cv;
+	}
+
+	/**
+	 * Get an immutable snapshot of this object's id, lastModifiedAt and field
+	 * values. The snapshot is thread-safe and reads never lock (see
+	 * {@link ConcurrencyMode#COPY_ON_WRITE}), so it may be shared freely
+	 * between threads and caches. Collection values are copied into
+	 * unmodifiable collections, ByteBuffer values are read-only, and Date
+	 * values are copied, both into the snapshot and for each read. Date
+	 * elements of collection values are copied into the snapshot but are
+	 * shared by its readers, so must not be modified. The put*, putPrimitive,
+	 * reset and store methods, and other setters, throw
+	 * {@link UnsupportedOperationException} on the snapshot.
+	 * 
+	 * @return the frozen snapshot, or this object if it is already frozen.
+	 *         Will not be <code>null</code>.
+	 */
+	public synchronized StoreObject freeze() {
+		return this.frozen ? this : new FrozenStoreObject(this);
+	}
+
+	/**
+	 * @return <code>true</code> if this object is an immutable snapshot
+	 *         returned by {@link #freeze()}.
+	 */
+	public boolean isFrozen() {
+		return this.frozen;
+	}
+
+	private void checkNotFrozen() {
+		if (this.frozen)
+			throw new UnsupportedOperationException("StoreObject className="
+					+ getClassName() + " is frozen");
+	}
+
 	public IObjectStore getStore() {
 		return store;
 	}
 
 	public void setConsistencyLevel(ConsistencyLevel level) {
+		checkNotFrozen();
 		this.consistencyLevel = level;
 	}
 
@@ -77,47 +231,399 @@ public abstract class StoreObject extends IdentifiedObject {
 		return this.metadata.getClassName();
 	}
 
-	public synchronized StoreObjectMetadata getMetadata() {
+	public StoreObjectMetadata getMetadata() {
 		return this.metadata;
 	}
 
-	protected Map<String, Map<String, ?>> allFieldsMap = new HashMap<String, Map<String, ?>>();
+	// Value kinds, used as the type tag of each slot
+	private static final byte STRING = 1;
+	private static final byte BYTES = 2;
+	private static final byte LONG = 3;
+	private static final byte INTEGER = 4;
+	private static final byte DATE = 5;
+	private static final byte BOOLEAN = 6;
+	private static final byte FLOAT = 7;
+	private static final byte DOUBLE = 8;
+	private static final byte DECIMAL = 9;
+	private static final byte UUID_ = 10;
+	private static final byte BIGINTEGER = 11;
+	private static final byte INETADDRESS = 12;
+	private static final byte MAP = 13;
+	private static final byte LIST = 14;
+	private static final byte SET = 15;
+
+	private static final Class<?>[] KIND_TYPES = { null, String.class,
+			ByteBuffer.class, Long.class, Integer.class, Date.class,
+			Boolean.class, Float.class, Double.class, BigDecimal.class,
+			UUID.class, BigInteger.class, InetAddress.class, Map.class,
+			List.class, Set.class };
+
+	/**
+	 * Concurrency control for the field values of a StoreObject.
+	 */
+	public enum ConcurrencyMode {
+		/**
+		 * All reads and writes synchronize on the StoreObject. Writes update
+		 * field values in place. This is the default.
+		 */
+		SYNCHRONIZED,
+		/**
+		 * Writes synchronize on the StoreObject and replace the field values
+		 * with an updated copy. Reads never lock or block, so concurrent
+		 * readers do not contend. Suited to objects that are read by many
+		 * threads (e.g. held in a shared cache) and rarely written.
+		 */
+		COPY_ON_WRITE
+	}
+
+	/*
+	 * Field values are held in slots indexed by field ordinal (see
+	 * StoreObjectMetadata.getFieldIndex), with a parallel array of value kinds.
+	 * A kind of 0 means no value has been put for the field. Non-null Long,
+	 * Integer, Boolean, Float and Double values are held unboxed in a
+	 * parallel long array, with a marker in the values array.
+	 */
+	private static final Object UNBOXED = new Object();
+	private static final Float FLOAT_ZERO = Float.valueOf(0f);
+	private static final Double DOUBLE_ZERO = Double.valueOf(0d);
+
+	private static final class Slots {
+		final byte[] kinds;
+		final Object[] values;
+		long[] bits;
+		// bit set of the kinds put
+		int kindsPut;
+		// ordinals of the fields put since creation, revival or the last
+		// store
+		final BitSet modified;
+		// number of puts to each slot, so that a store clears the modified
+		// bits of only the slots not put since its items were collected
+		final int[] versions;
+		// true if published for lock-free reads, so must not be changed
+		boolean shared;
+
+		Slots(int size) {
+			this.kinds = new byte[size];
+			this.values = new Object[size];
+			this.modified = new BitSet(size);
+			this.versions = new int[size];
+		}
+
+		Slots(Slots other) {
+			this.kinds = other.kinds.clone();
+			this.values = other.values.clone();
+			this.bits = (other.bits == null) ? null : other.bits.clone();
+			this.kindsPut = other.kindsPut;
+			this.modified = (BitSet) other.modified.clone();
+			this.versions = other.versions.clone();
+		}
+
+		boolean isPresent(int i) {
+			return i >= 0 && this.kinds[i] != 0;
+		}
+
+		/**
+		 * @return the (boxed) value of slot i.
+		 */
+		Object value(int i) {
+			Object result = this.values[i];
+			return (result == UNBOXED) ? fromBits(this.kinds[i], this.bits[i])
+					: result;
+		}
 
-	protected Map<String, String> stringFieldMap;
-	protected Map<String, ByteBuffer> bytesFieldMap;
-	protected Map<String, Long> longFieldMap;
-	protected Map<String, Integer> integerFieldMap;
-	protected Map<String, Date> dateFieldMap;
-	protected Map<String, Boolean> booleanFieldMap;
-	protected Map<String, Float> floatFieldMap;
-	protected Map<String, Double> doubleFieldMap;
+		void putBits(int i, long b) {
+			if (this.bits == null)
+				this.bits = new long[this.kinds.length];
+			this.bits[i] = b;
+			this.values[i] = UNBOXED;
+		}
+	}
 
-	protected Map<String, BigDecimal> bigDecimalFieldMap;
-	protected Map<String, UUID> uuidFieldMap;
-	protected Map<String, BigInteger> bigIntegerFieldMap;
-	protected Map<String, InetAddress> inetAddressFieldMap;
+	// null until the first put
+	private volatile Slots slots;
+	private volatile ConcurrencyMode concurrencyMode = ConcurrencyMode.SYNCHRONIZED;
+	private boolean writeAllFields;
+	// slot versions when items were last collected for a store
+	private int[] collectedVersions;
+
+	public ConcurrencyMode getConcurrencyMode() {
+		return this.concurrencyMode;
+	}
+
+	/**
+	 * Set the concurrency mode for access to the field values of this object.
+	 * The mode may be changed at any time, e.g. to
+	 * {@link ConcurrencyMode#COPY_ON_WRITE} once an object has been populated
+	 * or revived and is about to be shared between threads.
+	 * 
+	 * @param concurrencyMode
+	 *            the mode. Must not be <code>null</code>.
+	 */
+	public synchronized void setConcurrencyMode(
+			ConcurrencyMode concurrencyMode) {
+		checkNotFrozen();
+		Util.checkArgNotNull(concurrencyMode, "concurrencyMode");
+		// values published so far must not be changed in place, as lock-free
+		// readers may hold them
+		if (concurrencyMode == ConcurrencyMode.COPY_ON_WRITE
+				&& this.slots != null)
+			this.slots.shared = true;
+		this.concurrencyMode = concurrencyMode;
+	}
+
+	private boolean isCopyOnWrite() {
+		return this.concurrencyMode == ConcurrencyMode.COPY_ON_WRITE;
+	}
+
+	private static byte kindOf(Class<?> type) {
+		for (byte k = STRING; k <= INETADDRESS; k++)
+			if (KIND_TYPES[k].equals(type))
+				return k;
+		return 0;
+	}
+
+	private static boolean isUnboxed(byte kind) {
+		return kind == LONG || kind == INTEGER || kind == BOOLEAN
+				|| kind == FLOAT || kind == DOUBLE;
+	}
+
+	private static long toBits(byte kind, Object value) {
+		switch (kind) {
+		case LONG:
+			return ((Long) value).longValue();
+		case INTEGER:
+			return ((Integer) value).intValue();
+		case BOOLEAN:
+			return ((Boolean) value).booleanValue() ? 1 : 0;
+		case FLOAT:
+			return Float.floatToRawIntBits(((Float) value).floatValue());
+		default:
+			return Double.doubleToRawLongBits(((Double) value).doubleValue());
+		}
+	}
 
-	protected Map<String, CollectionValue> mapFieldMap;
-	protected Map<String, CollectionValue> listFieldMap;
-	protected Map<String, CollectionValue> setFieldMap;
+	private static Object fromBits(byte kind, long bits) {
+		switch (kind) {
+		case LONG:
+			return Long.valueOf(bits);
+		case INTEGER:
+			return Integer.valueOf((int) bits);
+		case BOOLEAN:
+			return Boolean.valueOf(bits != 0);
+		case FLOAT:
+			return Float.valueOf(Float.intBitsToFloat((int) bits));
+		default:
+			return Double.valueOf(Double.longBitsToDouble(bits));
+		}
+	}
 
-	public synchronized Collection<String> getKeys() {
-		return allFieldsMap.keySet();
+	private int index(String key) {
+		return (key == null) ? -1 : this.metadata.getFieldIndex(key);
 	}
 
-	protected FieldMetadata checkField(String key) {
-		FieldMetadata field = getMetadata().getField(key);
-		if (field == null)
+	/**
+	 * Get the slots to update. Must be called holding this object's lock, and
+	 * followed by {@link #endWrite(Slots)}.
+	 */
+	private Slots beginWrite() {
+		checkNotFrozen();
+		Slots s = this.slots;
+		if (s == null)
+			return new Slots(this.metadata.getFields().size());
+		return (s.shared || isCopyOnWrite()) ? new Slots(s) : s;
+	}
+
+	private void endWrite(Slots s) {
+		if (isCopyOnWrite())
+			s.shared = true;
+		this.slots = s;
+	}
+
+	/**
+	 * Get the slot for putting a value of the given kind, marking the field
+	 * as modified.
+	 */
+	private int slot(Slots s, int i, byte kind) {
+		byte k = s.kinds[i];
+		if (k != 0 && k != kind)
+			throw new IllegalArgumentException("key="
+					+ this.metadata.getField(i).getName()
+					+ " has already been used to store value of different type");
+		s.kinds[i] = kind;
+		s.kindsPut |= 1 << kind;
+		s.modified.set(i);
+		s.versions[i]++;
+		return i;
+	}
+
+	private Object put0(String key, byte kind, Object value) {
+		return put0(checkIndex(key), kind, value);
+	}
+
+	private Object put0(int index, byte kind, Object value) {
+		Slots s = beginWrite();
+		int i = slot(s, index, kind);
+		Object result = s.value(i);
+		if (value != null && isUnboxed(kind))
+			s.putBits(i, toBits(kind, value));
+		else
+			s.values[i] = value;
+		endWrite(s);
+		return result;
+	}
+
+	private void putBits(int index, byte kind, long b) {
+		Slots s = beginWrite();
+		s.putBits(slot(s, index, kind), b);
+		endWrite(s);
+	}
+
+	/*
+	 * Reads take a reference to the current slots before checking the mode.
+	 * Slots published in copy on write mode are never changed, so may be read
+	 * without locking. Otherwise reads lock, and reread the current slots.
+	 */
+
+	private static Object get0(Slots s, int i, byte kind, Object ifNotPut) {
+		// the numeric and boolean getters return a default value (rather than
+		// null) when no value of their kind has been put
+		if (s == null || (s.kindsPut & (1 << kind)) == 0)
+			return ifNotPut;
+		return (i < 0 || s.kinds[i] != kind) ? null : s.value(i);
+	}
+
+	private Object get0(String key, byte kind, Object ifNotPut) {
+		Slots s = this.slots;
+		if (!isCopyOnWrite())
+			synchronized (this) {
+				return get0(this.slots, index(key), kind, ifNotPut);
+			}
+		return get0(s, index(key), kind, ifNotPut);
+	}
+
+	private static long getBits(Slots s, int i, byte kind) {
+		if (s == null || i < 0 || s.kinds[i] != kind
+				|| s.values[i] != UNBOXED)
+			return 0;
+		return s.bits[i];
+	}
+
+	/**
+	 * @return the unboxed value of the given field, or 0 if the field does not
+	 *         hold a non-null value of the given kind.
+	 */
+	private long getBits(String key, byte kind) {
+		Slots s = this.slots;
+		if (!isCopyOnWrite())
+			synchronized (this) {
+				return getBits(this.slots, index(key), kind);
+			}
+		return getBits(s, index(key), kind);
+	}
+
+	private List<String> getKeys(Slots s, boolean modified) {
+		List<String> result = new ArrayList<String>();
+		if (s == null)
+			return result;
+		int i = 0;
+		for (FieldMetadata field : this.metadata.getFields()) {
+			if (modified ? s.modified.get(i) : s.kinds[i] != 0)
+				result.add(field.getName());
+			i++;
+		}
+		return result;
+	}
+
+	public Collection<String> getKeys() {
+		Slots s = this.slots;
+		if (!isCopyOnWrite())
+			synchronized (this) {
+				return getKeys(this.slots, false);
+			}
+		return getKeys(s, false);
+	}
+
+	/**
+	 * @param key
+	 *            the field name.
+	 * @return <code>true</code> if this object holds a value for the given
+	 *         field. Fields that were not selected by the query that revived
+	 *         this object (see {@link StoreObjectQuery#select(String...)}) are
+	 *         never present.
+	 */
+	public boolean isPresent(String key) {
+		Slots s = this.slots;
+		if (!isCopyOnWrite())
+			synchronized (this) {
+				s = this.slots;
+				return s != null && s.isPresent(index(key));
+			}
+		return s != null && s.isPresent(index(key));
+	}
+
+	/**
+	 * @param key
+	 *            the field name.
+	 * @return <code>true</code> if this object holds a non-null value for the
+	 *         given field. The primitive getters (e.g.
+	 *         {@link #getLongValue(String)}) return 0 or <code>false</code>
+	 *         for fields without a value, so this may be used to distinguish
+	 *         those from stored zero values.
+	 */
+	public boolean hasValue(String key) {
+		int i = index(key);
+		Slots s = this.slots;
+		if (!isCopyOnWrite())
+			synchronized (this) {
+				s = this.slots;
+				return s != null && s.isPresent(i) && s.values[i] != null;
+			}
+		return s != null && s.isPresent(i) && s.values[i] != null;
+	}
+
+	/**
+	 * @return the names of the fields that were fetched when this object was
+	 *         revived, or <code>null</code> if all fields were fetched (or
+	 *         this object was not revived by a query).
+	 */
+	public Collection<String> getProjection() {
+		return this.projection;
+	}
+
+	/**
+	 * Get the ordinal of a field, with a single lookup in the (immutable)
+	 * metadata.
+	 */
+	private int checkIndex(String key) {
+		int i = index(key);
+		if (i < 0)
 			throw new IllegalArgumentException("key=" + key
 					+ " not found as field");
-		return field;
+		return i;
+	}
+
+	protected FieldMetadata checkField(String key) {
+		return this.metadata.getField(checkIndex(key));
 	}
 
 	protected void validatePrimitive(String key, Object value) {
+		checkPrimitive(key, value);
+	}
+
+	private int checkPrimitive(String key, Object value) {
 		Util.checkArgNotNull(key, "key");
-		FieldMetadata field = checkField(key);
+		int i = checkIndex(key);
 		if (value != null)
-			Util.checkTypesCompatible(field.getType(), value.getClass());
+			Util.checkTypesCompatible(this.metadata.getField(i).getType(),
+					value.getClass());
+		return i;
+	}
+
+	private int checkType(String key, Class<?> type) {
+		Util.checkArgNotNull(key, "key");
+		int i = checkIndex(key);
+		Util.checkTypesCompatible(this.metadata.getField(i).getType(), type);
+		return i;
 	}
 
 	@SuppressWarnings("rawtypes")
@@ -155,410 +661,283 @@ public abstract class StoreObject extends IdentifiedObject {
 		Util.checkTypesCompatible(field.getFirstElementType(), elementType);
 	}
 
-	@SuppressWarnings("rawtypes")
-	private void checkMapType(String key, Map typeMap, Map fieldMap) {
-		if (!typeMap.equals(fieldMap))
-			throw new IllegalArgumentException("key=" + key
-					+ " has already been used to store value of different type");
-	}
-
-	private String put0(String key, String value, boolean raw) {
-		@SuppressWarnings("rawtypes")
-		Map typeMap = allFieldsMap.get(key);
-		if (typeMap == null) {
-			if (stringFieldMap == null)
-				stringFieldMap = new HashMap<String, String>();
-			allFieldsMap.put(key, stringFieldMap);
-		} else
-			checkMapType(key, typeMap, this.stringFieldMap);
-		return stringFieldMap.put(key, value);
+	/**
+	 * Put a long value without boxing.
+	 * 
+	 * @param key
+	 *            the field name. The field must be of type Long.
+	 * @param value
+	 *            the value.
+	 */
+	public synchronized void putLong(String key, long value) {
+		putBits(checkType(key, Long.class), LONG, value);
+	}
+
+	/**
+	 * Get a long value without boxing.
+	 * 
+	 * @param key
+	 *            the field name.
+	 * @return the value, or 0 if the field has no Long value (see
+	 *         {@link #hasValue(String)}).
+	 */
+	public long getLongValue(String key) {
+		return getBits(key, LONG);
+	}
+
+	/**
+	 * Put an int value without boxing.
+	 * 
+	 * @param key
+	 *            the field name. The field must be of type Integer.
+	 * @param value
+	 *            the value.
+	 */
+	public synchronized void putInt(String key, int value) {
+		putBits(checkType(key, Integer.class), INTEGER, value);
+	}
+
+	/**
+	 * Get an int value without boxing.
+	 * 
+	 * @param key
+	 *            the field name.
+	 * @return the value, or 0 if the field has no Integer value (see
+	 *         {@link #hasValue(String)}).
+	 */
+	public int getIntValue(String key) {
+		long b = getBits(key, INTEGER);
+		return (int) b;
+	}
+
+	/**
+	 * Put a boolean value without boxing.
+	 * 
+	 * @param key
+	 *            the field name. The field must be of type Boolean.
+	 * @param value
+	 *            the value.
+	 */
+	public synchronized void putBoolean(String key, boolean value) {
+		putBits(checkType(key, Boolean.class), BOOLEAN, value ? 1 : 0);
+	}
+
+	/**
+	 * Get a boolean value without boxing.
+	 * 
+	 * @param key
+	 *            the field name.
+	 * @return the value, or false if the field has no Boolean value (see
+	 *         {@link #hasValue(String)}).
+	 */
+	public boolean getBooleanValue(String key) {
+		long b = getBits(key, BOOLEAN);
+		return b != 0;
+	}
+
+	/**
+	 * Put a float value without boxing.
+	 * 
+	 * @param key
+	 *            the field name. The field must be of type Float.
+	 * @param value
+	 *            the value.
+	 */
+	public synchronized void putFloat(String key, float value) {
+		putBits(checkType(key, Float.class), FLOAT, Float.floatToRawIntBits(value));
+	}
+
+	/**
+	 * Get a float value without boxing.
+	 * 
+	 * @param key
+	 *            the field name.
+	 * @return the value, or 0 if the field has no Float value (see
+	 *         {@link #hasValue(String)}).
+	 */
+	public float getFloatValue(String key) {
+		long b = getBits(key, FLOAT);
+		return Float.intBitsToFloat((int) b);
+	}
+
+	/**
+	 * Put a double value without boxing.
+	 * 
+	 * @param key
+	 *            the field name. The field must be of type Double.
+	 * @param value
+	 *            the value.
+	 */
+	public synchronized void putDouble(String key, double value) {
+		putBits(checkType(key, Double.class), DOUBLE, Double.doubleToRawLongBits(value));
+	}
+
+	/**
+	 * Get a double value without boxing.
+	 * 
+	 * @param key
+	 *            the field name.
+	 * @return the value, or 0 if the field has no Double value (see
+	 *         {@link #hasValue(String)}).
+	 */
+	public double getDoubleValue(String key) {
+		long b = getBits(key, DOUBLE);
+		return Double.longBitsToDouble(b);
 	}
 
 	public synchronized String put(String key, String value) {
-		validatePrimitive(key, value);
-		return put0(key, value, false);
-	}
-
-	public synchronized String getString(String key) {
-		if (stringFieldMap == null)
-			return null;
-		return stringFieldMap.get(key);
+		return (String) put0(checkPrimitive(key, value), STRING, value);
 	}
 
-	private ByteBuffer put0(String key, ByteBuffer value, boolean raw) {
-		@SuppressWarnings("rawtypes")
-		Map typeMap = allFieldsMap.get(key);
-		if (typeMap == null) {
-			if (bytesFieldMap == null)
-				bytesFieldMap = new HashMap<String, ByteBuffer>();
-			allFieldsMap.put(key, bytesFieldMap);
-		} else
-			checkMapType(key, typeMap, this.bytesFieldMap);
-		return bytesFieldMap.put(key, value);
+	public String getString(String key) {
+		return (String) get0(key, STRING, null);
 	}
 
 	public synchronized ByteBuffer put(String key, ByteBuffer value) {
-		validatePrimitive(key, value);
-		return put0(key, value, false);
+		return (ByteBuffer) put0(checkPrimitive(key, value), BYTES, value);
 	}
 
-	public synchronized ByteBuffer getBytes(String key) {
-		if (bytesFieldMap == null)
-			return null;
-		return bytesFieldMap.get(key);
-	}
-
-	private Long put0(String key, Long value, boolean raw) {
-		@SuppressWarnings("rawtypes")
-		Map typeMap = allFieldsMap.get(key);
-		if (typeMap == null) {
-			if (longFieldMap == null)
-				longFieldMap = new HashMap<String, Long>();
-			allFieldsMap.put(key, longFieldMap);
-		} else
-			checkMapType(key, typeMap, this.longFieldMap);
-		return longFieldMap.put(key, value);
+	public ByteBuffer getBytes(String key) {
+		return (ByteBuffer) get0(key, BYTES, null);
 	}
 
 	public synchronized Long put(String key, Long value) {
-		validatePrimitive(key, value);
-		return put0(key, value, false);
+		return (Long) put0(checkPrimitive(key, value), LONG, value);
 	}
 
-	public synchronized Long getLong(String key) {
-		if (longFieldMap == null)
-			return 0L;
-		return longFieldMap.get(key);
-	}
-
-	private Integer put0(String key, Integer value, boolean raw) {
-		@SuppressWarnings("rawtypes")
-		Map typeMap = allFieldsMap.get(key);
-		if (typeMap == null) {
-			if (integerFieldMap == null)
-				integerFieldMap = new HashMap<String, Integer>();
-			allFieldsMap.put(key, integerFieldMap);
-		} else
-			checkMapType(key, typeMap, this.integerFieldMap);
-		return integerFieldMap.put(key, value);
+	public Long getLong(String key) {
+		return (Long) get0(key, LONG, Long.valueOf(0L));
 	}
 
 	public synchronized Integer put(String key, Integer value) {
-		validatePrimitive(key, value);
-		return put0(key, value, false);
-	}
-
-	public synchronized Integer getInt(String key) {
-		if (integerFieldMap == null)
-			return 0;
-		return integerFieldMap.get(key);
+		return (Integer) put0(checkPrimitive(key, value), INTEGER, value);
 	}
 
-	private Date put0(String key, Date value, boolean raw) {
-		@SuppressWarnings("rawtypes")
-		Map typeMap = allFieldsMap.get(key);
-		if (typeMap == null) {
-			if (dateFieldMap == null)
-				dateFieldMap = new HashMap<String, Date>();
-			allFieldsMap.put(key, dateFieldMap);
-		} else
-			checkMapType(key, typeMap, this.dateFieldMap);
-		return dateFieldMap.put(key, value);
+	public Integer getInt(String key) {
+		return (Integer) get0(key, INTEGER, Integer.valueOf(0));
 	}
 
 	public synchronized Date put(String key, Date value) {
-		validatePrimitive(key, value);
-		return put0(key, value, false);
+		return (Date) put0(checkPrimitive(key, value), DATE, value);
 	}
 
-	public synchronized Date getDate(String key) {
-		if (dateFieldMap == null)
-			return null;
-		return dateFieldMap.get(key);
-	}
-
-	private Boolean put0(String key, Boolean value, boolean raw) {
-		@SuppressWarnings("rawtypes")
-		Map typeMap = allFieldsMap.get(key);
-		if (typeMap == null) {
-			if (booleanFieldMap == null)
-				booleanFieldMap = new HashMap<String, Boolean>();
-			allFieldsMap.put(key, booleanFieldMap);
-		} else
-			checkMapType(key, typeMap, this.booleanFieldMap);
-		return booleanFieldMap.put(key, value);
+	public Date getDate(String key) {
+		return (Date) get0(key, DATE, null);
 	}
 
 	public synchronized Boolean put(String key, Boolean value) {
-		validatePrimitive(key, value);
-		return put0(key, value, false);
+		return (Boolean) put0(checkPrimitive(key, value), BOOLEAN, value);
 	}
 
-	public synchronized Boolean getBoolean(String key) {
-		if (booleanFieldMap == null)
-			return false;
-		return booleanFieldMap.get(key);
-	}
-
-	private Float put0(String key, Float value, boolean raw) {
-		@SuppressWarnings("rawtypes")
-		Map typeMap = allFieldsMap.get(key);
-		if (typeMap == null) {
-			if (floatFieldMap == null)
-				floatFieldMap = new HashMap<String, Float>();
-			allFieldsMap.put(key, floatFieldMap);
-		} else
-			checkMapType(key, typeMap, this.floatFieldMap);
-		return floatFieldMap.put(key, value);
+	public Boolean getBoolean(String key) {
+		return (Boolean) get0(key, BOOLEAN, Boolean.FALSE);
 	}
 
 	public synchronized Float put(String key, Float value) {
-		validatePrimitive(key, value);
-		return put0(key, value, false);
-	}
-
-	public synchronized Float getFloat(String key) {
-		if (floatFieldMap == null)
-			return 0f;
-		return floatFieldMap.get(key);
+		return (Float) put0(checkPrimitive(key, value), FLOAT, value);
 	}
 
-	private Double put0(String key, Double value, boolean raw) {
-		@SuppressWarnings("rawtypes")
-		Map typeMap = allFieldsMap.get(key);
-		if (typeMap == null) {
-			if (doubleFieldMap == null)
-				doubleFieldMap = new HashMap<String, Double>();
-			allFieldsMap.put(key, doubleFieldMap);
-		} else
-			checkMapType(key, typeMap, this.doubleFieldMap);
-		return doubleFieldMap.put(key, value);
-
+	public Float getFloat(String key) {
+		return (Float) get0(key, FLOAT, FLOAT_ZERO);
 	}
 
 	public synchronized Double put(String key, Double value) {
-		validatePrimitive(key, value);
-		return put0(key, value, false);
+		return (Double) put0(checkPrimitive(key, value), DOUBLE, value);
 	}
 
-	public synchronized Double getDouble(String key) {
-		if (doubleFieldMap == null)
-			return 0d;
-		return doubleFieldMap.get(key);
-	}
-
-	private UUID put0(String key, UUID value, boolean raw) {
-		@SuppressWarnings("rawtypes")
-		Map typeMap = allFieldsMap.get(key);
-		if (typeMap == null) {
-			if (uuidFieldMap == null)
-				uuidFieldMap = new HashMap<String, UUID>();
-			allFieldsMap.put(key, uuidFieldMap);
-		} else
-			checkMapType(key, typeMap, this.uuidFieldMap);
-		return uuidFieldMap.put(key, value);
+	public Double getDouble(String key) {
+		return (Double) get0(key, DOUBLE, DOUBLE_ZERO);
 	}
 
 	public synchronized UUID put(String key, UUID value) {
-		validatePrimitive(key, value);
-		return put0(key, value, false);
+		return (UUID) put0(checkPrimitive(key, value), UUID_, value);
 	}
 
-	public synchronized UUID getUUID(String key) {
-		if (uuidFieldMap == null)
-			return null;
-		return uuidFieldMap.get(key);
+	public UUID getUUID(String key) {
+		return (UUID) get0(key, UUID_, null);
 	}
 
-	public synchronized Object get(String key) {
-		Map<?, ?> typeMap = allFieldsMap.get(key);
-		if (typeMap == null)
-			return null;
-		return typeMap.get(key);
-	}
-
-	private BigInteger put0(String key, BigInteger value, boolean raw) {
-		@SuppressWarnings("rawtypes")
-		Map typeMap = allFieldsMap.get(key);
-		if (typeMap == null) {
-			if (bigIntegerFieldMap == null)
-				bigIntegerFieldMap = new HashMap<String, BigInteger>();
-			allFieldsMap.put(key, bigIntegerFieldMap);
-		} else
-			checkMapType(key, typeMap, this.bigIntegerFieldMap);
-		return bigIntegerFieldMap.put(key, value);
+	public Object get(String key) {
+		int i = index(key);
+		Slots s = this.slots;
+		if (!isCopyOnWrite())
+			synchronized (this) {
+				s = this.slots;
+				return (s != null && s.isPresent(i)) ? s.value(i) : null;
+			}
+		return (s != null && s.isPresent(i)) ? s.value(i) : null;
 	}
 
 	public synchronized BigInteger put(String key, BigInteger value) {
-		validatePrimitive(key, value);
-		return put0(key, value, false);
-	}
-
-	public synchronized BigInteger getBigInteger(String key) {
-		if (bigIntegerFieldMap == null)
-			return BigInteger.ZERO;
-		return bigIntegerFieldMap.get(key);
+		return (BigInteger) put0(checkPrimitive(key, value), BIGINTEGER, value);
 	}
 
-	private BigDecimal put0(String key, BigDecimal value, boolean raw) {
-		@SuppressWarnings("rawtypes")
-		Map typeMap = allFieldsMap.get(key);
-		if (typeMap == null) {
-			if (bigDecimalFieldMap == null)
-				bigDecimalFieldMap = new HashMap<String, BigDecimal>();
-			allFieldsMap.put(key, bigDecimalFieldMap);
-		} else
-			checkMapType(key, typeMap, this.bigDecimalFieldMap);
-		return bigDecimalFieldMap.put(key, value);
+	public BigInteger getBigInteger(String key) {
+		return (BigInteger) get0(key, BIGINTEGER, BigInteger.ZERO);
 	}
 
 	public synchronized BigDecimal put(String key, BigDecimal value) {
-		validatePrimitive(key, value);
-		return put0(key, value, false);
-	}
-
-	public synchronized BigDecimal getDecimal(String key) {
-		if (bigDecimalFieldMap == null)
-			return BigDecimal.ZERO;
-		return bigDecimalFieldMap.get(key);
+		return (BigDecimal) put0(checkPrimitive(key, value), DECIMAL, value);
 	}
 
-	private InetAddress put0(String key, InetAddress value, boolean raw) {
-		@SuppressWarnings("rawtypes")
-		Map typeMap = allFieldsMap.get(key);
-		if (typeMap == null) {
-			if (inetAddressFieldMap == null)
-				inetAddressFieldMap = new HashMap<String, InetAddress>();
-			allFieldsMap.put(key, inetAddressFieldMap);
-		} else
-			checkMapType(key, typeMap, this.inetAddressFieldMap);
-		return inetAddressFieldMap.put(key, value);
+	public BigDecimal getDecimal(String key) {
+		return (BigDecimal) get0(key, DECIMAL, BigDecimal.ZERO);
 	}
 
 	public synchronized InetAddress put(String key, InetAddress value) {
-		validatePrimitive(key, value);
-		return put0(key, value, false);
+		return (InetAddress) put0(checkPrimitive(key, value), INETADDRESS, value);
 	}
 
-	public synchronized InetAddress getInetAddress(String key) {
-		if (inetAddressFieldMap == null)
-			return null;
-		return inetAddressFieldMap.get(key);
-	}
-
-	@SuppressWarnings({ "rawtypes", "unchecked" })
-	private CollectionValue put0(String key, Class<?> keyType,
-			Class<?> valueType, Map map, boolean raw) {
-		CollectionValue cv = CollectionValue.map(keyType, valueType, map);
-		Map typeMap = allFieldsMap.get(key);
-		if (typeMap == null) {
-			if (mapFieldMap == null)
-				mapFieldMap = new HashMap();
-			allFieldsMap.put(key, mapFieldMap);
-		} else
-			checkMapType(key, typeMap, this.mapFieldMap);
-		return mapFieldMap.put(key, cv);
+	public InetAddress getInetAddress(String key) {
+		return (InetAddress) get0(key, INETADDRESS, null);
 	}
 
 	@SuppressWarnings({ "rawtypes" })
 	public synchronized CollectionValue put(String key, Class<?> keyType,
 			Class<?> valueType, Map map) {
 		validateMap(key, keyType, valueType, map);
-		return put0(key, keyType, valueType, map, false);
+		return (CollectionValue) put0(key, MAP,
+				CollectionValue.map(keyType, valueType, map));
 	}
 
 	@SuppressWarnings("rawtypes")
-	public synchronized Map getMap(String key) {
-		if (mapFieldMap == null)
-			return null;
-		CollectionValue cv = mapFieldMap.get(key);
+	public Map getMap(String key) {
+		CollectionValue cv = (CollectionValue) get0(key, MAP, null);
 		return (cv == null) ? null : (Map) cv.getValue();
 	}
 
-	@SuppressWarnings({ "rawtypes", "unchecked" })
-	private CollectionValue put0(String key, Class<?> elementType, List list,
-			boolean raw) {
-		CollectionValue cv = CollectionValue.list(elementType, list);
-		Map typeMap = allFieldsMap.get(key);
-		if (typeMap == null) {
-			if (listFieldMap == null)
-				listFieldMap = new HashMap();
-			allFieldsMap.put(key, listFieldMap);
-		} else
-			checkMapType(key, typeMap, this.listFieldMap);
-		return listFieldMap.put(key, cv);
-	}
-
 	@SuppressWarnings({ "rawtypes" })
 	public synchronized CollectionValue put(String key, Class<?> elementType,
 			List list) {
 		validateList(key, elementType, list);
-		return put0(key, elementType, list, false);
+		return (CollectionValue) put0(key, LIST,
+				CollectionValue.list(elementType, list));
 	}
 
 	@SuppressWarnings("rawtypes")
-	public synchronized List getList(String key) {
-		if (listFieldMap == null)
-			return null;
-		CollectionValue cv = listFieldMap.get(key);
+	public List getList(String key) {
+		CollectionValue cv = (CollectionValue) get0(key, LIST, null);
 		return (cv == null) ? null : (List) cv.getValue();
 	}
 
-	@SuppressWarnings({ "rawtypes", "unchecked" })
-	private CollectionValue put0(String key, Class<?> elementType, Set set,
-			boolean raw) {
-		CollectionValue cv = CollectionValue.set(elementType, set);
-		Map typeMap = allFieldsMap.get(key);
-		if (typeMap == null) {
-			if (setFieldMap == null)
-				setFieldMap = new HashMap();
-			allFieldsMap.put(key, setFieldMap);
-		} else
-			checkMapType(key, typeMap, this.setFieldMap);
-		return setFieldMap.put(key, cv);
-	}
-
 	@SuppressWarnings({ "rawtypes" })
 	public synchronized CollectionValue put(String key, Class<?> elementType,
 			Set set) {
 		validateSet(key, elementType, set);
-		return put0(key, elementType, set, false);
+		return (CollectionValue) put0(key, SET,
+				CollectionValue.set(elementType, set));
 	}
 
 	@SuppressWarnings("rawtypes")
-	public synchronized Set getSet(String key) {
-		if (setFieldMap == null)
-			return null;
-		CollectionValue cv = setFieldMap.get(key);
+	public Set getSet(String key) {
+		CollectionValue cv = (CollectionValue) get0(key, SET, null);
 		return (cv == null) ? null : (Set) cv.getValue();
 	}
 
 	protected void putRaw(String key, Class<?> type, Object value, boolean raw) {
-		if (String.class.equals(type)) {
-			put0(key, (String) value, raw);
-		} else if (ByteBuffer.class.equals(type)) {
-			put0(key, (ByteBuffer) value, raw);
-		} else if (Long.class.equals(type)) {
-			put0(key, (Long) value, raw);
-		} else if (Integer.class.equals(type)) {
-			put0(key, (Integer) value, raw);
-		} else if (Date.class.equals(type)) {
-			put0(key, (Date) value, raw);
-		} else if (Boolean.class.equals(type)) {
-			put0(key, (Boolean) value, raw);
-		} else if (Float.class.equals(type)) {
-			put0(key, (Float) value, raw);
-		} else if (Double.class.equals(type)) {
-			put0(key, (Double) value, raw);
-		} else if (BigDecimal.class.equals(type)) {
-			put0(key, (BigDecimal) value, raw);
-		} else if (UUID.class.equals(type)) {
-			put0(key, (UUID) value, raw);
-		} else if (BigInteger.class.equals(type)) {
-			put0(key, (BigInteger) value, raw);
-		} else if (InetAddress.class.equals(type)) {
-			put0(key, (InetAddress) value, raw);
-		}
+		byte kind = kindOf(type);
+		if (kind != 0)
+			put0(key, kind, type.cast(value));
 	}
 
 	public synchronized <T> T putPrimitive(String key, Class<T> type, T value) {
@@ -574,19 +953,21 @@ public abstract class StoreObject extends IdentifiedObject {
 		// if collection type
 		if (fm.isCollectionType()) {
 			if (fm.isList())
-				put0(key, fm.getFirstElementType(), (List) null, true);
+				put0(key, LIST,
+						CollectionValue.list(fm.getFirstElementType(), null));
 			else if (fm.isSet())
-				put0(key, fm.getFirstElementType(), (Set) null, true);
+				put0(key, SET,
+						CollectionValue.set(fm.getFirstElementType(), null));
 			else if (fm.isMap())
-				put0(key, fm.getFirstElementType(), fm.getSecondElementType(),
-						null, true);
+				put0(key, MAP, CollectionValue.map(fm.getFirstElementType(),
+						fm.getSecondElementType(), null));
 		} else
 			// primitive
 			putPrimitive(key, fm.getType(), null);
 	}
 
 	@SuppressWarnings("unchecked")
-	public synchronized <T> T getPrimitive(String key, Class<T> type) {
+	public <T> T getPrimitive(String key, Class<T> type) {
 		if (String.class.equals(type)) {
 			return (T) getString(key);
 		} else if (ByteBuffer.class.equals(type)) {
@@ -617,8 +998,53 @@ public abstract class StoreObject extends IdentifiedObject {
 
 	public abstract StoreResult store() throws StoreException;
 
+	/**
+	 * Store this object asynchronously on the store's async executor (see
+	 * {@link IObjectStore#getAsyncExecutor()}).
+	 * 
+	 * @return StoreFuture that completes with the result of {@link #store()}.
+	 */
+	public StoreFuture<StoreResult> storeAsync() {
+		return storeAsync(getStore().getAsyncExecutor());
+	}
+
+	/**
+	 * Store this object asynchronously on the given executor.
+	 * 
+	 * @param executor
+	 *            the executor to run {@link #store()}. If <code>null</code> an
+	 *            {@link IllegalArgumentException} is thrown.
+	 * @return StoreFuture that completes with the result of {@link #store()}.
+	 */
+	public StoreFuture<StoreResult> storeAsync(Executor executor) {
+		return Util.submit(executor, new Callable<StoreResult>() {
+			public StoreResult call() throws Exception {
+				return store();
+			}
+		});
+	}
+
+	/**
+	 * Revive this object from items fetched for a projection of its fields.
+	 * 
+	 * @param objectStoreItems
+	 *            the fetched items.
+	 * @param projection
+	 *            the names of the fetched fields, or <code>null</code> if all
+	 *            fields were fetched.
+	 */
+	protected synchronized void doRevive(
+			List<ObjectStoreItem> objectStoreItems,
+			Collection<String> projection) {
+		checkNotFrozen();
+		this.projection = (projection == null) ? null : Collections
+				.unmodifiableSet(new LinkedHashSet<String>(projection));
+		doRevive(objectStoreItems);
+	}
+
 	@SuppressWarnings("rawtypes")
-	protected void doRevive(List<ObjectStoreItem> objectStoreItems) {
+	protected synchronized void doRevive(List<ObjectStoreItem> objectStoreItems) {
+		checkNotFrozen();
 		// Get/set id
 		for (ObjectStoreItem i : objectStoreItems) {
 			String key = i.getKey();
@@ -630,72 +1056,200 @@ public abstract class StoreObject extends IdentifiedObject {
 				setLastModifiedAt((Date) i.getValue());
 				continue;
 			}
-			String key1 = i.getKey();
+			// skip items that are not fields of this object's metadata
+			if (index(key) < 0)
+				continue;
 			if (i.isCollection()) {
 				CollectionValue cd = (CollectionValue) i.getValue();
 				if (cd.isMap())
-					put0(key1, cd.getFirstType(), cd.getSecondType(),
-							(Map) cd.getValue(), true);
+					put0(key, MAP, CollectionValue.map(cd.getFirstType(),
+							cd.getSecondType(), (Map) cd.getValue()));
 				else if (cd.isList())
-					put0(key1, cd.getFirstType(), (List) cd.getValue(), true);
+					put0(key, LIST, CollectionValue.list(cd.getFirstType(),
+							(List) cd.getValue()));
 				else if (cd.isSet())
-					put0(key1, cd.getFirstType(), (Set) cd.getValue(), true);
+					put0(key, SET, CollectionValue.set(cd.getFirstType(),
+							(Set) cd.getValue()));
 			} else
-				putRaw(key1, i.getType(), i.getValue(), true);
+				putRaw(key, i.getType(), i.getValue(), true);
 		}
+		// revived values are as stored
+		clearModified();
+	}
+
+	/**
+	 * Write the values present with {@link StoreObjectCodec}, by field
+	 * ordinal, reading the slots directly so that unboxed values are not
+	 * boxed.
+	 */
+	void encodeValues(ByteBuffer bb) throws StoreException {
+		Slots s = this.slots;
+		if (!isCopyOnWrite())
+			synchronized (this) {
+				encodeValues(this.slots, bb);
+				return;
+			}
+		encodeValues(s, bb);
 	}
 
-	protected Class<?> getType(Map<String, ?> typeMap) {
-		if (typeMap == null)
-			return null;
-		if (typeMap.equals(this.stringFieldMap))
-			return String.class;
-		else if (typeMap.equals(this.bytesFieldMap))
-			return ByteBuffer.class;
-		else if (typeMap.equals(this.longFieldMap))
-			return Long.class;
-		else if (typeMap.equals(this.integerFieldMap))
-			return Integer.class;
-		else if (typeMap.equals(this.dateFieldMap))
-			return Date.class;
-		else if (typeMap.equals(this.booleanFieldMap))
-			return Boolean.class;
-		else if (typeMap.equals(this.floatFieldMap))
-			return Float.class;
-		else if (typeMap.equals(this.doubleFieldMap))
-			return Double.class;
-		else if (typeMap.equals(this.bigDecimalFieldMap))
-			return BigDecimal.class;
-		else if (typeMap.equals(this.uuidFieldMap))
-			return UUID.class;
-		else if (typeMap.equals(this.bigIntegerFieldMap))
-			return BigInteger.class;
-		else if (typeMap.equals(this.inetAddressFieldMap))
-			return InetAddress.class;
-		else if (typeMap.equals(this.mapFieldMap))
-			return Map.class;
-		else if (typeMap.equals(this.listFieldMap))
-			return List.class;
-		else if (typeMap.equals(this.setFieldMap))
-			return Set.class;
-		else
-			return null;
+	private void encodeValues(Slots s, ByteBuffer bb) throws StoreException {
+		for (int i = 0; s != null && i < s.kinds.length; i++) {
+			byte kind = s.kinds[i];
+			Object value = s.values[i];
+			if (kind == 0 || value == null)
+				continue;
+			bb.putShort((short) i);
+			if (value == UNBOXED)
+				StoreObjectCodec.putBits(bb, kind, s.bits[i]);
+			else if (kind >= MAP)
+				StoreObjectCodec.putCollection(bb, this.metadata.getField(i),
+						((CollectionValue) value).getValue());
+			else
+				StoreObjectCodec.putValue(bb, kind, value);
+		}
+		StoreObjectCodec.putEnd(bb);
+	}
+
+	/**
+	 * Read values written by {@link #encodeValues(ByteBuffer)} directly into
+	 * the slots.
+	 * 
+	 * @param header
+	 *            the metadata the values were written with.
+	 * @param indexes
+	 *            the ordinals of the fields of this object to put values in,
+	 *            by ordinal in header. Values of fields whose index is -1 are
+	 *            skipped.
+	 * @param revived
+	 *            <code>true</code> if the values are as stored, so are not
+	 *            marked modified.
+	 */
+	synchronized void decodeValues(ByteBuffer bb,
+			StoreObjectCodec.Header header, int[] indexes, boolean revived)
+			throws StoreException {
+		Slots s = beginWrite();
+		for (int i = bb.getShort(); i != StoreObjectCodec.END; i = bb
+				.getShort()) {
+			if (i < 0 || i >= indexes.length)
+				throw new StoreException("invalid field ordinal=" + i
+						+ " for className=" + header.className);
+			byte kind = header.types[i];
+			int index = indexes[i];
+			if (isUnboxed(kind)) {
+				long b = StoreObjectCodec.getBits(bb, kind);
+				if (index >= 0)
+					s.putBits(slot(s, index, kind), b);
+			} else {
+				Object value = (kind >= MAP) ? StoreObjectCodec.getCollection(
+						bb, header, i) : StoreObjectCodec.getValue(bb, kind);
+				if (index >= 0)
+					s.values[slot(s, index, kind)] = value;
+			}
+		}
+		if (revived)
+			s.modified.clear();
+		endWrite(s);
+	}
+
+	private synchronized void clearModified() {
+		if (this.slots == null)
+			return;
+		Slots s = beginWrite();
+		s.modified.clear();
+		endWrite(s);
+	}
+
+	/**
+	 * Clear the modified bits of the slots whose items were collected by
+	 * {@link #collectItems()}, except those put since, whose new values have
+	 * not been stored.
+	 */
+	private synchronized void clearCollected() {
+		int[] collected = this.collectedVersions;
+		this.collectedVersions = null;
+		if (collected == null) {
+			// stored without collecting items
+			clearModified();
+			return;
+		}
+		if (this.slots == null)
+			return;
+		Slots s = beginWrite();
+		for (int i = s.modified.nextSetBit(0); i >= 0; i = s.modified
+				.nextSetBit(i + 1))
+			if (s.versions[i] == collected[i])
+				s.modified.clear(i);
+		endWrite(s);
+	}
+
+	/**
+	 * @param key
+	 *            the field name.
+	 * @return <code>true</code> if a value has been put for the given field
+	 *         since this object was created, revived or last successfully
+	 *         stored.
+	 */
+	public boolean isModified(String key) {
+		int i = index(key);
+		Slots s = this.slots;
+		if (!isCopyOnWrite())
+			synchronized (this) {
+				s = this.slots;
+				return s != null && i >= 0 && s.modified.get(i);
+			}
+		return s != null && i >= 0 && s.modified.get(i);
+	}
+
+	/**
+	 * @return the names of the fields that have been modified (see
+	 *         {@link #isModified(String)}). Will not be <code>null</code>.
+	 */
+	public Collection<String> getModifiedKeys() {
+		Slots s = this.slots;
+		if (!isCopyOnWrite())
+			synchronized (this) {
+				return getKeys(this.slots, true);
+			}
+		return getKeys(s, true);
 	}
 
-	protected Collection<ObjectStoreItem> collectItems() throws StoreException {
-		Collection<String> keys = getKeys();
+	public synchronized boolean isWriteAllFields() {
+		return this.writeAllFields;
+	}
+
+	/**
+	 * Set whether {@link #store()} writes all fields present on this object,
+	 * rather than only the modified fields (see {@link #isModified(String)}).
+	 * The default is <code>false</code>.
+	 * 
+	 * @param writeAllFields
+	 *            <code>true</code> to write all present fields.
+	 */
+	public synchronized void setWriteAllFields(boolean writeAllFields) {
+		checkNotFrozen();
+		this.writeAllFields = writeAllFields;
+	}
+
+	protected synchronized Collection<ObjectStoreItem> collectItems()
+			throws StoreException {
 		Collection<ObjectStoreItem> objectStoreItems = new ArrayList<ObjectStoreItem>();
-		for (String key : keys) {
-			Map<String, ?> typeMap = allFieldsMap.get(key);
-			Class<?> type = getType(typeMap);
-			if (type == null)
-				throw new StoreException("Cannot get type for key=" + key);
-			Object value = typeMap.get(key);
+		Slots s = this.slots;
+		if (s == null)
+			return objectStoreItems;
+		this.collectedVersions = s.versions.clone();
+		int i = -1;
+		for (FieldMetadata field : this.metadata.getFields()) {
+			i++;
+			byte kind = s.kinds[i];
+			// write only modified fields, unless writing all fields
+			if (kind == 0 || !(this.writeAllFields || s.modified.get(i)))
+				continue;
+			Object value = s.value(i);
+			String key = field.getName();
 			if (value == null)
 				throw new StoreException("Cannot get value for key=" + key);
-			if (type.equals(Set.class) || type.equals(Map.class)
-					|| type.equals(List.class))
-				type = CollectionValue.class;
+			Class<?> type = (kind >= MAP) ? CollectionValue.class
+					: KIND_TYPES[kind];
 			// Add to items in any case
 			objectStoreItems.add(new ObjectStoreItem(key, type, value));
 		}
@@ -718,6 +1272,7 @@ public abstract class StoreObject extends IdentifiedObject {
 					i.remove();
 				}
 			}
+			clearCollected();
 			return new StoreResult(true, null);
 		} else
 			return new StoreResult(false, storeResult.getItems());
@@ -728,6 +1283,7 @@ public abstract class StoreObject extends IdentifiedObject {
 	}
 
 	public synchronized boolean setIfNotExists(boolean ifNotExists) {
+		checkNotFrozen();
 		if (ifNotExists)
 			return addIfNotExistsItem(new ObjectStoreItem(
 					StoreObject.LASTMODIFIEDDATE_NAME, Date.class,
@@ -738,6 +1294,7 @@ public abstract class StoreObject extends IdentifiedObject {
 
 	public synchronized boolean addIfNotExistsItem(
 			ObjectStoreItem objectStoreItem) {
+		checkNotFrozen();
 		if (objectStoreItem == null)
 			return false;
 		if (this.ifNotExistsItems == null)
@@ -752,6 +1309,7 @@ public abstract class StoreObject extends IdentifiedObject {
 
 	public synchronized void setIfNotExistsItems(
 			Collection<ObjectStoreItem> objectStoreItems) {
+		checkNotFrozen();
 		this.ifNotExistsItems = objectStoreItems;
 	}
 }
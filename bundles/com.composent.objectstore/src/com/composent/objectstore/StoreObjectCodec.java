@@ -0,0 +1,598 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Composent, Inc. and others. All rights reserved. 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ * 
+ * Contributors: Composent, Inc. - initial API and implementation
+ ******************************************************************************/
+package com.composent.objectstore;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.composent.objectstore.IObjectStore.CollectionValue;
+import com.composent.objectstore.IObjectStore.Util;
+import com.composent.objectstore.StoreObjectMetadata.FieldMetadata;
+
+/**
+ * Compact binary encoding of StoreObjects, for caching StoreObjects off heap,
+ * sending them between processes and writing local snapshots. StoreObjects are
+ * encoded directly from and decoded directly into their field values, without
+ * intermediate ObjectStoreItems, and fields are identified by their ordinal in
+ * the StoreObjectMetadata (see {@link StoreObjectMetadata#getFieldIndex(String)})
+ * rather than by name, so an encoded StoreObject holds only its id,
+ * lastModifiedAt and the values present:
+ * 
+ * <pre>
+ * storeObject := schema:long id:uuid lastModifiedAt:long (ordinal:short value)* -1:short
+ * </pre>
+ * 
+ * The schema is a 64 bit hash of the names and types of the fields, by
+ * ordinal, and is checked when decoding, so a StoreObject can only be decoded
+ * with metadata whose fields are the same as when it was encoded (however
+ * the table was changed, dropped or recreated in between). All numbers are
+ * big endian. The same encoding (without the schema) is used by
+ * {@link ObjectTableExporter} and {@link ObjectTableLoader}, whose files hold
+ * the metadata once followed by the StoreObjects.
+ * <p>
+ * Types are written as a one byte code: 1 + the index of the type in
+ * {@link IObjectStore#PRIMITIVE_TYPES} for primitive types, and 13 + the index
+ * in {@link IObjectStore#RAW_COLLECTION_TYPES} for collection types.
+ */
+public final class StoreObjectCodec {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final int COLLECTION_CODE = 13;
+	// marks the end of the values of a StoreObject
+	static final short END = -1;
+	private static final long NO_DATE = Long.MIN_VALUE;
+
+	// 64 bit FNV-1a
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	/**
+	 * Fields of encoded metadata, by ordinal.
+	 */
+	static final class Header {
+		final String className;
+		final long version;
+		final String[] names;
+		final byte[] types;
+		final byte[] firstTypes;
+		final byte[] secondTypes;
+
+		Header(String className, long version, int size) {
+			this.className = className;
+			this.version = version;
+			this.names = new String[size];
+			this.types = new byte[size];
+			this.firstTypes = new byte[size];
+			this.secondTypes = new byte[size];
+		}
+
+		/**
+		 * @return a hash of the names and type codes of the fields, by
+		 *         ordinal, which identifies the layout of encoded values.
+		 */
+		long fingerprint() {
+			long result = FNV_OFFSET;
+			for (int i = 0; i < this.names.length; i++) {
+				String name = this.names[i];
+				result = (result ^ name.length()) * FNV_PRIME;
+				for (int j = 0; j < name.length(); j++)
+					result = (result ^ name.charAt(j)) * FNV_PRIME;
+				result = (result ^ this.types[i]) * FNV_PRIME;
+				result = (result ^ this.firstTypes[i]) * FNV_PRIME;
+				result = (result ^ this.secondTypes[i]) * FNV_PRIME;
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * Header, fingerprint and field ordinals of a StoreObjectMetadata, for
+	 * {@link StoreObjectCodec#encode} and {@link StoreObjectCodec#decode}.
+	 */
+	private static final class Schema {
+		final Header header;
+		final long fingerprint;
+		final int[] indexes;
+
+		Schema(Header header) {
+			this.header = header;
+			this.fingerprint = header.fingerprint();
+			this.indexes = new int[header.names.length];
+			for (int i = 0; i < this.indexes.length; i++)
+				this.indexes[i] = i;
+		}
+	}
+
+	// by metadata, which is immutable (a schema change creates new metadata).
+	// Cleared when full, as replaced metadata is never used again.
+	private static final int MAX_SCHEMAS = 256;
+	private static final ConcurrentMap<StoreObjectMetadata, Schema> schemas = new ConcurrentHashMap<StoreObjectMetadata, Schema>();
+
+	private StoreObjectCodec() {
+	}
+
+	private static Schema schema(StoreObjectMetadata metadata) {
+		Schema result = schemas.get(metadata);
+		if (result == null) {
+			if (schemas.size() >= MAX_SCHEMAS)
+				schemas.clear();
+			result = new Schema(header(metadata));
+			schemas.put(metadata, result);
+		}
+		return result;
+	}
+
+	static Class<?> typeOf(byte code) throws StoreException {
+		if (code >= 1 && code < COLLECTION_CODE)
+			return IObjectStore.PRIMITIVE_TYPES.get(code - 1);
+		if (code >= COLLECTION_CODE
+				&& code < COLLECTION_CODE
+						+ IObjectStore.RAW_COLLECTION_TYPES.size())
+			return IObjectStore.RAW_COLLECTION_TYPES.get(code
+					- COLLECTION_CODE);
+		throw new StoreException("invalid type code=" + code);
+	}
+
+	static byte typeCode(Class<?> type) {
+		int i = IObjectStore.PRIMITIVE_TYPES.indexOf(type);
+		if (i >= 0)
+			return (byte) (1 + i);
+		i = IObjectStore.RAW_COLLECTION_TYPES.indexOf(type);
+		if (i >= 0)
+			return (byte) (COLLECTION_CODE + i);
+		throw new IllegalArgumentException("type=" + type
+				+ " is not a primitive or collection type");
+	}
+
+	static void putString(ByteBuffer bb, String s) {
+		putBytes(bb, UTF8.encode(s));
+	}
+
+	static String getString(ByteBuffer bb) throws StoreException {
+		return UTF8.decode(getBytes(bb)).toString();
+	}
+
+	/**
+	 * Read a length or collection size, which must be >= 0 and (as each
+	 * byte or element takes at least a byte) no more than the bytes
+	 * remaining.
+	 */
+	private static int getLength(ByteBuffer bb) throws StoreException {
+		int result = bb.getInt();
+		if (result < 0 || result > bb.remaining())
+			throw new StoreException("invalid length=" + result
+					+ " at position=" + (bb.position() - 4));
+		return result;
+	}
+
+	/**
+	 * @return a slice of bb for the length-prefixed bytes at its position.
+	 */
+	private static ByteBuffer getBytes(ByteBuffer bb) throws StoreException {
+		int length = getLength(bb);
+		ByteBuffer result = bb.slice();
+		result.limit(length);
+		bb.position(bb.position() + length);
+		return result;
+	}
+
+	private static byte[] getByteArray(ByteBuffer bb) throws StoreException {
+		byte[] result = new byte[getLength(bb)];
+		bb.get(result);
+		return result;
+	}
+
+	private static void putBytes(ByteBuffer bb, ByteBuffer bytes) {
+		bb.putInt(bytes.remaining());
+		bb.put(bytes);
+	}
+
+	private static void putBytes(ByteBuffer bb, byte[] bytes) {
+		bb.putInt(bytes.length);
+		bb.put(bytes);
+	}
+
+	/**
+	 * Write the className, version and fields of the given metadata.
+	 * 
+	 * @throws java.nio.BufferOverflowException
+	 *             if bb does not have enough space.
+	 */
+	static void encodeMetadata(StoreObjectMetadata metadata, ByteBuffer bb) {
+		putString(bb, metadata.getClassName());
+		bb.putLong(metadata.getVersion());
+		Collection<FieldMetadata> fields = metadata.getFields();
+		bb.putInt(fields.size());
+		for (FieldMetadata field : fields) {
+			putString(bb, field.getName());
+			bb.put(typeCode(field.getType()));
+			Class<?> first = field.getFirstElementType();
+			Class<?> second = field.getSecondElementType();
+			bb.put((first == null) ? 0 : typeCode(first));
+			bb.put((second == null) ? 0 : typeCode(second));
+		}
+	}
+
+	/**
+	 * Read metadata written by {@link #encodeMetadata}.
+	 */
+	static Header decodeMetadata(ByteBuffer bb) throws StoreException {
+		String className = getString(bb);
+		long version = bb.getLong();
+		Header result = new Header(className, version, getLength(bb));
+		for (int i = 0; i < result.names.length; i++) {
+			result.names[i] = getString(bb);
+			result.types[i] = bb.get();
+			result.firstTypes[i] = bb.get();
+			result.secondTypes[i] = bb.get();
+			typeOf(result.types[i]);
+		}
+		return result;
+	}
+
+	/**
+	 * @return the fields of the given metadata, as if encoded and decoded with
+	 *         {@link #encodeMetadata} and {@link #decodeMetadata}.
+	 */
+	static Header header(StoreObjectMetadata metadata) {
+		Collection<FieldMetadata> fields = metadata.getFields();
+		Header result = new Header(metadata.getClassName(),
+				metadata.getVersion(), fields.size());
+		int i = 0;
+		for (FieldMetadata field : fields) {
+			result.names[i] = field.getName();
+			result.types[i] = typeCode(field.getType());
+			Class<?> first = field.getFirstElementType();
+			Class<?> second = field.getSecondElementType();
+			result.firstTypes[i] = (first == null) ? 0 : typeCode(first);
+			result.secondTypes[i] = (second == null) ? 0 : typeCode(second);
+			i++;
+		}
+		return result;
+	}
+
+	/**
+	 * Encode a StoreObject.
+	 * 
+	 * @param storeObject
+	 *            the StoreObject. Must not be <code>null</code>.
+	 * @param bb
+	 *            the buffer to encode into, at its position. Must not be
+	 *            <code>null</code>.
+	 * @throws java.nio.BufferOverflowException
+	 *             if bb does not have enough space. The position of bb is
+	 *             then undefined, so the StoreObject should be encoded again
+	 *             from the original position into a larger buffer.
+	 * @throws IllegalArgumentException
+	 *             if the StoreObject has no id, i.e. it was created without
+	 *             an id (see {@link IObjectStore#createStoreObject(String)})
+	 *             and has not been stored.
+	 * @throws StoreException
+	 *             if a collection holds a <code>null</code> element.
+	 */
+	public static void encode(StoreObject storeObject, ByteBuffer bb)
+			throws StoreException {
+		Util.checkArgNotNull(storeObject, "storeObject");
+		Util.checkArgNotNull(bb, "bb");
+		bb.putLong(schema(storeObject.getMetadata()).fingerprint);
+		encodeRow(storeObject, bb);
+	}
+
+	/**
+	 * Decode a StoreObject written by {@link #encode(StoreObject, ByteBuffer)}.
+	 * The StoreObject is created by the given store, and is as if revived by a
+	 * query: its id and lastModifiedAt are those encoded, and its values are
+	 * not marked modified.
+	 * 
+	 * @param store
+	 *            the store to create the StoreObject. Must not be
+	 *            <code>null</code>.
+	 * @param className
+	 *            the className of the StoreObject. Must not be
+	 *            <code>null</code>.
+	 * @param bb
+	 *            the buffer to decode from, at its position. Must not be
+	 *            <code>null</code>. On return, its position is after the
+	 *            StoreObject.
+	 * @return the StoreObject. Will not be <code>null</code>.
+	 * @throws StoreException
+	 *             if the className does not exist, its fields are not those
+	 *             the StoreObject was encoded with, or bb does not hold a
+	 *             valid encoded StoreObject.
+	 */
+	public static StoreObject decode(IObjectStore store, String className,
+			ByteBuffer bb) throws StoreException {
+		Util.checkArgNotNull(store, "store");
+		Util.checkArgNotNull(className, "className");
+		Util.checkArgNotNull(bb, "bb");
+		try {
+			long fingerprint = bb.getLong();
+			StoreObject result = store.createStoreObject(className,
+					new UUID(bb.getLong(), bb.getLong()));
+			long lastModifiedAt = bb.getLong();
+			Schema schema = schema(result.getMetadata());
+			if (schema.fingerprint != fingerprint)
+				throw new StoreException(
+						"StoreObject was encoded with different fields than those of className="
+								+ className);
+			result.setLastModifiedAt((lastModifiedAt == NO_DATE) ? null
+					: new Date(lastModifiedAt));
+			result.decodeValues(bb, schema.header, schema.indexes, true);
+			return result;
+		} catch (BufferUnderflowException e) {
+			throw new StoreException("truncated StoreObject of className="
+					+ className, e);
+		} catch (IllegalArgumentException e) {
+			// e.g. an invalid BigInteger
+			throw new StoreException("invalid StoreObject of className="
+					+ className, e);
+		}
+	}
+
+	/**
+	 * Write the id, lastModifiedAt and the values present of the given
+	 * StoreObject, by field ordinal.
+	 * 
+	 * @throws java.nio.BufferOverflowException
+	 *             if bb does not have enough space. The position of bb is
+	 *             then undefined.
+	 * @throws IllegalArgumentException
+	 *             if the StoreObject has no id.
+	 * @throws StoreException
+	 *             if a collection holds a <code>null</code> element.
+	 */
+	static void encodeRow(StoreObject storeObject, ByteBuffer bb)
+			throws StoreException {
+		UUID id = storeObject.getId();
+		if (id == null)
+			throw new IllegalArgumentException("StoreObject of className="
+					+ storeObject.getClassName() + " has no id");
+		bb.putLong(id.getMostSignificantBits());
+		bb.putLong(id.getLeastSignificantBits());
+		Date lastModifiedAt = storeObject.getLastModifiedAt();
+		bb.putLong((lastModifiedAt == null) ? NO_DATE : lastModifiedAt
+				.getTime());
+		storeObject.encodeValues(bb);
+	}
+
+	/**
+	 * Read the id and lastModifiedAt of a StoreObject written by
+	 * {@link #encodeRow}. Must be followed by
+	 * {@link StoreObject#decodeValues(ByteBuffer, Header, int[], boolean)}.
+	 * 
+	 * @return the id. The lastModifiedAt is skipped, since stores assign it
+	 *         when the StoreObject is stored.
+	 */
+	static UUID decodeId(ByteBuffer bb) {
+		UUID result = new UUID(bb.getLong(), bb.getLong());
+		bb.getLong();
+		return result;
+	}
+
+	static void putEnd(ByteBuffer bb) {
+		bb.putShort(END);
+	}
+
+	/**
+	 * Write an unboxed Long, Integer, Boolean, Float or Double value, as held
+	 * by StoreObject.
+	 */
+	static void putBits(ByteBuffer bb, byte code, long bits) {
+		switch (code) {
+		case 3:
+		case 8:
+			bb.putLong(bits);
+			break;
+		case 4:
+		case 7:
+			bb.putInt((int) bits);
+			break;
+		case 6:
+			bb.put((byte) bits);
+			break;
+		default:
+			throw new IllegalArgumentException("invalid type code=" + code);
+		}
+	}
+
+	/**
+	 * Read a value written by {@link #putBits}.
+	 */
+	static long getBits(ByteBuffer bb, byte code) throws StoreException {
+		switch (code) {
+		case 3:
+		case 8:
+			return bb.getLong();
+		case 4:
+		case 7:
+			return bb.getInt();
+		case 6:
+			return (bb.get() != 0) ? 1 : 0;
+		default:
+			throw new StoreException("invalid type code=" + code);
+		}
+	}
+
+	/**
+	 * Read a collection value written by {@link #putCollection}, for the field
+	 * of the given ordinal in header.
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	static CollectionValue getCollection(ByteBuffer bb, Header header, int i)
+			throws StoreException {
+		byte first = header.firstTypes[i];
+		int size = getLength(bb);
+		switch (header.types[i]) {
+		case COLLECTION_CODE: {
+			byte second = header.secondTypes[i];
+			Map map = new LinkedHashMap(size * 2);
+			for (int j = 0; j < size; j++)
+				map.put(getValue(bb, first), getValue(bb, second));
+			return CollectionValue.map(typeOf(first), typeOf(second), map);
+		}
+		case COLLECTION_CODE + 1: {
+			List list = new ArrayList(size);
+			for (int j = 0; j < size; j++)
+				list.add(getValue(bb, first));
+			return CollectionValue.list(typeOf(first), list);
+		}
+		case COLLECTION_CODE + 2: {
+			Set set = new LinkedHashSet(size * 2);
+			for (int j = 0; j < size; j++)
+				set.add(getValue(bb, first));
+			return CollectionValue.set(typeOf(first), set);
+		}
+		default:
+			throw new StoreException("invalid collection type code="
+					+ header.types[i]);
+		}
+	}
+
+	static Object getValue(ByteBuffer bb, byte code)
+			throws StoreException {
+		switch (code) {
+		case 1:
+			return getString(bb);
+		case 2:
+			ByteBuffer bytes = getBytes(bb);
+			ByteBuffer copy = ByteBuffer.allocate(bytes.remaining());
+			copy.put(bytes).flip();
+			return copy;
+		case 3:
+			return Long.valueOf(bb.getLong());
+		case 4:
+			return Integer.valueOf(bb.getInt());
+		case 5:
+			return new Date(bb.getLong());
+		case 6:
+			return Boolean.valueOf(bb.get() != 0);
+		case 7:
+			return Float.valueOf(bb.getFloat());
+		case 8:
+			return Double.valueOf(bb.getDouble());
+		case 9:
+			int scale = bb.getInt();
+			return new BigDecimal(new BigInteger(getByteArray(bb)), scale);
+		case 10:
+			return new UUID(bb.getLong(), bb.getLong());
+		case 11:
+			return new BigInteger(getByteArray(bb));
+		case 12:
+			try {
+				return InetAddress.getByAddress(getByteArray(bb));
+			} catch (UnknownHostException e) {
+				throw new StoreException("invalid InetAddress", e);
+			}
+		default:
+			throw new StoreException("invalid type code=" + code);
+		}
+	}
+
+	@SuppressWarnings("rawtypes")
+	static void putCollection(ByteBuffer bb, FieldMetadata field,
+			Object value) throws StoreException {
+		byte first = typeCode(field.getFirstElementType());
+		if (value instanceof Map) {
+			byte second = typeCode(field.getSecondElementType());
+			Map map = (Map) value;
+			bb.putInt(map.size());
+			for (Object o : map.entrySet()) {
+				Map.Entry entry = (Map.Entry) o;
+				putElement(bb, field, first, entry.getKey());
+				putElement(bb, field, second, entry.getValue());
+			}
+			return;
+		}
+		Collection collection = (Collection) value;
+		bb.putInt(collection.size());
+		for (Object o : collection)
+			putElement(bb, field, first, o);
+	}
+
+	private static void putElement(ByteBuffer bb, FieldMetadata field,
+			byte code, Object value) throws StoreException {
+		if (value == null)
+			throw new StoreException("null element in collection field="
+					+ field.getName());
+		putValue(bb, code, value);
+	}
+
+	static void putValue(ByteBuffer bb, byte code, Object value) {
+		switch (code) {
+		case 1:
+			putString(bb, (String) value);
+			break;
+		case 2:
+			putBytes(bb, ((ByteBuffer) value).duplicate());
+			break;
+		case 3:
+			bb.putLong(((Long) value).longValue());
+			break;
+		case 4:
+			bb.putInt(((Integer) value).intValue());
+			break;
+		case 5:
+			bb.putLong(((Date) value).getTime());
+			break;
+		case 6:
+			bb.put(((Boolean) value).booleanValue() ? (byte) 1 : (byte) 0);
+			break;
+		case 7:
+			bb.putFloat(((Float) value).floatValue());
+			break;
+		case 8:
+			bb.putDouble(((Double) value).doubleValue());
+			break;
+		case 9:
+			BigDecimal d = (BigDecimal) value;
+			bb.putInt(d.scale());
+			putBytes(bb, d.unscaledValue().toByteArray());
+			break;
+		case 10:
+			UUID u = (UUID) value;
+			bb.putLong(u.getMostSignificantBits());
+			bb.putLong(u.getLeastSignificantBits());
+			break;
+		case 11:
+			putBytes(bb, ((BigInteger) value).toByteArray());
+			break;
+		case 12:
+			putBytes(bb, ((InetAddress) value).getAddress());
+			break;
+		default:
+			throw new IllegalArgumentException("invalid type code=" + code);
+		}
+	}
+}
@@ -27,6 +27,39 @@ public interface StoreObjectMetadata {
 
 	public FieldMetadata getField(String fieldName);
 
+	/**
+	 * Get the ordinal of a field, which is its position in the collection
+	 * returned by {@link #getFields()}. StoreObjects use the ordinal to index
+	 * field values, so implementations must be immutable (or must at least
+	 * never change the ordinal of an existing field).
+	 * 
+	 * @param fieldName
+	 *            the field name. Must not be <code>null</code>.
+	 * @return the ordinal of the field, or -1 if there is no field with the
+	 *         given name.
+	 */
+	public int getFieldIndex(String fieldName);
+
+	/**
+	 * Get a field by its ordinal (see {@link #getFieldIndex(String)}).
+	 * 
+	 * @param index
+	 *            the ordinal of the field. Must be >= 0 and less than the
+	 *            number of fields.
+	 * @return the field. Will not be <code>null</code>.
+	 */
+	public FieldMetadata getField(int index);
+
+	/**
+	 * Get the schema version of this metadata. The version is increased by
+	 * every schema change to the object table (adding, dropping or changing
+	 * the type of a field), so of two metadata instances for the same
+	 * className, the one with the greater version is the more recent.
+	 * 
+	 * @return the schema version. Will be >= 0.
+	 */
+	public long getVersion();
+
 	public Collection<FieldMetadata> getPrimaryKey();
 
 	public static interface FieldMetadata {
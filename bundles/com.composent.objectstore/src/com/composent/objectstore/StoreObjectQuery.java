@@ -19,9 +19,14 @@ package com.composent.objectstore;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
 
 import com.composent.objectstore.IObjectStore.ConsistencyLevel;
+import com.composent.objectstore.IObjectStore.ScanHandler;
 import com.composent.objectstore.IObjectStore.Util;
 import com.composent.objectstore.IObjectStore.Value;
 import com.composent.objectstore.StoreObjectQuery.Relation.Op;
@@ -124,6 +129,55 @@ public abstract class StoreObjectQuery {
 		}
 	}
 
+	/**
+	 * A single page of query results.
+	 */
+	public static class Page {
+		private final List<StoreObject> storeObjects;
+		private final byte[] state;
+		private int queryHash;
+
+		/**
+		 * @param storeObjects
+		 *            the StoreObjects in this page. Must not be
+		 *            <code>null</code>.
+		 * @param state
+		 *            implementation state to pass to
+		 *            {@link StoreObjectQuery#fetchPage(byte[], int)} to fetch
+		 *            the next page, or <code>null</code> if this is the last
+		 *            page.
+		 */
+		public Page(List<StoreObject> storeObjects, byte[] state) {
+			Util.checkArgNotNull(storeObjects, "storeObjects");
+			this.storeObjects = storeObjects;
+			this.state = state;
+		}
+
+		public List<StoreObject> getStoreObjects() {
+			return this.storeObjects;
+		}
+
+		/**
+		 * @return the paging state to resume from after this page (see
+		 *         {@link StoreObjectQuery#setPagingState(PagingState)}), or
+		 *         <code>null</code> if this is the last page.
+		 */
+		public PagingState getPagingState() {
+			return (this.state == null) ? null : new PagingState(
+					this.queryHash, this.state);
+		}
+
+		byte[] getState() {
+			return this.state;
+		}
+	}
+
+	/**
+	 * Default number of StoreObjects fetched per page by {@link #iterate()}
+	 * and {@link #executePage()}.
+	 */
+	public static final int DEFAULT_FETCH_SIZE = 5000;
+
 	private final IObjectStore store;
 	private final StoreObjectMetadata metadata;
 	private String queryName;
@@ -131,6 +185,11 @@ public abstract class StoreObjectQuery {
 	private Integer limit;
 	private boolean allowFiltering;
 	private ConsistencyLevel consistencyLevel;
+	private Integer fetchSize;
+	private boolean prefetch = true;
+	private boolean cacheable = true;
+	private PagingState pagingState;
+	private List<String> selection;
 
 	protected StoreObjectQuery(IObjectStore store,
 			StoreObjectMetadata metadata, String queryName) {
@@ -185,6 +244,48 @@ public abstract class StoreObjectQuery {
 		return this.where;
 	}
 
+	/**
+	 * Restrict the fields fetched and revived by this query to the given
+	 * fields (plus {@link StoreObject#ID_NAME} and
+	 * {@link StoreObject#LASTMODIFIEDDATE_NAME}, which are always fetched).
+	 * Fields that are not selected are absent from the resulting StoreObjects
+	 * (see {@link StoreObject#isPresent(String)} and
+	 * {@link StoreObject#getProjection()}) rather than <code>null</code>, so
+	 * storing a resulting StoreObject does not overwrite them.
+	 * 
+	 * @param fieldNames
+	 *            the names of the fields to select. If <code>null</code> or
+	 *            empty, all fields are selected.
+	 * @return this query
+	 * @throws IllegalArgumentException
+	 *             if a field name is not a field of this query's class.
+	 */
+	public StoreObjectQuery select(String... fieldNames) {
+		if (fieldNames == null || fieldNames.length == 0) {
+			this.selection = null;
+			return this;
+		}
+		List<String> names = new ArrayList<String>(fieldNames.length);
+		for (String name : fieldNames) {
+			Util.checkArgNotNull(name, "fieldName");
+			if (this.metadata.getField(name) == null)
+				throw new IllegalArgumentException("fieldName=" + name
+						+ " not found as field of class=" + getClassName());
+			if (!names.contains(name))
+				names.add(name);
+		}
+		this.selection = Collections.unmodifiableList(names);
+		return this;
+	}
+
+	/**
+	 * @return the names of the fields selected by {@link #select(String...)},
+	 *         or <code>null</code> if all fields are selected.
+	 */
+	public List<String> getSelection() {
+		return this.selection;
+	}
+
 	public ConsistencyLevel getConsistencyLevel() {
 		return this.consistencyLevel;
 	}
@@ -194,4 +295,265 @@ public abstract class StoreObjectQuery {
 	}
 
 	public abstract Collection<StoreObject> execute() throws StoreException;
+
+	public Integer getFetchSize() {
+		return this.fetchSize;
+	}
+
+	/**
+	 * Set the number of StoreObjects fetched per page by {@link #iterate()}
+	 * and {@link #executePage()}.
+	 * 
+	 * @param fetchSize
+	 *            the page size. If <code>null</code>,
+	 *            {@link #DEFAULT_FETCH_SIZE} is used. Must be > 0 if not
+	 *            <code>null</code>.
+	 * @return this query
+	 */
+	public StoreObjectQuery setFetchSize(Integer fetchSize) {
+		if (fetchSize != null && fetchSize.intValue() < 1)
+			throw new IllegalArgumentException("fetchSize must be > 0");
+		this.fetchSize = fetchSize;
+		return this;
+	}
+
+	public boolean getPrefetch() {
+		return this.prefetch;
+	}
+
+	/**
+	 * Set whether {@link #iterate()} fetches the next page in the background
+	 * (on the store's async executor) while the current page is consumed. The
+	 * default is <code>true</code>.
+	 * 
+	 * @param prefetch
+	 *            <code>true</code> to prefetch the next page.
+	 * @return this query
+	 */
+	public StoreObjectQuery setPrefetch(boolean prefetch) {
+		this.prefetch = prefetch;
+		return this;
+	}
+
+	public boolean getCacheable() {
+		return this.cacheable;
+	}
+
+	/**
+	 * Set whether the results of this query may be served from, and added
+	 * to, the store's cache of StoreObjects read by id (if it has one). Large
+	 * StoreObjects that are read once, such as blob chunks (see
+	 * {@link BlobStore}), should not be cached, as they would displace
+	 * smaller and more frequently read StoreObjects, and the cache is bounded
+	 * by count rather than by size. The default is <code>true</code>.
+	 * 
+	 * @param cacheable
+	 *            <code>false</code> to bypass the cache.
+	 * @return this query
+	 */
+	public StoreObjectQuery setCacheable(boolean cacheable) {
+		this.cacheable = cacheable;
+		return this;
+	}
+
+	/**
+	 * Execute this query, streaming results page by page rather than
+	 * materializing all results as {@link #execute()} does. Pages of
+	 * {@link #getFetchSize()} StoreObjects are fetched as the returned
+	 * Iterator is consumed, so at most two pages (the current page and the
+	 * prefetched next page) are held at once. The query limit, if set, still
+	 * applies to the total number of StoreObjects returned. Errors fetching
+	 * pages after the first are thrown from the Iterator as
+	 * {@link UncheckedStoreException}. If {@link #getPagingState()} is set,
+	 * iteration starts from that position.
+	 * 
+	 * @return Iterator over the query results. Will not be <code>null</code>.
+	 *         The returned Iterator does not support remove.
+	 * @throws StoreException
+	 *             if the first page cannot be fetched.
+	 */
+	public Iterator<StoreObject> iterate() throws StoreException {
+		int size = (this.fetchSize == null) ? DEFAULT_FETCH_SIZE
+				: this.fetchSize.intValue();
+		return new PagingIterator(this, size, this.prefetch, getState());
+	}
+
+	public PagingState getPagingState() {
+		return this.pagingState;
+	}
+
+	/**
+	 * Set the position from which {@link #executePage()} and
+	 * {@link #iterate()} return results.
+	 * 
+	 * @param pagingState
+	 *            paging state returned by {@link Page#getPagingState()} for a
+	 *            query of the same class and with the same Where clause as
+	 *            this query. If <code>null</code>, results are returned from
+	 *            the start.
+	 * @return this query
+	 */
+	public StoreObjectQuery setPagingState(PagingState pagingState) {
+		this.pagingState = pagingState;
+		return this;
+	}
+
+	/**
+	 * Execute this query, returning a single page of at most
+	 * {@link #getFetchSize()} (or the query limit, if smaller) StoreObjects,
+	 * starting from the position given by {@link #getPagingState()}. The
+	 * cost of fetching a page does not depend on how deep into the results
+	 * the page is, so paging through all results with successive calls of
+	 * the form:
+	 * 
+	 * <pre>
+	 * query.setPagingState(page.getPagingState());
+	 * page = query.executePage();
+	 * </pre>
+	 * 
+	 * is linear in the number of results.
+	 * 
+	 * @return the Page. Will not be <code>null</code>. If
+	 *         {@link Page#getPagingState()} is <code>null</code>, there are
+	 *         no further results.
+	 * @throws StoreException
+	 *             if the paging state was not returned by a query for the
+	 *             same class and Where clause, or the page cannot be fetched.
+	 */
+	public Page executePage() throws StoreException {
+		int size = (this.fetchSize == null) ? DEFAULT_FETCH_SIZE
+				: this.fetchSize.intValue();
+		if (this.limit != null)
+			size = Math.min(size, this.limit.intValue());
+		Page page = (size < 1) ? new Page(
+				Collections.<StoreObject> emptyList(), null) : fetchPage(
+				getState(), size);
+		page.queryHash = getQueryHash();
+		return page;
+	}
+
+	private byte[] getState() throws StoreException {
+		if (this.pagingState == null)
+			return null;
+		if (this.pagingState.getQueryHash() != getQueryHash())
+			throw new StoreException(
+					"paging state does not match query for class="
+							+ getClassName());
+		return this.pagingState.getState();
+	}
+
+	/**
+	 * Hash of the class name and Where clause of this query, so that paging
+	 * state cannot be used to resume a different query.
+	 */
+	private int getQueryHash() {
+		int result = getClassName().hashCode();
+		if (this.where != null)
+			for (Relation r : this.where.getRelations()) {
+				result = 31 * result + r.getIdentifier().hashCode();
+				result = 31 * result
+						+ ((r.getOpType() == null) ? 0 : r.getOpType()
+								.ordinal() + 1);
+				for (Value v : r.getTypeValues()) {
+					Object o = v.isCollection() ? v.getCollectionValue()
+							.getValue() : v.getValue();
+					result = 31 * result + ((o == null) ? 0 : o.hashCode());
+				}
+			}
+		return result;
+	}
+
+	/**
+	 * Fetch a single page of results for this query. Implementations must
+	 * return StoreObjects in a stable order, so that the returned paging
+	 * state identifies the position after the last StoreObject in the page.
+	 * The state must remain valid across separate query instances (with the
+	 * same class and Where clause).
+	 * 
+	 * @param state
+	 *            the state from the previous page (see
+	 *            {@link Page#Page(List, byte[])}), or <code>null</code> to
+	 *            fetch the first page.
+	 * @param pageSize
+	 *            the maximum number of StoreObjects to return. Will be > 0.
+	 *            Implementations should throw
+	 *            {@link IllegalArgumentException} otherwise.
+	 * @return the Page. Must not be <code>null</code>.
+	 * @throws StoreException
+	 *             if the page cannot be fetched.
+	 */
+	protected abstract Page fetchPage(byte[] state, int pageSize)
+			throws StoreException;
+
+	/**
+	 * Execute this query as a parallel scan. The token ring is split into the
+	 * given number of ranges (see {@link TokenRange#split(int)}), which are
+	 * scanned concurrently on the store's async executor, and each matching
+	 * StoreObject is passed to the handler as it is scanned, rather than
+	 * collected. The query limit and paging state do not apply.
+	 * 
+	 * @param splits
+	 *            the number of token ranges to scan concurrently. Must be >
+	 *            0.
+	 * @param handler
+	 *            the handler for matching StoreObjects, which is called
+	 *            concurrently. StoreObjects are passed in token order within
+	 *            each range, but in no order across ranges. Must not be
+	 *            <code>null</code>.
+	 * @throws StoreException
+	 *             if a range cannot be scanned, or the handler throws a
+	 *             StoreException.
+	 */
+	public void scan(int splits, final ScanHandler<? super StoreObject> handler)
+			throws StoreException {
+		Util.checkArgNotNull(handler, "handler");
+		TokenRange.scanAll(getStore().getAsyncExecutor(),
+				TokenRange.split(splits), new TokenRange.Scanner() {
+					public void scan(TokenRange range) throws StoreException {
+						scanRange(range, handler);
+					}
+				});
+	}
+
+	/**
+	 * Scan a single token range for {@link #scan(int, ScanHandler)}. Called
+	 * concurrently for different ranges.
+	 * 
+	 * @param range
+	 *            the token range. Will not be <code>null</code>.
+	 * @param handler
+	 *            the handler for StoreObjects in range that match this query.
+	 *            Will not be <code>null</code>.
+	 * @throws StoreException
+	 *             if the range cannot be scanned, or the handler throws a
+	 *             StoreException.
+	 */
+	protected abstract void scanRange(TokenRange range,
+			ScanHandler<? super StoreObject> handler) throws StoreException;
+
+	/**
+	 * Execute this query asynchronously on the store's async executor (see
+	 * {@link IObjectStore#getAsyncExecutor()}).
+	 * 
+	 * @return StoreFuture that completes with the result of {@link #execute()}.
+	 */
+	public StoreFuture<Collection<StoreObject>> executeAsync() {
+		return executeAsync(getStore().getAsyncExecutor());
+	}
+
+	/**
+	 * Execute this query asynchronously on the given executor.
+	 * 
+	 * @param executor
+	 *            the executor to run {@link #execute()}. If <code>null</code>
+	 *            an {@link IllegalArgumentException} is thrown.
+	 * @return StoreFuture that completes with the result of {@link #execute()}.
+	 */
+	public StoreFuture<Collection<StoreObject>> executeAsync(Executor executor) {
+		return Util.submit(executor, new Callable<Collection<StoreObject>>() {
+			public Collection<StoreObject> call() throws Exception {
+				return execute();
+			}
+		});
+	}
 }
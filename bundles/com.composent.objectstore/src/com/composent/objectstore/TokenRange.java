@@ -0,0 +1,204 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Composent, Inc. and others. All rights reserved. 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ * 
+ * Contributors: Composent, Inc. - initial API and implementation
+ ******************************************************************************/
+package com.composent.objectstore;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.composent.objectstore.IObjectStore.Util;
+
+/**
+ * Contiguous range of the token ring, from {@link #getStart()} to
+ * {@link #getEnd()} inclusive. Tokens are the signed 64 bit partition key
+ * hashes by which rows are distributed, so a full table scan may be split into
+ * sub-ranges (see {@link #split(int)}) that are scanned concurrently, each by
+ * a different coordinator, rather than through a single sequential stream.
+ */
+public final class TokenRange {
+
+	public static final long MIN_TOKEN = Long.MIN_VALUE;
+	public static final long MAX_TOKEN = Long.MAX_VALUE;
+
+	private static final BigInteger RING_SIZE = BigInteger.ONE.shiftLeft(64);
+
+	/**
+	 * Scans a single token range, for
+	 * {@link TokenRange#scanAll(Executor, List, Scanner)}.
+	 */
+	public static interface Scanner {
+		/**
+		 * @param range
+		 *            the range to scan. Will not be <code>null</code>.
+		 * @throws StoreException
+		 *             if the range cannot be scanned.
+		 */
+		public void scan(TokenRange range) throws StoreException;
+	}
+
+	private final long start;
+	private final long end;
+
+	/**
+	 * @param start
+	 *            the first token of the range.
+	 * @param end
+	 *            the last token of the range. Must be >= start.
+	 */
+	public TokenRange(long start, long end) {
+		if (end < start)
+			throw new IllegalArgumentException("end must be >= start");
+		this.start = start;
+		this.end = end;
+	}
+
+	/**
+	 * Split the whole token ring into contiguous ranges of (nearly) equal
+	 * size.
+	 * 
+	 * @param count
+	 *            the number of ranges. Must be > 0.
+	 * @return the ranges, in token order. Will not be <code>null</code>.
+	 */
+	public static List<TokenRange> split(int count) {
+		if (count < 1)
+			throw new IllegalArgumentException("count must be > 0");
+		List<TokenRange> results = new ArrayList<TokenRange>(count);
+		long start = MIN_TOKEN;
+		for (int i = 1; i < count; i++) {
+			long next = RING_SIZE.multiply(BigInteger.valueOf(i))
+					.divide(BigInteger.valueOf(count))
+					.add(BigInteger.valueOf(MIN_TOKEN)).longValue();
+			results.add(new TokenRange(start, next - 1));
+			start = next;
+		}
+		results.add(new TokenRange(start, MAX_TOKEN));
+		return results;
+	}
+
+	/**
+	 * Scan the given ranges concurrently, and wait for all scans to complete.
+	 * The first range is scanned by the calling thread, and the others on
+	 * the given executor. If a scan fails, ranges not yet started are
+	 * skipped, and once the scans that had started have completed, the
+	 * failure of the first range (in the order of ranges) that failed is
+	 * thrown.
+	 * 
+	 * @param executor
+	 *            the executor for all ranges after the first. Must not be
+	 *            <code>null</code>.
+	 * @param ranges
+	 *            the ranges to scan. Must not be <code>null</code>.
+	 * @param scanner
+	 *            the scanner, which is called concurrently for different
+	 *            ranges. Must not be <code>null</code>.
+	 * @throws StoreException
+	 *             the StoreException thrown by the scanner for the first
+	 *             range that failed.
+	 */
+	public static void scanAll(Executor executor, List<TokenRange> ranges,
+			final Scanner scanner) throws StoreException {
+		Util.checkArgNotNull(executor, "executor");
+		Util.checkArgNotNull(ranges, "ranges");
+		Util.checkArgNotNull(scanner, "scanner");
+		final AtomicBoolean failed = new AtomicBoolean();
+		List<Future<Void>> futures = new ArrayList<Future<Void>>(ranges.size());
+		for (final TokenRange range : ranges) {
+			Callable<Void> callable = new Callable<Void>() {
+				public Void call() throws Exception {
+					if (failed.get())
+						return null;
+					boolean done = false;
+					try {
+						scanner.scan(range);
+						done = true;
+					} finally {
+						if (!done)
+							failed.set(true);
+					}
+					return null;
+				}
+			};
+			if (futures.isEmpty())
+				futures.add(new FutureTask<Void>(callable));
+			else
+				futures.add(Util.submit(executor, callable));
+		}
+		if (!futures.isEmpty())
+			((FutureTask<Void>) futures.get(0)).run();
+		StoreException error = null;
+		RuntimeException runtime = null;
+		for (Future<Void> future : futures)
+			try {
+				Util.get(future);
+			} catch (StoreException e) {
+				if (error == null && runtime == null)
+					error = e;
+			} catch (RuntimeException e) {
+				if (error == null && runtime == null)
+					runtime = e;
+			}
+		if (runtime != null)
+			throw runtime;
+		if (error != null)
+			throw error;
+	}
+
+	public long getStart() {
+		return this.start;
+	}
+
+	public long getEnd() {
+		return this.end;
+	}
+
+	/**
+	 * @param token
+	 *            the token.
+	 * @return <code>true</code> if token is in this range.
+	 */
+	public boolean contains(long token) {
+		return token >= this.start && token <= this.end;
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * (int) (this.start ^ (this.start >>> 32))
+				+ (int) (this.end ^ (this.end >>> 32));
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (!(obj instanceof TokenRange))
+			return false;
+		TokenRange other = (TokenRange) obj;
+		return this.start == other.start && this.end == other.end;
+	}
+
+	@Override
+	public String toString() {
+		return "TokenRange[start=" + this.start + ";end=" + this.end + "]";
+	}
+}
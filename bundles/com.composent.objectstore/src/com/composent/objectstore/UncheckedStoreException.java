@@ -0,0 +1,42 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Composent, Inc. and others. All rights reserved. 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ * 
+ * Contributors: Composent, Inc. - initial API and implementation
+ ******************************************************************************/
+package com.composent.objectstore;
+
+/**
+ * Unchecked wrapper for a {@link StoreException}, thrown where the calling
+ * interface (e.g. {@link java.util.Iterator}) does not allow checked
+ * exceptions.
+ */
+public class UncheckedStoreException extends RuntimeException {
+
+	private static final long serialVersionUID = 3212766931839271512L;
+
+	public UncheckedStoreException(StoreException cause) {
+		super(cause);
+	}
+
+	public UncheckedStoreException(String message, StoreException cause) {
+		super(message, cause);
+	}
+
+	@Override
+	public StoreException getCause() {
+		return (StoreException) super.getCause();
+	}
+
+}
@@ -0,0 +1,106 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Composent, Inc. and others. All rights reserved. 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ * 
+ * Contributors: Composent, Inc. - initial API and implementation
+ ******************************************************************************/
+package com.composent.objectstore.memory;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.composent.objectstore.IObjectStore.Util;
+import com.composent.objectstore.StoreObjectMetadata.FieldMetadata;
+
+final class MemoryFieldMetadata implements FieldMetadata {
+
+	private final String name;
+	private final Class<?> type;
+	private final Class<?> firstElementType;
+	private final Class<?> secondElementType;
+
+	MemoryFieldMetadata(String name, Class<?> type, Class<?> firstElementType,
+			Class<?> secondElementType) {
+		Util.checkArgNotNull(name, "name");
+		Util.checkArgNotNull(type, "type");
+		this.name = name;
+		this.type = type;
+		this.firstElementType = firstElementType;
+		this.secondElementType = secondElementType;
+	}
+
+	MemoryFieldMetadata(String name, Class<?> type) {
+		this(name, type, null, null);
+	}
+
+	public String getName() {
+		return this.name;
+	}
+
+	public Class<?> getType() {
+		return this.type;
+	}
+
+	public boolean isCollectionType() {
+		return Util.isRawCollectionType(this.type);
+	}
+
+	public boolean isMap() {
+		return Map.class.equals(this.type);
+	}
+
+	public boolean isSet() {
+		return Set.class.equals(this.type);
+	}
+
+	public boolean isList() {
+		return List.class.equals(this.type);
+	}
+
+	public Class<?> getFirstElementType() {
+		return this.firstElementType;
+	}
+
+	public Class<?> getSecondElementType() {
+		return this.secondElementType;
+	}
+
+	public boolean isValid(Class<?> type) {
+		return !isCollectionType() && this.type.equals(type);
+	}
+
+	public boolean isValid(Class<?> collectionType, Class<?> firstElementType,
+			Class<?> secondElementType) {
+		if (!isCollectionType() || !this.type.equals(collectionType))
+			return false;
+		if (!this.firstElementType.equals(firstElementType))
+			return false;
+		return (this.secondElementType == null) ? secondElementType == null
+				: this.secondElementType.equals(secondElementType);
+	}
+
+	@Override
+	public String toString() {
+		StringBuffer buf = new StringBuffer(this.name).append(':');
+		buf.append(this.type.getSimpleName());
+		if (isCollectionType()) {
+			buf.append('<').append(this.firstElementType.getSimpleName());
+			if (this.secondElementType != null)
+				buf.append(',').append(this.secondElementType.getSimpleName());
+			buf.append('>');
+		}
+		return buf.toString();
+	}
+}
@@ -0,0 +1,819 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Composent, Inc. and others. All rights reserved. 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ * 
+ * Contributors: Composent, Inc. - initial API and implementation
+ ******************************************************************************/
+package com.composent.objectstore.memory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+import com.composent.objectstore.BatchStoreException;
+import com.composent.objectstore.IObjectStore;
+import com.composent.objectstore.MetadataCache;
+import com.composent.objectstore.ObjectCache;
+import com.composent.objectstore.StatementCache;
+import com.composent.objectstore.StoreBatch;
+import com.composent.objectstore.StoreException;
+import com.composent.objectstore.StoreFuture;
+import com.composent.objectstore.StoreObject;
+import com.composent.objectstore.StoreObjectMetadata;
+import com.composent.objectstore.StoreObjectMetadata.FieldMetadata;
+import com.composent.objectstore.StoreObjectQuery;
+import com.composent.objectstore.StoreObjectQuery.Where;
+import com.composent.objectstore.StoreResult;
+import com.composent.objectstore.TokenRange;
+
+/**
+ * In-memory implementation of {@link IObjectStore}. Object tables are held
+ * in-process, so this implementation has no network or serialization cost and
+ * may be used as a baseline for measuring client-side overhead, or as a test
+ * double for services that use IObjectStore. ConsistencyLevels are accepted
+ * but ignored, since there is only one (local) replica. Lightweight
+ * transaction semantics (see {@link StoreObject#getIfNotExistsItems()}) are
+ * honored via atomic compare and swap of rows.
+ */
+public class MemoryObjectStore implements IObjectStore {
+
+	private static final int MAX_IDENTIFIER_LENGTH = 48;
+	private static final Pattern IDENTIFIER_PATTERN = Pattern
+			.compile("[a-zA-Z0-9_]*");
+
+	private final ConcurrentMap<String, MemoryObjectTable> tables = new ConcurrentHashMap<String, MemoryObjectTable>();
+	private final MetadataCache metadataCache = new MetadataCache(
+			new MetadataCache.Loader() {
+				public StoreObjectMetadata load(String className)
+						throws StoreException {
+					return getTable(className).getMetadata();
+				}
+			});
+	private final StatementCache<MemoryStatement> statementCache = new StatementCache<MemoryStatement>(
+			new StatementCache.Preparer<MemoryStatement>() {
+				public MemoryStatement prepare(StatementCache.Key key)
+						throws StoreException {
+					return MemoryStatement.prepare(key);
+				}
+			});
+
+	private final ObjectCache objectCache = new ObjectCache(
+			new ObjectCache.Loader() {
+				public StoreObject load(String className, UUID id)
+						throws StoreException {
+					MemoryObjectTable table = getTable(className);
+					MemoryRow row = table.get(id);
+					return (row == null) ? null : revive(table.getMetadata(),
+							row);
+				}
+
+				public Date loadLastModifiedAt(String className, UUID id)
+						throws StoreException {
+					MemoryRow row = getTable(className).get(id);
+					return (row == null) ? null : row.getLastModifiedAt();
+				}
+			});
+
+	private volatile int maxBatchStatements = StoreBatch.DEFAULT_MAX_STATEMENTS;
+	private volatile int maxBatchBytes = StoreBatch.DEFAULT_MAX_BYTES;
+	private volatile int maxBatchParallelism = StoreBatch.DEFAULT_MAX_PARALLELISM;
+	private volatile Executor asyncExecutor;
+
+	/**
+	 * Default async executor, shared by all MemoryObjectStore instances that
+	 * are not given an executor. Threads are daemon threads, so that the
+	 * executor does not prevent exit.
+	 */
+	private static class DefaultExecutorHolder {
+		static final Executor EXECUTOR = Executors
+				.newCachedThreadPool(new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "MemoryObjectStore-async-"
+								+ count.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					}
+				});
+	}
+
+	public MemoryObjectStore() {
+		this(null);
+	}
+
+	/**
+	 * @param asyncExecutor
+	 *            the executor for asynchronous operations. If
+	 *            <code>null</code>, a shared default executor is used.
+	 */
+	public MemoryObjectStore(Executor asyncExecutor) {
+		setAsyncExecutor(asyncExecutor);
+	}
+
+	public Executor getAsyncExecutor() {
+		return this.asyncExecutor;
+	}
+
+	public void setAsyncExecutor(Executor asyncExecutor) {
+		this.asyncExecutor = (asyncExecutor == null) ? DefaultExecutorHolder.EXECUTOR
+				: asyncExecutor;
+	}
+
+	private static void checkIdentifier(String identifier, String name) {
+		Util.checkArgNotNull(identifier, name);
+		if (identifier.length() == 0
+				|| identifier.length() > MAX_IDENTIFIER_LENGTH
+				|| !IDENTIFIER_PATTERN.matcher(identifier).matches())
+			throw new IllegalArgumentException(name + "=" + identifier
+					+ " is not a valid identifier");
+	}
+
+	public int getMaxBatchStatements() {
+		return this.maxBatchStatements;
+	}
+
+	public void setMaxBatchStatements(int maxBatchStatements) {
+		if (maxBatchStatements < 1)
+			throw new IllegalArgumentException("maxBatchStatements must be > 0");
+		this.maxBatchStatements = maxBatchStatements;
+	}
+
+	public int getMaxBatchBytes() {
+		return this.maxBatchBytes;
+	}
+
+	public void setMaxBatchBytes(int maxBatchBytes) {
+		if (maxBatchBytes < 1)
+			throw new IllegalArgumentException("maxBatchBytes must be > 0");
+		this.maxBatchBytes = maxBatchBytes;
+	}
+
+	public int getMaxBatchParallelism() {
+		return this.maxBatchParallelism;
+	}
+
+	/**
+	 * Set the maximum number of tasks writing batches concurrently in
+	 * {@link #storeAll(Collection)}.
+	 * 
+	 * @param maxBatchParallelism
+	 *            the maximum number of tasks. Must be > 0. If 1, batches are
+	 *            written by the calling thread.
+	 */
+	public void setMaxBatchParallelism(int maxBatchParallelism) {
+		if (maxBatchParallelism < 1)
+			throw new IllegalArgumentException(
+					"maxBatchParallelism must be > 0");
+		this.maxBatchParallelism = maxBatchParallelism;
+	}
+
+	/**
+	 * @return the metadata cache used to resolve metadata for new StoreObjects
+	 *         and queries. Will not be <code>null</code>.
+	 */
+	public MetadataCache getMetadataCache() {
+		return this.metadataCache;
+	}
+
+	/**
+	 * @return the cache of prepared statements for store and query
+	 *         operations, e.g. to read its metrics or change its maximum
+	 *         size. Delete and retrieveIds operations have no columns or
+	 *         conditions to resolve, so are not prepared by this store. Will
+	 *         not be <code>null</code>.
+	 */
+	public StatementCache<?> getStatementCache() {
+		return this.statementCache;
+	}
+
+	/**
+	 * @return the second-level cache of StoreObjects read by id, which is
+	 *         disabled until {@link ObjectCache#setEnabled(boolean)} is called.
+	 *         While enabled, queries whose where clause is only an id equal to
+	 *         (or in) the given ids are served from the cache, unless they
+	 *         are not cacheable (see
+	 *         {@link StoreObjectQuery#setCacheable(boolean)}). Will not be
+	 *         <code>null</code>.
+	 */
+	public ObjectCache getObjectCache() {
+		return this.objectCache;
+	}
+
+	MemoryStatement prepare(StatementCache.Key key) throws StoreException {
+		return this.statementCache.get(key);
+	}
+
+	MemoryObjectTable getTable(String className) throws StoreException {
+		Util.checkArgNotNull(className, "className");
+		MemoryObjectTable table = this.tables.get(className);
+		if (table == null)
+			throw new StoreException("object table for className="
+					+ className + " does not exist");
+		return table;
+	}
+
+	public StoreObjectMetadata createObjectTable(String className,
+			boolean ifNotExists) throws StoreException {
+		checkIdentifier(className, "className");
+		MemoryObjectTable table = new MemoryObjectTable(className);
+		MemoryObjectTable existing = this.tables.putIfAbsent(className, table);
+		if (existing == null) {
+			// a table of the same name may have been dropped and recreated
+			this.metadataCache.invalidate(className);
+			this.statementCache.invalidate(className);
+			this.objectCache.invalidate(className);
+			return table.getMetadata();
+		}
+		if (ifNotExists)
+			return existing.getMetadata();
+		throw new StoreException("object table for className=" + className
+				+ " already exists");
+	}
+
+	public StoreObjectMetadata dropObjectTable(String className,
+			boolean ifExists) throws StoreException {
+		Util.checkArgNotNull(className, "className");
+		MemoryObjectTable table = this.tables.remove(className);
+		if (table != null) {
+			this.metadataCache.invalidate(className);
+			this.statementCache.invalidate(className);
+			this.objectCache.invalidate(className);
+			return table.getMetadata();
+		}
+		if (ifExists)
+			return null;
+		throw new StoreException("object table for className=" + className
+				+ " does not exist");
+	}
+
+	private StoreObjectMetadata addField(String className,
+			FieldMetadata field, boolean ifNotExists) throws StoreException {
+		MemoryObjectTable table = getTable(className);
+		synchronized (table) {
+			MemoryStoreObjectMetadata metadata = table.getMetadata();
+			if (metadata.getField(field.getName()) != null) {
+				if (ifNotExists)
+					return metadata;
+				throw new StoreException("field=" + field.getName()
+						+ " already exists in className=" + className);
+			}
+			metadata = metadata.withField(field);
+			setMetadata(table, metadata);
+			return metadata;
+		}
+	}
+
+	private void setMetadata(MemoryObjectTable table,
+			MemoryStoreObjectMetadata metadata) {
+		table.setMetadata(metadata);
+		this.metadataCache.update(metadata);
+		// statements are keyed by schema version, so those for the previous
+		// version would otherwise only be removed by eviction
+		this.statementCache.invalidate(metadata.getClassName());
+		// cached StoreObjects have the fields of the previous version
+		this.objectCache.invalidate(metadata.getClassName());
+	}
+
+	public StoreObjectMetadata addPrimitiveField(String className,
+			String fieldName, Class<?> fieldType, boolean ifNotExists)
+			throws StoreException {
+		checkIdentifier(fieldName, "fieldName");
+		Util.checkArgNotNull(fieldType, "fieldType");
+		Util.checkPrimitiveType(fieldType);
+		return addField(className, new MemoryFieldMetadata(fieldName,
+				fieldType), ifNotExists);
+	}
+
+	public StoreObjectMetadata addCollectionField(String className,
+			String fieldName, Class<?> collectionFieldType,
+			Class<?> firstElementType, Class<?> secondElementType,
+			boolean ifNotExists) throws StoreException {
+		checkIdentifier(fieldName, "fieldName");
+		Util.checkArgNotNull(collectionFieldType, "collectionFieldType");
+		if (!Util.isRawCollectionType(collectionFieldType))
+			throw new IllegalArgumentException("collectionFieldType="
+					+ collectionFieldType + " is not Map, List, or Set");
+		Util.checkArgNotNull(firstElementType, "firstElementType");
+		Util.checkPrimitiveType(firstElementType);
+		if (Map.class.equals(collectionFieldType)) {
+			Util.checkArgNotNull(secondElementType, "secondElementType");
+			Util.checkPrimitiveType(secondElementType);
+		} else
+			secondElementType = null;
+		return addField(className, new MemoryFieldMetadata(fieldName,
+				collectionFieldType, firstElementType, secondElementType),
+				ifNotExists);
+	}
+
+	private FieldMetadata getExistingField(MemoryStoreObjectMetadata metadata,
+			String fieldName) throws StoreException {
+		Util.checkArgNotNull(fieldName, "fieldName");
+		FieldMetadata field = metadata.getField(fieldName);
+		if (field == null)
+			throw new StoreException("field=" + fieldName
+					+ " does not exist in className="
+					+ metadata.getClassName());
+		if (metadata.getPrimaryKey().contains(field)
+				|| StoreObject.LASTMODIFIEDDATE_NAME.equals(fieldName))
+			throw new StoreException("field=" + fieldName
+					+ " cannot be changed in className="
+					+ metadata.getClassName());
+		return field;
+	}
+
+	public StoreObjectMetadata dropField(String className, String fieldName)
+			throws StoreException {
+		MemoryObjectTable table = getTable(className);
+		synchronized (table) {
+			MemoryStoreObjectMetadata metadata = table.getMetadata();
+			getExistingField(metadata, fieldName);
+			metadata = metadata.withoutField(fieldName);
+			setMetadata(table, metadata);
+			table.dropColumn(fieldName);
+			return metadata;
+		}
+	}
+
+	public StoreObjectMetadata changeFieldType(String className,
+			String fieldName, Class<?> newFieldType) throws StoreException {
+		Util.checkArgNotNull(newFieldType, "newFieldType");
+		Util.checkPrimitiveType(newFieldType);
+		MemoryObjectTable table = getTable(className);
+		synchronized (table) {
+			MemoryStoreObjectMetadata metadata = table.getMetadata();
+			FieldMetadata field = getExistingField(metadata, fieldName);
+			if (field.isCollectionType())
+				throw new StoreException("field=" + fieldName
+						+ " is not a primitive field in className="
+						+ className);
+			metadata = metadata.withField(new MemoryFieldMetadata(fieldName,
+					newFieldType));
+			setMetadata(table, metadata);
+			return metadata;
+		}
+	}
+
+	private StoreObjectMetadata getMetadata(String className)
+			throws StoreException {
+		Util.checkArgNotNull(className, "className");
+		return this.metadataCache.get(className);
+	}
+
+	public StoreObject createStoreObject(String className)
+			throws StoreException {
+		return new MemoryStoreObject(this, getMetadata(className),
+				null);
+	}
+
+	public StoreObject createStoreObject(String className, UUID id)
+			throws StoreException {
+		Util.checkArgNotNull(id, "id");
+		return new MemoryStoreObject(this, getMetadata(className),
+				id);
+	}
+
+	/**
+	 * Each batch planned by {@link StoreBatch#plan(Collection, int, int)}
+	 * targets one partition. The batches of a partition are written in order
+	 * by one task, and partitions are divided between at most
+	 * maxBatchParallelism tasks, the first run by the calling thread and the
+	 * others on the async executor. Tasks that have not started on the
+	 * executor when the calling thread waits for them are run by the calling
+	 * thread (see {@link Util#get(Future)}), so storeAll may be called by a
+	 * task running on the async executor, however many threads it has.
+	 */
+	public List<StoreResult> storeAll(
+			Collection<? extends StoreObject> storeObjects)
+			throws StoreException {
+		// by partition (className and id), the batches in plan order
+		Map<Object, List<StoreBatch>> partitions = new LinkedHashMap<Object, List<StoreBatch>>();
+		for (StoreBatch batch : StoreBatch.plan(storeObjects,
+				this.maxBatchStatements, this.maxBatchBytes)) {
+			// checked before any are written
+			for (StoreBatch.Statement statement : batch.getStatements())
+				getMemoryStoreObject(statement.getStoreObject());
+			StoreObject so = batch.getStatements().get(0).getStoreObject();
+			// batches without an id are each a new partition
+			Object key = (so.getId() == null) ? batch : so.getClassName()
+					+ "/" + so.getId();
+			List<StoreBatch> partition = partitions.get(key);
+			if (partition == null) {
+				partition = new ArrayList<StoreBatch>();
+				partitions.put(key, partition);
+			}
+			partition.add(batch);
+		}
+		int parallelism = Math.min(this.maxBatchParallelism,
+				partitions.size());
+		List<List<StoreBatch>> tasks = new ArrayList<List<StoreBatch>>(
+				parallelism);
+		for (int i = 0; i < parallelism; i++)
+			tasks.add(new ArrayList<StoreBatch>());
+		int next = 0;
+		for (List<StoreBatch> partition : partitions.values())
+			tasks.get(next++ % parallelism).addAll(partition);
+		final Map<StoreObject, StoreResult> results = Collections
+				.synchronizedMap(new IdentityHashMap<StoreObject, StoreResult>());
+		final List<StoreException> failures = Collections
+				.synchronizedList(new ArrayList<StoreException>());
+		List<Future<Void>> futures = new ArrayList<Future<Void>>();
+		for (int i = 1; i < tasks.size(); i++) {
+			final List<StoreBatch> task = tasks.get(i);
+			futures.add(Util.submit(getAsyncExecutor(), new Callable<Void>() {
+				public Void call() throws Exception {
+					write(task, results, failures);
+					return null;
+				}
+			}));
+		}
+		if (!tasks.isEmpty())
+			write(tasks.get(0), results, failures);
+		// wait for every task, so none is still writing when this returns
+		for (Future<Void> future : futures)
+			try {
+				Util.get(future);
+			} catch (StoreException e) {
+				failures.add(e);
+			}
+		List<StoreResult> resultList = new ArrayList<StoreResult>(
+				storeObjects.size());
+		for (StoreObject so : storeObjects)
+			resultList.add(results.get(so));
+		if (!failures.isEmpty())
+			throw new BatchStoreException(failures.size() + " of "
+					+ storeObjects.size()
+					+ " storeObjects could not be stored", failures.get(0),
+					resultList);
+		return resultList;
+	}
+
+	/**
+	 * Write the statements of the given batches in order. A statement that
+	 * fails is given a failed result, and the others are still written.
+	 */
+	private void write(List<StoreBatch> batches,
+			Map<StoreObject, StoreResult> results,
+			List<StoreException> failures) {
+		for (StoreBatch batch : batches)
+			for (StoreBatch.Statement statement : batch.getStatements()) {
+				MemoryStoreObject so = (MemoryStoreObject) statement
+						.getStoreObject();
+				try {
+					results.put(so, so.handle(store(so, statement.getItems())));
+				} catch (StoreException e) {
+					results.put(so, new StoreResult(false, null));
+					failures.add(e);
+				}
+			}
+	}
+
+	private MemoryStoreObject getMemoryStoreObject(StoreObject storeObject) {
+		if (!(storeObject instanceof MemoryStoreObject)
+				|| storeObject.getStore() != this)
+			throw new IllegalArgumentException("storeObject for className="
+					+ storeObject.getClassName()
+					+ " was not created by this store");
+		return (MemoryStoreObject) storeObject;
+	}
+
+	public void delete(String className, UUID storeObjectId,
+			ConsistencyLevel level) throws StoreException {
+		Util.checkArgNotNull(storeObjectId, "storeObjectId");
+		getTable(className).remove(storeObjectId);
+		this.objectCache.invalidate(className, storeObjectId);
+	}
+
+	public StoreFuture<Void> deleteAsync(final String className,
+			final UUID storeObjectId, final ConsistencyLevel level) {
+		return Util.submit(getAsyncExecutor(), new Callable<Void>() {
+			public Void call() throws Exception {
+				delete(className, storeObjectId, level);
+				return null;
+			}
+		});
+	}
+
+	public StoreObjectQuery createQuery(String className)
+			throws StoreException {
+		return new MemoryStoreObjectQuery(this, getMetadata(className), null);
+	}
+
+	public StoreObjectQuery createQuery(String className, UUID id)
+			throws StoreException {
+		Util.checkArgNotNull(id, "id");
+		return createQuery(className).setWhere(
+				Where.equalTo(StoreObject.ID_NAME, new Value(id)));
+	}
+
+	/**
+	 * The ids are grouped by table stripe, which holds a contiguous token
+	 * range, and each group is retrieved with an <code>IN</code> query. The
+	 * first group is queried by the calling thread, and the others on the
+	 * async executor.
+	 */
+	public Map<UUID, StoreObject> retrieve(String className,
+			Collection<UUID> ids, ConsistencyLevel level)
+			throws StoreException {
+		Util.checkArgNotNull(ids, "ids");
+		getTable(className);
+		// by stripe, in token order
+		Map<Integer, List<Value>> groups = new TreeMap<Integer, List<Value>>();
+		Set<UUID> distinct = new LinkedHashSet<UUID>(ids.size());
+		for (UUID id : ids) {
+			Util.checkArgNotNull(id, "id");
+			if (!distinct.add(id))
+				continue;
+			Integer stripe = Integer.valueOf(MemoryObjectTable
+					.stripeIndex(MemoryObjectTable.token(id)));
+			List<Value> group = groups.get(stripe);
+			if (group == null) {
+				group = new ArrayList<Value>();
+				groups.put(stripe, group);
+			}
+			group.add(new Value(id));
+		}
+		List<StoreObjectQuery> queries = new ArrayList<StoreObjectQuery>(
+				groups.size());
+		for (List<Value> group : groups.values()) {
+			StoreObjectQuery query = createQuery(className);
+			query.setWhere(Where.in(StoreObject.ID_NAME,
+					group.toArray(new Value[group.size()])));
+			query.setConsistencyLevel(level);
+			queries.add(query);
+		}
+		List<Future<Collection<StoreObject>>> futures = new ArrayList<Future<Collection<StoreObject>>>(
+				queries.size());
+		for (int i = 1; i < queries.size(); i++)
+			futures.add(queries.get(i).executeAsync(getAsyncExecutor()));
+		Map<UUID, StoreObject> found = new HashMap<UUID, StoreObject>(
+				distinct.size());
+		if (!queries.isEmpty())
+			for (StoreObject so : queries.get(0).execute())
+				found.put(so.getId(), so);
+		for (Future<Collection<StoreObject>> future : futures)
+			for (StoreObject so : Util.get(future))
+				found.put(so.getId(), so);
+		Map<UUID, StoreObject> results = new LinkedHashMap<UUID, StoreObject>(
+				found.size());
+		for (UUID id : distinct) {
+			StoreObject so = found.get(id);
+			if (so != null)
+				results.put(id, so);
+		}
+		return results;
+	}
+
+	public Collection<UUID> retrieveIds(String className, Integer limit,
+			ConsistencyLevel level) throws StoreException {
+		if (limit != null && limit.intValue() < 0)
+			throw new IllegalArgumentException("limit=" + limit
+					+ " must be >= 0");
+		MemoryObjectTable table = getTable(className);
+		int max = (limit == null) ? Integer.MAX_VALUE : limit.intValue();
+		List<UUID> results = new ArrayList<UUID>();
+		// scan stripe by stripe, in token order, only until limit is reached
+		for (int i = 0; i < MemoryObjectTable.STRIPES
+				&& results.size() < max; i++)
+			for (MemoryRow row : table.scan(i)) {
+				if (results.size() >= max)
+					break;
+				results.add(row.getId());
+			}
+		return results;
+	}
+
+	public void scanIds(String className, int splits, ConsistencyLevel level,
+			final ScanHandler<UUID> handler) throws StoreException {
+		Util.checkArgNotNull(handler, "handler");
+		final MemoryObjectTable table = getTable(className);
+		TokenRange.scanAll(getAsyncExecutor(), TokenRange.split(splits),
+				new TokenRange.Scanner() {
+					public void scan(TokenRange range) throws StoreException {
+						for (MemoryRow row : table.scan(range))
+							handler.handle(row.getId());
+					}
+				});
+	}
+
+	public StoreFuture<Collection<UUID>> retrieveIdsAsync(final String className,
+			final Integer limit, final ConsistencyLevel level) {
+		return Util.submit(getAsyncExecutor(),
+				new Callable<Collection<UUID>>() {
+					public Collection<UUID> call() throws Exception {
+						return retrieveIds(className, limit, level);
+					}
+				});
+	}
+
+	private Object toColumnValue(FieldMetadata field, ObjectStoreItem item)
+			throws StoreException {
+		String key = item.getKey();
+		if (field.isCollectionType()) {
+			CollectionValue cv = item.getCollectionValue();
+			if (cv == null
+					|| !field.isValid(field.getType(), cv.getFirstType(),
+							cv.getSecondType()))
+				throw new StoreException("value for key=" + key
+						+ " is not compatible with field=" + field);
+			return MemoryRow.copyValue(cv.getValue());
+		}
+		if (!field.getType().isInstance(item.getValue()))
+			throw new StoreException("value for key=" + key
+					+ " is not compatible with field=" + field);
+		return MemoryRow.copyValue(item.getValue());
+	}
+
+	private boolean conditionsApply(MemoryRow row,
+			Collection<ObjectStoreItem> conditions) {
+		for (ObjectStoreItem condition : conditions) {
+			Object expected = condition.getValue();
+			if (condition.isCollection())
+				expected = condition.getCollectionValue().getValue();
+			// A null condition value requires that the row does not exist
+			if (expected == null) {
+				if (row != null)
+					return false;
+				continue;
+			}
+			if (row == null
+					|| !expected.equals(MemoryStoreObjectQuery.getValue(row,
+							condition.getKey())))
+				return false;
+		}
+		return true;
+	}
+
+	StoreResult store(MemoryStoreObject storeObject) throws StoreException {
+		return store(storeObject, storeObject.getItems());
+	}
+
+	private StoreResult store(MemoryStoreObject storeObject,
+			Collection<ObjectStoreItem> items) throws StoreException {
+		MemoryObjectTable table = getTable(storeObject.getClassName());
+		StoreObjectMetadata metadata = table.getMetadata();
+		FieldMetadata[] columns = prepare(
+				StatementCache.Key.forStore(metadata, storeObject, items))
+				.getColumns();
+		Map<String, Object> updates = new HashMap<String, Object>();
+		int i = 0;
+		for (ObjectStoreItem item : items) {
+			FieldMetadata field = columns[i++];
+			String key = field.getName();
+			if (StoreObject.ID_NAME.equals(key)
+					|| StoreObject.LASTMODIFIEDDATE_NAME.equals(key))
+				continue;
+			updates.put(key, toColumnValue(field, item));
+		}
+		UUID id = storeObject.getId();
+		if (id == null)
+			id = UUID.randomUUID();
+		Collection<ObjectStoreItem> conditions = storeObject
+				.getIfNotExistsItems();
+		Date modifiedAt = new Date();
+		while (true) {
+			MemoryRow current = table.get(id);
+			if (conditions != null && !conditionsApply(current, conditions))
+				return new StoreResult(false, getItems(metadata, current, null));
+			if (current == null) {
+				if (table.insert(new MemoryRow(id, modifiedAt, updates)))
+					break;
+			} else if (table.replace(current,
+					current.merge(updates, modifiedAt)))
+				break;
+		}
+		this.objectCache.invalidate(storeObject.getClassName(), id);
+		List<ObjectStoreItem> results = new ArrayList<ObjectStoreItem>();
+		results.add(new ObjectStoreItem(StoreObject.ID_NAME, UUID.class, id));
+		results.add(new ObjectStoreItem(StoreObject.LASTMODIFIEDDATE_NAME,
+				Date.class, modifiedAt));
+		return new StoreResult(true, results);
+	}
+
+	@SuppressWarnings("rawtypes")
+	private ObjectStoreItem getItem(FieldMetadata field, Object columnValue) {
+		Object value = MemoryRow.copyValue(columnValue);
+		if (field.isMap())
+			return new ObjectStoreItem(field.getName(), CollectionValue.class,
+					CollectionValue.map(field.getFirstElementType(),
+							field.getSecondElementType(), (Map) value));
+		if (field.isList())
+			return new ObjectStoreItem(field.getName(), CollectionValue.class,
+					CollectionValue.list(field.getFirstElementType(),
+							(List) value));
+		if (field.isSet())
+			return new ObjectStoreItem(field.getName(), CollectionValue.class,
+					CollectionValue.set(field.getFirstElementType(),
+							(Set) value));
+		return new ObjectStoreItem(field.getName(), field.getType(), value);
+	}
+
+	/**
+	 * Get the items of the given row, for the given columns (or all columns
+	 * if columns is <code>null</code>).
+	 */
+	private List<ObjectStoreItem> getItems(StoreObjectMetadata metadata,
+			MemoryRow row, FieldMetadata[] columns) {
+		List<ObjectStoreItem> items = new ArrayList<ObjectStoreItem>();
+		if (row == null)
+			return items;
+		items.add(new ObjectStoreItem(StoreObject.ID_NAME, UUID.class, row
+				.getId()));
+		items.add(new ObjectStoreItem(StoreObject.LASTMODIFIEDDATE_NAME,
+				Date.class, MemoryRow.copyValue(row.getLastModifiedAt())));
+		Collection<FieldMetadata> fields = (columns == null) ? metadata
+				.getFields() : Arrays.asList(columns);
+		for (FieldMetadata field : fields) {
+			Object columnValue = row.getColumn(field.getName());
+			// skip absent values, and values written before a type change
+			if (columnValue == null
+					|| (!field.isCollectionType() && !field.getType()
+							.isInstance(columnValue)))
+				continue;
+			items.add(getItem(field, columnValue));
+		}
+		return items;
+	}
+
+	StoreObject revive(StoreObjectMetadata metadata, MemoryRow row) {
+		MemoryStoreObject result = new MemoryStoreObject(this, metadata, null);
+		result.revive(getItems(metadata, row, null), null);
+		return result;
+	}
+
+	/**
+	 * Revive a copy of the given StoreObject from the object cache for a
+	 * query statement, with only the selected columns (or all columns if the
+	 * statement selects all columns).
+	 */
+	StoreObject revive(StoreObject cached, MemoryStatement statement) {
+		StoreObjectMetadata metadata = statement.getKey().getMetadata();
+		List<ObjectStoreItem> items = new ArrayList<ObjectStoreItem>();
+		items.add(new ObjectStoreItem(StoreObject.ID_NAME, UUID.class, cached
+				.getId()));
+		items.add(new ObjectStoreItem(StoreObject.LASTMODIFIEDDATE_NAME,
+				Date.class, MemoryRow.copyValue(cached.getLastModifiedAt())));
+		FieldMetadata[] columns = statement.getColumns();
+		Collection<FieldMetadata> fields = (columns == null) ? metadata
+				.getFields() : Arrays.asList(columns);
+		StoreObjectMetadata cachedMetadata = cached.getMetadata();
+		for (FieldMetadata field : fields) {
+			if (cachedMetadata.getField(field.getName()) == null)
+				continue;
+			Object value = cached.get(field.getName());
+			if (value instanceof CollectionValue)
+				value = ((CollectionValue) value).getValue();
+			if (value == null
+					|| (!field.isCollectionType() && !field.getType()
+							.isInstance(value)))
+				continue;
+			items.add(getItem(field, value));
+		}
+		MemoryStoreObject result = new MemoryStoreObject(this, metadata, null);
+		result.revive(items, statement.getKey().getColumns());
+		return result;
+	}
+
+	/**
+	 * Revive the given row for a query statement, decoding only the selected
+	 * columns (or all columns if the statement selects all columns).
+	 */
+	StoreObject revive(MemoryRow row, MemoryStatement statement) {
+		StoreObjectMetadata metadata = statement.getKey().getMetadata();
+		MemoryStoreObject result = new MemoryStoreObject(this, metadata, null);
+		result.revive(getItems(metadata, row, statement.getColumns()),
+				statement.getKey().getColumns());
+		return result;
+	}
+}
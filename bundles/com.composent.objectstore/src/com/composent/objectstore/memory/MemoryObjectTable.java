@@ -0,0 +1,190 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Composent, Inc. and others. All rights reserved. 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ * 
+ * Contributors: Composent, Inc. - initial API and implementation
+ ******************************************************************************/
+package com.composent.objectstore.memory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.composent.objectstore.TokenRange;
+
+/**
+ * Rows of a single object table. Rows are striped over a fixed number of
+ * concurrent maps by token, where each stripe owns a contiguous range of the
+ * (signed 64 bit) token ring. All row updates are lock-free compare and swap
+ * operations on the owning stripe.
+ */
+final class MemoryObjectTable {
+
+	static final int STRIPE_BITS = 4;
+	static final int STRIPES = 1 << STRIPE_BITS;
+
+	static final Comparator<MemoryRow> TOKEN_ORDER = new Comparator<MemoryRow>() {
+		public int compare(MemoryRow r1, MemoryRow r2) {
+			long t1 = r1.getToken();
+			long t2 = r2.getToken();
+			if (t1 != t2)
+				return (t1 < t2) ? -1 : 1;
+			return r1.getId().compareTo(r2.getId());
+		}
+	};
+
+	static final Comparator<UUID> ID_TOKEN_ORDER = new Comparator<UUID>() {
+		public int compare(UUID id1, UUID id2) {
+			long t1 = token(id1);
+			long t2 = token(id2);
+			if (t1 != t2)
+				return (t1 < t2) ? -1 : 1;
+			return id1.compareTo(id2);
+		}
+	};
+
+	/**
+	 * Compute the token for the given id. This is a 64 bit mix (the murmur3
+	 * finalizer) of the uuid bits, so that time-based and random uuids are
+	 * spread evenly over the token ring.
+	 */
+	static long token(UUID id) {
+		long h = id.getMostSignificantBits() ^ 0x9E3779B97F4A7C15L
+				* id.getLeastSignificantBits();
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	static int stripeIndex(long token) {
+		return (int) ((token ^ Long.MIN_VALUE) >>> (64 - STRIPE_BITS));
+	}
+
+	private final String className;
+	private volatile MemoryStoreObjectMetadata metadata;
+	private final ConcurrentMap<UUID, MemoryRow>[] stripes;
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	MemoryObjectTable(String className) {
+		this.className = className;
+		this.metadata = MemoryStoreObjectMetadata.create(className);
+		this.stripes = new ConcurrentMap[STRIPES];
+		for (int i = 0; i < STRIPES; i++)
+			this.stripes[i] = new ConcurrentHashMap<UUID, MemoryRow>();
+	}
+
+	String getClassName() {
+		return this.className;
+	}
+
+	MemoryStoreObjectMetadata getMetadata() {
+		return this.metadata;
+	}
+
+	void setMetadata(MemoryStoreObjectMetadata metadata) {
+		this.metadata = metadata;
+	}
+
+	private ConcurrentMap<UUID, MemoryRow> stripe(UUID id) {
+		return this.stripes[stripeIndex(token(id))];
+	}
+
+	MemoryRow get(UUID id) {
+		return stripe(id).get(id);
+	}
+
+	boolean insert(MemoryRow row) {
+		return stripe(row.getId()).putIfAbsent(row.getId(), row) == null;
+	}
+
+	boolean replace(MemoryRow oldRow, MemoryRow newRow) {
+		return stripe(oldRow.getId()).replace(oldRow.getId(), oldRow, newRow);
+	}
+
+	MemoryRow remove(UUID id) {
+		return stripe(id).remove(id);
+	}
+
+	void dropColumn(String column) {
+		for (ConcurrentMap<UUID, MemoryRow> stripe : this.stripes)
+			for (Map.Entry<UUID, MemoryRow> entry : stripe.entrySet()) {
+				MemoryRow row = entry.getValue();
+				while (row != null
+						&& !stripe.replace(row.getId(), row,
+								row.without(column)))
+					row = stripe.get(row.getId());
+			}
+	}
+
+	/**
+	 * Return a snapshot of all rows in token order.
+	 */
+	List<MemoryRow> scan() {
+		List<MemoryRow> results = new ArrayList<MemoryRow>();
+		// stripes are already ordered relative to each other
+		for (int i = 0; i < STRIPES; i++)
+			results.addAll(scan(i));
+		return results;
+	}
+
+	/**
+	 * Return a snapshot of the rows of a single stripe in token order.
+	 */
+	List<MemoryRow> scan(int stripe) {
+		List<MemoryRow> results = new ArrayList<MemoryRow>(
+				this.stripes[stripe].values());
+		Collections.sort(results, TOKEN_ORDER);
+		return results;
+	}
+
+	/**
+	 * Return a snapshot of the rows in the given token range, in token order.
+	 * Only the stripes that overlap the range are scanned.
+	 */
+	List<MemoryRow> scan(TokenRange range) {
+		List<MemoryRow> results = new ArrayList<MemoryRow>();
+		int last = stripeIndex(range.getEnd());
+		for (int i = stripeIndex(range.getStart()); i <= last; i++)
+			for (MemoryRow row : scan(i))
+				if (range.contains(row.getToken()))
+					results.add(row);
+		return results;
+	}
+
+	/**
+	 * Compare the position of row with the position given by token and id, in
+	 * the order of {@link #TOKEN_ORDER}.
+	 */
+	static int compare(MemoryRow row, long token, UUID id) {
+		long t = row.getToken();
+		if (t != token)
+			return (t < token) ? -1 : 1;
+		return row.getId().compareTo(id);
+	}
+
+	int size() {
+		int result = 0;
+		for (ConcurrentMap<UUID, MemoryRow> stripe : this.stripes)
+			result += stripe.size();
+		return result;
+	}
+}
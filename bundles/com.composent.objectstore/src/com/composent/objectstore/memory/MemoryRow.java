@@ -0,0 +1,122 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Composent, Inc. and others. All rights reserved. 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ * 
+ * Contributors: Composent, Inc. - initial API and implementation
+ ******************************************************************************/
+package com.composent.objectstore.memory;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * A single stored object. Rows are never modified once published to a table;
+ * writes replace the row with a merged copy. Mutable values (Date, ByteBuffer
+ * and collections) are copied on the way in and on the way out so that
+ * clients never share state with the table.
+ */
+final class MemoryRow {
+
+	private final UUID id;
+	private final long token;
+	private final Date lastModifiedAt;
+	private final Map<String, Object> columns;
+
+	MemoryRow(UUID id, Date lastModifiedAt, Map<String, Object> columns) {
+		this.id = id;
+		this.token = MemoryObjectTable.token(id);
+		this.lastModifiedAt = lastModifiedAt;
+		this.columns = columns;
+	}
+
+	UUID getId() {
+		return this.id;
+	}
+
+	long getToken() {
+		return this.token;
+	}
+
+	Date getLastModifiedAt() {
+		return this.lastModifiedAt;
+	}
+
+	Object getColumn(String name) {
+		return this.columns.get(name);
+	}
+
+	Map<String, Object> getColumns() {
+		return Collections.unmodifiableMap(this.columns);
+	}
+
+	MemoryRow merge(Map<String, Object> updates, Date modifiedAt) {
+		Map<String, Object> newColumns = new HashMap<String, Object>(
+				this.columns);
+		newColumns.putAll(updates);
+		return new MemoryRow(this.id, modifiedAt, newColumns);
+	}
+
+	MemoryRow without(String column) {
+		if (!this.columns.containsKey(column))
+			return this;
+		Map<String, Object> newColumns = new HashMap<String, Object>(
+				this.columns);
+		newColumns.remove(column);
+		return new MemoryRow(this.id, this.lastModifiedAt, newColumns);
+	}
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	static Object copyValue(Object value) {
+		if (value instanceof Date)
+			return new Date(((Date) value).getTime());
+		if (value instanceof ByteBuffer) {
+			ByteBuffer source = ((ByteBuffer) value).duplicate();
+			ByteBuffer copy = ByteBuffer.allocate(source.remaining());
+			copy.put(source);
+			copy.flip();
+			return copy;
+		}
+		if (value instanceof Map) {
+			Map result = new HashMap();
+			for (Object e : ((Map) value).entrySet()) {
+				Map.Entry entry = (Map.Entry) e;
+				result.put(copyValue(entry.getKey()),
+						copyValue(entry.getValue()));
+			}
+			return result;
+		}
+		if (value instanceof List) {
+			List result = new ArrayList(((List) value).size());
+			for (Object o : (List) value)
+				result.add(copyValue(o));
+			return result;
+		}
+		if (value instanceof Set) {
+			Set result = new HashSet();
+			for (Object o : (Set) value)
+				result.add(copyValue(o));
+			return result;
+		}
+		// all other primitive types are immutable
+		return value;
+	}
+}
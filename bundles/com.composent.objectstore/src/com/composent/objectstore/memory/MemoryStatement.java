@@ -0,0 +1,78 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Composent, Inc. and others. All rights reserved. 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ * 
+ * Contributors: Composent, Inc. - initial API and implementation
+ ******************************************************************************/
+package com.composent.objectstore.memory;
+
+import java.util.List;
+
+import com.composent.objectstore.StatementCache;
+import com.composent.objectstore.StoreException;
+import com.composent.objectstore.StoreObjectMetadata;
+import com.composent.objectstore.StoreObjectMetadata.FieldMetadata;
+
+/**
+ * Prepared statement of the in-memory store. There is no statement text to
+ * parse, so preparing a statement resolves (and validates) the fields of its
+ * columns and conditions once, for all operations of the same shape.
+ */
+final class MemoryStatement {
+
+	private final StatementCache.Key key;
+	private final FieldMetadata[] columns;
+
+	private MemoryStatement(StatementCache.Key key, FieldMetadata[] columns) {
+		this.key = key;
+		this.columns = columns;
+	}
+
+	static MemoryStatement prepare(StatementCache.Key key)
+			throws StoreException {
+		StoreObjectMetadata metadata = key.getMetadata();
+		if (key.getType() == StatementCache.StatementType.QUERY)
+			for (String identifier : key.getConditionColumns())
+				if (metadata.getField(identifier) == null)
+					throw new StoreException("identifier=" + identifier
+							+ " not found as field of class="
+							+ metadata.getClassName());
+		List<String> names = key.getColumns();
+		if (names == null)
+			return new MemoryStatement(key, null);
+		FieldMetadata[] columns = new FieldMetadata[names.size()];
+		for (int i = 0; i < columns.length; i++) {
+			String name = names.get(i);
+			FieldMetadata field = metadata.getField(name);
+			if (field == null)
+				throw new StoreException("key=" + name
+						+ " not found as field of className="
+						+ metadata.getClassName());
+			columns[i] = field;
+		}
+		return new MemoryStatement(key, columns);
+	}
+
+	StatementCache.Key getKey() {
+		return this.key;
+	}
+
+	/**
+	 * @return the fields of the columns written or selected, in the order of
+	 *         the key columns, or <code>null</code> for all fields.
+	 */
+	FieldMetadata[] getColumns() {
+		return this.columns;
+	}
+}
@@ -0,0 +1,53 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Composent, Inc. and others. All rights reserved. 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ * 
+ * Contributors: Composent, Inc. - initial API and implementation
+ ******************************************************************************/
+package com.composent.objectstore.memory;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+
+import com.composent.objectstore.IObjectStore.ObjectStoreItem;
+import com.composent.objectstore.StoreException;
+import com.composent.objectstore.StoreObject;
+import com.composent.objectstore.StoreObjectMetadata;
+import com.composent.objectstore.StoreResult;
+
+final class MemoryStoreObject extends StoreObject {
+
+	MemoryStoreObject(MemoryObjectStore store, StoreObjectMetadata metadata,
+			UUID id) {
+		super(store, metadata, id);
+	}
+
+	@Override
+	public StoreResult store() throws StoreException {
+		return handleStoreResult(((MemoryObjectStore) getStore()).store(this));
+	}
+
+	Collection<ObjectStoreItem> getItems() throws StoreException {
+		return collectItems();
+	}
+
+	StoreResult handle(StoreResult storeResult) throws StoreException {
+		return handleStoreResult(storeResult);
+	}
+
+	void revive(List<ObjectStoreItem> items, Collection<String> projection) {
+		doRevive(items, projection);
+	}
+}
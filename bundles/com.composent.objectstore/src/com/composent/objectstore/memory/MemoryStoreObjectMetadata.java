@@ -0,0 +1,130 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Composent, Inc. and others. All rights reserved. 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ * 
+ * Contributors: Composent, Inc. - initial API and implementation
+ ******************************************************************************/
+package com.composent.objectstore.memory;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import com.composent.objectstore.StoreObject;
+import com.composent.objectstore.StoreObjectMetadata;
+
+/**
+ * Immutable metadata for an in-memory object table. Schema changes produce a
+ * new instance, so StoreObject and StoreObjectQuery instances keep a
+ * consistent view of the fields they were created with.
+ */
+final class MemoryStoreObjectMetadata implements StoreObjectMetadata {
+
+	private final String className;
+	private final long version;
+	private final FieldMetadata[] fields;
+	private final Collection<FieldMetadata> fieldList;
+	private final Collection<FieldMetadata> primaryKey;
+	private final Map<String, Integer> indexes;
+
+	private MemoryStoreObjectMetadata(String className, long version,
+			Map<String, FieldMetadata> fields) {
+		this.className = className;
+		this.version = version;
+		this.fields = fields.values().toArray(new FieldMetadata[fields.size()]);
+		this.fieldList = Collections.unmodifiableList(Arrays
+				.asList(this.fields));
+		this.primaryKey = Collections.singletonList(fields
+				.get(StoreObject.ID_NAME));
+		this.indexes = new HashMap<String, Integer>();
+		for (String name : fields.keySet())
+			this.indexes.put(name, Integer.valueOf(this.indexes.size()));
+	}
+
+	static MemoryStoreObjectMetadata create(String className) {
+		Map<String, FieldMetadata> fields = new LinkedHashMap<String, FieldMetadata>();
+		fields.put(StoreObject.ID_NAME, new MemoryFieldMetadata(
+				StoreObject.ID_NAME, UUID.class));
+		fields.put(StoreObject.LASTMODIFIEDDATE_NAME, new MemoryFieldMetadata(
+				StoreObject.LASTMODIFIEDDATE_NAME, Date.class));
+		return new MemoryStoreObjectMetadata(className, 0, fields);
+	}
+
+	private Map<String, FieldMetadata> copyFields() {
+		Map<String, FieldMetadata> result = new LinkedHashMap<String, FieldMetadata>();
+		for (FieldMetadata field : this.fields)
+			result.put(field.getName(), field);
+		return result;
+	}
+
+	/**
+	 * Add a field, or replace an existing field of the same name (keeping its
+	 * ordinal).
+	 */
+	MemoryStoreObjectMetadata withField(FieldMetadata field) {
+		Map<String, FieldMetadata> newFields = copyFields();
+		newFields.put(field.getName(), field);
+		return new MemoryStoreObjectMetadata(this.className, this.version + 1,
+				newFields);
+	}
+
+	MemoryStoreObjectMetadata withoutField(String fieldName) {
+		Map<String, FieldMetadata> newFields = copyFields();
+		newFields.remove(fieldName);
+		return new MemoryStoreObjectMetadata(this.className, this.version + 1,
+				newFields);
+	}
+
+	public String getClassName() {
+		return this.className;
+	}
+
+	public Collection<FieldMetadata> getFields() {
+		return this.fieldList;
+	}
+
+	public FieldMetadata getField(String fieldName) {
+		int index = getFieldIndex(fieldName);
+		return (index < 0) ? null : this.fields[index];
+	}
+
+	public int getFieldIndex(String fieldName) {
+		Integer index = this.indexes.get(fieldName);
+		return (index == null) ? -1 : index.intValue();
+	}
+
+	public FieldMetadata getField(int index) {
+		return this.fields[index];
+	}
+
+	public long getVersion() {
+		return this.version;
+	}
+
+	public Collection<FieldMetadata> getPrimaryKey() {
+		return this.primaryKey;
+	}
+
+	@Override
+	public String toString() {
+		return "MemoryStoreObjectMetadata[className=" + this.className
+				+ ";version=" + this.version + ";fields=" + this.fieldList
+				+ "]";
+	}
+}
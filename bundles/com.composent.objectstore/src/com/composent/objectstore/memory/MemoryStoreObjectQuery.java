@@ -0,0 +1,268 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Composent, Inc. and others. All rights reserved. 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ * 
+ * Contributors: Composent, Inc. - initial API and implementation
+ ******************************************************************************/
+package com.composent.objectstore.memory;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import com.composent.objectstore.IObjectStore.ScanHandler;
+import com.composent.objectstore.IObjectStore.Value;
+import com.composent.objectstore.ObjectCache;
+import com.composent.objectstore.StatementCache;
+import com.composent.objectstore.StoreException;
+import com.composent.objectstore.StoreObject;
+import com.composent.objectstore.StoreObjectMetadata;
+import com.composent.objectstore.StoreObjectQuery;
+import com.composent.objectstore.TokenRange;
+
+final class MemoryStoreObjectQuery extends StoreObjectQuery {
+
+	private static final int STATE_LENGTH = 24;
+
+	MemoryStoreObjectQuery(MemoryObjectStore store,
+			StoreObjectMetadata metadata, String queryName) {
+		super(store, metadata, queryName);
+	}
+
+	@Override
+	public Collection<StoreObject> execute() throws StoreException {
+		MemoryObjectStore store = (MemoryObjectStore) getStore();
+		MemoryObjectTable table = store.getTable(getClassName());
+		MemoryStatement statement = store.prepare(StatementCache.Key
+				.forQuery(this));
+		List<Relation> relations = getRelations();
+		Integer limit = getLimit();
+		List<StoreObject> results = new ArrayList<StoreObject>();
+		ObjectCache cache = store.getObjectCache();
+		boolean useCache = cache.isEnabled() && getCacheable();
+		List<UUID> ids = useCache ? getIds(relations) : null;
+		if (ids != null) {
+			for (UUID id : ids) {
+				if (limit != null && results.size() >= limit.intValue())
+					break;
+				StoreObject cached = cache.get(getClassName(), id);
+				if (cached != null)
+					results.add(store.revive(cached, statement));
+			}
+			return results;
+		}
+		List<MemoryRow> rows = selectById(table, relations);
+		for (MemoryRow row : (rows == null) ? table.scan() : rows) {
+			if (limit != null && results.size() >= limit.intValue())
+				break;
+			if (matches(row, relations))
+				results.add(store.revive(row, statement));
+		}
+		return results;
+	}
+
+	@Override
+	protected Page fetchPage(byte[] state, int pageSize)
+			throws StoreException {
+		if (pageSize < 1)
+			throw new IllegalArgumentException("pageSize must be > 0");
+		MemoryObjectStore store = (MemoryObjectStore) getStore();
+		MemoryObjectTable table = store.getTable(getClassName());
+		MemoryStatement statement = store.prepare(StatementCache.Key
+				.forQuery(this));
+		List<Relation> relations = getRelations();
+		// paging state is the token and id of the last row returned
+		long token = 0;
+		UUID id = null;
+		if (state != null) {
+			if (state.length != STATE_LENGTH)
+				throw new StoreException("invalid paging state for class="
+						+ getClassName());
+			ByteBuffer bb = ByteBuffer.wrap(state);
+			token = bb.getLong();
+			id = new UUID(bb.getLong(), bb.getLong());
+		}
+		List<MemoryRow> rows = selectById(table, relations);
+		List<StoreObject> results = new ArrayList<StoreObject>();
+		MemoryRow last = null;
+		// only stripes at or after the paging state need be scanned
+		int stripe = (id == null || rows != null) ? 0 : MemoryObjectTable
+				.stripeIndex(token);
+		for (; stripe < MemoryObjectTable.STRIPES; stripe++) {
+			for (MemoryRow row : (rows == null) ? table.scan(stripe) : rows) {
+				if (id != null && MemoryObjectTable.compare(row, token, id) <= 0)
+					continue;
+				if (!matches(row, relations))
+					continue;
+				// another matching row, so the page is not the last. last is
+				// not null, as pageSize > 0
+				if (results.size() >= pageSize)
+					return new Page(results, toState(last));
+				results.add(store.revive(row, statement));
+				last = row;
+			}
+			if (rows != null)
+				break;
+		}
+		return new Page(results, null);
+	}
+
+	@Override
+	protected void scanRange(TokenRange range,
+			ScanHandler<? super StoreObject> handler) throws StoreException {
+		MemoryObjectStore store = (MemoryObjectStore) getStore();
+		MemoryObjectTable table = store.getTable(getClassName());
+		MemoryStatement statement = store.prepare(StatementCache.Key
+				.forQuery(this));
+		List<Relation> relations = getRelations();
+		List<MemoryRow> rows = selectById(table, relations);
+		for (MemoryRow row : (rows == null) ? table.scan(range) : rows)
+			if (range.contains(row.getToken()) && matches(row, relations))
+				handler.handle(store.revive(row, statement));
+	}
+
+	private static byte[] toState(MemoryRow row) {
+		ByteBuffer bb = ByteBuffer.allocate(STATE_LENGTH);
+		bb.putLong(row.getToken());
+		bb.putLong(row.getId().getMostSignificantBits());
+		bb.putLong(row.getId().getLeastSignificantBits());
+		return bb.array();
+	}
+
+	/**
+	 * @return the relations of the where clause. The identifiers are
+	 *         validated when the statement is prepared.
+	 */
+	private List<Relation> getRelations() {
+		Where where = getWhere();
+		if (where == null)
+			return Collections.emptyList();
+		return where.getRelations();
+	}
+
+	/**
+	 * @return the ids, in token order, if the only relation is an id equal to
+	 *         (or in) the given ids, so that the query may be served from the
+	 *         object cache. Otherwise <code>null</code>.
+	 */
+	private List<UUID> getIds(List<Relation> relations) {
+		if (relations.size() != 1)
+			return null;
+		Relation r = relations.get(0);
+		Relation.Op op = r.getOpType();
+		if (!StoreObject.ID_NAME.equals(r.getIdentifier())
+				|| (op != null && op != Relation.Op.EQ))
+			return null;
+		List<UUID> ids = new ArrayList<UUID>();
+		for (Value v : r.getTypeValues())
+			if (v.getValue() instanceof UUID && !ids.contains(v.getValue()))
+				ids.add((UUID) v.getValue());
+		Collections.sort(ids, MemoryObjectTable.ID_TOKEN_ORDER);
+		return ids;
+	}
+
+	/**
+	 * @return the rows selected by an id (partition key) restriction, in
+	 *         token order, or <code>null</code> if there is no such
+	 *         restriction and the table must be scanned.
+	 */
+	private List<MemoryRow> selectById(MemoryObjectTable table,
+			List<Relation> relations) {
+		// Partition key restriction: lookup rows directly rather than scan
+		for (Relation r : relations) {
+			if (!StoreObject.ID_NAME.equals(r.getIdentifier()))
+				continue;
+			Relation.Op op = r.getOpType();
+			if (op != null && op != Relation.Op.EQ)
+				continue;
+			List<MemoryRow> rows = new ArrayList<MemoryRow>();
+			for (Value v : r.getTypeValues()) {
+				if (!(v.getValue() instanceof UUID))
+					continue;
+				MemoryRow row = table.get((UUID) v.getValue());
+				if (row != null && !rows.contains(row))
+					rows.add(row);
+			}
+			Collections.sort(rows, MemoryObjectTable.TOKEN_ORDER);
+			return rows;
+		}
+		return null;
+	}
+
+	static Object getValue(MemoryRow row, String identifier) {
+		if (StoreObject.ID_NAME.equals(identifier))
+			return row.getId();
+		if (StoreObject.LASTMODIFIEDDATE_NAME.equals(identifier))
+			return row.getLastModifiedAt();
+		return row.getColumn(identifier);
+	}
+
+	private boolean matches(MemoryRow row, List<Relation> relations)
+			throws StoreException {
+		for (Relation r : relations)
+			if (!matches(getValue(row, r.getIdentifier()), r))
+				return false;
+		return true;
+	}
+
+	private boolean matches(Object rowValue, Relation relation)
+			throws StoreException {
+		if (rowValue == null)
+			return false;
+		Relation.Op op = relation.getOpType();
+		List<Value> values = relation.getTypeValues();
+		if (op == null) {
+			// IN relation
+			for (Value v : values)
+				if (rowValue.equals(getRelationValue(v)))
+					return true;
+			return false;
+		}
+		Object value = getRelationValue(values.get(0));
+		if (op == Relation.Op.EQ)
+			return rowValue.equals(value);
+		int c = compare(relation, rowValue, value);
+		switch (op) {
+		case GT:
+			return c > 0;
+		case LT:
+			return c < 0;
+		case GTE:
+			return c >= 0;
+		case LTE:
+			return c <= 0;
+		default:
+			return false;
+		}
+	}
+
+	private Object getRelationValue(Value v) {
+		return v.isCollection() ? v.getCollectionValue().getValue() : v
+				.getValue();
+	}
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private int compare(Relation relation, Object rowValue, Object value)
+			throws StoreException {
+		if (value == null || !(rowValue instanceof Comparable)
+				|| !rowValue.getClass().equals(value.getClass()))
+			throw new StoreException("relation op=" + relation.getOpType()
+					+ " not supported for identifier="
+					+ relation.getIdentifier());
+		return ((Comparable) rowValue).compareTo(value);
+	}
+}